@@ -0,0 +1,172 @@
+/*
+    This file is part of Privacy Friendly Pain Diary.
+
+    Privacy Friendly Pain Diary is free software: you can redistribute it
+    and/or modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.secuso.privacyfriendlypaindiary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.work.ListenableWorker;
+import androidx.work.testing.TestListenableWorkerBuilder;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.secuso.privacyfriendlypaindiary.backup.AutoBackupWorker;
+import org.secuso.privacyfriendlypaindiary.backup.BackupCreator;
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabaseService;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.BodyRegion;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Condition;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DiaryEntry;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.PainDescription;
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface;
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Tests that the daily backup is skipped while the diary is unchanged, that
+ * it is written as a chain of deltas, and that only the latest generations
+ * and the backups they are restored from are kept.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AutoBackupWorkerTest {
+
+    private Context context;
+    private PainDiaryDatabaseService service;
+    private long today;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        service = PainDiaryDatabaseService.getInstance(context);
+        service.reinitializeDatabase(context);
+        for (File backup : AutoBackupWorker.getBackups(context)) {
+            assertTrue(backup.delete());
+        }
+        today = EpochDays.fromDate(new Date());
+    }
+
+    @Test
+    public void doWork_skipsUnchangedDiary() throws Exception {
+        store(today);
+        assertEquals(ListenableWorker.Result.success(), runWorker());
+        List<File> backups = AutoBackupWorker.getBackups(context);
+        assertEquals(1, backups.size());
+
+        assertEquals(ListenableWorker.Result.success(), runWorker());
+        assertEquals(backups, AutoBackupWorker.getBackups(context));
+
+        // an update adds no row, but a change to the change log
+        DiaryEntryInterface entry = service.getDiaryEntryByDate(EpochDays.toDate(today));
+        entry.setNotes("changed");
+        service.updateDiaryEntryAndAssociatedObjects(entry);
+        assertEquals(ListenableWorker.Result.success(), runWorker());
+        assertEquals(2, AutoBackupWorker.getBackups(context).size());
+
+        service.deleteDiaryEntryAndAssociatedObjects(entry);
+        assertEquals(ListenableWorker.Result.success(), runWorker());
+        assertEquals(3, AutoBackupWorker.getBackups(context).size());
+    }
+
+    @Test
+    public void doWork_keepsLatestGenerations() throws Exception {
+        int chainLength = BackupCreator.MAX_CHAIN_LENGTH + 1;
+        int runs = chainLength + AutoBackupWorker.GENERATIONS + 3;
+        List<File> previous = Collections.emptyList();
+        for (int i = 0; i < runs; i++) {
+            store(today - i);
+            // the backups are named after the time they were written
+            Thread.sleep(2);
+            assertEquals(ListenableWorker.Result.success(), runWorker());
+            List<File> backups = AutoBackupWorker.getBackups(context);
+            // every chain starts with a full backup
+            assertEquals(i % chainLength != 0, AutoBackupWorker.isDelta(backups.get(0)));
+            assertTrue(backups.size() >= Math.min(i + 1, AutoBackupWorker.GENERATIONS));
+            // the newest backup comes first
+            assertEquals(previous.subList(0, backups.size() - 1), backups.subList(1, backups.size()));
+            // beyond the latest generations only the chain of the oldest one is kept
+            List<File> older = backups.subList(Math.min(backups.size(), AutoBackupWorker.GENERATIONS - 1), backups.size());
+            for (int j = 0; j < older.size(); j++) {
+                assertEquals(j < older.size() - 1, AutoBackupWorker.isDelta(older.get(j)));
+            }
+            previous = backups;
+        }
+        // the new chain has dropped the old one
+        assertTrue(previous.size() < chainLength);
+
+        // the oldest generation is restored from its chain
+        File oldest = previous.get(AutoBackupWorker.GENERATIONS - 1);
+        List<File> chain = AutoBackupWorker.getChain(context, oldest);
+        assertFalse(AutoBackupWorker.isDelta(chain.get(0)));
+        assertEquals(oldest, chain.get(chain.size() - 1));
+        assertTrue(AutoBackupWorker.restore(context, oldest));
+        int last = runs - AutoBackupWorker.GENERATIONS;
+        assertNotNull(service.getDiaryEntryByDate(EpochDays.toDate(today - last)));
+        assertNull(service.getDiaryEntryByDate(EpochDays.toDate(today - last - 1)));
+    }
+
+    @Test
+    public void restore_replacesDiary() throws Exception {
+        store(today - 2);
+        assertEquals(ListenableWorker.Result.success(), runWorker());
+        Thread.sleep(2);
+        store(today - 1);
+        assertEquals(ListenableWorker.Result.success(), runWorker());
+        store(today);
+
+        List<File> backups = AutoBackupWorker.getBackups(context);
+        assertTrue(AutoBackupWorker.isDelta(backups.get(0)));
+        assertTrue(AutoBackupWorker.restore(context, backups.get(0)));
+
+        assertNotNull(service.getDiaryEntryByDate(EpochDays.toDate(today - 2)));
+        assertNotNull(service.getDiaryEntryByDate(EpochDays.toDate(today - 1)));
+        assertNull(service.getDiaryEntryByDate(EpochDays.toDate(today)));
+    }
+
+    @Test
+    public void deleteBackups_forgetsDiary() throws Exception {
+        store(today);
+        assertEquals(ListenableWorker.Result.success(), runWorker());
+
+        AutoBackupWorker.deleteBackups(context);
+
+        assertTrue(AutoBackupWorker.getBackups(context).isEmpty());
+        // without a backup to compare with, the unchanged diary is backed up again
+        assertEquals(ListenableWorker.Result.success(), runWorker());
+        assertEquals(1, AutoBackupWorker.getBackups(context).size());
+    }
+
+    private ListenableWorker.Result runWorker() throws Exception {
+        return TestListenableWorkerBuilder.from(context, AutoBackupWorker.class).build().startWork().get();
+    }
+
+    private void store(long day) {
+        service.storeDiaryEntryAndAssociatedObjects(new DiaryEntry(EpochDays.toDate(day), Condition.GOOD,
+                new PainDescription(3, EnumSet.of(BodyRegion.HEAD)), "note", Collections.emptySet()));
+    }
+}
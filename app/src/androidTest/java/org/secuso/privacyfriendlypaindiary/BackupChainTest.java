@@ -0,0 +1,181 @@
+/*
+    This file is part of Privacy Friendly Pain Diary.
+
+    Privacy Friendly Pain Diary is free software: you can redistribute it
+    and/or modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.secuso.privacyfriendlypaindiary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.secuso.privacyfriendlypaindiary.backup.BackupCreator;
+import org.secuso.privacyfriendlypaindiary.backup.BackupFormat;
+import org.secuso.privacyfriendlypaindiary.backup.BackupRestorer;
+import org.secuso.privacyfriendlypaindiary.database.ChangeLog;
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabase;
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabaseService;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.BodyRegion;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Condition;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DiaryEntry;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.Drug;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DrugIntake;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.PainDescription;
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface;
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DrugIntakeInterface;
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Tests incremental backups: a full backup followed by deltas, written from
+ * the change log, restores the same rows as the database they were taken of.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BackupChainTest {
+
+    private Context context;
+    private PainDiaryDatabaseService service;
+    private long today;
+    // a chain of its own, so other backups of the app do not continue it
+    private String chainName;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        service = PainDiaryDatabaseService.getInstance(context);
+        service.reinitializeDatabase(context);
+        today = EpochDays.fromDate(new Date());
+        chainName = "test-" + UUID.randomUUID();
+    }
+
+    @Test
+    public void restoreChain_appliesInsertsUpdatesAndDeletes() throws Exception {
+        for (long day = today - 10; day < today; day++) {
+            store(day, "day " + day);
+        }
+        List<byte[]> backups = new ArrayList<>();
+        backups.add(writeBackup(false));
+
+        // inserts, with a drug intake
+        Set<DrugIntakeInterface> intakes = Collections.singleton(new DrugIntake(new Drug("Ibuprofen", "400 mg"), 1, 0, 1, 0));
+        service.storeDiaryEntryAndAssociatedObjects(new DiaryEntry(EpochDays.toDate(today), Condition.BAD,
+                new PainDescription(7, EnumSet.of(BodyRegion.NECK)), "new", intakes));
+        backups.add(writeBackup(true));
+
+        // updates
+        DiaryEntryInterface updated = service.getDiaryEntryByDate(EpochDays.toDate(today - 5));
+        updated.setNotes("updated");
+        updated.getPainDescription().setPainLevel(9);
+        service.updateDiaryEntryAndAssociatedObjects(updated);
+        backups.add(writeBackup(true));
+
+        // deletes
+        service.deleteDiaryEntryAndAssociatedObjects(service.getDiaryEntryByDate(EpochDays.toDate(today - 3)));
+        backups.add(writeBackup(true));
+
+        List<String> expected = dumpRows();
+        service.reinitializeDatabase(context);
+        assertNotEquals(expected, dumpRows());
+
+        assertTrue(new BackupRestorer().restoreChain(context, toStreams(backups)));
+
+        assertEquals(expected, dumpRows());
+        assertEquals("updated", service.getDiaryEntryByDate(EpochDays.toDate(today - 5)).getNotes());
+        assertNull(service.getDiaryEntryByDate(EpochDays.toDate(today - 3)));
+        assertEquals(1, service.getDiaryEntryByDate(EpochDays.toDate(today)).getDrugIntakes().size());
+    }
+
+    @Test
+    public void restoreChain_rejectsGap() throws Exception {
+        store(today - 2, "full");
+        byte[] full = writeBackup(false);
+        store(today - 1, "first delta");
+        writeBackup(true);
+        store(today, "second delta");
+        byte[] second = writeBackup(true);
+
+        List<String> current = dumpRows();
+        // the second delta starts where the first one ended, not at the full backup
+        assertFalse(new BackupRestorer().restoreChain(context, toStreams(Arrays.asList(full, second))));
+        assertEquals(current, dumpRows());
+    }
+
+    /**
+     * Writes the next backup of the chain.
+     *
+     * @param delta whether it is expected to be a delta, or the full backup the chain starts with
+     */
+    private byte[] writeBackup(boolean delta) {
+        ByteArrayOutputStream backup = new ByteArrayOutputStream();
+        assertTrue(new BackupCreator(BackupFormat.DELTA, chainName).writeBackup(context, backup));
+        assertEquals(delta, BackupCreator.getLastStats().getFormat() == BackupFormat.DELTA);
+        return backup.toByteArray();
+    }
+
+    private void store(long day, String notes) {
+        service.storeDiaryEntryAndAssociatedObjects(new DiaryEntry(EpochDays.toDate(day), Condition.GOOD,
+                new PainDescription(3, EnumSet.of(BodyRegion.HEAD)), notes, Collections.emptySet()));
+    }
+
+    private static List<InputStream> toStreams(List<byte[]> backups) {
+        List<InputStream> streams = new ArrayList<>();
+        for (byte[] backup : backups) {
+            streams.add(new ByteArrayInputStream(backup));
+        }
+        return streams;
+    }
+
+    /**
+     * Returns every row of the tracked tables, with its ID.
+     */
+    private List<String> dumpRows() {
+        SupportSQLiteDatabase db = PainDiaryDatabase.Companion.getInstance(context).getOpenHelper().getReadableDatabase();
+        List<String> rows = new ArrayList<>();
+        for (String table : ChangeLog.TRACKED_TABLES) {
+            try (Cursor cursor = db.query("SELECT * FROM `" + table + "` ORDER BY _id")) {
+                while (cursor.moveToNext()) {
+                    StringBuilder row = new StringBuilder(table);
+                    for (int i = 0; i < cursor.getColumnCount(); i++) {
+                        row.append('|').append(cursor.getString(i));
+                    }
+                    rows.add(row.toString());
+                }
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+    This file is part of Privacy Friendly Pain Diary.
+
+    Privacy Friendly Pain Diary is free software: you can redistribute it
+    and/or modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.secuso.privacyfriendlypaindiary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.secuso.privacyfriendlypaindiary.backup.BackupCreator;
+import org.secuso.privacyfriendlypaindiary.backup.BackupFormat;
+import org.secuso.privacyfriendlypaindiary.backup.BackupRestorer;
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabase;
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabaseService;
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Compares the size, write time and restore time of the backup formats on a
+ * synthetic diary of ten years with an entry every day.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BackupFormatBenchmarkTest {
+
+    private static final String TAG = BackupFormatBenchmarkTest.class.getSimpleName();
+    private static final String BENCHMARK_DATABASE_NAME = "benchmarkDatabase";
+    private static final int DAYS = 3650;
+    private static final String[] QUALITIES = {"stabbing", "dull", "shooting", "burning", "throbbing"};
+    private static final String[] TIMES = {"all day", "morning", "afternoon", "evening", "at night"};
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        PainDiaryDatabaseService.getInstance(context).reinitializeDatabase(context);
+        SupportSQLiteDatabase db = PainDiaryDatabase.Companion.getInstance(context).getOpenHelper().getWritableDatabase();
+        int firstDay = EpochDays.fromCivil(2014, 1, 1);
+        db.beginTransaction();
+        try {
+            db.execSQL("INSERT INTO drugs(_id, name, dose) VALUES (1, 'Ibuprofen', '400 mg'), (2, 'Paracetamol', '500 mg')");
+            for (int day = 0; day < DAYS; day++) {
+                long id = day + 1;
+                db.execSQL("INSERT INTO paindescriptions(_id, painLevel, bodyRegions, painQualities, timesOfPain) VALUES (?, ?, ?, ?, ?)",
+                        new Object[]{id, day % 11, (day % 44) + "," + ((day * 7) % 44), QUALITIES[day % 5], TIMES[day % 5]});
+                db.execSQL("INSERT INTO diaryentries(_id, date, painDescription_id, condition, notes) VALUES (?, ?, ?, ?, ?)",
+                        new Object[]{id, EpochDays.toDatabaseString(firstDay + day), id, day % 5,
+                                day % 3 == 0 ? "Slept badly, headache in the afternoon." : null});
+                db.execSQL("INSERT INTO drugintakes(morning, noon, evening, night, drug_id, diaryEntry_id) VALUES (?, ?, ?, ?, ?, ?)",
+                        new Object[]{1, 0, day % 2, 0, 1 + day % 2, id});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Test
+    public void compareFormats() throws IOException {
+        Map<BackupFormat, BackupCreator.Stats> written = new EnumMap<>(BackupFormat.class);
+        for (BackupFormat format : new BackupFormat[]{BackupFormat.JSON, BackupFormat.SNAPSHOT, BackupFormat.BINARY}) {
+            File file = new File(context.getCacheDir(), "benchmark-" + format);
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                assertTrue("Backup failed.", new BackupCreator(format).writeBackup(context, out));
+            }
+            BackupCreator.Stats stats = BackupCreator.getLastStats();
+            assertNotNull(stats);
+            written.put(stats.getFormat(), stats);
+
+            long start = SystemClock.elapsedRealtime();
+            try (InputStream in = new FileInputStream(file)) {
+                new BackupRestorer().readFullBackup(context, in, BENCHMARK_DATABASE_NAME);
+            }
+            long restoreMillis = SystemClock.elapsedRealtime() - start;
+            assertEquals("Entry count incorrect.", DAYS, countEntries());
+
+            Log.i(TAG, String.format("%-8s %9d bytes, written in %5d ms, restored in %5d ms",
+                    stats.getFormat(), stats.getBytes(), stats.getMillis(), restoreMillis));
+            context.deleteDatabase(BENCHMARK_DATABASE_NAME);
+            file.delete();
+        }
+        assertTrue("Binary backup not smaller than JSON.",
+                written.get(BackupFormat.BINARY).getBytes() < written.get(BackupFormat.JSON).getBytes());
+    }
+
+    private long countEntries() {
+        String path = context.getDatabasePath(BENCHMARK_DATABASE_NAME).getPath();
+        try (SQLiteDatabase db = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY);
+             Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM diaryentries", null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+}
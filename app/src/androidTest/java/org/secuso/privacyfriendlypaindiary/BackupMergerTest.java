@@ -0,0 +1,198 @@
+/*
+    This file is part of Privacy Friendly Pain Diary.
+
+    Privacy Friendly Pain Diary is free software: you can redistribute it
+    and/or modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.secuso.privacyfriendlypaindiary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.secuso.privacyfriendlypaindiary.backup.BackupCreator;
+import org.secuso.privacyfriendlypaindiary.backup.BackupFormat;
+import org.secuso.privacyfriendlypaindiary.backup.BackupMerger;
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabaseService;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.BodyRegion;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Condition;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DiaryEntry;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.Drug;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DrugIntake;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.PainDescription;
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface;
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DrugIntakeInterface;
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests merging a backup into a diary with entries of its own.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BackupMergerTest {
+
+    @Test
+    public void merge_combinesEntriesOfTheSameDay() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        PainDiaryDatabaseService service = PainDiaryDatabaseService.getInstance(context);
+        long today = EpochDays.fromDate(new Date());
+        // the backup has entries on every second day, the diary on every third one
+        service.reinitializeDatabase(context);
+        for (long day = today - 600; day < today; day += 2) {
+            store(service, day, 2, BodyRegion.HEAD, "backup");
+        }
+        ByteArrayOutputStream backup = new ByteArrayOutputStream();
+        assertTrue(new BackupCreator(BackupFormat.BINARY).writeBackup(context, backup));
+
+        service.reinitializeDatabase(context);
+        for (long day = today - 600; day < today; day += 3) {
+            store(service, day, 5, BodyRegion.NECK, "diary");
+        }
+
+        BackupMerger.Stats stats = new BackupMerger(BackupMerger.Policy.COMBINE)
+                .merge(context, new ByteArrayInputStream(backup.toByteArray()));
+
+        assertEquals(100, stats.getMerged());
+        assertEquals(200, stats.getAdded());
+        assertEquals(0, stats.getKept());
+        assertEquals(400, service.getDiaryEntryDatesByTimeSpan(EpochDays.toDate(today - 600), EpochDays.toDate(today)).size());
+
+        DiaryEntryInterface combined = service.getDiaryEntryByDate(EpochDays.toDate(today - 600));
+        assertEquals("diary\nbackup", combined.getNotes());
+        assertEquals(5, combined.getPainDescription().getPainLevel());
+        assertEquals(EnumSet.of(BodyRegion.HEAD, BodyRegion.NECK), combined.getPainDescription().getBodyRegions());
+        DiaryEntryInterface added = service.getDiaryEntryByDate(EpochDays.toDate(today - 598));
+        assertEquals("backup", added.getNotes());
+    }
+
+    @Test
+    public void merge_keepsCurrentEntries() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        PainDiaryDatabaseService service = PainDiaryDatabaseService.getInstance(context);
+        long today = EpochDays.fromDate(new Date());
+        service.reinitializeDatabase(context);
+        store(service, today - 2, 2, BodyRegion.HEAD, "backup");
+        store(service, today - 1, 2, BodyRegion.HEAD, "backup");
+        byte[] backup = writeBackup(context);
+
+        service.reinitializeDatabase(context);
+        store(service, today - 1, 5, BodyRegion.NECK, "diary");
+
+        BackupMerger.Stats stats = new BackupMerger(BackupMerger.Policy.KEEP_CURRENT)
+                .merge(context, new ByteArrayInputStream(backup));
+
+        assertEquals(1, stats.getAdded());
+        assertEquals(0, stats.getMerged());
+        assertEquals(1, stats.getKept());
+        DiaryEntryInterface kept = service.getDiaryEntryByDate(EpochDays.toDate(today - 1));
+        assertEquals("diary", kept.getNotes());
+        assertEquals(5, kept.getPainDescription().getPainLevel());
+        assertEquals(EnumSet.of(BodyRegion.NECK), kept.getPainDescription().getBodyRegions());
+        assertEquals("backup", service.getDiaryEntryByDate(EpochDays.toDate(today - 2)).getNotes());
+    }
+
+    @Test
+    public void merge_replacesCurrentEntries() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        PainDiaryDatabaseService service = PainDiaryDatabaseService.getInstance(context);
+        long today = EpochDays.fromDate(new Date());
+        service.reinitializeDatabase(context);
+        store(service, today - 1, 2, BodyRegion.HEAD, "backup");
+        byte[] backup = writeBackup(context);
+
+        service.reinitializeDatabase(context);
+        store(service, today - 1, 5, BodyRegion.NECK, "diary");
+        store(service, today, 5, BodyRegion.NECK, "diary");
+
+        BackupMerger.Stats stats = new BackupMerger(BackupMerger.Policy.KEEP_BACKUP)
+                .merge(context, new ByteArrayInputStream(backup));
+
+        assertEquals(0, stats.getAdded());
+        assertEquals(1, stats.getMerged());
+        assertEquals(0, stats.getKept());
+        assertEquals(2, service.getDiaryEntryDatesByTimeSpan(EpochDays.toDate(today - 1), EpochDays.toDate(today)).size());
+        DiaryEntryInterface replaced = service.getDiaryEntryByDate(EpochDays.toDate(today - 1));
+        assertEquals("backup", replaced.getNotes());
+        assertEquals(2, replaced.getPainDescription().getPainLevel());
+        assertEquals(EnumSet.of(BodyRegion.HEAD), replaced.getPainDescription().getBodyRegions());
+        // entries missing in the backup are left alone
+        assertEquals("diary", service.getDiaryEntryByDate(EpochDays.toDate(today)).getNotes());
+    }
+
+    @Test
+    public void merge_doesNotDoubleDrugsTakenOnBothDevices() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        PainDiaryDatabaseService service = PainDiaryDatabaseService.getInstance(context);
+        long today = EpochDays.fromDate(new Date());
+        service.reinitializeDatabase(context);
+        Set<DrugIntakeInterface> backupIntakes = new HashSet<>();
+        backupIntakes.add(new DrugIntake(new Drug("Ibuprofen", "400 mg"), 0, 0, 1, 0));
+        backupIntakes.add(new DrugIntake(new Drug("Ibuprofen", "600 mg"), 1, 0, 0, 0));
+        backupIntakes.add(new DrugIntake(new Drug("Paracetamol", "500 mg"), 0, 1, 0, 0));
+        store(service, today, backupIntakes);
+        byte[] backup = writeBackup(context);
+
+        service.reinitializeDatabase(context);
+        Set<DrugIntakeInterface> currentIntakes = new HashSet<>();
+        currentIntakes.add(new DrugIntake(new Drug("Ibuprofen", "400 mg"), 1, 0, 0, 0));
+        store(service, today, currentIntakes);
+
+        BackupMerger.Stats stats = new BackupMerger(BackupMerger.Policy.COMBINE)
+                .merge(context, new ByteArrayInputStream(backup));
+
+        assertEquals(1, stats.getMerged());
+        Map<String, DrugIntakeInterface> intakes = new HashMap<>();
+        for (DrugIntakeInterface intake : service.getDiaryEntryByDate(EpochDays.toDate(today)).getDrugIntakes()) {
+            intakes.put(intake.getDrug().getName() + " " + intake.getDrug().getDose(), intake);
+        }
+        assertEquals(3, intakes.size());
+        // the current intake of the same drug and dose is kept as it is
+        DrugIntakeInterface same = intakes.get("Ibuprofen 400 mg");
+        assertEquals(1, same.getQuantityMorning());
+        assertEquals(0, same.getQuantityEvening());
+        // another dose is another drug
+        assertEquals(1, intakes.get("Ibuprofen 600 mg").getQuantityMorning());
+        assertEquals(1, intakes.get("Paracetamol 500 mg").getQuantityNoon());
+    }
+
+    private static byte[] writeBackup(Context context) throws Exception {
+        ByteArrayOutputStream backup = new ByteArrayOutputStream();
+        assertTrue(new BackupCreator(BackupFormat.BINARY).writeBackup(context, backup));
+        return backup.toByteArray();
+    }
+
+    private static void store(PainDiaryDatabaseService service, long day, int painLevel, BodyRegion region, String notes) {
+        service.storeDiaryEntryAndAssociatedObjects(new DiaryEntry(EpochDays.toDate(day), Condition.GOOD,
+                new PainDescription(painLevel, EnumSet.of(region)), notes, Collections.emptySet()));
+    }
+
+    private static void store(PainDiaryDatabaseService service, long day, Set<DrugIntakeInterface> intakes) {
+        service.storeDiaryEntryAndAssociatedObjects(new DiaryEntry(EpochDays.toDate(day), Condition.GOOD,
+                new PainDescription(3, EnumSet.of(BodyRegion.HEAD)), null, intakes));
+    }
+}
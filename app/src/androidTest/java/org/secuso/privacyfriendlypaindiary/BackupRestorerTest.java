@@ -0,0 +1,137 @@
+/*
+    This file is part of Privacy Friendly Pain Diary.
+
+    Privacy Friendly Pain Diary is free software: you can redistribute it
+    and/or modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.secuso.privacyfriendlypaindiary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.secuso.privacyfriendlypaindiary.backup.BackupCreator;
+import org.secuso.privacyfriendlypaindiary.backup.BackupFormat;
+import org.secuso.privacyfriendlypaindiary.backup.BackupProvider;
+import org.secuso.privacyfriendlypaindiary.backup.BackupRestorer;
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabaseService;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.BodyRegion;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Condition;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DiaryEntry;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.PainDescription;
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+
+/**
+ * Tests that a restored backup replaces the database of the running app,
+ * together with everything cached from it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BackupRestorerTest {
+
+    private Context context;
+    private PainDiaryDatabaseService service;
+    private long today;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        service = PainDiaryDatabaseService.getInstance(context);
+        service.reinitializeDatabase(context);
+        today = EpochDays.fromDate(new Date());
+    }
+
+    @Test
+    public void restoreBackup_replacesDatabaseAndCaches() throws Exception {
+        assertTrue(BackupProvider.isAppProcess(context));
+        byte[] backup = prepareDiary();
+
+        assertTrue(new BackupRestorer().restoreBackup(context, new ByteArrayInputStream(backup)));
+
+        assertRestored();
+    }
+
+    @Test
+    public void restore_throughAppProcess() throws Exception {
+        byte[] backup = prepareDiary();
+        // as the backup process hands over a verified backup
+        File file = new File(context.getCacheDir(), "restore-test");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(backup);
+        }
+
+        try {
+            assertTrue(BackupProvider.restore(context, Collections.singletonList(file)));
+        } finally {
+            file.delete();
+        }
+
+        assertRestored();
+    }
+
+    @Test
+    public void writeBackup_throughAppProcess() throws Exception {
+        store(today - 2, "backup");
+        ByteArrayOutputStream backup = new ByteArrayOutputStream();
+        assertTrue(BackupProvider.writeBackup(context, BackupFormat.BINARY, BackupCreator.DEFAULT_CHAIN, backup));
+        store(today - 1, "after backup");
+        store(today, "after backup");
+
+        assertTrue(new BackupRestorer().restoreBackup(context, new ByteArrayInputStream(backup.toByteArray())));
+
+        assertRestored();
+    }
+
+    /**
+     * Writes a backup with one entry, then adds two more and fills the caches.
+     */
+    private byte[] prepareDiary() {
+        store(today - 2, "backup");
+        ByteArrayOutputStream backup = new ByteArrayOutputStream();
+        assertTrue(new BackupCreator().writeBackup(context, backup));
+        store(today - 1, "after backup");
+        store(today, "after backup");
+        assertEquals(3, service.getDiarySnapshot().getSize());
+        assertNotNull(service.getDiaryEntryByDate(EpochDays.toDate(today)));
+        return backup.toByteArray();
+    }
+
+    private void assertRestored() {
+        assertEquals("backup", service.getDiaryEntryByDate(EpochDays.toDate(today - 2)).getNotes());
+        assertNull(service.getDiaryEntryByDate(EpochDays.toDate(today - 1)));
+        assertNull(service.getDiaryEntryByDate(EpochDays.toDate(today)));
+        assertEquals(1, service.getDiarySnapshot().getSize());
+        assertEquals(1, service.getDiaryEntryDatesByTimeSpan(EpochDays.toDate(today - 2), EpochDays.toDate(today)).size());
+    }
+
+    private void store(long day, String notes) {
+        service.storeDiaryEntryAndAssociatedObjects(new DiaryEntry(EpochDays.toDate(day), Condition.GOOD,
+                new PainDescription(3, EnumSet.of(BodyRegion.HEAD)), notes, Collections.emptySet()));
+    }
+}
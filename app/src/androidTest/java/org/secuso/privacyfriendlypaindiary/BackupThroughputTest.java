@@ -0,0 +1,108 @@
+/*
+    This file is part of Privacy Friendly Pain Diary.
+
+    Privacy Friendly Pain Diary is free software: you can redistribute it
+    and/or modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.secuso.privacyfriendlypaindiary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.secuso.privacyfriendlypaindiary.backup.BackupCreator;
+import org.secuso.privacyfriendlypaindiary.backup.BackupFormat;
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabaseService;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.BodyRegion;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Condition;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.PainQuality;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Time;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DiaryEntry;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.Drug;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DrugIntake;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.PainDescription;
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DrugIntakeInterface;
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+
+/**
+ * Measures the throughput of the backup formats written by {@link BackupCreator}
+ * on a diary of two years.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BackupThroughputTest {
+
+    private static final String TAG = BackupThroughputTest.class.getSimpleName();
+    private static final int DAYS = 730;
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        PainDiaryDatabaseService service = PainDiaryDatabaseService.getInstance(context);
+        service.reinitializeDatabase(context);
+        int firstDay = EpochDays.fromDate(new Date()) - DAYS;
+        for (int day = 0; day < DAYS; day++) {
+            PainDescription painDescription = new PainDescription(day % 11, EnumSet.of(BodyRegion.values()[day % 44]),
+                    EnumSet.of(PainQuality.DULL), EnumSet.of(Time.MORNING, Time.EVENING));
+            DrugIntakeInterface intake = new DrugIntake(new Drug("Ibuprofen", "400 mg"), 1, 0, day % 2, 0);
+            service.storeDiaryEntryAndAssociatedObjects(new DiaryEntry(EpochDays.toDate(firstDay + day),
+                    Condition.valueOf(day % 5), painDescription, "Entry " + day, Collections.singleton(intake)));
+        }
+    }
+
+    @Test
+    public void testSnapshotThroughput() throws IOException {
+        BackupCreator.Stats stats = writeBackup(BackupFormat.SNAPSHOT);
+        // VACUUM INTO needs SQLite 3.27
+        BackupFormat expected = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? BackupFormat.SNAPSHOT : BackupFormat.JSON;
+        assertEquals("Format incorrect.", expected, stats.getFormat());
+    }
+
+    @Test
+    public void testJsonThroughput() throws IOException {
+        BackupCreator.Stats stats = writeBackup(BackupFormat.JSON);
+        assertEquals("Format incorrect.", BackupFormat.JSON, stats.getFormat());
+    }
+
+    private BackupCreator.Stats writeBackup(BackupFormat format) throws IOException {
+        File file = new File(context.getCacheDir(), "backup-" + format);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            assertTrue("Backup failed.", new BackupCreator(format).writeBackup(context, out));
+        }
+        BackupCreator.Stats stats = BackupCreator.getLastStats();
+        assertNotNull(stats);
+        assertEquals("Size incorrect.", file.length(), stats.getBytes());
+        Log.i(TAG, stats.getFormat() + ": " + stats.getBytes() + " bytes in " + stats.getMillis() + " ms, "
+                + stats.getBytesPerSecond() / 1024 + " KiB/s");
+        file.delete();
+        return stats;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+    This file is part of Privacy Friendly Pain Diary.
+
+    Privacy Friendly Pain Diary is free software: you can redistribute it
+    and/or modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.secuso.privacyfriendlypaindiary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.secuso.privacyfriendlypaindiary.backup.BackupCreator;
+import org.secuso.privacyfriendlypaindiary.backup.BackupFormat;
+import org.secuso.privacyfriendlypaindiary.backup.BackupVerifier;
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabase;
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabaseService;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.BodyRegion;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Condition;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DiaryEntry;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.PainDescription;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+
+/**
+ * Tests that broken backups are rejected with the reason, before anything
+ * is restored from them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BackupVerifierTest {
+
+    private static final String BACKUP = "{\"database\":{\"version\":" + PainDiaryDatabase.VERSION + ",\"content\":["
+            + "{\"tableName\":\"users\",\"values\":[]},"
+            + "{\"tableName\":\"drugs\",\"values\":[{\"_id\":1,\"name\":\"Ibuprofen\",\"dose\":null}]},"
+            + "{\"tableName\":\"paindescriptions\",\"values\":[{\"_id\":1,\"painLevel\":3}]},"
+            + "{\"tableName\":\"diaryentries\",\"values\":[{\"_id\":1,\"date\":\"2024-01-01\",\"painDescription_id\":1}]},"
+            + "{\"tableName\":\"drugintakes\",\"values\":[{\"_id\":1,\"morning\":1,\"drug_id\":1,\"diaryEntry_id\":1}]}"
+            + "]},\"counts\":{\"drugs\":1,\"drugintakes\":1},"
+            + "\"preferences\":{\"pref_medication\":true,\"userID\":1}}";
+
+    @Test
+    public void verify_acceptsValidBackup() {
+        BackupVerifier.Result result = verify(BACKUP);
+
+        assertTrue(result.toString(), result.isValid());
+        assertEquals(BackupFormat.JSON, result.getFormat());
+        assertEquals(Integer.valueOf(PainDiaryDatabase.VERSION), result.getDatabaseVersion());
+        assertEquals(Long.valueOf(1), result.getRowCounts().get("drugintakes"));
+    }
+
+    @Test
+    public void verify_rejectsTruncatedBackup() {
+        BackupVerifier.Result result = verify(BACKUP.substring(0, BACKUP.length() / 2));
+
+        assertFalse(result.isValid());
+        assertTrue(result.getProblems().get(0), result.getProblems().get(0).startsWith("Malformed backup"));
+    }
+
+    @Test
+    public void verify_rejectsTruncatedWrittenBackups() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        PainDiaryDatabaseService service = PainDiaryDatabaseService.getInstance(context);
+        service.reinitializeDatabase(context);
+        service.storeDiaryEntryAndAssociatedObjects(new DiaryEntry(new Date(), Condition.GOOD,
+                new PainDescription(3, EnumSet.of(BodyRegion.HEAD)), "note", Collections.emptySet()));
+
+        for (BackupFormat format : Arrays.asList(BackupFormat.BINARY, BackupFormat.SNAPSHOT)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertTrue(new BackupCreator(format).writeBackup(context, out));
+            byte[] backup = out.toByteArray();
+            // without VACUUM INTO, a snapshot is written as JSON
+            BackupVerifier.Result complete = BackupVerifier.verify(new ByteArrayInputStream(backup));
+            assertTrue(complete.toString(), complete.isValid());
+
+            BackupVerifier.Result result = BackupVerifier.verify(
+                    new ByteArrayInputStream(Arrays.copyOf(backup, backup.length / 2)));
+
+            assertFalse(format.name(), result.isValid());
+            assertEquals(complete.getFormat(), result.getFormat());
+        }
+    }
+
+    @Test
+    public void verify_rejectsDuplicateId() {
+        assertProblem("Duplicate paindescriptions._id 1", verify(BACKUP.replace(
+                "[{\"_id\":1,\"painLevel\":3}]",
+                "[{\"_id\":1,\"painLevel\":3},{\"_id\":1,\"painLevel\":5}]")));
+    }
+
+    @Test
+    public void verify_rejectsDanglingReference() {
+        assertProblem("1 drugs referred to by drugintakes.drug_id are missing, e.g. 7",
+                verify(BACKUP.replace("\"drug_id\":1", "\"drug_id\":7")));
+    }
+
+    @Test
+    public void verify_rejectsCountMismatch() {
+        assertProblem("Backup declares 2 rows of drugintakes, but contains 1",
+                verify(BACKUP.replace("\"drugintakes\":1", "\"drugintakes\":2")));
+    }
+
+    @Test
+    public void verify_rejectsUnknownPreference() {
+        assertProblem("Unknown preference pref_unknown",
+                verify(BACKUP.replace("\"pref_medication\"", "\"pref_unknown\"")));
+    }
+
+    private static BackupVerifier.Result verify(String backup) {
+        return BackupVerifier.verify(new ByteArrayInputStream(backup.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void assertProblem(String problem, BackupVerifier.Result result) {
+        assertFalse(result.isValid());
+        assertEquals(Collections.singletonList(problem), result.getProblems());
+    }
+}
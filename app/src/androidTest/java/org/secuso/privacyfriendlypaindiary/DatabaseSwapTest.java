@@ -0,0 +1,97 @@
+/*
+    This file is part of Privacy Friendly Pain Diary.
+
+    Privacy Friendly Pain Diary is free software: you can redistribute it
+    and/or modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.secuso.privacyfriendlypaindiary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabaseService;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.BodyRegion;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Condition;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.PainQuality;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Time;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DiaryEntry;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.PainDescription;
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests that the database can be replaced while other threads keep using it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseSwapTest {
+
+    private static final String TAG = DatabaseSwapTest.class.getSimpleName();
+    private static final int READERS = 4;
+
+    @Test
+    public void reinitializeDatabase_whileReading() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        PainDiaryDatabaseService service = PainDiaryDatabaseService.getInstance(context);
+        service.reinitializeDatabase(context);
+        Date today = EpochDays.toDate(EpochDays.fromDate(new Date()));
+        service.storeDiaryEntryAndAssociatedObjects(new DiaryEntry(today, Condition.GOOD,
+                new PainDescription(3, EnumSet.of(BodyRegion.HEAD), EnumSet.of(PainQuality.DULL), EnumSet.of(Time.MORNING)),
+                "before", Collections.emptySet()));
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < READERS; i++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    while (running.get()) {
+                        service.getDiaryEntryByDate(today);
+                        service.getAllDrugs();
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        service.reinitializeDatabase(context);
+        Log.d(TAG, "Replaced database in " + (SystemClock.elapsedRealtime() - start) + " ms");
+
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+        assertNull(service.getDiaryEntryByDate(today));
+        assertEquals(0, service.getDiarySnapshot().getSize());
+    }
+}
@@ -0,0 +1,112 @@
+package org.secuso.privacyfriendlypaindiary;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.BodyRegion;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Condition;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DiaryEntry;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.PainDescription;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.User;
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface;
+import org.secuso.privacyfriendlypaindiary.helpers.PdfCreator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares size and rendering time of a pdf export of one year of entries with
+ * vector figures and with embedded figure images.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PdfFigureComparisonTest {
+
+    private static final String TAG = PdfFigureComparisonTest.class.getSimpleName();
+
+    @Test
+    public void vectorFigures_areSmallerThanImages() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        List<DiaryEntryInterface> entries = createYearOfEntries();
+        Date startDate = entries.get(0).getDate();
+        Date endDate = entries.get(entries.size() - 1).getDate();
+
+        // warm up the traced paths and the class loading of both variants
+        export(context, entries.subList(0, 2), startDate, endDate, true);
+        export(context, entries.subList(0, 2), startDate, endDate, false);
+
+        long start = SystemClock.elapsedRealtime();
+        long rasterBytes = export(context, entries, startDate, endDate, false);
+        long rasterMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        long vectorBytes = export(context, entries, startDate, endDate, true);
+        long vectorMillis = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "images: " + rasterBytes + " bytes in " + rasterMillis + " ms, vectors: "
+                + vectorBytes + " bytes in " + vectorMillis + " ms");
+        assertTrue("Vector export (" + vectorBytes + " bytes) is not smaller than image export ("
+                + rasterBytes + " bytes)", vectorBytes < rasterBytes);
+    }
+
+    private static long export(Context context, List<DiaryEntryInterface> entries, Date startDate, Date endDate,
+                               boolean vectorFigures) throws IOException {
+        PdfCreator creator = new PdfCreator(context, startDate, endDate, entries, new User());
+        creator.setVectorFigures(vectorFigures);
+        CountingOutputStream out = new CountingOutputStream();
+        creator.writePdfDocument(out);
+        return out.count;
+    }
+
+    private static List<DiaryEntryInterface> createYearOfEntries() {
+        Random random = new Random(2018);
+        BodyRegion[] regions = BodyRegion.values();
+        Condition[] conditions = Condition.values();
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2018, Calendar.JANUARY, 1);
+
+        List<DiaryEntryInterface> entries = new ArrayList<>();
+        for (int day = 0; day < 365; day++) {
+            EnumSet<BodyRegion> bodyRegions = EnumSet.noneOf(BodyRegion.class);
+            // a few recurring combinations, as in a real diary
+            Random combination = new Random(random.nextInt(6));
+            for (int i = 0; i < 3; i++) {
+                bodyRegions.add(regions[combination.nextInt(regions.length)]);
+            }
+            PainDescription painDescription = new PainDescription(random.nextInt(11), bodyRegions);
+            entries.add(new DiaryEntry(calendar.getTime(), conditions[random.nextInt(conditions.length)],
+                    painDescription, "Notes of day " + day, new HashSet<>()));
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        return entries;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
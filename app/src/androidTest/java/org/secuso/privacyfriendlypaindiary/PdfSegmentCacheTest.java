@@ -0,0 +1,121 @@
+/*
+    This file is part of Privacy Friendly Pain Diary.
+
+    Privacy Friendly Pain Diary is free software: you can redistribute it
+    and/or modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.secuso.privacyfriendlypaindiary;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabaseService;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.BodyRegion;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Condition;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DiaryEntry;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.PainDescription;
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface;
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays;
+import org.secuso.privacyfriendlypaindiary.export.PdfSegmentCache;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+
+/**
+ * Tests that the cache of rendered months keeps the most recently used ones
+ * within its size limit, and that saving or deleting an entry drops its month.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PdfSegmentCacheTest {
+
+    private static final int SEGMENTS = 4;
+    private static final byte[] SEGMENT = new byte[(int) (PdfSegmentCache.MAX_BYTES / SEGMENTS)];
+
+    private Context context;
+    private PdfSegmentCache cache;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        cache = PdfSegmentCache.getInstance(context);
+        cache.clear();
+    }
+
+    @Test
+    public void put_trimsLeastRecentlyUsed() {
+        // fills the cache up to its limit
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < SEGMENTS; i++) {
+            String month = "2024-0" + (i + 1);
+            cache.put(month, "key", SEGMENT, 1);
+            PdfSegmentCache.Segment segment = cache.get(month, "key");
+            assertNotNull(segment);
+            assertTrue(segment.getFile().setLastModified(now - (SEGMENTS - i) * 10_000L));
+        }
+        // the oldest segment is used again, so the second oldest one goes
+        assertNotNull(cache.get("2024-01", "key"));
+        cache.put("2024-05", "key", SEGMENT, 1);
+
+        assertNull(cache.get("2024-02", "key"));
+        assertNotNull(cache.get("2024-01", "key"));
+        assertNotNull(cache.get("2024-03", "key"));
+        assertNotNull(cache.get("2024-04", "key"));
+        assertNotNull(cache.get("2024-05", "key"));
+    }
+
+    @Test
+    public void put_keepsSegmentLargerThanLimit() {
+        cache.put("2024-01", "key", SEGMENT, 1);
+        cache.put("2024-02", "key", new byte[(int) PdfSegmentCache.MAX_BYTES + 1], 2);
+
+        assertNull(cache.get("2024-01", "key"));
+        assertNotNull(cache.get("2024-02", "key"));
+    }
+
+    @Test
+    public void saveAndDelete_invalidateMonth() {
+        PainDiaryDatabaseService service = PainDiaryDatabaseService.getInstance(context);
+        service.reinitializeDatabase(context);
+        Date day = EpochDays.toDate(EpochDays.fromDate(new Date()));
+        String month = PdfSegmentCache.monthOf(day);
+        String otherMonth = PdfSegmentCache.monthOf(EpochDays.toDate(EpochDays.fromDate(day) - 40));
+
+        cache.put(month, "key", SEGMENT, 1);
+        cache.put(otherMonth, "key", SEGMENT, 1);
+        service.storeDiaryEntryAndAssociatedObjects(new DiaryEntry(day, Condition.GOOD,
+                new PainDescription(3, EnumSet.of(BodyRegion.HEAD)), "note", Collections.emptySet()));
+        assertNull(cache.get(month, "key"));
+        assertNotNull(cache.get(otherMonth, "key"));
+
+        cache.put(month, "key", SEGMENT, 1);
+        DiaryEntryInterface entry = service.getDiaryEntryByDate(day);
+        entry.setNotes("changed");
+        service.updateDiaryEntryAndAssociatedObjects(entry);
+        assertNull(cache.get(month, "key"));
+
+        cache.put(month, "key", SEGMENT, 1);
+        service.deleteDiaryEntryAndAssociatedObjects(entry);
+        assertNull(cache.get(month, "key"));
+        assertNotNull(cache.get(otherMonth, "key"));
+    }
+}
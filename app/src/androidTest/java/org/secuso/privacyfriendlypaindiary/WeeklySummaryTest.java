@@ -0,0 +1,122 @@
+/*
+    This file is part of Privacy Friendly Pain Diary.
+
+    Privacy Friendly Pain Diary is free software: you can redistribute it
+    and/or modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.secuso.privacyfriendlypaindiary;
+
+import static org.junit.Assert.assertEquals;
+
+import android.database.Cursor;
+
+import androidx.room.Room;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabase;
+import org.secuso.privacyfriendlypaindiary.database.WeeklySummary;
+import org.secuso.privacyfriendlypaindiary.database.utils.Converters;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests the aggregation of diary entries per week on an in-memory database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WeeklySummaryTest {
+
+    private PainDiaryDatabase database;
+    private SupportSQLiteDatabase db;
+
+    @Before
+    public void setUp() {
+        database = Room.inMemoryDatabaseBuilder(InstrumentationRegistry.getInstrumentation().getTargetContext(),
+                PainDiaryDatabase.class).build();
+        db = database.getOpenHelper().getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+    }
+
+    @Test
+    public void query_aggregatesWeeksFromMonday() {
+        db.execSQL("INSERT INTO paindescriptions (_id, painLevel, bodyRegions) VALUES (1, 4, '0,2'), (2, 8, '2,5')");
+        // Wednesday and Sunday of the week starting on Monday, 2024-01-01
+        insertEntry(1, "2024-01-03", 1, 3);
+        insertEntry(2, "2024-01-07", 2, 1);
+        // the Monday after, without a pain description
+        insertEntry(3, "2024-01-08", 0, 2);
+        // after the end date
+        insertEntry(4, "2024-01-15", 1, 4);
+
+        db.execSQL("INSERT INTO drugs (_id, name, dose) VALUES (1, 'Ibuprofen', '400 mg'), (2, 'Tea', NULL)");
+        insertIntake(1, 1, 0, 1, 0, 1, 1);
+        insertIntake(2, 1, 1, 1, 1, 1, 2);
+        insertIntake(3, 0, 0, 0, 2, 2, 2);
+        insertIntake(4, 1, 0, 0, 0, 2, 3);
+        insertIntake(5, 3, 0, 0, 0, 1, 4);
+
+        List<WeeklySummary> weeks = query("2024-01-01", "2024-01-14");
+
+        assertEquals(Arrays.asList(
+                new WeeklySummary(Converters.toDate("2024-01-01"), 2, 6.0, 8, Arrays.asList(0, 1, 0, 1, 0),
+                        (1L << 0) | (1L << 2) | (1L << 5),
+                        Arrays.asList(
+                                new WeeklySummary.MedicationTotal("Ibuprofen", "400 mg", 6),
+                                new WeeklySummary.MedicationTotal("Tea", null, 2))),
+                new WeeklySummary(Converters.toDate("2024-01-08"), 1, null, null, Arrays.asList(0, 0, 1, 0, 0),
+                        0L,
+                        Collections.singletonList(new WeeklySummary.MedicationTotal("Tea", null, 1)))
+        ), weeks);
+    }
+
+    @Test
+    public void query_withoutMedication() {
+        insertEntry(1, "2024-01-01", 0, 0);
+
+        List<WeeklySummary> weeks = query("2024-01-01", "2024-01-07");
+
+        assertEquals(1, weeks.size());
+        assertEquals(Collections.emptyList(), weeks.get(0).getMedication());
+        assertEquals(Arrays.asList(1, 0, 0, 0, 0), weeks.get(0).getConditionCounts());
+    }
+
+    private void insertEntry(long id, String date, long painDescriptionId, int condition) {
+        db.execSQL("INSERT INTO diaryentries (_id, date, painDescription_id, condition) VALUES (?, ?, ?, ?)",
+                new Object[]{id, date, painDescriptionId, condition});
+    }
+
+    private void insertIntake(long id, int morning, int noon, int evening, int night, long drugId, long entryId) {
+        db.execSQL("INSERT INTO drugintakes (_id, morning, noon, evening, night, drug_id, diaryEntry_id)"
+                        + " VALUES (?, ?, ?, ?, ?, ?, ?)",
+                new Object[]{id, morning, noon, evening, night, drugId, entryId});
+    }
+
+    private List<WeeklySummary> query(String startDate, String endDate) {
+        try (Cursor cursor = db.query(new SimpleSQLiteQuery(WeeklySummary.Companion.getQUERY(),
+                new Object[]{startDate, endDate}))) {
+            return WeeklySummary.build(cursor);
+        }
+    }
+}
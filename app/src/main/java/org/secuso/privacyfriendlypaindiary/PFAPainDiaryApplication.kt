@@ -4,9 +4,19 @@ package org.secuso.privacyfriendlypaindiary
 import android.app.Application
 import android.util.Log
 import androidx.work.Configuration
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
 import org.secuso.privacyfriendlybackup.api.pfa.BackupManager
+import org.secuso.privacyfriendlypaindiary.backup.AutoBackupWorker
 import org.secuso.privacyfriendlypaindiary.backup.BackupCreator
 import org.secuso.privacyfriendlypaindiary.backup.BackupRestorer
+import org.secuso.privacyfriendlypaindiary.database.DiaryChange
+import org.secuso.privacyfriendlypaindiary.database.DiaryChangeBus
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays
+import org.secuso.privacyfriendlypaindiary.helpers.NotificationJobService
+import java.util.*
 
 
 class PFAPainDiaryApplication : Application(), Configuration.Provider {
@@ -14,6 +24,17 @@ class PFAPainDiaryApplication : Application(), Configuration.Provider {
         super.onCreate()
         BackupManager.backupCreator = BackupCreator()
         BackupManager.backupRestorer = BackupRestorer()
+        AutoBackupWorker.schedule(this)
+
+        CoroutineScope(SupervisorJob() + Dispatchers.Default).launch {
+            DiaryChangeBus.changes.collect { changes ->
+                val today = EpochDays.fromDate(Date())
+                // the daily reminder is obsolete once there is an entry for today
+                if (changes.any { it is DiaryChange.EntrySaved && EpochDays.fromDate(it.date) == today }) {
+                    NotificationJobService.cancelReminderNotification(this@PFAPainDiaryApplication)
+                }
+            }
+        }
     }
 
     override fun getWorkManagerConfiguration(): Configuration {
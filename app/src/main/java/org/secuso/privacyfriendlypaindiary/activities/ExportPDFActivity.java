@@ -16,54 +16,58 @@
 */
 package org.secuso.privacyfriendlypaindiary.activities;
 
-import android.Manifest;
 import android.app.DatePickerDialog;
+import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
-import android.graphics.pdf.PdfDocument;
 import android.net.Uri;
-import android.os.Build;
 import android.os.Bundle;
-import android.os.Environment;
+import android.print.PrintAttributes;
+import android.print.PrintManager;
+import android.provider.DocumentsContract;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.core.app.ActivityCompat;
-import androidx.core.content.ContextCompat;
-import androidx.core.content.FileProvider;
-import androidx.lifecycle.LiveData;
-import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.Observer;
-import androidx.lifecycle.ViewModelProvider;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
 
 import android.view.View;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.DatePicker;
 import android.widget.Toast;
 
 import com.google.android.material.textfield.TextInputLayout;
 
 import org.secuso.privacyfriendlypaindiary.R;
-import org.secuso.privacyfriendlypaindiary.database.entities.impl.AbstractPersistentObject;
-import org.secuso.privacyfriendlypaindiary.database.entities.impl.User;
-import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface;
-import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.UserInterface;
-import org.secuso.privacyfriendlypaindiary.helpers.PdfCreator;
-import org.secuso.privacyfriendlypaindiary.tutorial.PrefManager;
-import org.secuso.privacyfriendlypaindiary.viewmodel.DatabaseViewModel;
-
-import java.io.File;
-import java.io.FileOutputStream;
+import org.secuso.privacyfriendlypaindiary.export.DiaryExportWorker;
+import org.secuso.privacyfriendlypaindiary.export.ExportFormat;
+import org.secuso.privacyfriendlypaindiary.export.ExportProvider;
+import org.secuso.privacyfriendlypaindiary.export.ExportRequest;
+import org.secuso.privacyfriendlypaindiary.export.PdfExportWorker;
+import org.secuso.privacyfriendlypaindiary.export.ReportPrintAdapter;
+
+import java.io.FileNotFoundException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
 
 /**
  * This activity allows to export and/or share a pdf document of the diary entries made
  * within a specific period of time marked by a start date and an end date.
- * Exporting the pdf file requires the permission <code>WRITE_EXTERNAL_STORAGE</code>.
+ * Exports are saved through the Storage Access Framework and shared through
+ * the {@link ExportProvider}, so no storage permission is needed.
  *
  * @author Susanne Felsen
  * @version 20180228
@@ -71,26 +75,62 @@ import java.util.Locale;
 public class ExportPDFActivity extends AppCompatActivity {
 
     private static final String TAG = ExportPDFActivity.class.getSimpleName();
-    private static final int PERMISSION_REQUEST_WRITE_EXTERNAL_STORAGE = 42;
+    private static final int REQUEST_CREATE_DOCUMENT = 42;
+    private static final int REQUEST_OPEN_DOCUMENT_TREE = 43;
 
     private TextInputLayout startDateWrapper;
     private TextInputLayout endDateWrapper;
+    private CheckBox weeklySummary;
+    private CheckBox trendChart;
+    private CheckBox formatCsv;
+    private CheckBox formatJson;
+    private CheckBox formatFhir;
 
     private SimpleDateFormat dateFormat = new SimpleDateFormat("dd.MM.yyyy", Locale.US);
     private Date startDate;
     private Date endDate;
 
-    private DatabaseViewModel database;
+    private UUID exportID;
+    private ArrayList<Uri> exportTargets;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_export_pdf);
 
-        database = new ViewModelProvider(this).get(DatabaseViewModel.class);
-
         startDateWrapper = findViewById(R.id.start_date_wrapper);
         endDateWrapper = findViewById(R.id.end_date_wrapper);
+        weeklySummary = findViewById(R.id.weekly_summary);
+        trendChart = findViewById(R.id.trend_chart);
+        formatCsv = findViewById(R.id.format_csv);
+        formatJson = findViewById(R.id.format_json);
+        formatFhir = findViewById(R.id.format_fhir);
+        // the other formats contain the single entries
+        weeklySummary.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                formatCsv.setEnabled(!isChecked);
+                formatJson.setEnabled(!isChecked);
+                formatFhir.setEnabled(!isChecked);
+            }
+        });
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.export_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_preview:
+                previewExport();
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
     }
 
     @Override
@@ -102,6 +142,10 @@ public class ExportPDFActivity extends AppCompatActivity {
         if (endDate != null) {
             outState.putString("endDate", dateFormat.format(endDate));
         }
+        if (exportID != null) {
+            outState.putString("exportID", exportID.toString());
+            outState.putParcelableArrayList("exportTargets", exportTargets);
+        }
     }
 
     @Override
@@ -121,6 +165,12 @@ public class ExportPDFActivity extends AppCompatActivity {
             } catch (ParseException e) {
             }
         }
+        String exportIDAsString = savedInstanceState.getString("exportID");
+        if (exportIDAsString != null) {
+            exportID = UUID.fromString(exportIDAsString);
+            exportTargets = savedInstanceState.getParcelableArrayList("exportTargets");
+            observeExport();
+        }
     }
 
     public void onClick(View view) {
@@ -134,20 +184,13 @@ public class ExportPDFActivity extends AppCompatActivity {
                 showDatePickerDialog(R.id.end_date, dateText);
                 break;
             case R.id.btn_export:
-                LiveData<File> fileLive = exportAsPDF();
-                final ExportPDFActivity activity = this;
-                fileLive.observe(this, new Observer<File>() {
-                    @Override
-                    public void onChanged(File file) {
-                        if (file != null) {
-                            Toast.makeText(activity, getString(R.string.export_success), Toast.LENGTH_LONG).show();
-                        }
-                        fileLive.removeObserver(this);
-                    }
-                });
+                chooseExportTarget();
                 break;
             case R.id.btn_share:
-                exportAndShare();
+                shareExport();
+                break;
+            case R.id.btn_print:
+                printExport();
                 break;
             default:
                 break;
@@ -197,100 +240,200 @@ public class ExportPDFActivity extends AppCompatActivity {
         dialog.show();
     }
 
-    private LiveData<File> exportAsPDF() {
-        final MutableLiveData<File>[] file = new MutableLiveData[]{new MutableLiveData<>()};
+    /**
+     * Checks that a complete time span is selected and shows an error otherwise.
+     */
+    private boolean isTimeSpanValid() {
         if (startDate == null) {
             startDateWrapper.setError(getString(R.string.start_date_error));
+            return false;
         } else if (endDate == null) {
             endDateWrapper.setError(getString(R.string.end_date_error));
-        } else if (startDate.compareTo(endDate) <= 0) {
-            LiveData<List<DiaryEntryInterface>> diaryEntriesLive = database.getDiaryEntriesByTimeSpan(startDate, endDate);
-            diaryEntriesLive.observe(this, diaryEntryInterfaces -> {
-                long userID = new PrefManager(this).getUserID();
-                if (userID == AbstractPersistentObject.INVALID_OBJECT_ID) {
-                    file[0].setValue(exportAsPDF(new PdfCreator(this, startDate, endDate, diaryEntryInterfaces, new User()).createPdfDocument()));
-                } else {
-                    LiveData<UserInterface> userLive = database.getUserByID(userID);
-                    userLive.observe(this, userInterface -> {
-                        file[0].setValue(exportAsPDF(new PdfCreator(this, startDate, endDate, diaryEntryInterfaces, userInterface).createPdfDocument()));
-                    });
-                }
-            });
+            return false;
         }
-        return file[0];
+        return startDate.compareTo(endDate) <= 0;
     }
 
-    private File exportAsPDF(PdfDocument doc) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            if (ContextCompat.checkSelfPermission(ExportPDFActivity.this, Manifest.permission.WRITE_EXTERNAL_STORAGE)
-                    != PackageManager.PERMISSION_GRANTED) {
-                ActivityCompat.requestPermissions(ExportPDFActivity.this,
-                        new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE},
-                        PERMISSION_REQUEST_WRITE_EXTERNAL_STORAGE);
-                return null;
+    /**
+     * Returns the selected formats: always the pdf document, further formats
+     * only if single entries are exported.
+     */
+    private List<ExportFormat> getSelectedFormats() {
+        List<ExportFormat> formats = new ArrayList<>();
+        formats.add(ExportFormat.PDF);
+        if (!weeklySummary.isChecked()) {
+            if (formatCsv.isChecked()) {
+                formats.add(ExportFormat.CSV);
             }
-        }
-
-        File directory = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS), getString(R.string.app_name));
-        if (!directory.exists()) {
-            if (!directory.mkdirs()) {
-                Toast.makeText(this, getString(R.string.export_failure), Toast.LENGTH_LONG).show();
-                return null;
+            if (formatJson.isChecked()) {
+                formats.add(ExportFormat.JSON);
+            }
+            if (formatFhir.isChecked()) {
+                formats.add(ExportFormat.FHIR);
             }
         }
+        return formats;
+    }
 
-        SimpleDateFormat s = new SimpleDateFormat("ddMMyyyy");
-        String filename = s.format(startDate) + "-" + s.format(endDate);
-        File file = new File(directory, filename + ".pdf");
-        if (file.exists()) {
-            file.delete();
-        }
+    private ExportRequest createRequest(ExportFormat format) {
+        return new ExportRequest(startDate, endDate, format, weeklySummary.isChecked(), trendChart.isChecked());
+    }
 
+    /**
+     * Lets the user choose where to save the export through the Storage Access
+     * Framework: a document for the pdf document alone, otherwise a directory
+     * for all selected formats. The export starts once the target is chosen,
+     * see {@link #onActivityResult(int, int, Intent)}.
+     */
+    private void chooseExportTarget() {
+        if (!isTimeSpanValid()) {
+            return;
+        }
+        Intent intent;
+        int requestCode;
+        if (getSelectedFormats().size() == 1) {
+            intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.setType(ExportFormat.PDF.getMimeType());
+            intent.putExtra(Intent.EXTRA_TITLE, createRequest(ExportFormat.PDF).getFileName());
+            requestCode = REQUEST_CREATE_DOCUMENT;
+        } else {
+            intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
+            requestCode = REQUEST_OPEN_DOCUMENT_TREE;
+        }
         try {
-            FileOutputStream out = new FileOutputStream(file);
-            doc.writeTo(out);
-            doc.close();
-            out.flush();
-            out.close();
-        } catch (Exception e) {
+            startActivityForResult(intent, requestCode);
+        } catch (ActivityNotFoundException e) {
             Toast.makeText(this, getString(R.string.export_failure), Toast.LENGTH_LONG).show();
         }
+    }
 
-        return file;
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != RESULT_OK || data == null || data.getData() == null || !isTimeSpanValid()) {
+            return;
+        }
+        if (requestCode == REQUEST_CREATE_DOCUMENT) {
+            exportID = PdfExportWorker.enqueue(this, startDate, endDate, data.getData(), weeklySummary.isChecked(), trendChart.isChecked());
+            exportTargets = new ArrayList<>(Collections.singletonList(data.getData()));
+        } else if (requestCode == REQUEST_OPEN_DOCUMENT_TREE) {
+            Map<ExportFormat, Uri> targets = createDocuments(data.getData());
+            if (targets == null) {
+                Toast.makeText(this, getString(R.string.export_failure), Toast.LENGTH_LONG).show();
+                return;
+            }
+            exportID = DiaryExportWorker.enqueue(this, startDate, endDate, targets, trendChart.isChecked());
+            exportTargets = new ArrayList<>(targets.values());
+        } else {
+            return;
+        }
+        observeExport();
+        Toast.makeText(this, getString(R.string.export_started), Toast.LENGTH_SHORT).show();
     }
 
-    private void exportAndShare() {
-        LiveData<File> fileLive = exportAsPDF();
-        final ExportPDFActivity activity = this;
-        fileLive.observe(this, new Observer<File>() {
-            @Override
-            public void onChanged(File file) {
-                if (file != null) {
-                    Uri attachment = FileProvider.getUriForFile(activity, activity.getApplicationContext().getPackageName() + ".provider", file);
-                    Intent sendIntent = new Intent(Intent.ACTION_SEND);
-                    sendIntent.putExtra(Intent.EXTRA_STREAM, attachment);
-                    sendIntent.setType("application/pdf");
-                    sendIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-                    startActivity(Intent.createChooser(sendIntent, getString(R.string.share_caution)));
+    /**
+     * Creates a document for every selected format in the given directory.
+     *
+     * @return the documents, or null if one of them could not be created
+     */
+    private Map<ExportFormat, Uri> createDocuments(Uri tree) {
+        Uri directory = DocumentsContract.buildDocumentUriUsingTree(tree, DocumentsContract.getTreeDocumentId(tree));
+        Map<ExportFormat, Uri> targets = new EnumMap<>(ExportFormat.class);
+        for (ExportFormat format : getSelectedFormats()) {
+            Uri document = null;
+            try {
+                document = DocumentsContract.createDocument(getContentResolver(), directory, format.getMimeType(), createRequest(format).getFileName());
+            } catch (FileNotFoundException | RuntimeException e) {
+                Log.e(TAG, "Cannot create " + format + " document", e);
+            }
+            if (document == null) {
+                for (Uri target : targets.values()) {
+                    PdfExportWorker.deleteDocument(this, target);
                 }
-                fileLive.removeObserver(this);
+                return null;
             }
-        });
+            targets.put(format, document);
+        }
+        return targets;
     }
 
-    @Override
-    public void onRequestPermissionsResult(int requestCode, String permissions[], int[] grantResults) {
-        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
-        switch (requestCode) {
-            case PERMISSION_REQUEST_WRITE_EXTERNAL_STORAGE: {
-                if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
-                    Toast.makeText(this, getString(R.string.permission_write_granted), Toast.LENGTH_LONG).show();
-                } else {
-                    Toast.makeText(this, getString(R.string.permission_write_denied), Toast.LENGTH_LONG).show();
+    private void observeExport() {
+        final UUID id = exportID;
+        final List<Uri> targets = exportTargets;
+        WorkManager.getInstance(this).getWorkInfoByIdLiveData(id).observe(this, new Observer<WorkInfo>() {
+            @Override
+            public void onChanged(WorkInfo workInfo) {
+                if (workInfo == null || !id.equals(exportID) || !workInfo.getState().isFinished()) {
+                    return;
+                }
+                exportID = null;
+                exportTargets = null;
+                if (workInfo.getState() == WorkInfo.State.SUCCEEDED) {
+                    Toast.makeText(ExportPDFActivity.this, getString(R.string.export_success), Toast.LENGTH_LONG).show();
+                } else if (workInfo.getState() == WorkInfo.State.FAILED) {
+                    Toast.makeText(ExportPDFActivity.this, getString(R.string.export_failure), Toast.LENGTH_LONG).show();
+                } else if (workInfo.getState() == WorkInfo.State.CANCELLED && targets != null) {
+                    // the documents have been created before the export started
+                    for (Uri target : targets) {
+                        PdfExportWorker.deleteDocument(ExportPDFActivity.this, target);
+                    }
                 }
-                return;
             }
+        });
+    }
+
+    /**
+     * Prints the pdf document of the selected time span, see {@link ReportPrintAdapter}.
+     */
+    private void printExport() {
+        if (!isTimeSpanValid()) {
+            return;
+        }
+        ExportRequest request = createRequest(ExportFormat.PDF);
+        PrintManager printManager = (PrintManager) getSystemService(Context.PRINT_SERVICE);
+        PrintAttributes attributes = new PrintAttributes.Builder()
+                .setMediaSize(PrintAttributes.MediaSize.ISO_A4)
+                .build();
+        printManager.print(request.getFileName(), new ReportPrintAdapter(this, request), attributes);
+    }
+
+    /**
+     * Shows the pdf document of the selected time span, see {@link ReportPreviewActivity}.
+     */
+    private void previewExport() {
+        if (!isTimeSpanValid()) {
+            return;
+        }
+        Intent intent = new Intent(this, ReportPreviewActivity.class);
+        intent.setData(createRequest(ExportFormat.PDF).toUri(this));
+        startActivity(intent);
+    }
+
+    /**
+     * Shares the export without saving it anywhere: the receiving app reads
+     * it from the {@link ExportProvider}, which renders it when it is opened.
+     */
+    private void shareExport() {
+        if (!isTimeSpanValid()) {
+            return;
+        }
+        ArrayList<Uri> attachments = new ArrayList<>();
+        for (ExportFormat format : getSelectedFormats()) {
+            attachments.add(createRequest(format).toUri(this));
+        }
+        Intent sendIntent;
+        if (attachments.size() == 1) {
+            sendIntent = new Intent(Intent.ACTION_SEND);
+            sendIntent.putExtra(Intent.EXTRA_STREAM, attachments.get(0));
+            sendIntent.setType(ExportFormat.PDF.getMimeType());
+        } else {
+            sendIntent = new Intent(Intent.ACTION_SEND_MULTIPLE);
+            sendIntent.putParcelableArrayListExtra(Intent.EXTRA_STREAM, attachments);
+            sendIntent.setType("*/*");
         }
+        sendIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(sendIntent, getString(R.string.share_caution)));
     }
 
 }
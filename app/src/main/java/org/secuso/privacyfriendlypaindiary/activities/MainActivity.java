@@ -32,6 +32,7 @@ import com.prolificinteractive.materialcalendarview.OnDateSelectedListener;
 import com.prolificinteractive.materialcalendarview.OnMonthChangedListener;
 
 import org.secuso.privacyfriendlypaindiary.R;
+import org.secuso.privacyfriendlypaindiary.database.DiaryChange;
 import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface;
 import org.secuso.privacyfriendlypaindiary.helpers.EventDecorator;
 import org.secuso.privacyfriendlypaindiary.helpers.Helper;
@@ -89,6 +90,27 @@ public class MainActivity extends BaseActivity {
         calendar = findViewById(R.id.calendar_view);
         decorator = new EventDecorator(COLOR_MIDDLEBLUE);
         calendar.addDecorator(decorator);
+        database.getVisibleDiaryEntryDates().observe(this, dates -> {
+            Set<CalendarDay> calendarDates = new HashSet<>();
+            for (Date d : dates) {
+                calendarDates.add(CalendarDay.from(d));
+            }
+            decorator.setDates(calendarDates);
+            calendar.invalidateDecorators();
+        });
+        // changes made while this activity was stopped are taken once it is started again
+        database.getDiaryChanges().observe(this, signal -> {
+            for (DiaryChange change : database.takeDiaryChanges()) {
+                if (change instanceof DiaryChange.EntrySaved) {
+                    decorator.addDate(CalendarDay.from(((DiaryChange.EntrySaved) change).getDate()));
+                } else if (change instanceof DiaryChange.EntryDeleted) {
+                    decorator.removeDate(CalendarDay.from(((DiaryChange.EntryDeleted) change).getDate()));
+                } else if (change == DiaryChange.DatabaseReplaced.INSTANCE) {
+                    getDiaryEntryDates(calendar.getCurrentDate().getMonth(), calendar.getCurrentDate().getYear());
+                }
+            }
+            calendar.invalidateDecorators();
+        });
         calendar.setOnMonthChangedListener(new OnMonthChangedListener() {
             @Override
             public void onMonthChanged(MaterialCalendarView widget, CalendarDay date) {
@@ -108,6 +130,7 @@ public class MainActivity extends BaseActivity {
         });
         calendar.setCurrentDate(date);
         calendar.setSelectedDate(date);
+        getDiaryEntryDates(calendar.getCurrentDate().getMonth(), calendar.getCurrentDate().getYear());
     }
 
     @Override
@@ -116,8 +139,6 @@ public class MainActivity extends BaseActivity {
         calendar.state().edit()
                 .setMaximumDate(CalendarDay.today())
                 .commit();
-        getDiaryEntryDates(calendar.getCurrentDate().getMonth(), calendar.getCurrentDate().getYear());
-
     }
 
     @Override
@@ -149,15 +170,7 @@ public class MainActivity extends BaseActivity {
         }
         c.set(Calendar.DAY_OF_MONTH, 7);
         Date endDate = c.getTime();
-        LiveData<Set<Date>> datesLive = database.getDiaryEntryDatesByTimeSpan(startDate, endDate);
-        datesLive.observe(this, dates -> {
-            Set<CalendarDay> calendarDates = new HashSet<>();
-            for (Date date : dates) {
-                calendarDates.add(CalendarDay.from(date));
-            }
-            decorator.setDates(calendarDates);
-            calendar.invalidateDecorators();
-        });
+        database.showDiaryEntryDatesForTimeSpan(startDate, endDate);
     }
 
     /**
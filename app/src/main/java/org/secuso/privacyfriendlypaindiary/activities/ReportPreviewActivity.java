@@ -0,0 +1,161 @@
+/*
+    This file is part of Privacy Friendly Pain Diary.
+
+    Privacy Friendly Pain Diary is free software: you can redistribute it
+    and/or modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.secuso.privacyfriendlypaindiary.activities;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.Toast;
+
+import androidx.annotation.NonNull;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.lifecycle.ViewModelProvider;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.recyclerview.widget.SimpleItemAnimator;
+
+import org.secuso.privacyfriendlypaindiary.R;
+import org.secuso.privacyfriendlypaindiary.export.ExportRequest;
+import org.secuso.privacyfriendlypaindiary.export.PdfPreviewRenderer;
+import org.secuso.privacyfriendlypaindiary.viewmodel.ReportPreviewViewModel;
+
+/**
+ * Shows the pdf document of the report encoded in the intent data (see
+ * {@link ExportRequest#toUri}) page by page. Only the pages scrolled to are
+ * rendered, see {@link PdfPreviewRenderer}.
+ */
+public class ReportPreviewActivity extends AppCompatActivity {
+
+    private RecyclerView pages;
+    private View progress;
+    private ReportPreviewViewModel viewModel;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_report_preview);
+
+        Uri data = getIntent().getData();
+        ExportRequest request = data == null ? null : ExportRequest.fromUri(data);
+        if (request == null) {
+            finish();
+            return;
+        }
+        pages = findViewById(R.id.pages);
+        progress = findViewById(R.id.progress);
+        pages.setLayoutManager(new LinearLayoutManager(this));
+        // rendered pages are bound to the same view again instead of cross-fading
+        ((SimpleItemAnimator) pages.getItemAnimator()).setSupportsChangeAnimations(false);
+
+        viewModel = new ViewModelProvider(this).get(ReportPreviewViewModel.class);
+        viewModel.load(request).observe(this, pageCount -> {
+            progress.setVisibility(View.GONE);
+            PdfPreviewRenderer renderer = viewModel.getRenderer();
+            if (pageCount < 0 || renderer == null) {
+                Toast.makeText(this, getString(R.string.preview_failure), Toast.LENGTH_SHORT).show();
+                finish();
+            } else if (pages.getAdapter() == null) {
+                pages.setAdapter(new PageAdapter(renderer, pageCount));
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (pages != null) {
+            // unbinds all pages from the renderer, which outlives this activity
+            pages.setAdapter(null);
+        }
+        super.onDestroy();
+    }
+
+    private static class PageViewHolder extends RecyclerView.ViewHolder {
+
+        private final ImageView image;
+        private int page = RecyclerView.NO_POSITION;
+
+        PageViewHolder(View itemView) {
+            super(itemView);
+            image = itemView.findViewById(R.id.page);
+        }
+    }
+
+    private static class PageAdapter extends RecyclerView.Adapter<PageViewHolder> implements PdfPreviewRenderer.Listener {
+
+        private final PdfPreviewRenderer renderer;
+        private final int pageCount;
+
+        PageAdapter(PdfPreviewRenderer renderer, int pageCount) {
+            this.renderer = renderer;
+            this.pageCount = pageCount;
+        }
+
+        @Override
+        public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+            renderer.setListener(this);
+        }
+
+        @Override
+        public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+            renderer.setListener(null);
+        }
+
+        @NonNull
+        @Override
+        public PageViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+            // pages are rendered at the width they are shown at
+            renderer.setPageWidth(parent.getWidth() - parent.getPaddingLeft() - parent.getPaddingRight());
+            View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_report_page, parent, false);
+            return new PageViewHolder(view);
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull PageViewHolder holder, int position) {
+            if (holder.page != RecyclerView.NO_POSITION) {
+                renderer.hide(holder.page);
+            }
+            holder.page = position;
+            // keeps the place of pages not rendered yet
+            holder.image.getLayoutParams().height = renderer.getPageHeight();
+            Bitmap bitmap = renderer.show(position);
+            holder.image.setImageBitmap(bitmap);
+        }
+
+        @Override
+        public void onViewRecycled(@NonNull PageViewHolder holder) {
+            holder.image.setImageBitmap(null);
+            if (holder.page != RecyclerView.NO_POSITION) {
+                renderer.hide(holder.page);
+                holder.page = RecyclerView.NO_POSITION;
+            }
+        }
+
+        @Override
+        public int getItemCount() {
+            return pageCount;
+        }
+
+        @Override
+        public void onPageRendered(int page) {
+            notifyItemChanged(page);
+        }
+    }
+}
@@ -16,27 +16,41 @@
 */
 package org.secuso.privacyfriendlypaindiary.activities
 
+import android.app.Activity
 import android.app.AlertDialog
+import android.content.Context
+import android.content.Intent
 import android.content.SharedPreferences
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener
+import android.net.Uri
 import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
 import android.preference.Preference.OnPreferenceClickListener
 import android.preference.PreferenceFragment
 import android.preference.PreferenceManager
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.launch
-import kotlinx.coroutines.runBlocking
+import android.util.Log
+import android.widget.Toast
 import org.secuso.privacyfriendlypaindiary.R
+import org.secuso.privacyfriendlypaindiary.backup.AutoBackupWorker
+import org.secuso.privacyfriendlypaindiary.backup.BackupChain
+import org.secuso.privacyfriendlypaindiary.backup.BackupMerger
+import org.secuso.privacyfriendlypaindiary.database.DatabaseScheduler
 import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabaseService
 import org.secuso.privacyfriendlypaindiary.database.entities.impl.AbstractPersistentObject
 import org.secuso.privacyfriendlypaindiary.helpers.NotificationJobService
 import org.secuso.privacyfriendlypaindiary.tutorial.PrefManager
+import java.io.File
+import java.io.IOException
+import java.text.DateFormat
+import java.util.Date
 
 /**
  * This activity provides methods to enable or disable certain features such as
  * daily reminders and whether the medication last entered is automatically added
  * to new entries based on preferences set by the user. It also provides methods
- * to set the reminder time or reset the app.
+ * to set the reminder time, merge a backup into the diary, restore one of the
+ * automatic backups or reset the app.
  *
  * @author Susanne Felsen
  * @version 20180228
@@ -74,6 +88,92 @@ class SettingsActivity : BaseActivity() {
                     true
                 }
             }
+            findPreference(KEY_PREF_MERGE)?.onPreferenceClickListener = OnPreferenceClickListener {
+                val intent = Intent(Intent.ACTION_OPEN_DOCUMENT)
+                    .addCategory(Intent.CATEGORY_OPENABLE)
+                    .setType("*/*")
+                startActivityForResult(intent, REQUEST_CODE_MERGE)
+                true
+            }
+            findPreference(KEY_PREF_RESTORE_AUTO)?.onPreferenceClickListener = OnPreferenceClickListener {
+                chooseAutoBackup()
+                true
+            }
+        }
+
+        private fun chooseAutoBackup() {
+            val backups = AutoBackupWorker.getBackups(activity)
+            if (backups.isEmpty()) {
+                Toast.makeText(activity, getString(R.string.restore_auto_none), Toast.LENGTH_LONG).show()
+                return
+            }
+            val format = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT)
+            val labels = backups.map { format.format(Date(AutoBackupWorker.getTime(it))) }.toTypedArray()
+            AlertDialog.Builder(activity)
+                .setTitle(R.string.pref_restore_auto)
+                .setItems(labels) { dialog, which ->
+                    AlertDialog.Builder(activity)
+                        .setMessage(getString(R.string.restore_auto_warning, labels[which]))
+                        .setPositiveButton(getString(R.string.confirm)) { confirmDialog, button -> restoreAutoBackup(backups[which]) }
+                        .setNegativeButton(getString(R.string.cancel), null)
+                        .show()
+                }
+                .setNegativeButton(getString(R.string.cancel), null)
+                .show()
+        }
+
+        private fun restoreAutoBackup(backup: File) {
+            val context = activity.applicationContext
+            // the screens reload on DiaryChange.DatabaseReplaced once the backup is restored
+            DatabaseScheduler.execute(DatabaseScheduler.Lane.BULK) {
+                val restored = AutoBackupWorker.restore(context, backup)
+                Handler(Looper.getMainLooper()).post {
+                    val message = if (restored) R.string.restore_auto_success else R.string.restore_auto_failure
+                    Toast.makeText(context, context.getString(message), Toast.LENGTH_LONG).show()
+                    // the backup contains the preferences as well
+                    if (restored && isAdded) {
+                        preferenceScreen.removeAll()
+                        initPreferences()
+                    }
+                }
+            }
+        }
+
+        override fun onActivityResult(requestCode: Int, resultCode: Int, data: Intent?) {
+            super.onActivityResult(requestCode, resultCode, data)
+            val uri = data?.data
+            if (requestCode != REQUEST_CODE_MERGE || resultCode != Activity.RESULT_OK || uri == null) return
+            val policies = BackupMerger.Policy.values()
+            val labels = arrayOf(
+                getString(R.string.merge_policy_keep_current),
+                getString(R.string.merge_policy_keep_backup),
+                getString(R.string.merge_policy_combine)
+            )
+            AlertDialog.Builder(activity)
+                .setTitle(R.string.merge_policy_title)
+                .setItems(labels) { dialog, which -> mergeBackup(uri, policies[which]) }
+                .setNegativeButton(getString(R.string.cancel), null)
+                .show()
+        }
+
+        private fun mergeBackup(uri: Uri, policy: BackupMerger.Policy) {
+            val context = activity.applicationContext
+            // the screens reload on DiaryChange.DatabaseReplaced once the merge is done
+            DatabaseScheduler.execute(DatabaseScheduler.Lane.BULK) {
+                val message = try {
+                    val stats = context.contentResolver.openInputStream(uri)?.use {
+                        BackupMerger(policy).merge(context, it)
+                    } ?: throw IOException("Could not open $uri")
+                    context.getString(R.string.merge_success, stats.added, stats.merged)
+                } catch (e: Exception) {
+                    // also a SecurityException of the document provider or a failed write
+                    Log.e(TAG, "Could not merge the backup", e)
+                    context.getString(R.string.merge_failure)
+                }
+                Handler(Looper.getMainLooper()).post {
+                    Toast.makeText(context, message, Toast.LENGTH_LONG).show()
+                }
+            }
         }
 
         override fun onResume() {
@@ -104,32 +204,52 @@ class SettingsActivity : BaseActivity() {
         }
 
         private fun resetApp() {
-            runBlocking {
-                launch(Dispatchers.IO) {
-                    PainDiaryDatabaseService.getInstance(activity).reinitializeDatabase(activity)
+            val context = activity.applicationContext
+            // swapped while the app keeps running, the screens reload on DiaryChange.DatabaseReplaced
+            DatabaseScheduler.execute(DatabaseScheduler.Lane.WRITE) {
+                try {
+                    PainDiaryDatabaseService.getInstance(context).reinitializeDatabase(context)
+                } catch (e: Exception) {
+                    Log.e(TAG, "Could not reset the diary", e)
+                    Handler(Looper.getMainLooper()).post {
+                        Toast.makeText(context, context.getString(R.string.reset_failure), Toast.LENGTH_LONG).show()
+                    }
+                    return@execute
+                }
+                // only once the diary is gone, so a failed reset leaves both as they were
+                resetPreferences(context)
+                AutoBackupWorker.deleteBackups(context)
+                Handler(Looper.getMainLooper()).post {
+                    if (isAdded) {
+                        preferenceScreen.removeAll()
+                        initPreferences()
+                    }
                 }
             }
-            resetPreferences()
         }
 
-        private fun resetPreferences() {
-            PreferenceManager.getDefaultSharedPreferences(activity.applicationContext).edit()
+        private fun resetPreferences(context: Context) {
+            PreferenceManager.getDefaultSharedPreferences(context).edit()
                 .clear().commit()
             PreferenceManager.setDefaultValues(
-                activity.applicationContext,
+                context,
                 R.xml.pref_general,
                 true
             )
-            NotificationJobService.cancelJob(activity.applicationContext)
-            PrefManager(activity.applicationContext).userID =
+            NotificationJobService.cancelJob(context)
+            PrefManager(context).userID =
                 AbstractPersistentObject.INVALID_OBJECT_ID
-            preferenceScreen.removeAll()
-            initPreferences()
+            // their watermarks refer to the change log of the deleted database
+            BackupChain.clear(context)
         }
     }
 
     companion object {
+        private val TAG = SettingsActivity::class.java.simpleName
+        private const val REQUEST_CODE_MERGE = 1
         private const val KEY_PREF_RESET = "pref_reset"
+        private const val KEY_PREF_MERGE = "pref_merge"
+        private const val KEY_PREF_RESTORE_AUTO = "pref_restore_auto"
         const val KEY_PREF_MEDICATION = "pref_medication"
         private const val KEY_PREF_REMINDER = "pref_reminder"
         private const val KEY_PREF_REMINDER_TIME = "pref_reminder_time"
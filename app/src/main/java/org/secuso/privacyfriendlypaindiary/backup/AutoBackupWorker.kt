@@ -0,0 +1,222 @@
+package org.secuso.privacyfriendlypaindiary.backup
+
+import android.content.Context
+import android.os.Build
+import android.util.JsonWriter
+import android.util.Log
+import androidx.work.*
+import org.secuso.privacyfriendlypaindiary.database.ChangeLog
+import org.secuso.privacyfriendlypaindiary.database.DatabaseScheduler
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabase
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.OutputStreamWriter
+import java.security.MessageDigest
+import java.util.concurrent.TimeUnit
+import kotlin.text.Charsets.UTF_8
+
+/**
+ * Writes a backup into app-private storage once a day while the device is
+ * idle and charging, and keeps the latest [GENERATIONS] of them.
+ *
+ * The backups form a [BackupChain]: a full backup followed by
+ * [BackupFormat.DELTA]s of the rows changed since the day before, so a
+ * nightly backup costs as much as the day's changes rather than the whole
+ * diary. Every [BackupCreator.MAX_CHAIN_LENGTH] deltas a new chain starts with
+ * a full backup. A generation is restored together with the full backup and
+ * the deltas before it (see [getChain]), so these are kept as long as it is.
+ *
+ * Nothing is written if the diary has not changed since the last backup.
+ * Instead of hashing all rows, the fingerprint covers what changes with any
+ * write: the latest sequence number of the [ChangeLog], which its triggers
+ * advance on every insert, update and delete, the largest `_id` of every
+ * table, which also tells a replaced database apart, and the preferences.
+ * Each of them is a lookup in a primary key index or in `sqlite_sequence`,
+ * so no table is scanned.
+ */
+class AutoBackupWorker(context: Context, params: WorkerParameters) : CoroutineWorker(context, params) {
+
+    override suspend fun doWork(): Result {
+        val prefs = applicationContext.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE)
+        val directory = getDirectory(applicationContext)
+        val fingerprint = fingerprint()
+        if (fingerprint == prefs.getString(KEY_FINGERPRINT, null) && getBackups(applicationContext).isNotEmpty()) {
+            Log.d(TAG, "Diary unchanged since the last backup")
+            return Result.success()
+        }
+
+        directory.mkdirs()
+        val chain = BackupChain(applicationContext, CHAIN_NAME)
+        // a delta is of no use without the full backup of its chain
+        if (getBackups(applicationContext).none { !isDelta(it) }) chain.end()
+        val time = System.currentTimeMillis()
+        val temporary = File(directory, "$FILE_PREFIX$time.tmp")
+        try {
+            val written = FileOutputStream(temporary).use { out ->
+                BackupCreator(BackupFormat.DELTA, CHAIN_NAME).writeBackup(applicationContext, out).also { out.fd.sync() }
+            }
+            val result = FileInputStream(temporary).use { BackupVerifier.verify(it) }
+            val suffix = if (result.format == BackupFormat.DELTA) DELTA_SUFFIX else FILE_SUFFIX
+            if (!written || !result.isValid || !temporary.renameTo(File(directory, "$FILE_PREFIX$time$suffix"))) {
+                Log.e(TAG, "Backup failed: $result")
+                // the chain has been advanced by a backup that is not kept
+                chain.end()
+                return Result.failure()
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Backup failed", e)
+            chain.end()
+            return Result.failure()
+        } finally {
+            temporary.delete()
+        }
+        prefs.edit().putString(KEY_FINGERPRINT, fingerprint).apply()
+
+        rotate(getBackups(applicationContext))
+        return Result.success()
+    }
+
+    /**
+     * Deletes the backups older than the latest [GENERATIONS], except for the
+     * full backup and the deltas the oldest kept generation is restored from.
+     */
+    private fun rotate(backups: List<File>) {
+        if (backups.size <= GENERATIONS) return
+        val oldestNeeded = (GENERATIONS - 1 until backups.size).firstOrNull { !isDelta(backups[it]) } ?: return
+        backups.drop(oldestNeeded + 1).forEach { it.delete() }
+    }
+
+    private fun fingerprint(): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        DatabaseScheduler.runOn(DatabaseScheduler.Lane.BACKGROUND) {
+            PainDiaryDatabase.withInstance(applicationContext) { roomDatabase ->
+                val db = roomDatabase.openHelper.readableDatabase
+                digest.update("${db.version}:${ChangeLog.getLatestSequence(db)}".toByteArray(UTF_8))
+                for (table in ChangeLog.TRACKED_TABLES) {
+                    db.query("SELECT MAX(_id) FROM `$table`").use { cursor ->
+                        cursor.moveToFirst()
+                        digest.update(";$table:${cursor.getLong(0)}".toByteArray(UTF_8))
+                    }
+                }
+            }
+        }
+        // the preferences are part of the backup as well
+        val preferences = ByteArrayOutputStream()
+        val writer = JsonWriter(OutputStreamWriter(preferences, UTF_8))
+        writer.beginObject()
+        BackupCreator.writeAllPreferences(applicationContext, writer)
+        writer.endObject()
+        writer.close()
+        digest.update(preferences.toByteArray())
+        return digest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    companion object {
+        private val TAG = AutoBackupWorker::class.java.simpleName
+        private const val UNIQUE_WORK_NAME = "auto_backup"
+        private const val PREF_NAME = "auto_backup"
+        private const val KEY_FINGERPRINT = "fingerprint"
+        private const val CHAIN_NAME = "auto"
+        private const val DIRECTORY_NAME = "backups"
+        private const val FILE_PREFIX = "backup-"
+        private const val FILE_SUFFIX = ".pfapd"
+        private const val DELTA_SUFFIX = ".delta.pfapd"
+        const val GENERATIONS = 7
+
+        private fun getDirectory(context: Context) = File(context.filesDir, DIRECTORY_NAME)
+
+        /**
+         * Returns the backups written so far, newest first.
+         */
+        @JvmStatic
+        fun getBackups(context: Context): List<File> {
+            val files = getDirectory(context).listFiles { file ->
+                file.name.startsWith(FILE_PREFIX) && file.name.endsWith(FILE_SUFFIX)
+            } ?: return emptyList()
+            return files.sortedByDescending { getTime(it) }
+        }
+
+        /**
+         * Returns the time a backup was written, in milliseconds since the epoch.
+         */
+        @JvmStatic
+        fun getTime(backup: File): Long {
+            return backup.name.removePrefix(FILE_PREFIX).removeSuffix(DELTA_SUFFIX).removeSuffix(FILE_SUFFIX).toLongOrNull() ?: 0L
+        }
+
+        /**
+         * Tells whether a backup is a delta, which needs the backups before it.
+         */
+        @JvmStatic
+        fun isDelta(backup: File): Boolean = backup.name.endsWith(DELTA_SUFFIX)
+
+        /**
+         * Returns what restores the given backup: the full backup of its chain
+         * and the deltas up to it, oldest first.
+         */
+        @JvmStatic
+        fun getChain(context: Context, backup: File): List<File> {
+            val older = getBackups(context).dropWhile { it != backup }
+            val full = older.indexOfFirst { !isDelta(it) }
+            if (older.isEmpty() || full < 0) return emptyList()
+            return older.subList(0, full + 1).reversed()
+        }
+
+        /**
+         * Replaces the diary by one of the [getBackups], see [BackupRestorer.restoreChain].
+         * Must not be called on the main thread.
+         *
+         * @return whether the backup has been restored
+         */
+        @JvmStatic
+        fun restore(context: Context, backup: File): Boolean {
+            val chain = getChain(context, backup)
+            if (chain.isEmpty()) {
+                Log.e(TAG, "No full backup before $backup")
+                return false
+            }
+            val inputs = ArrayList<FileInputStream>()
+            return try {
+                chain.mapTo(inputs) { FileInputStream(it) }
+                BackupRestorer().restoreChain(context, inputs)
+            } catch (e: IOException) {
+                Log.e(TAG, "Could not read $backup", e)
+                false
+            } finally {
+                inputs.forEach { it.close() }
+            }
+        }
+
+        /**
+         * Deletes all backups and forgets the diary they were taken of, e.g.
+         * when the app is reset: a deleted diary must not be kept in them.
+         */
+        @JvmStatic
+        fun deleteBackups(context: Context) {
+            getDirectory(context).deleteRecursively()
+            context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE).edit().clear().commit()
+            BackupChain(context, CHAIN_NAME).end()
+        }
+
+        /**
+         * Schedules the daily backup, unless it is scheduled already.
+         */
+        @JvmStatic
+        fun schedule(context: Context) {
+            val constraints = Constraints.Builder()
+                .setRequiresCharging(true)
+                .apply {
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) setRequiresDeviceIdle(true)
+                }
+                .build()
+            val request = PeriodicWorkRequestBuilder<AutoBackupWorker>(1, TimeUnit.DAYS)
+                .setConstraints(constraints)
+                .build()
+            WorkManager.getInstance(context)
+                .enqueueUniquePeriodicWork(UNIQUE_WORK_NAME, ExistingPeriodicWorkPolicy.KEEP, request)
+        }
+    }
+}
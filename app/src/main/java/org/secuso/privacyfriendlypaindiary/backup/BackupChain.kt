@@ -0,0 +1,136 @@
+package org.secuso.privacyfriendlypaindiary.backup
+
+import android.content.Context
+import android.content.SharedPreferences
+import java.util.*
+
+/**
+ * The state of a chain of incremental backups: a full backup followed by
+ * deltas, each holding the rows changed since the backup before it, see
+ * [org.secuso.privacyfriendlypaindiary.database.ChangeLog].
+ *
+ * Every backup records the ID of its chain and the sequence number of the
+ * latest change it contains, its watermark. The state is kept in preferences
+ * of their own, which are not part of any backup.
+ */
+internal class BackupChain(context: Context, private val name: String) {
+
+    /**
+     * The position of a database in a chain: the database equals the
+     * backups of the chain up to the watermark.
+     */
+    data class Link(val id: String, val watermark: Long, val version: Int)
+
+    private val prefs = getPreferences(context)
+
+    val id: String?
+        get() = prefs.getString(name + KEY_ID, null)
+
+    val watermark: Long
+        get() = prefs.getLong(name + KEY_WATERMARK, 0)
+
+    /**
+     * Number of deltas since the full backup.
+     */
+    val length: Int
+        get() = prefs.getInt(name + KEY_LENGTH, 0)
+
+    /**
+     * Records a full backup, which starts the chain with the given ID.
+     */
+    fun start(id: String, watermark: Long) {
+        prefs.edit()
+            .putString(name + KEY_ID, id)
+            .putLong(name + KEY_WATERMARK, watermark)
+            .putInt(name + KEY_LENGTH, 0)
+            .commit()
+    }
+
+    /**
+     * Forgets the chain, e.g. if one of its backups has been lost, so the
+     * next backup starts a new one.
+     */
+    fun end() {
+        prefs.edit()
+            .remove(name + KEY_ID)
+            .remove(name + KEY_WATERMARK)
+            .remove(name + KEY_LENGTH)
+            .commit()
+    }
+
+    /**
+     * Records a delta up to the given watermark.
+     */
+    fun advance(watermark: Long) {
+        prefs.edit()
+            .putLong(name + KEY_WATERMARK, watermark)
+            .putInt(name + KEY_LENGTH, length + 1)
+            .commit()
+    }
+
+    companion object {
+        private const val PREF_NAME = "backup_chains"
+        private const val KEY_ID = ".id"
+        private const val KEY_WATERMARK = ".watermark"
+        private const val KEY_LENGTH = ".length"
+        private const val KEY_RESTORED_ID = "restored.id"
+        private const val KEY_RESTORED_WATERMARK = "restored.watermark"
+        private const val KEY_RESTORED_VERSION = "restored.version"
+
+        private fun getPreferences(context: Context): SharedPreferences =
+            context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE)
+
+        @JvmStatic
+        fun newID(): String = UUID.randomUUID().toString()
+
+        /**
+         * Returns the smallest watermark of all chains: the changes up to it
+         * are contained in the latest backup of every chain. Null if there
+         * is no chain.
+         */
+        @JvmStatic
+        fun getPrunableSequence(context: Context): Long? {
+            val prefs = getPreferences(context)
+            return prefs.all.entries
+                .filter { (key, _) -> key.endsWith(KEY_WATERMARK) && key != KEY_RESTORED_WATERMARK }
+                .mapNotNull { (_, value) -> value as? Long }
+                .minOrNull()
+        }
+
+        /**
+         * Returns the link of the backup restored last, to which a delta of
+         * its chain can be applied.
+         */
+        @JvmStatic
+        fun getRestored(context: Context): Link? {
+            val prefs = getPreferences(context)
+            val id = prefs.getString(KEY_RESTORED_ID, null) ?: return null
+            return Link(id, prefs.getLong(KEY_RESTORED_WATERMARK, 0), prefs.getInt(KEY_RESTORED_VERSION, 0))
+        }
+
+        /**
+         * Forgets all chains and the backup restored last, e.g. once the diary
+         * has been deleted, so the next backup of every chain is a full one.
+         */
+        @JvmStatic
+        fun clear(context: Context) {
+            getPreferences(context).edit().clear().commit()
+        }
+
+        /**
+         * Forgets all chains after a restore, so every chain starts over with
+         * a full backup of the restored database, and remembers the link of
+         * the restored backup, if any.
+         */
+        @JvmStatic
+        fun onRestored(context: Context, restored: Link?) {
+            val editor = getPreferences(context).edit().clear()
+            if (restored != null) {
+                editor.putString(KEY_RESTORED_ID, restored.id)
+                    .putLong(KEY_RESTORED_WATERMARK, restored.watermark)
+                    .putInt(KEY_RESTORED_VERSION, restored.version)
+            }
+            editor.commit()
+        }
+    }
+}
@@ -3,52 +3,292 @@ package org.secuso.privacyfriendlypaindiary.backup
 import android.content.Context
 import android.content.SharedPreferences
 import android.database.sqlite.SQLiteDatabase
+import android.os.SystemClock
 import android.preference.PreferenceManager
 import android.util.JsonWriter
 import android.util.Log
-import org.secuso.privacyfriendlybackup.api.backup.DatabaseUtil.getSupportSQLiteOpenHelper
+import androidx.sqlite.db.SupportSQLiteDatabase
 import org.secuso.privacyfriendlybackup.api.backup.DatabaseUtil.writeDatabase
 import org.secuso.privacyfriendlybackup.api.backup.PreferenceUtil.writePreferences
 import org.secuso.privacyfriendlybackup.api.pfa.IBackupCreator
+import org.secuso.privacyfriendlypaindiary.database.ChangeLog
+import org.secuso.privacyfriendlypaindiary.database.DatabaseScheduler
 import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabase
+import org.secuso.privacyfriendlypaindiary.helpers.CountingOutputStream
 import org.secuso.privacyfriendlypaindiary.tutorial.PrefManager
-import java.io.OutputStream
-import java.io.OutputStreamWriter
+import java.io.*
+import java.nio.channels.Channels
+import java.util.concurrent.Callable
 import kotlin.text.Charsets.UTF_8
 
-class BackupCreator : IBackupCreator {
-    override fun writeBackup(context: Context, outputStream: OutputStream): Boolean {
-        Log.d("PFA BackupCreator", "createBackup() started")
-        val outputStreamWriter = OutputStreamWriter(outputStream, UTF_8)
-        val writer = JsonWriter(outputStreamWriter)
-        writer.setIndent("")
+/**
+ * Writes a backup of the database and the preferences.
+ *
+ * By default the database is backed up as a [BackupFormat.SNAPSHOT]: a single
+ * `VACUUM INTO` statement copies it into a compact file, which reads all
+ * tables in one transaction and therefore gives a consistent copy while the
+ * app keeps writing. The copy is then streamed to the backup with
+ * [FileChannel.transferTo][java.nio.channels.FileChannel.transferTo], without
+ * passing through a buffer in the app if the backup is written to a file.
+ * `VACUUM INTO` needs SQLite 3.27 (Android 11); on older versions, or if
+ * requested, the rows are written as [BackupFormat.JSON] instead.
+ *
+ * [BackupFormat.BINARY] writes all rows in a compact encoding instead.
+ * With [BackupFormat.DELTA], only the rows changed since the previous backup
+ * of the [BackupChain] with the given name are written. A chain starts with a
+ * full backup, and a new one is started every [MAX_CHAIN_LENGTH] deltas.
+ *
+ * Backups are always read in the app's main process, through its shared
+ * database instance; called in another process, e.g. by the
+ * [PFABackupService], the backup is written by the main process and copied,
+ * see [BackupProvider].
+ */
+class BackupCreator @JvmOverloads constructor(
+    private val format: BackupFormat = BackupFormat.SNAPSHOT,
+    private val chainName: String = DEFAULT_CHAIN
+) : IBackupCreator {
 
-        try {
-            writer.beginObject()
-            val dataBase = getSupportSQLiteOpenHelper(context, PainDiaryDatabase.DATABASE_NAME, PainDiaryDatabase.VERSION).readableDatabase
-            Log.d("PFA BackupCreator", "Writing database")
-            writer.name("database")
-            writeDatabase(writer, dataBase)
-            dataBase.close()
-            Log.d("PFA BackupCreator", "Writing preferences")
+    /**
+     * The size and duration of a backup.
+     */
+    data class Stats(val format: BackupFormat, val bytes: Long, val millis: Long) {
+        val bytesPerSecond: Long
+            get() = if (millis == 0L) bytes * 1000 else bytes * 1000 / millis
+    }
+
+    private class Written(val format: BackupFormat, val bytes: Long, val watermark: Long)
+
+    companion object {
+        private const val TAG = "PFA BackupCreator"
+        const val DEFAULT_CHAIN = "default"
+        const val MAX_CHAIN_LENGTH = 30
+        internal const val SNAPSHOT_VERSION = 2
+        private const val SNAPSHOT_FILE_NAME = "backup-snapshot.db"
+        private val VACUUM_INTO_VERSION = listOf(3, 27)
+
+        /**
+         * The stats of the last backup written by this process, to measure
+         * the throughput of the formats.
+         */
+        @JvmStatic
+        @Volatile
+        var lastStats: Stats? = null
+            private set
+
+        /**
+         * Writes the preferences under the names read by [BackupRestorer].
+         */
+        internal fun writeAllPreferences(context: Context, writer: JsonWriter) {
+            Log.d(TAG, "Writing preferences")
             writer.name("preferences")
             val pref: SharedPreferences =
                 PreferenceManager.getDefaultSharedPreferences(context.applicationContext)
             writePreferences(writer, pref)
             writer.name("preferences2")
-            val prefTutorialActivity : SharedPreferences =
+            val prefTutorialActivity: SharedPreferences =
                 context.getSharedPreferences(PrefManager.PREF_NAME, PrefManager.PRIVATE_MODE)
             writePreferences(writer, prefTutorialActivity)
-            Log.d("PFA BackupCreator", "Writing files")
-            writer.endObject()
-            writer.close()
+        }
+
+        private fun supportsVacuumInto(database: SupportSQLiteDatabase): Boolean {
+            val version = database.query("SELECT sqlite_version()").use { cursor ->
+                if (cursor.moveToFirst()) cursor.getString(0) else null
+            } ?: return false
+            val parts = version.split('.').map { it.toIntOrNull() ?: 0 }
+            for (i in VACUUM_INTO_VERSION.indices) {
+                val part = parts.getOrElse(i) { 0 }
+                if (part != VACUUM_INTO_VERSION[i]) return part > VACUUM_INTO_VERSION[i]
+            }
+            return true
+        }
+    }
+
+    override fun writeBackup(context: Context, outputStream: OutputStream): Boolean {
+        if (!BackupProvider.isAppProcess(context)) {
+            // e.g. in the PFABackupService, the database belongs to the main process
+            return try {
+                BackupProvider.writeBackup(context, format, chainName, outputStream)
+            } catch (e: IOException) {
+                Log.e(TAG, "Error occurred", e)
+                false
+            }
+        }
+        Log.d(TAG, "createBackup() started")
+        val start = SystemClock.elapsedRealtime()
+        val chain = BackupChain(context, chainName)
+        val stats = try {
+            val chainId = chain.id
+            val written = if (format == BackupFormat.DELTA && chainId != null && chain.length < MAX_CHAIN_LENGTH) {
+                writeDelta(context, outputStream, chainId, chain.watermark).also { chain.advance(it.watermark) }
+            } else {
+                val newChainId = BackupChain.newID()
+                val full = when {
+                    format == BackupFormat.BINARY -> writeBinary(context, outputStream, newChainId)
+                    format != BackupFormat.JSON && PainDiaryDatabase.withInstance(context) {
+                        supportsVacuumInto(it.openHelper.writableDatabase)
+                    } -> writeSnapshot(context, outputStream, newChainId)
+                    else -> writeJson(context, outputStream, newChainId)
+                }
+                full.also { chain.start(newChainId, it.watermark) }
+            }
+            pruneChangeLog(context)
+            Stats(written.format, written.bytes, SystemClock.elapsedRealtime() - start)
         } catch (e: Exception) {
-            Log.e("PFA BackupCreator", "Error occurred", e)
+            Log.e(TAG, "Error occurred", e)
             e.printStackTrace()
             return false
         }
 
-        Log.d("PFA BackupCreator", "Backup created successfully")
+        lastStats = stats
+        Log.d(TAG, "Backup created successfully: ${stats.bytes} bytes as ${stats.format}" +
+                " in ${stats.millis} ms (${stats.bytesPerSecond / 1024} KiB/s)")
         return true
     }
-}
\ No newline at end of file
+
+    @Throws(IOException::class)
+    private fun writeSnapshot(
+        context: Context,
+        outputStream: OutputStream,
+        chainId: String
+    ): Written {
+        val snapshot = File(context.cacheDir, SNAPSHOT_FILE_NAME)
+        try {
+            // VACUUM INTO fails if the file exists, e.g. after a crash
+            snapshot.delete()
+            Log.d(TAG, "Writing database snapshot")
+            DatabaseScheduler.runOn(DatabaseScheduler.Lane.BULK) {
+                PainDiaryDatabase.withInstance(context) { roomDatabase ->
+                    roomDatabase.openHelper.writableDatabase.execSQL("VACUUM INTO ?", arrayOf<Any>(snapshot.path))
+                }
+            }
+            // read from the copy, so it matches the copied rows
+            val watermark = SQLiteDatabase.openDatabase(snapshot.path, null, SQLiteDatabase.OPEN_READONLY).use { copy ->
+                copy.rawQuery(ChangeLog.QUERY_LATEST_SEQUENCE, null).use { cursor ->
+                    if (cursor.moveToFirst()) cursor.getLong(0) else 0L
+                }
+            }
+
+            val preferences = ByteArrayOutputStream()
+            val preferencesWriter = JsonWriter(OutputStreamWriter(preferences, UTF_8))
+            preferencesWriter.beginObject()
+            writeAllPreferences(context, preferencesWriter)
+            preferencesWriter.endObject()
+            preferencesWriter.close()
+
+            // not closed, that would close the backup stream
+            val header = DataOutputStream(outputStream)
+            header.write(BackupFormat.SNAPSHOT.magic!!)
+            header.writeInt(SNAPSHOT_VERSION)
+            header.writeUTF(chainId)
+            header.writeLong(watermark)
+            header.writeInt(preferences.size())
+            preferences.writeTo(header)
+            FileInputStream(snapshot).channel.use { source ->
+                val size = source.size()
+                header.writeLong(size)
+                header.flush()
+                val target = if (outputStream is FileOutputStream) outputStream.channel else Channels.newChannel(outputStream)
+                var position = 0L
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target)
+                }
+                outputStream.flush()
+                return Written(BackupFormat.SNAPSHOT, header.size() + size, watermark)
+            }
+        } finally {
+            snapshot.delete()
+        }
+    }
+
+    /**
+     * Writes all rows in a single transaction, so they are consistent.
+     * Writes of the app wait until the backup is complete.
+     */
+    @Throws(IOException::class)
+    private fun writeJson(context: Context, outputStream: OutputStream, chainId: String): Written {
+        val counter = CountingOutputStream(outputStream)
+        val writer = JsonWriter(OutputStreamWriter(counter, UTF_8))
+        writer.setIndent("")
+
+        writer.beginObject()
+        Log.d(TAG, "Writing database")
+        writer.name("database")
+        val (watermark, counts) = DatabaseScheduler.runOn(DatabaseScheduler.Lane.BULK) {
+            PainDiaryDatabase.withInstance(context) { roomDatabase ->
+                roomDatabase.runInTransaction(Callable {
+                    val database = roomDatabase.openHelper.writableDatabase
+                    writeDatabase(writer, database)
+                    Pair(ChangeLog.getLatestSequence(database), countRows(database))
+                })
+            }
+        }
+        writer.name("chain")
+        writer.beginObject()
+        writer.name("id").value(chainId)
+        writer.name("watermark").value(watermark)
+        writer.endObject()
+        // lets the BackupVerifier tell a truncated table from a complete one
+        writer.name("counts")
+        writer.beginObject()
+        for ((table, count) in counts) {
+            writer.name(table).value(count)
+        }
+        writer.endObject()
+        writeAllPreferences(context, writer)
+        writer.endObject()
+        writer.close()
+        return Written(BackupFormat.JSON, counter.count, watermark)
+    }
+
+    private fun countRows(database: SupportSQLiteDatabase): Map<String, Long> {
+        return ChangeLog.TRACKED_TABLES.associateWith { table ->
+            database.query("SELECT COUNT(*) FROM `$table`").use { cursor ->
+                if (cursor.moveToFirst()) cursor.getLong(0) else 0L
+            }
+        }
+    }
+
+    /**
+     * Writes all rows in a single transaction.
+     */
+    @Throws(IOException::class)
+    private fun writeBinary(context: Context, outputStream: OutputStream, chainId: String): Written {
+        Log.d(TAG, "Writing binary database")
+        val counter = CountingOutputStream(outputStream)
+        val watermark = DatabaseScheduler.runOn(DatabaseScheduler.Lane.BULK) {
+            PainDiaryDatabase.withInstance(context) { roomDatabase ->
+                roomDatabase.runInTransaction(Callable {
+                    BinaryBackup.write(context, roomDatabase.openHelper.writableDatabase, counter, chainId)
+                })
+            }
+        }
+        return Written(BackupFormat.BINARY, counter.count, watermark)
+    }
+
+    /**
+     * Writes the changes after the given watermark in a single transaction.
+     */
+    @Throws(IOException::class)
+    private fun writeDelta(context: Context, outputStream: OutputStream, chainId: String, from: Long): Written {
+        Log.d(TAG, "Writing changes since $from")
+        val counter = CountingOutputStream(outputStream)
+        val to = DatabaseScheduler.runOn(DatabaseScheduler.Lane.BULK) {
+            PainDiaryDatabase.withInstance(context) { roomDatabase ->
+                roomDatabase.runInTransaction(Callable {
+                    DeltaBackup.write(context, roomDatabase.openHelper.writableDatabase, counter, chainId, from)
+                })
+            }
+        }
+        return Written(BackupFormat.DELTA, counter.count, to)
+    }
+
+    /**
+     * Deletes the changes contained in the latest backup of every chain.
+     */
+    private fun pruneChangeLog(context: Context) {
+        val sequence = BackupChain.getPrunableSequence(context) ?: return
+        DatabaseScheduler.runOn(DatabaseScheduler.Lane.WRITE) {
+            PainDiaryDatabase.withInstance(context) { ChangeLog.prune(it.openHelper.writableDatabase, sequence) }
+        }
+    }
+}
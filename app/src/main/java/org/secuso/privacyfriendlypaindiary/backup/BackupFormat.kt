@@ -0,0 +1,84 @@
+package org.secuso.privacyfriendlypaindiary.backup
+
+import java.io.BufferedInputStream
+import java.io.IOException
+import java.io.InputStream
+import kotlin.text.Charsets.US_ASCII
+
+/**
+ * The formats a backup can be written in. Every format but JSON starts with
+ * its own magic bytes, so the restorer can tell them apart.
+ */
+enum class BackupFormat(magic: String?) {
+    /**
+     * A JSON object with the rows of every table, as written by
+     * [org.secuso.privacyfriendlybackup.api.backup.DatabaseUtil], the
+     * [BackupChain] ID and watermark, the number of rows per table, and the
+     * preferences.
+     */
+    JSON(null),
+
+    /**
+     * The magic bytes and a format version, the [BackupChain] ID and
+     * watermark, the preferences as a length-prefixed JSON object, then the
+     * length and bytes of a raw copy of the database file, see [BackupCreator].
+     */
+    SNAPSHOT("PFAPDSNP"),
+
+    /**
+     * The rows changed since the previous backup of a [BackupChain], see [DeltaBackup].
+     */
+    DELTA("PFAPDDLT"),
+
+    /**
+     * All rows in a compact, compressed binary encoding, see [BinaryBackup].
+     */
+    BINARY("PFAPDBIN");
+
+    val magic: ByteArray? = magic?.toByteArray(US_ASCII)
+
+    companion object {
+        private const val MAX_MAGIC_LENGTH = 8
+
+        /**
+         * Reads the format of a backup from its first bytes. The stream is
+         * positioned after the magic bytes, or at its start for JSON.
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun detect(input: BufferedInputStream): BackupFormat {
+            input.mark(MAX_MAGIC_LENGTH)
+            val head = ByteArray(MAX_MAGIC_LENGTH)
+            var read = 0
+            while (read < head.size) {
+                val count = input.read(head, read, head.size - read)
+                if (count < 0) break
+                read += count
+            }
+            for (format in values()) {
+                val magic = format.magic ?: continue
+                if (read >= magic.size && magic.indices.all { head[it] == magic[it] }) {
+                    input.reset()
+                    skipFully(input, magic.size.toLong())
+                    return format
+                }
+            }
+            input.reset()
+            return JSON
+        }
+
+        @Throws(IOException::class)
+        internal fun skipFully(input: InputStream, count: Long) {
+            var remaining = count
+            while (remaining > 0) {
+                val skipped = input.skip(remaining)
+                if (skipped <= 0) {
+                    if (input.read() < 0) throw IOException("Unexpected end of backup")
+                    remaining--
+                } else {
+                    remaining -= skipped
+                }
+            }
+        }
+    }
+}
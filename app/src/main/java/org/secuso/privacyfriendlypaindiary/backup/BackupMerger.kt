@@ -0,0 +1,257 @@
+package org.secuso.privacyfriendlypaindiary.backup
+
+import android.content.Context
+import androidx.sqlite.db.SupportSQLiteDatabase
+import org.secuso.privacyfriendlypaindiary.database.DatabaseScheduler
+import org.secuso.privacyfriendlypaindiary.database.DiaryChange
+import org.secuso.privacyfriendlypaindiary.database.DiaryChangeBus
+import org.secuso.privacyfriendlypaindiary.database.DiaryEntryReader
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabase
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabaseService
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DiaryEntry
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.Drug
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DrugIntake
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.PainDescription
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DrugIntakeInterface
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.PainDescriptionInterface
+import org.secuso.privacyfriendlypaindiary.database.utils.Converters
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.EnumSet
+
+/**
+ * Adds the entries of a full backup to the current diary instead of replacing
+ * it, e.g. to combine the diaries kept on two devices.
+ *
+ * The backup is verified and read into a scratch database. Its entries are
+ * read in order of their dates (see [DiaryEntryReader]) and joined with the
+ * dates of the current entries, which are read in pages in the same order,
+ * so both sides are read once and only a page of dates and a chunk of
+ * entries are held in memory. Entries of days missing in the diary are
+ * added, entries of the same day are resolved by the [Policy]. The changes
+ * are written in transactions of [CHUNK_SIZE] entries, so other writes are
+ * not held up for the whole merge.
+ */
+class BackupMerger(private val policy: Policy) {
+
+    enum class Policy {
+        /** Keeps the current entry. */
+        KEEP_CURRENT,
+        /** Replaces the current entry by the one of the backup. */
+        KEEP_BACKUP,
+        /**
+         * Keeps both notes, the higher pain level, all body regions, pain
+         * qualities and times, and the drug intakes of both entries.
+         */
+        COMBINE
+    }
+
+    /**
+     * @param added the number of entries added for days missing in the diary
+     * @param merged the number of current entries replaced or combined
+     * @param kept the number of current entries left as they were
+     */
+    data class Stats(val added: Int, val merged: Int, val kept: Int)
+
+    /**
+     * Merges the backup into the current diary.
+     *
+     * @throws IOException if the backup is invalid or a [BackupFormat.DELTA],
+     * which holds changes instead of entries
+     */
+    @Throws(IOException::class)
+    fun merge(context: Context, backup: InputStream): Stats {
+        val file = File(context.cacheDir, SPOOL_FILE_NAME)
+        try {
+            FileOutputStream(file).use { backup.copyTo(it) }
+            val result = FileInputStream(file).use { BackupVerifier.verify(it) }
+            if (!result.isValid) throw IOException("Invalid backup: $result")
+            if (result.format == BackupFormat.DELTA) throw IOException("A delta backup can not be merged")
+            context.deleteDatabase(MERGE_DATABASE_NAME)
+            FileInputStream(file).use { BackupRestorer().readFullBackup(context, it, MERGE_DATABASE_NAME) }
+        } finally {
+            file.delete()
+        }
+
+        // opening it migrates a backup of an older version
+        val scratch = PainDiaryDatabase.openDatabase(context, MERGE_DATABASE_NAME)
+        try {
+            return merge(context, scratch.openHelper.readableDatabase)
+        } finally {
+            scratch.close()
+            context.deleteDatabase(MERGE_DATABASE_NAME)
+        }
+    }
+
+    private fun merge(context: Context, backup: SupportSQLiteDatabase): Stats {
+        val service = PainDiaryDatabaseService.getInstance(context)
+        val current = CurrentEntries(context)
+        // the ID of the current entry of the same day, or null, and the entry of the backup
+        val pending = ArrayList<Pair<Long?, DiaryEntryInterface>>(CHUNK_SIZE)
+        var added = 0
+        var merged = 0
+        var kept = 0
+        try {
+            backup.query(DiaryEntryReader.QUERY, arrayOf<Any>(FIRST_DATE, LAST_DATE)).use { cursor ->
+                DiaryEntryReader.forEach(cursor) { entry ->
+                    val currentID = current.find(Converters.fromDate(entry.date)!!)
+                    when {
+                        currentID == null -> added++
+                        policy == Policy.KEEP_CURRENT -> {
+                            kept++
+                            return@forEach
+                        }
+                        else -> merged++
+                    }
+                    pending.add(currentID to entry)
+                    if (pending.size >= CHUNK_SIZE) write(context, service, pending)
+                }
+            }
+            write(context, service, pending)
+        } finally {
+            // the chunks written so far stay, the screens reload either way
+            if (added + merged > 0) DiaryChangeBus.publish(DiaryChange.DatabaseReplaced)
+        }
+        return Stats(added, merged, kept)
+    }
+
+    private fun write(
+        context: Context,
+        service: PainDiaryDatabaseService,
+        pending: MutableList<Pair<Long?, DiaryEntryInterface>>
+    ) {
+        if (pending.isEmpty()) return
+        DatabaseScheduler.runOn(DatabaseScheduler.Lane.WRITE) {
+            PainDiaryDatabase.withInstance(context) { database ->
+                database.runInTransaction(Runnable {
+                    for ((currentID, entry) in pending) {
+                        val currentEntry = currentID?.let { service.getDiaryEntryByID(it) }
+                        if (currentEntry == null) {
+                            service.storeDiaryEntryAndAssociatedObjects(copyOf(entry))
+                        } else {
+                            service.updateDiaryEntryAndAssociatedObjects(resolve(currentEntry, entry))
+                        }
+                    }
+                })
+            }
+        }
+        pending.clear()
+    }
+
+    private fun resolve(current: DiaryEntryInterface, other: DiaryEntryInterface): DiaryEntryInterface {
+        val resolved = if (policy == Policy.COMBINE) combine(current, other) else copyOf(other)
+        resolved.objectID = current.objectID
+        current.painDescription?.let { resolved.painDescription.objectID = it.objectID }
+        return resolved
+    }
+
+    private fun combine(current: DiaryEntryInterface, other: DiaryEntryInterface): DiaryEntry {
+        val a = current.painDescription
+        val b = other.painDescription
+        val painDescription = PainDescription(
+            maxOf(a?.painLevel ?: 0, b?.painLevel ?: 0),
+            union(a?.bodyRegions, b?.bodyRegions),
+            union(a?.painQualities, b?.painQualities),
+            union(a?.timesOfPain, b?.timesOfPain)
+        )
+        val notes = listOf(current.notes, other.notes)
+            .filterNot { it.isNullOrBlank() }
+            .distinct()
+            .joinToString("\n")
+        // the current intakes are kept as they are, drugs taken on both devices are not doubled
+        val drugs = current.drugIntakes.map { it.drug }
+        val intakes = HashSet<DrugIntakeInterface>(current.drugIntakes)
+        other.drugIntakes.filter { it.drug !in drugs }.mapTo(intakes) { copyOf(it) }
+        return DiaryEntry(
+            current.date,
+            current.condition ?: other.condition,
+            painDescription,
+            notes.ifEmpty { null },
+            intakes
+        )
+    }
+
+    /**
+     * The dates and IDs of the current entries in ascending order of their
+     * dates. A page is read after the last date read before, so the entries
+     * added by the merge, which all come before the next date asked for, are
+     * passed over.
+     */
+    private class CurrentEntries(private val context: Context) {
+        private val page = ArrayDeque<Pair<String, Long>>()
+        private var last = ""
+        private var exhausted = false
+
+        /**
+         * @return the ID of the current entry on the date, the dates must be
+         * asked for in ascending order
+         */
+        fun find(date: String): Long? {
+            while (true) {
+                if (page.isEmpty() && !nextPage()) return null
+                val (first, id) = page.first()
+                if (first > date) return null
+                page.removeFirst()
+                if (first == date) return id
+            }
+        }
+
+        private fun nextPage(): Boolean {
+            if (exhausted) return false
+            DatabaseScheduler.runOn(DatabaseScheduler.Lane.BACKGROUND) {
+                PainDiaryDatabase.withInstance(context) { database ->
+                    database.query(PAGE_QUERY, arrayOf<Any>(last, PAGE_SIZE)).use { cursor ->
+                        while (cursor.moveToNext()) page.addLast(cursor.getString(1) to cursor.getLong(0))
+                    }
+                }
+            }
+            exhausted = page.size < PAGE_SIZE
+            page.lastOrNull()?.let { last = it.first }
+            return page.isNotEmpty()
+        }
+    }
+
+    companion object {
+        /** The number of entries written in one transaction. */
+        const val CHUNK_SIZE = 200
+        private const val PAGE_SIZE = 500
+        private const val PAGE_QUERY =
+            "SELECT _id, date FROM diaryentries WHERE date > ? ORDER BY date LIMIT ?"
+        // dates are stored as yyyy-MM-dd, so these bound all of them
+        private const val FIRST_DATE = "0000-01-01"
+        private const val LAST_DATE = "9999-12-31"
+        private const val MERGE_DATABASE_NAME = "mergeDatabase"
+        private const val SPOOL_FILE_NAME = "merge"
+
+        private fun copyOf(entry: DiaryEntryInterface): DiaryEntry {
+            val pain: PainDescriptionInterface? = entry.painDescription
+            val painDescription = PainDescription(
+                pain?.painLevel ?: 0,
+                union(pain?.bodyRegions, null),
+                union(pain?.painQualities, null),
+                union(pain?.timesOfPain, null)
+            )
+            val intakes = entry.drugIntakes.mapTo(HashSet<DrugIntakeInterface>()) { copyOf(it) }
+            return DiaryEntry(entry.date, entry.condition, painDescription, entry.notes, intakes)
+        }
+
+        private fun copyOf(intake: DrugIntakeInterface): DrugIntakeInterface = DrugIntake(
+            Drug(intake.drug.name, intake.drug.dose),
+            intake.quantityMorning,
+            intake.quantityNoon,
+            intake.quantityEvening,
+            intake.quantityNight
+        )
+
+        private inline fun <reified E : Enum<E>> union(a: EnumSet<E>?, b: EnumSet<E>?): EnumSet<E> {
+            val union = EnumSet.noneOf(E::class.java)
+            a?.let { union.addAll(it) }
+            b?.let { union.addAll(it) }
+            return union
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.secuso.privacyfriendlypaindiary.backup
+
+import android.app.ActivityManager
+import android.app.Application
+import android.content.ContentProvider
+import android.content.ContentValues
+import android.content.Context
+import android.database.Cursor
+import android.net.Uri
+import android.os.Build
+import android.os.Bundle
+import android.os.Process
+import android.util.Log
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * Runs backups and restores in the app's main process on behalf of the
+ * [PFABackupService], which runs in a process of its own (`:backup`).
+ *
+ * The shared database instance and its gate, the caches of the
+ * [PainDiaryDatabaseService][org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabaseService],
+ * the [DiaryChangeBus][org.secuso.privacyfriendlypaindiary.database.DiaryChangeBus]
+ * and the preferences exist once per process. A restore in the backup
+ * process would swap the database under a second instance, while the app
+ * kept using its stale connection and caches without ever hearing of it,
+ * and a backup would read through a second instance with lanes and a gate
+ * of its own, and advance a [BackupChain] the app does not see.
+ * The backup process therefore only copies and verifies the backups (see
+ * [BackupRestorer.restoreChain]) and hands them over as files in the cache
+ * directory, which both processes share; they are restored here, through
+ * the app's own instance. Likewise a backup is written here into a file in
+ * the cache directory, which the backup process then streams to its
+ * destination (see [BackupCreator.writeBackup]). The provider is not exported.
+ */
+class BackupProvider : ContentProvider() {
+
+    override fun onCreate(): Boolean = true
+
+    override fun call(method: String, arg: String?, extras: Bundle?): Bundle? {
+        val context = context ?: return null
+        val result = try {
+            when (method) {
+                METHOD_WRITE_BACKUP -> {
+                    val format = BackupFormat.valueOf(extras?.getString(KEY_FORMAT) ?: throw IllegalArgumentException("No format"))
+                    val chainName = extras.getString(KEY_CHAIN) ?: throw IllegalArgumentException("No chain")
+                    val file = toCacheFile(context, extras.getString(KEY_FILE) ?: throw IllegalArgumentException("No file"))
+                    FileOutputStream(file).use { BackupCreator(format, chainName).writeBackup(context, it) }
+                }
+                METHOD_RESTORE -> {
+                    val files = extras?.getStringArrayList(KEY_FILES)?.map { toCacheFile(context, it) }
+                        ?: throw IllegalArgumentException("No backups to restore")
+                    BackupRestorer().restoreFiles(context, files)
+                }
+                else -> throw IllegalArgumentException("Unknown method $method")
+            }
+        } catch (e: Exception) {
+            // exceptions do not cross the process boundary
+            Log.e(TAG, "$method failed", e)
+            false
+        }
+        return Bundle().apply { putBoolean(KEY_RESULT, result) }
+    }
+
+    private fun toCacheFile(context: Context, path: String): File {
+        val file = File(path).canonicalFile
+        if (file.parentFile != context.cacheDir.canonicalFile) {
+            throw IllegalArgumentException("Not in the cache directory: $path")
+        }
+        return file
+    }
+
+    override fun query(
+        uri: Uri, projection: Array<String>?, selection: String?, selectionArgs: Array<String>?, sortOrder: String?
+    ): Cursor? = null
+
+    override fun getType(uri: Uri): String? = null
+
+    override fun insert(uri: Uri, values: ContentValues?): Uri? {
+        throw UnsupportedOperationException("Backups are written and restored through call()")
+    }
+
+    override fun update(uri: Uri, values: ContentValues?, selection: String?, selectionArgs: Array<String>?): Int {
+        throw UnsupportedOperationException("Backups are written and restored through call()")
+    }
+
+    override fun delete(uri: Uri, selection: String?, selectionArgs: Array<String>?): Int {
+        throw UnsupportedOperationException("Backups are written and restored through call()")
+    }
+
+    companion object {
+        private val TAG = BackupProvider::class.java.simpleName
+        private const val METHOD_WRITE_BACKUP = "writeBackup"
+        private const val METHOD_RESTORE = "restore"
+        private const val KEY_FORMAT = "format"
+        private const val KEY_CHAIN = "chain"
+        private const val KEY_FILE = "file"
+        private const val KEY_FILES = "files"
+        private const val KEY_RESULT = "result"
+        private const val BACKUP_FILE_PREFIX = "backup-"
+
+        /**
+         * Tells whether the caller runs in the app's main process, which owns
+         * the database, rather than e.g. in the backup process.
+         */
+        @JvmStatic
+        fun isAppProcess(context: Context): Boolean {
+            val processName = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                Application.getProcessName()
+            } else {
+                val pid = Process.myPid()
+                val manager = context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
+                manager.runningAppProcesses?.firstOrNull { it.pid == pid }?.processName
+            }
+            return processName == context.packageName
+        }
+
+        /**
+         * Writes a backup in the app's main process, which is started if it is
+         * not running, and copies it to the given stream.
+         *
+         * @return whether the backup has been written completely
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun writeBackup(context: Context, format: BackupFormat, chainName: String, outputStream: OutputStream): Boolean {
+            val file = File.createTempFile(BACKUP_FILE_PREFIX, null, context.cacheDir)
+            try {
+                val extras = Bundle()
+                extras.putString(KEY_FORMAT, format.name)
+                extras.putString(KEY_CHAIN, chainName)
+                extras.putString(KEY_FILE, file.path)
+                if (!call(context, METHOD_WRITE_BACKUP, extras)) return false
+                FileInputStream(file).use { it.copyTo(outputStream) }
+                outputStream.flush()
+                return true
+            } finally {
+                file.delete()
+            }
+        }
+
+        /**
+         * Restores the verified backups, see [BackupRestorer.restoreChain], in
+         * the app's main process, which is started if it is not running.
+         *
+         * @param files the backups, in the cache directory
+         */
+        @JvmStatic
+        fun restore(context: Context, files: List<File>): Boolean {
+            val extras = Bundle()
+            extras.putStringArrayList(KEY_FILES, files.mapTo(ArrayList()) { it.path })
+            return call(context, METHOD_RESTORE, extras)
+        }
+
+        private fun call(context: Context, method: String, extras: Bundle): Boolean {
+            val uri = Uri.parse("content://${context.packageName}.backup")
+            return context.contentResolver.call(uri, method, null, extras)?.getBoolean(KEY_RESULT) ?: false
+        }
+    }
+}
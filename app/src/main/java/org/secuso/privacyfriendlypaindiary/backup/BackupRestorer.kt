@@ -2,25 +2,45 @@ package org.secuso.privacyfriendlypaindiary.backup
 
 import android.content.Context
 import android.content.SharedPreferences
+import android.database.sqlite.SQLiteDatabase
 import android.preference.PreferenceManager
 import android.util.JsonReader
+import android.util.Log
 import androidx.annotation.NonNull
+import androidx.sqlite.db.SupportSQLiteDatabase
 import org.secuso.privacyfriendlybackup.api.backup.DatabaseUtil
 import org.secuso.privacyfriendlybackup.api.backup.DatabaseUtil.readDatabaseContent
 import org.secuso.privacyfriendlybackup.api.backup.FileUtil
 import org.secuso.privacyfriendlybackup.api.pfa.IBackupRestorer
+import org.secuso.privacyfriendlypaindiary.database.ChangeLog
+import org.secuso.privacyfriendlypaindiary.database.DatabaseScheduler
+import org.secuso.privacyfriendlypaindiary.database.DiaryChange
+import org.secuso.privacyfriendlypaindiary.database.DiaryChangeBus
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabase
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabaseService
 import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabase.Companion.DATABASE_NAME
 import org.secuso.privacyfriendlypaindiary.tutorial.PrefManager
-import java.io.File
-import java.io.IOException
-import java.io.InputStream
-import java.io.InputStreamReader
-import kotlin.system.exitProcess
+import java.io.*
+import java.nio.channels.Channels
+import kotlin.text.Charsets.UTF_8
 
 class BackupRestorer : IBackupRestorer {
 
+    companion object {
+        private const val TAG = "PFA BackupRestorer"
+        private const val RESTORE_DATABASE_NAME = "restoreDatabase"
+        private const val RESTORE_FILE_PREFIX = "restore-"
+        private const val STAGED_SUFFIX = "-restored"
+        private val JOURNAL_SUFFIXES = listOf("-wal", "-shm", "-journal")
+    }
+
+    /**
+     * Reads the database object of a JSON backup into the restore database.
+     *
+     * @return the version of the database
+     */
     @Throws(IOException::class)
-    private fun readDatabase(@NonNull reader: JsonReader, @NonNull context: Context) {
+    private fun readDatabase(@NonNull reader: JsonReader, @NonNull context: Context, @NonNull databaseName: String): Int {
         reader.beginObject()
         val n1: String = reader.nextName()
         if (n1 != "version") {
@@ -31,10 +51,9 @@ class BackupRestorer : IBackupRestorer {
         if (n2 != "content") {
             throw RuntimeException("Unknown value $n2")
         }
-        val restoreDatabaseName = "restoreDatabase"
         val db = DatabaseUtil.getSupportSQLiteOpenHelper(
             context,
-            restoreDatabaseName,
+            databaseName,
             version
         ).writableDatabase
         db.beginTransaction()
@@ -44,12 +63,121 @@ class BackupRestorer : IBackupRestorer {
         db.endTransaction()
         db.close()
         reader.endObject()
+        return version
+    }
+
+    /**
+     * Reads a backup in [BackupFormat.SNAPSHOT], positioned after the magic
+     * bytes, into the restore database.
+     *
+     * @return the link of the backup in its chain, null if it has none
+     */
+    @Throws(IOException::class)
+    private fun readSnapshot(
+        @NonNull input: InputStream,
+        @NonNull context: Context,
+        @NonNull databaseName: String,
+        @NonNull pref: SharedPreferences.Editor,
+        @NonNull pref2: SharedPreferences.Editor
+    ): BackupChain.Link? {
+        val data = DataInputStream(input)
+        val version = data.readInt()
+        if (version > BackupCreator.SNAPSHOT_VERSION) {
+            throw RuntimeException("Unknown snapshot version $version")
+        }
+        // version 1 had no chain
+        val chainId = if (version >= 2) data.readUTF() else null
+        val watermark = if (version >= 2) data.readLong() else 0L
+        val preferences = ByteArray(data.readInt())
+        data.readFully(preferences)
+        val size = data.readLong()
 
-        // copy file to correct location
-        val databaseFile: File = context.getDatabasePath(restoreDatabaseName)
-        DatabaseUtil.deleteRoomDatabase(context, DATABASE_NAME)
-        FileUtil.copyFile(databaseFile, context.getDatabasePath(DATABASE_NAME))
-        databaseFile.delete()
+        val databaseFile = context.getDatabasePath(databaseName)
+        databaseFile.parentFile?.mkdirs()
+        FileOutputStream(databaseFile).channel.use { target ->
+            val source = Channels.newChannel(data)
+            var position = 0L
+            while (position < size) {
+                val count = target.transferFrom(source, position, size - position)
+                if (count <= 0) {
+                    throw IOException("Snapshot ends after $position of $size bytes")
+                }
+                position += count
+            }
+        }
+        val databaseVersion = checkSnapshot(databaseFile)
+
+        val reader = JsonReader(InputStreamReader(ByteArrayInputStream(preferences), UTF_8))
+        reader.beginObject()
+        while (reader.hasNext()) {
+            readPreferences(reader.nextName(), reader, pref, pref2)
+        }
+        reader.endObject()
+        return chainId?.let { BackupChain.Link(it, watermark, databaseVersion) }
+    }
+
+    /**
+     * Fails unless the file is an intact database this version of the app can migrate.
+     *
+     * @return the version of the database
+     */
+    private fun checkSnapshot(databaseFile: File): Int {
+        return SQLiteDatabase.openDatabase(databaseFile.path, null, SQLiteDatabase.OPEN_READWRITE).use { db ->
+            if (db.version > PainDiaryDatabase.VERSION) {
+                throw RuntimeException("Unknown database version ${db.version}")
+            }
+            val result = db.rawQuery("PRAGMA quick_check", null).use { cursor ->
+                if (cursor.moveToFirst()) cursor.getString(0) else null
+            }
+            if (result != "ok") {
+                throw IOException("Snapshot is corrupt: $result")
+            }
+            db.version
+        }
+    }
+
+    /**
+     * Swaps the restored database in while the app keeps running, see
+     * [PainDiaryDatabase.replaceDatabase].
+     *
+     * The restored database is first moved, or copied if that fails, next to
+     * the current one under a temporary name, so a failed copy, e.g. on a full
+     * disk, leaves the current database as it is. Only a complete copy is
+     * renamed over the current database, which replaces it atomically; the
+     * journal files of the current database are deleted afterwards.
+     */
+    @Throws(IOException::class)
+    private fun replaceDatabase(context: Context, databaseFile: File) {
+        val target = context.getDatabasePath(DATABASE_NAME)
+        val staged = File(target.parentFile, "$DATABASE_NAME$STAGED_SUFFIX")
+        staged.delete()
+        // both are in the databases directory, so this is a rename, not a copy
+        if (!databaseFile.renameTo(staged)) {
+            FileUtil.copyFile(databaseFile, staged)
+        }
+        PainDiaryDatabaseService.getInstance(context).replaceDatabase {
+            if (!staged.renameTo(target)) {
+                throw IOException("Could not move $staged to $target")
+            }
+            for (suffix in JOURNAL_SUFFIXES) {
+                File(target.path + suffix).delete()
+            }
+        }
+        context.deleteDatabase(RESTORE_DATABASE_NAME)
+    }
+
+    @Throws(IOException::class)
+    private fun readPreferences(
+        @NonNull type: String,
+        @NonNull reader: JsonReader,
+        @NonNull pref: SharedPreferences.Editor,
+        @NonNull pref2: SharedPreferences.Editor
+    ) {
+        when (type) {
+            "preferences" -> readPreferences(reader, pref)
+            "preferences2" -> readPreferences(reader, pref2)
+            else -> throw RuntimeException("Can not parse type $type")
+        }
     }
 
     @Throws(IOException::class)
@@ -61,51 +189,278 @@ class BackupRestorer : IBackupRestorer {
         while (reader.hasNext()) {
             val name: String = reader.nextName()
             when (name) {
-                "pref_medication", "pref_reminder", "IsFirstTimeLaunch" -> prefEdit.putBoolean(
-                    name,
-                    reader.nextBoolean()
-                )
-                "pref_reminder_time", "userID" -> prefEdit.putLong(name, reader.nextLong())
+                in BackupVerifier.BOOLEAN_PREFERENCES -> prefEdit.putBoolean(name, reader.nextBoolean())
+                in BackupVerifier.LONG_PREFERENCES -> prefEdit.putLong(name, reader.nextLong())
                 else -> throw RuntimeException("Unknown preference $name")
             }
         }
         reader.endObject()
     }
 
+    /**
+     * Reads a JSON backup into the restore database.
+     *
+     * @return the link of the backup in its chain, null if it has none
+     */
+    @Throws(IOException::class)
+    private fun readJson(
+        @NonNull input: InputStream,
+        @NonNull context: Context,
+        @NonNull databaseName: String,
+        @NonNull pref: SharedPreferences.Editor,
+        @NonNull pref2: SharedPreferences.Editor
+    ): BackupChain.Link? {
+        val reader = JsonReader(InputStreamReader(input, UTF_8))
+        var version: Int? = null
+        var chainId: String? = null
+        var watermark = 0L
+
+        // START
+        reader.beginObject()
+        while (reader.hasNext()) {
+            val type: String = reader.nextName()
+            when (type) {
+                "database" -> version = DatabaseScheduler.runOn(DatabaseScheduler.Lane.BULK) {
+                    readDatabase(reader, context, databaseName)
+                }
+                "chain" -> {
+                    reader.beginObject()
+                    while (reader.hasNext()) {
+                        when (reader.nextName()) {
+                            "id" -> chainId = reader.nextString()
+                            "watermark" -> watermark = reader.nextLong()
+                            else -> reader.skipValue()
+                        }
+                    }
+                    reader.endObject()
+                }
+                // checked by the BackupVerifier
+                "counts" -> reader.skipValue()
+                else -> readPreferences(type, reader, pref, pref2)
+            }
+        }
+        reader.endObject()
+        val databaseVersion = version ?: throw RuntimeException("Backup contains no database")
+        return chainId?.let { BackupChain.Link(it, watermark, databaseVersion) }
+    }
+
+    /**
+     * Reads a backup in [BackupFormat.BINARY], positioned after the magic
+     * bytes, into a new database.
+     *
+     * @return the link of the backup in its chain
+     */
+    @Throws(IOException::class)
+    private fun readBinary(
+        @NonNull input: InputStream,
+        @NonNull context: Context,
+        @NonNull databaseName: String,
+        @NonNull pref: SharedPreferences.Editor,
+        @NonNull pref2: SharedPreferences.Editor
+    ): BackupChain.Link {
+        context.deleteDatabase(databaseName)
+        // creates the schema of the current version
+        val restoreDatabase = PainDiaryDatabase.openDatabase(context, databaseName)
+        try {
+            val db = restoreDatabase.openHelper.writableDatabase
+            db.beginTransaction()
+            try {
+                val header = BinaryBackup.read(input, db) { reader ->
+                    reader.beginObject()
+                    while (reader.hasNext()) {
+                        readPreferences(reader.nextName(), reader, pref, pref2)
+                    }
+                    reader.endObject()
+                }
+                // the inserts have been logged, but are in no backup of this database
+                db.execSQL("DELETE FROM ${ChangeLog.TABLE}")
+                db.setTransactionSuccessful()
+                return header.link
+            } finally {
+                db.endTransaction()
+            }
+        } finally {
+            restoreDatabase.close()
+        }
+    }
+
+    /**
+     * Reads a backup in any full format into a new database.
+     *
+     * @return the link of the backup in its chain, null if it has none
+     */
+    @Throws(IOException::class)
+    private fun readFullBackup(
+        @NonNull input: BufferedInputStream,
+        @NonNull format: BackupFormat,
+        @NonNull context: Context,
+        @NonNull databaseName: String,
+        @NonNull pref: SharedPreferences.Editor,
+        @NonNull pref2: SharedPreferences.Editor
+    ): BackupChain.Link? {
+        return when (format) {
+            BackupFormat.JSON -> readJson(input, context, databaseName, pref, pref2)
+            BackupFormat.SNAPSHOT -> readSnapshot(input, context, databaseName, pref, pref2)
+            BackupFormat.BINARY -> readBinary(input, context, databaseName, pref, pref2)
+            BackupFormat.DELTA -> throw RuntimeException("A delta is no full backup")
+        }
+    }
+
+    /**
+     * Reads a full backup into a new database with the given name, without
+     * touching the current database or the preferences. Used to merge a
+     * backup (see [BackupMerger]) and to measure how fast the formats are
+     * restored.
+     */
+    @Throws(IOException::class)
+    fun readFullBackup(context: Context, restoreData: InputStream, databaseName: String) {
+        val input = BufferedInputStream(restoreData)
+        // never committed
+        val pref = PreferenceManager.getDefaultSharedPreferences(context).edit()
+        val pref2 = context.getSharedPreferences(PrefManager.PREF_NAME, PrefManager.PRIVATE_MODE).edit()
+        readFullBackup(input, BackupFormat.detect(input), context, databaseName, pref, pref2)
+    }
+
+    /**
+     * Applies a delta, positioned after its header, to the given database in
+     * a transaction.
+     */
+    @Throws(IOException::class)
+    private fun applyDelta(
+        @NonNull input: InputStream,
+        @NonNull db: SupportSQLiteDatabase,
+        @NonNull pref: SharedPreferences.Editor,
+        @NonNull pref2: SharedPreferences.Editor
+    ) {
+        db.beginTransaction()
+        try {
+            DeltaBackup.apply(input, db) { type, reader -> readPreferences(type, reader, pref, pref2) }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
     override fun restoreBackup(context: Context, restoreData: InputStream): Boolean {
+        return restoreChain(context, listOf(restoreData))
+    }
+
+    /**
+     * Restores a full backup followed by any number of deltas of its
+     * [BackupChain], in the order they were written. The deltas are applied
+     * to the restored database before it replaces the current one. The
+     * first backup may also be a delta that continues the backup restored
+     * last, which is then applied to the current database.
+     *
+     * The backups are copied to the cache and checked by the
+     * [BackupVerifier] first, so nothing is restored unless all are intact.
+     * Called in another process, e.g. by the [PFABackupService], the
+     * verified copies are restored by the app's main process, see
+     * [BackupProvider].
+     */
+    fun restoreChain(context: Context, backups: List<InputStream>): Boolean {
+        val files = ArrayList<File>()
+        try {
+            for ((index, backup) in backups.withIndex()) {
+                val file = File(context.cacheDir, "$RESTORE_FILE_PREFIX$index")
+                files.add(file)
+                FileOutputStream(file).use { backup.copyTo(it) }
+                val result = FileInputStream(file).use { BackupVerifier.verify(it) }
+                if (!result.isValid) {
+                    Log.w(TAG, "Backup ${index + 1} of ${backups.size}: $result")
+                    return false
+                }
+            }
+            return if (BackupProvider.isAppProcess(context)) {
+                restoreFiles(context, files)
+            } else {
+                BackupProvider.restore(context, files)
+            }
+        } catch (e: IOException) {
+            Log.w(TAG, "Could not read backup", e)
+            return false
+        } finally {
+            files.forEach { it.delete() }
+        }
+    }
+
+    /**
+     * Restores backups that have been verified already, in the process that
+     * owns the database.
+     */
+    @Throws(IOException::class)
+    internal fun restoreFiles(context: Context, files: List<File>): Boolean {
+        val inputs = files.map { FileInputStream(it) }
+        try {
+            return restoreVerified(context, inputs)
+        } finally {
+            inputs.forEach { it.close() }
+        }
+    }
+
+    private fun restoreVerified(context: Context, backups: List<InputStream>): Boolean {
+        var swapping = false
         return try {
-            val isReader = InputStreamReader(restoreData)
-            val reader = JsonReader(isReader)
             val pref = PreferenceManager.getDefaultSharedPreferences(context).edit()
             val pref2 =
                 context.getSharedPreferences(PrefManager.PREF_NAME, PrefManager.PRIVATE_MODE).edit()
+            var link: BackupChain.Link? = null
+            var restored = false
+
+            for ((index, backup) in backups.withIndex()) {
+                val input = BufferedInputStream(backup)
+                val format = BackupFormat.detect(input)
+                if (format != BackupFormat.DELTA) {
+                    if (index > 0) {
+                        throw RuntimeException("Only the first backup can be a full backup")
+                    }
+                    link = readFullBackup(input, format, context, RESTORE_DATABASE_NAME, pref, pref2)
+                    restored = true
+                    continue
+                }
 
-            // START
-            reader.beginObject()
-            while (reader.hasNext()) {
-                val type: String = reader.nextName()
-                when (type) {
-                    "database" -> readDatabase(reader, context)
-                    "preferences" -> readPreferences(
-                        reader,
-                        pref
-                    )
-                    "preferences2" -> readPreferences(
-                        reader,
-                        pref2
-                    )
-                    else -> throw RuntimeException("Can not parse type $type")
+                val header = DeltaBackup.readHeader(input)
+                val base = if (index == 0) BackupChain.getRestored(context) else link
+                if (base == null || !header.continues(base)) {
+                    throw RuntimeException("Backup does not continue chain ${header.chainId}")
+                }
+                if (restored) {
+                    val db = DatabaseUtil.getSupportSQLiteOpenHelper(context, RESTORE_DATABASE_NAME, base.version).writableDatabase
+                    try {
+                        applyDelta(input, db, pref, pref2)
+                    } finally {
+                        db.close()
+                    }
+                } else {
+                    if (header.databaseVersion != PainDiaryDatabase.VERSION) {
+                        throw RuntimeException("Database version ${header.databaseVersion} has been migrated")
+                    }
+                    DatabaseScheduler.runOn(DatabaseScheduler.Lane.WRITE) {
+                        PainDiaryDatabase.withInstance(context) {
+                            applyDelta(input, it.openHelper.writableDatabase, pref, pref2)
+                        }
+                    }
+                    PainDiaryDatabaseService.getInstance(context).invalidateCaches()
                 }
+                link = header.link
             }
-            reader.endObject()
 
+            if (restored) {
+                swapping = true
+                replaceDatabase(context, context.getDatabasePath(RESTORE_DATABASE_NAME))
+            }
             pref.commit()
             pref2.commit()
-
-            exitProcess(0)
+            BackupChain.onRestored(context, link)
+            DiaryChangeBus.publish(DiaryChange.DatabaseReplaced)
             true
         } catch (e: Exception) {
+            Log.w(TAG, "Could not restore backup", e)
+            // once the swap has started, the restored database may be the only complete copy left
+            if (!swapping) {
+                context.deleteDatabase(RESTORE_DATABASE_NAME)
+            }
             false
         }
     }
-}
\ No newline at end of file
+}
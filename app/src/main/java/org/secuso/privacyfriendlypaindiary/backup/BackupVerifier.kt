@@ -0,0 +1,440 @@
+package org.secuso.privacyfriendlypaindiary.backup
+
+import android.util.JsonReader
+import android.util.JsonToken
+import org.secuso.privacyfriendlypaindiary.database.ChangeLog
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabase
+import java.io.*
+import java.nio.ByteBuffer
+import kotlin.text.Charsets.US_ASCII
+import kotlin.text.Charsets.UTF_8
+
+/**
+ * Checks a backup without restoring it, so a broken one is rejected before
+ * the restorer changes anything.
+ *
+ * The backup is read once as a stream and no row is kept: it checks the
+ * structure the restorer expects, the database version, the preferences,
+ * the row counts if the backup declares them, that no `_id` occurs twice
+ * and that every diary entry, pain description and drug referred to by a
+ * row exists. The schema declares no foreign keys, so the last check is
+ * done on sets of IDs that take one bit per ID, see [IdSet], and happens
+ * at the end, because the tables are not written in the order of their
+ * references.
+ *
+ * A [BackupFormat.SNAPSHOT] is only checked up to the header of its
+ * database file, whose pages are checked by SQLite once copied; a
+ * [BackupFormat.DELTA] holds no complete tables, so its references are not
+ * checked.
+ */
+object BackupVerifier {
+    private const val MAX_PROBLEMS = 20
+    private const val MAX_EXAMPLES = 3
+    private const val MAX_PREFERENCES_SIZE = 1 shl 20
+    private const val SQLITE_HEADER_SIZE = 100
+    private const val SQLITE_PAGE_SIZE_OFFSET = 16
+    private const val SQLITE_USER_VERSION_OFFSET = 60
+    private val SQLITE_MAGIC = "SQLite format 3\u0000".toByteArray(US_ASCII)
+
+    /**
+     * The preferences a backup may contain, as read by [BackupRestorer].
+     */
+    internal val BOOLEAN_PREFERENCES = setOf("pref_medication", "pref_reminder", "IsFirstTimeLaunch")
+    internal val LONG_PREFERENCES = setOf("pref_reminder_time", "userID")
+
+    private class Reference(val table: String, val column: String, val target: String)
+
+    private val REFERENCES = listOf(
+        Reference("diaryentries", "painDescription_id", "paindescriptions"),
+        Reference("drugintakes", "diaryEntry_id", "diaryentries"),
+        Reference("drugintakes", "drug_id", "drugs")
+    )
+
+    /**
+     * @param databaseVersion the version of the database in the backup, null if it could not be read
+     * @param rowCounts number of rows per table, or of changes for a delta
+     * @param problems why the backup can not be restored, at most [MAX_PROBLEMS]
+     */
+    class Result(
+        val format: BackupFormat?,
+        val databaseVersion: Int?,
+        val rowCounts: Map<String, Long>,
+        val problems: List<String>
+    ) {
+        val isValid: Boolean
+            get() = problems.isEmpty()
+
+        override fun toString(): String =
+            if (isValid) "Valid $format backup, $rowCounts" else "Invalid $format backup: ${problems.joinToString("; ")}"
+    }
+
+    /**
+     * Reads the whole backup and reports what keeps it from being restored.
+     * A backup that can not be read at all is reported as invalid as well.
+     * The stream is not closed.
+     */
+    @JvmStatic
+    fun verify(backup: InputStream): Result {
+        val input = BufferedInputStream(backup)
+        val verification = Verification()
+        var format: BackupFormat? = null
+        try {
+            format = BackupFormat.detect(input)
+            when (format) {
+                BackupFormat.JSON -> verifyJson(input, verification)
+                BackupFormat.SNAPSHOT -> verifySnapshot(input, verification)
+                BackupFormat.BINARY -> verifyBinary(input, verification)
+                BackupFormat.DELTA -> verifyDelta(input, verification)
+            }
+            if (format == BackupFormat.JSON || format == BackupFormat.BINARY) {
+                verification.checkReferences()
+            }
+            verification.checkCounts()
+        } catch (e: IOException) {
+            verification.problem("Malformed backup: ${e.message}")
+        } catch (e: RuntimeException) {
+            verification.problem("Malformed backup: ${e.message}")
+        }
+        return Result(format, verification.databaseVersion, verification.rowCounts, verification.problems)
+    }
+
+    private class Verification {
+        var databaseVersion: Int? = null
+        val rowCounts = LinkedHashMap<String, Long>()
+        val problems = ArrayList<String>()
+        private val declaredCounts = HashMap<String, Long>()
+        private val ids = HashMap<String, IdSet>()
+        private val referenced = REFERENCES.associateWith { IdSet() }
+
+        fun problem(message: String) {
+            if (problems.size < MAX_PROBLEMS) problems.add(message)
+        }
+
+        fun version(version: Int) {
+            databaseVersion = version
+            if (version < 1 || version > PainDiaryDatabase.VERSION) {
+                problem("Unsupported database version $version")
+            }
+        }
+
+        fun table(table: String) {
+            if (rowCounts.containsKey(table)) problem("Table $table occurs twice")
+            rowCounts[table] = 0L
+        }
+
+        fun declareCount(table: String, count: Long) {
+            declaredCounts[table] = count
+        }
+
+        fun count(table: String) {
+            rowCounts[table] = (rowCounts[table] ?: 0L) + 1
+        }
+
+        /**
+         * Records a row; [value] gives the value of one of its columns.
+         */
+        fun row(table: String, id: Long?, value: (String) -> Long?) {
+            count(table)
+            if (table !in ChangeLog.TRACKED_TABLES) return
+            if (id == null) {
+                problem("Row of $table without _id")
+                return
+            }
+            if (!ids.getOrPut(table) { IdSet() }.add(id)) {
+                problem("Duplicate $table._id $id")
+            }
+            for (reference in REFERENCES) {
+                if (reference.table == table) {
+                    value(reference.column)?.let { referenced.getValue(reference).add(it) }
+                }
+            }
+        }
+
+        fun checkReferences() {
+            for (reference in REFERENCES) {
+                val targets = ids[reference.target] ?: IdSet()
+                val missing = referenced.getValue(reference).missingIn(targets, MAX_EXAMPLES)
+                if (missing.isNotEmpty()) {
+                    val count = referenced.getValue(reference).countMissingIn(targets)
+                    problem("$count ${reference.target} referred to by ${reference.table}.${reference.column} are missing, e.g. ${missing.joinToString()}")
+                }
+            }
+        }
+
+        fun checkCounts() {
+            for ((table, count) in declaredCounts) {
+                val actual = rowCounts[table] ?: 0L
+                if (actual != count) {
+                    problem("Backup declares $count rows of $table, but contains $actual")
+                }
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun verifyJson(input: InputStream, verification: Verification) {
+        val reader = JsonReader(InputStreamReader(input, UTF_8))
+        var database = false
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (val name = reader.nextName()) {
+                "database" -> {
+                    verifyDatabase(reader, verification)
+                    database = true
+                }
+                "chain" -> {
+                    reader.beginObject()
+                    while (reader.hasNext()) {
+                        when (reader.nextName()) {
+                            "id" -> reader.nextString()
+                            "watermark" -> reader.nextLong()
+                            else -> reader.skipValue()
+                        }
+                    }
+                    reader.endObject()
+                }
+                "counts" -> {
+                    reader.beginObject()
+                    while (reader.hasNext()) {
+                        verification.declareCount(reader.nextName(), reader.nextLong())
+                    }
+                    reader.endObject()
+                }
+                else -> verifyPreferences(name, reader, verification)
+            }
+        }
+        reader.endObject()
+        if (!database) {
+            verification.problem("Backup contains no database")
+        }
+    }
+
+    /**
+     * Verifies the database object written by
+     * [org.secuso.privacyfriendlybackup.api.backup.DatabaseUtil]: the version
+     * followed by the tables with their rows.
+     */
+    @Throws(IOException::class)
+    private fun verifyDatabase(reader: JsonReader, verification: Verification) {
+        reader.beginObject()
+        val n1 = reader.nextName()
+        if (n1 != "version") {
+            throw IOException("Unknown value $n1")
+        }
+        val version = reader.nextInt()
+        verification.version(version)
+        val n2 = reader.nextName()
+        if (n2 != "content") {
+            throw IOException("Unknown value $n2")
+        }
+        reader.beginArray()
+        while (reader.hasNext()) {
+            verifyTable(reader, verification)
+        }
+        reader.endArray()
+        reader.endObject()
+        if (version == PainDiaryDatabase.VERSION) {
+            for (table in ChangeLog.TRACKED_TABLES) {
+                if (table !in verification.rowCounts) verification.problem("Backup has no table $table")
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun verifyTable(reader: JsonReader, verification: Verification) {
+        var table: String? = null
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.nextName()) {
+                "tableName" -> table = reader.nextString().also { verification.table(it) }
+                "values" -> {
+                    val name = table ?: throw IOException("Rows before the name of their table")
+                    val columns = REFERENCES.filter { it.table == name }.map { it.column }
+                    val values = HashMap<String, Long>()
+                    reader.beginArray()
+                    while (reader.hasNext()) {
+                        values.clear()
+                        val id = readRow(reader, columns, values)
+                        verification.row(name, id) { values[it] }
+                    }
+                    reader.endArray()
+                }
+                else -> reader.skipValue()
+            }
+        }
+        reader.endObject()
+        if (table == null) {
+            throw IOException("Table without name")
+        }
+    }
+
+    /**
+     * Reads a row, keeping only the values of the given columns.
+     *
+     * @return the `_id` of the row, null if it has none
+     */
+    @Throws(IOException::class)
+    private fun readRow(reader: JsonReader, columns: List<String>, values: MutableMap<String, Long>): Long? {
+        var id: Long? = null
+        reader.beginObject()
+        while (reader.hasNext()) {
+            val column = reader.nextName()
+            when {
+                reader.peek() == JsonToken.NULL -> reader.nextNull()
+                column == "_id" -> id = reader.nextLong()
+                column in columns -> values[column] = reader.nextLong()
+                else -> reader.skipValue()
+            }
+        }
+        reader.endObject()
+        return id
+    }
+
+    @Throws(IOException::class)
+    private fun verifyPreferences(type: String, reader: JsonReader, verification: Verification) {
+        if (type != "preferences" && type != "preferences2") {
+            verification.problem("Unknown value $type")
+            reader.skipValue()
+            return
+        }
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (val name = reader.nextName()) {
+                in BOOLEAN_PREFERENCES -> reader.nextBoolean()
+                in LONG_PREFERENCES -> reader.nextLong()
+                else -> {
+                    verification.problem("Unknown preference $name")
+                    reader.skipValue()
+                }
+            }
+        }
+        reader.endObject()
+    }
+
+    /**
+     * Verifies an object with the two sets of preferences, as held by the
+     * binary formats.
+     */
+    @Throws(IOException::class)
+    private fun verifyPreferenceObject(reader: JsonReader, verification: Verification) {
+        reader.beginObject()
+        while (reader.hasNext()) {
+            verifyPreferences(reader.nextName(), reader, verification)
+        }
+        reader.endObject()
+    }
+
+    /**
+     * Verifies the header of a snapshot and of the database file in it, and
+     * that the file is complete.
+     */
+    @Throws(IOException::class)
+    private fun verifySnapshot(input: InputStream, verification: Verification) {
+        val data = DataInputStream(input)
+        val version = data.readInt()
+        if (version > BackupCreator.SNAPSHOT_VERSION) {
+            throw IOException("Unknown snapshot version $version")
+        }
+        if (version >= 2) {
+            data.readUTF()
+            data.readLong()
+        }
+        val length = data.readInt()
+        if (length < 0 || length > MAX_PREFERENCES_SIZE) {
+            throw IOException("Invalid length of preferences $length")
+        }
+        val preferences = ByteArray(length)
+        data.readFully(preferences)
+        verifyPreferenceObject(JsonReader(InputStreamReader(ByteArrayInputStream(preferences), UTF_8)), verification)
+
+        val size = data.readLong()
+        if (size < SQLITE_HEADER_SIZE) {
+            throw IOException("Database of $size bytes has no header")
+        }
+        val header = ByteArray(SQLITE_HEADER_SIZE)
+        data.readFully(header)
+        if (!header.copyOf(SQLITE_MAGIC.size).contentEquals(SQLITE_MAGIC)) {
+            throw IOException("Snapshot contains no SQLite database")
+        }
+        val buffer = ByteBuffer.wrap(header)
+        // stored big endian, 1 standing for 65536
+        val pageSize = (buffer.getShort(SQLITE_PAGE_SIZE_OFFSET).toInt() and 0xFFFF).let { if (it == 1) 65536 else it }
+        if (pageSize < 512 || size % pageSize != 0L) {
+            verification.problem("Database of $size bytes does not consist of pages of $pageSize bytes")
+        }
+        verification.version(buffer.getInt(SQLITE_USER_VERSION_OFFSET))
+        BackupFormat.skipFully(data, size - SQLITE_HEADER_SIZE)
+    }
+
+    @Throws(IOException::class)
+    private fun verifyBinary(input: InputStream, verification: Verification) {
+        val header = BinaryBackup.read(input, { verifyPreferenceObject(it, verification) }, object : BinaryBackup.RowHandler {
+            private var table = ""
+            private var columns = emptyArray<String>()
+
+            override fun table(table: String, columns: Array<String>, count: Long) {
+                this.table = table
+                this.columns = columns
+                verification.table(table)
+                verification.declareCount(table, count)
+            }
+
+            override fun row(values: Array<Any?>) {
+                verification.row(table, values[0] as Long) { column ->
+                    val index = columns.indexOf(column)
+                    if (index < 0) null else values[index] as Long?
+                }
+            }
+        })
+        verification.version(header.databaseVersion)
+    }
+
+    @Throws(IOException::class)
+    private fun verifyDelta(input: InputStream, verification: Verification) {
+        val header = DeltaBackup.readHeader(input)
+        verification.version(header.databaseVersion)
+        if (header.to < header.from) {
+            verification.problem("Delta ends at ${header.to} before it starts at ${header.from}")
+        }
+        val reader = JsonReader(InputStreamReader(input, UTF_8))
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (val name = reader.nextName()) {
+                "changes" -> {
+                    reader.beginArray()
+                    while (reader.hasNext()) {
+                        verifyChange(reader, verification)
+                    }
+                    reader.endArray()
+                }
+                else -> verifyPreferences(name, reader, verification)
+            }
+        }
+        reader.endObject()
+    }
+
+    @Throws(IOException::class)
+    private fun verifyChange(reader: JsonReader, verification: Verification) {
+        var table: String? = null
+        var id: Long? = null
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.nextName()) {
+                "table" -> table = reader.nextString()
+                "id" -> id = reader.nextLong()
+                "deleted" -> reader.nextBoolean()
+                "values" -> {
+                    if (reader.peek() != JsonToken.BEGIN_OBJECT) throw IOException("Values of $table are no object")
+                    reader.skipValue()
+                }
+                else -> reader.skipValue()
+            }
+        }
+        reader.endObject()
+        if (table == null || table !in ChangeLog.TRACKED_TABLES || id == null) {
+            verification.problem("Invalid change of $table")
+        } else {
+            verification.count(table)
+        }
+    }
+}
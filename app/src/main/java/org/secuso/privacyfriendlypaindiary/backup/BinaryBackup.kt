@@ -0,0 +1,392 @@
+package org.secuso.privacyfriendlypaindiary.backup
+
+import android.content.Context
+import android.database.Cursor
+import android.util.JsonReader
+import android.util.JsonWriter
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteStatement
+import org.secuso.privacyfriendlypaindiary.database.ChangeLog
+import org.secuso.privacyfriendlypaindiary.database.DiarySnapshot
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabase
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.BodyRegion
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.PainQuality
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Time
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays
+import org.secuso.privacyfriendlypaindiary.database.utils.Utils
+import java.io.*
+import java.util.*
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.Inflater
+import java.util.zip.InflaterInputStream
+import kotlin.text.Charsets.UTF_8
+
+/**
+ * Writes and reads backups in [BackupFormat.BINARY].
+ *
+ * After the magic bytes and a version as a 4 byte integer, everything is
+ * compressed with [Deflater] as it is written: the [BackupChain] ID and
+ * watermark, the database version, the preferences as length-prefixed JSON,
+ * and then every table as its number of rows followed by the rows, ordered
+ * by `_id`. The layout of the rows is that of the current database version.
+ *
+ * Integers are written as varints, signed ones zigzag encoded, row IDs as the
+ * difference to the previous row. Nullable values are offset by one, so 0
+ * stands for null. Dates are epoch days, body regions, pain qualities and
+ * times of pain bitmasks, see [DiarySnapshot.regionMask] and
+ * [DiarySnapshot.qualityTimeMask]. Strings are their UTF-8 length plus one
+ * followed by the bytes.
+ */
+internal object BinaryBackup {
+    private const val VERSION = 1
+    private const val CHUNK_SIZE = 8192
+
+    class Header(val chainId: String, val watermark: Long, val databaseVersion: Int) {
+        val link: BackupChain.Link
+            get() = BackupChain.Link(chainId, watermark, databaseVersion)
+    }
+
+    /**
+     * Writes all rows and returns the watermark. Must be called in a
+     * transaction, so the rows are consistent with the watermark. The stream
+     * is flushed but not closed.
+     */
+    @Throws(IOException::class)
+    fun write(context: Context, db: SupportSQLiteDatabase, outputStream: OutputStream, chainId: String): Long {
+        val header = DataOutputStream(outputStream)
+        header.write(BackupFormat.BINARY.magic!!)
+        header.writeInt(VERSION)
+        header.flush()
+
+        val watermark = ChangeLog.getLatestSequence(db)
+        val deflater = Deflater(Deflater.DEFAULT_COMPRESSION)
+        try {
+            val deflated = DeflaterOutputStream(outputStream, deflater, CHUNK_SIZE)
+            val out = Output(deflated)
+            out.string(chainId)
+            out.varLong(watermark)
+            out.varLong(db.version.toLong())
+
+            val preferences = ByteArrayOutputStream()
+            val preferencesWriter = JsonWriter(OutputStreamWriter(preferences, UTF_8))
+            preferencesWriter.beginObject()
+            BackupCreator.writeAllPreferences(context, preferencesWriter)
+            preferencesWriter.endObject()
+            preferencesWriter.close()
+            out.bytes(preferences.toByteArray())
+
+            writeTable(db, out, "users", "firstname, lastname, gender, dateOfBirth") { row ->
+                out.string(row.getString(1))
+                out.string(row.getString(2))
+                out.nullableVarLong(if (row.isNull(3)) null else row.getLong(3))
+                out.nullableSignedVarLong(row.getString(4)?.let { EpochDays.fromDatabaseString(it).toLong() })
+            }
+            writeTable(db, out, "drugs", "name, dose") { row ->
+                out.string(row.getString(1))
+                out.string(row.getString(2))
+            }
+            writeTable(db, out, "paindescriptions", "painLevel, bodyRegions, painQualities, timesOfPain") { row ->
+                out.signedVarLong(row.getLong(1))
+                out.varLong(DiarySnapshot.regionMask(row.getString(2)))
+                out.varLong(DiarySnapshot.qualityTimeMask(row.getString(3), row.getString(4)).toLong())
+            }
+            var previousDate = 0L
+            writeTable(db, out, "diaryentries", "date, painDescription_id, condition, notes") { row ->
+                val date = EpochDays.fromDatabaseString(row.getString(1)).toLong()
+                out.signedVarLong(date - previousDate)
+                previousDate = date
+                // pain descriptions are created together with their entries
+                out.signedVarLong(row.getLong(2) - row.getLong(0))
+                out.nullableVarLong(if (row.isNull(3)) null else row.getLong(3))
+                out.string(row.getString(4))
+            }
+            var previousEntry = 0L
+            writeTable(db, out, "drugintakes", "morning, noon, evening, night, drug_id, diaryEntry_id") { row ->
+                for (column in 1..4) {
+                    out.signedVarLong(row.getLong(column))
+                }
+                out.varLong(row.getLong(5))
+                out.signedVarLong(row.getLong(6) - previousEntry)
+                previousEntry = row.getLong(6)
+            }
+            out.flush()
+            deflated.finish()
+            outputStream.flush()
+        } finally {
+            deflater.end()
+        }
+        return watermark
+    }
+
+    private inline fun writeTable(db: SupportSQLiteDatabase, out: Output, table: String, columns: String, writeRow: (Cursor) -> Unit) {
+        val count = db.query("SELECT COUNT(*) FROM `$table`").use { cursor ->
+            if (cursor.moveToFirst()) cursor.getLong(0) else 0L
+        }
+        out.varLong(count)
+        var previousId = 0L
+        var written = 0L
+        db.query("SELECT _id, $columns FROM `$table` ORDER BY _id").use { row ->
+            while (row.moveToNext() && written < count) {
+                val id = row.getLong(0)
+                out.varLong(id - previousId)
+                previousId = id
+                writeRow(row)
+                written++
+            }
+        }
+        if (written != count) {
+            throw IOException("Table $table changed while writing")
+        }
+    }
+
+    /**
+     * Receives the rows read by [read], table by table in the order they
+     * were written.
+     */
+    interface RowHandler {
+        /**
+         * Called before the rows of a table with its columns, `_id` first,
+         * and the number of rows that follow.
+         */
+        fun table(table: String, columns: Array<String>, count: Long)
+
+        /**
+         * Called for every row with its values as [Long], [String] or null,
+         * in the order of the columns. The array is reused for the next row.
+         */
+        fun row(values: Array<Any?>)
+    }
+
+    /**
+     * Inserts the rows handed to it into a database with the current schema.
+     * Must be used in a transaction and closed afterwards.
+     */
+    class Inserter(private val db: SupportSQLiteDatabase) : RowHandler, Closeable {
+        private var statement: SupportSQLiteStatement? = null
+
+        override fun table(table: String, columns: Array<String>, count: Long) {
+            close()
+            statement = db.compileStatement(
+                "INSERT INTO $table(${columns.joinToString()}) VALUES (${columns.joinToString { "?" }})"
+            )
+        }
+
+        override fun row(values: Array<Any?>) {
+            val statement = statement ?: throw IllegalStateException("No table")
+            statement.clearBindings()
+            for ((index, value) in values.withIndex()) {
+                when (value) {
+                    null -> statement.bindNull(index + 1)
+                    is Long -> statement.bindLong(index + 1, value)
+                    else -> statement.bindString(index + 1, value.toString())
+                }
+            }
+            statement.executeInsert()
+        }
+
+        override fun close() {
+            statement?.close()
+            statement = null
+        }
+    }
+
+    /**
+     * Reads the header of a backup, positioned after the magic bytes, and
+     * then its preferences and rows into the given empty database, which must
+     * have the current schema. Must be called in a transaction.
+     */
+    @Throws(IOException::class)
+    fun read(input: InputStream, db: SupportSQLiteDatabase, readPreferences: (JsonReader) -> Unit): Header {
+        return Inserter(db).use { read(input, readPreferences, it) }
+    }
+
+    /**
+     * Reads the header of a backup, positioned after the magic bytes, and
+     * hands its preferences to [readPreferences] and its rows to [handler].
+     */
+    @Throws(IOException::class)
+    fun read(input: InputStream, readPreferences: (JsonReader) -> Unit, handler: RowHandler): Header {
+        val version = DataInputStream(input).readInt()
+        if (version > VERSION) {
+            throw RuntimeException("Unknown binary backup version $version")
+        }
+        val inflater = Inflater()
+        try {
+            val data = Input(InflaterInputStream(input, inflater, CHUNK_SIZE))
+            val header = Header(data.string() ?: "", data.varLong(), data.varLong().toInt())
+            if (header.databaseVersion != PainDiaryDatabase.VERSION) {
+                throw RuntimeException("Unsupported database version ${header.databaseVersion}")
+            }
+            readPreferences(JsonReader(InputStreamReader(ByteArrayInputStream(data.bytes()), UTF_8)))
+
+            readTable(data, handler, "users", arrayOf("_id", "firstname", "lastname", "gender", "dateOfBirth")) { values ->
+                values[1] = data.string()
+                values[2] = data.string()
+                values[3] = data.nullableVarLong()
+                values[4] = data.nullableSignedVarLong()?.let { EpochDays.toDatabaseString(it.toInt()) }
+            }
+            readTable(data, handler, "drugs", arrayOf("_id", "name", "dose")) { values ->
+                values[1] = data.string()
+                values[2] = data.string()
+            }
+            readTable(data, handler, "paindescriptions", arrayOf("_id", "painLevel", "bodyRegions", "painQualities", "timesOfPain")) { values ->
+                values[1] = data.signedVarLong()
+                values[2] = regionsToString(data.varLong())
+                val qualityTimeMask = data.varLong().toInt()
+                values[3] = qualitiesToString(qualityTimeMask)
+                values[4] = timesToString(qualityTimeMask ushr DiarySnapshot.TIME_SHIFT)
+            }
+            var previousDate = 0L
+            readTable(data, handler, "diaryentries", arrayOf("_id", "date", "painDescription_id", "condition", "notes")) { values ->
+                previousDate += data.signedVarLong()
+                values[1] = EpochDays.toDatabaseString(previousDate.toInt())
+                values[2] = values[0] as Long + data.signedVarLong()
+                values[3] = data.nullableVarLong()
+                values[4] = data.string()
+            }
+            var previousEntry = 0L
+            readTable(data, handler, "drugintakes", arrayOf("_id", "morning", "noon", "evening", "night", "drug_id", "diaryEntry_id")) { values ->
+                for (index in 1..4) {
+                    values[index] = data.signedVarLong()
+                }
+                values[5] = data.varLong()
+                previousEntry += data.signedVarLong()
+                values[6] = previousEntry
+            }
+            return header
+        } finally {
+            inflater.end()
+        }
+    }
+
+    /**
+     * Hands the rows of a table to the handler; [readRow] reads the values
+     * after the ID, which is already set.
+     */
+    private inline fun readTable(data: Input, handler: RowHandler, table: String, columns: Array<String>, readRow: (Array<Any?>) -> Unit) {
+        val count = data.varLong()
+        handler.table(table, columns, count)
+        val values = arrayOfNulls<Any>(columns.size)
+        var id = 0L
+        for (i in 0 until count) {
+            id += data.varLong()
+            values[0] = id
+            readRow(values)
+            handler.row(values)
+        }
+    }
+
+    private fun regionsToString(mask: Long): String? {
+        val regions = EnumSet.noneOf(BodyRegion::class.java)
+        for (region in BodyRegion.values()) {
+            if (mask and (1L shl region.value) != 0L) regions.add(region)
+        }
+        return Utils.convertBodyRegionEnumSetToString(regions)
+    }
+
+    private fun qualitiesToString(mask: Int): String? {
+        val qualities = EnumSet.noneOf(PainQuality::class.java)
+        for (quality in PainQuality.values()) {
+            if (mask and (1 shl quality.ordinal) != 0) qualities.add(quality)
+        }
+        return Utils.convertPainQualityEnumSetToString(qualities)
+    }
+
+    private fun timesToString(mask: Int): String? {
+        val times = EnumSet.noneOf(Time::class.java)
+        for (time in Time.values()) {
+            if (mask and (1 shl time.ordinal) != 0) times.add(time)
+        }
+        return Utils.convertTimeEnumSetToString(times)
+    }
+
+    private class Output(out: OutputStream) {
+        private val buffer = BufferedOutputStream(out, CHUNK_SIZE)
+
+        fun varLong(value: Long) {
+            var remaining = value
+            while (remaining and 0x7FL.inv() != 0L) {
+                buffer.write(((remaining and 0x7F) or 0x80).toInt())
+                remaining = remaining ushr 7
+            }
+            buffer.write(remaining.toInt())
+        }
+
+        fun signedVarLong(value: Long) = varLong((value shl 1) xor (value shr 63))
+
+        fun nullableVarLong(value: Long?) = varLong(if (value == null) 0 else value + 1)
+
+        fun nullableSignedVarLong(value: Long?) =
+            varLong(if (value == null) 0 else ((value shl 1) xor (value shr 63)) + 1)
+
+        fun bytes(value: ByteArray) {
+            varLong(value.size.toLong())
+            buffer.write(value)
+        }
+
+        fun string(value: String?) {
+            if (value == null) {
+                varLong(0)
+                return
+            }
+            val bytes = value.toByteArray(UTF_8)
+            varLong(bytes.size + 1L)
+            buffer.write(bytes)
+        }
+
+        fun flush() = buffer.flush()
+    }
+
+    private class Input(input: InputStream) {
+        private val data = DataInputStream(BufferedInputStream(input, CHUNK_SIZE))
+
+        fun varLong(): Long {
+            var result = 0L
+            var shift = 0
+            while (shift < 64) {
+                val b = data.readUnsignedByte()
+                result = result or ((b and 0x7F).toLong() shl shift)
+                if (b and 0x80 == 0) return result
+                shift += 7
+            }
+            throw IOException("Malformed varint")
+        }
+
+        fun signedVarLong(): Long {
+            val value = varLong()
+            return (value ushr 1) xor -(value and 1)
+        }
+
+        fun nullableVarLong(): Long? {
+            val value = varLong()
+            return if (value == 0L) null else value - 1
+        }
+
+        fun nullableSignedVarLong(): Long? {
+            val value = varLong()
+            if (value == 0L) return null
+            val zigzag = value - 1
+            return (zigzag ushr 1) xor -(zigzag and 1)
+        }
+
+        fun bytes(): ByteArray {
+            val bytes = ByteArray(length(varLong()))
+            data.readFully(bytes)
+            return bytes
+        }
+
+        fun string(): String? {
+            val length = varLong()
+            if (length == 0L) return null
+            val bytes = ByteArray(length(length - 1))
+            data.readFully(bytes)
+            return String(bytes, UTF_8)
+        }
+
+        private fun length(value: Long): Int {
+            if (value < 0 || value > Int.MAX_VALUE) throw IOException("Invalid length $value")
+            return value.toInt()
+        }
+    }
+}
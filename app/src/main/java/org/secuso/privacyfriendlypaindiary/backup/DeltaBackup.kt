@@ -0,0 +1,205 @@
+package org.secuso.privacyfriendlypaindiary.backup
+
+import android.content.ContentValues
+import android.content.Context
+import android.database.Cursor
+import android.database.sqlite.SQLiteDatabase
+import android.util.JsonReader
+import android.util.JsonToken
+import android.util.JsonWriter
+import androidx.sqlite.db.SupportSQLiteDatabase
+import org.secuso.privacyfriendlypaindiary.database.ChangeLog
+import java.io.*
+import kotlin.text.Charsets.UTF_8
+
+/**
+ * Writes and applies backups in [BackupFormat.DELTA]: the rows changed since
+ * an earlier backup of the same [BackupChain], according to the [ChangeLog].
+ *
+ * After the magic bytes follow a version, the ID of the chain, the watermarks
+ * of the previous and of this backup and the database version. The rest is a
+ * JSON object with the changes, as objects with the table, the `_id` and
+ * either all values of the row or `"deleted": true`, and the preferences.
+ */
+internal object DeltaBackup {
+    private const val VERSION = 1
+
+    class Header(val chainId: String, val from: Long, val to: Long, val databaseVersion: Int) {
+        /**
+         * Whether this delta can be applied to a database at the given link.
+         */
+        fun continues(link: BackupChain.Link): Boolean =
+            link.id == chainId && link.watermark == from && link.version == databaseVersion
+
+        val link: BackupChain.Link
+            get() = BackupChain.Link(chainId, to, databaseVersion)
+    }
+
+    /**
+     * Writes the changes after the watermark [from] up to the latest one,
+     * which is returned. Must be called in a transaction, so the rows are
+     * consistent with the watermark. The stream is closed.
+     */
+    @Throws(IOException::class)
+    fun write(context: Context, db: SupportSQLiteDatabase, outputStream: OutputStream, chainId: String, from: Long): Long {
+        val to = ChangeLog.getLatestSequence(db)
+        val header = DataOutputStream(outputStream)
+        header.write(BackupFormat.DELTA.magic!!)
+        header.writeInt(VERSION)
+        header.writeUTF(chainId)
+        header.writeLong(from)
+        header.writeLong(to)
+        header.writeInt(db.version)
+        header.flush()
+
+        val writer = JsonWriter(OutputStreamWriter(outputStream, UTF_8))
+        writer.beginObject()
+        writer.name("changes")
+        writer.beginArray()
+        db.query(ChangeLog.QUERY_CHANGES, arrayOf<Any>(from)).use { changes ->
+            while (changes.moveToNext()) {
+                val table = changes.getString(1)
+                if (table !in ChangeLog.TRACKED_TABLES) continue
+                val id = changes.getLong(2)
+                writer.beginObject()
+                writer.name("table").value(table)
+                writer.name("id").value(id)
+                // a row deleted after its change was logged is written as deleted as well
+                if (changes.getInt(3) != 0 || !writeRow(writer, db, table, id)) {
+                    writer.name("deleted").value(true)
+                }
+                writer.endObject()
+            }
+        }
+        writer.endArray()
+        BackupCreator.writeAllPreferences(context, writer)
+        writer.endObject()
+        writer.close()
+        return to
+    }
+
+    private fun writeRow(writer: JsonWriter, db: SupportSQLiteDatabase, table: String, id: Long): Boolean {
+        db.query("SELECT * FROM `$table` WHERE _id = ?", arrayOf<Any>(id)).use { row ->
+            if (!row.moveToFirst()) return false
+            writer.name("values")
+            writer.beginObject()
+            for (i in 0 until row.columnCount) {
+                writer.name(row.getColumnName(i))
+                when (row.getType(i)) {
+                    Cursor.FIELD_TYPE_NULL -> writer.nullValue()
+                    Cursor.FIELD_TYPE_INTEGER -> writer.value(row.getLong(i))
+                    Cursor.FIELD_TYPE_FLOAT -> writer.value(row.getDouble(i))
+                    Cursor.FIELD_TYPE_STRING -> writer.value(row.getString(i))
+                    else -> throw IOException("Unsupported value in $table.${row.getColumnName(i)}")
+                }
+            }
+            writer.endObject()
+            return true
+        }
+    }
+
+    /**
+     * Reads the header of a delta, positioned after the magic bytes.
+     */
+    @Throws(IOException::class)
+    fun readHeader(input: InputStream): Header {
+        val data = DataInputStream(input)
+        val version = data.readInt()
+        if (version > VERSION) {
+            throw RuntimeException("Unknown delta version $version")
+        }
+        return Header(data.readUTF(), data.readLong(), data.readLong(), data.readInt())
+    }
+
+    /**
+     * Applies the changes of a delta, positioned after its header, to the
+     * database. Must be called in a transaction. Other values, i.e. the
+     * preferences, are handed to [readOther].
+     */
+    @Throws(IOException::class)
+    fun apply(input: InputStream, db: SupportSQLiteDatabase, readOther: (String, JsonReader) -> Unit) {
+        val reader = JsonReader(InputStreamReader(input, UTF_8))
+        val columns = HashMap<String, Set<String>>()
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (val name = reader.nextName()) {
+                "changes" -> {
+                    reader.beginArray()
+                    while (reader.hasNext()) {
+                        applyChange(reader, db, columns)
+                    }
+                    reader.endArray()
+                }
+                else -> readOther(name, reader)
+            }
+        }
+        reader.endObject()
+    }
+
+    private fun applyChange(reader: JsonReader, db: SupportSQLiteDatabase, columns: MutableMap<String, Set<String>>) {
+        var table: String? = null
+        var id: Long? = null
+        var deleted = false
+        var values: ContentValues? = null
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.nextName()) {
+                "table" -> table = reader.nextString()
+                "id" -> id = reader.nextLong()
+                "deleted" -> deleted = reader.nextBoolean()
+                "values" -> values = readValues(reader)
+                else -> reader.skipValue()
+            }
+        }
+        reader.endObject()
+        if (table == null || table !in ChangeLog.TRACKED_TABLES || id == null) {
+            throw IOException("Invalid change of $table")
+        }
+
+        if (deleted || values == null) {
+            db.delete(table, "_id = ?", arrayOf<Any>(id))
+            return
+        }
+        // the column names end up in the statement, so only known ones are accepted
+        val tableColumns = columns.getOrPut(table) { getColumns(db, table) }
+        val unknown = values.keySet().firstOrNull { it !in tableColumns }
+        if (unknown != null) {
+            throw IOException("Unknown column $table.$unknown")
+        }
+        values.put("_id", id)
+        db.insert(table, SQLiteDatabase.CONFLICT_REPLACE, values)
+    }
+
+    private fun readValues(reader: JsonReader): ContentValues {
+        val values = ContentValues()
+        reader.beginObject()
+        while (reader.hasNext()) {
+            val column = reader.nextName()
+            when (reader.peek()) {
+                JsonToken.NULL -> {
+                    reader.nextNull()
+                    values.putNull(column)
+                }
+                JsonToken.NUMBER -> {
+                    val number = reader.nextString()
+                    val integer = number.toLongOrNull()
+                    if (integer != null) values.put(column, integer) else values.put(column, number.toDouble())
+                }
+                JsonToken.BOOLEAN -> values.put(column, reader.nextBoolean())
+                else -> values.put(column, reader.nextString())
+            }
+        }
+        reader.endObject()
+        return values
+    }
+
+    private fun getColumns(db: SupportSQLiteDatabase, table: String): Set<String> {
+        return db.query("PRAGMA table_info(`$table`)").use { cursor ->
+            val names = HashSet<String>()
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(1))
+            }
+            names
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.secuso.privacyfriendlypaindiary.backup
+
+/**
+ * A set of row IDs as a bitset split into pages, so only the ranges of IDs
+ * that occur take up memory, one bit per ID.
+ */
+internal class IdSet {
+    private val pages = HashMap<Long, LongArray>()
+
+    var size = 0L
+        private set
+
+    /**
+     * @return whether the ID was not yet contained
+     */
+    fun add(id: Long): Boolean {
+        val page = pages.getOrPut(id shr PAGE_SHIFT) { LongArray(WORDS_PER_PAGE) }
+        val word = (id and PAGE_MASK).toInt() ushr 6
+        val bit = 1L shl (id and 63).toInt()
+        if (page[word] and bit != 0L) return false
+        page[word] = page[word] or bit
+        size++
+        return true
+    }
+
+    operator fun contains(id: Long): Boolean {
+        val page = pages[id shr PAGE_SHIFT] ?: return false
+        return page[(id and PAGE_MASK).toInt() ushr 6] and (1L shl (id and 63).toInt()) != 0L
+    }
+
+    /**
+     * @return the IDs of this set that are not contained in the other one,
+     * in ascending order, at most [limit] of them
+     */
+    fun missingIn(other: IdSet, limit: Int): List<Long> {
+        val missing = ArrayList<Long>()
+        for (key in pages.keys.sorted()) {
+            val page = pages.getValue(key)
+            val otherPage = other.pages[key]
+            for (word in page.indices) {
+                var bits = page[word] and (otherPage?.get(word) ?: 0L).inv()
+                while (bits != 0L) {
+                    if (missing.size >= limit) return missing
+                    val bit = java.lang.Long.numberOfTrailingZeros(bits)
+                    missing.add((key shl PAGE_SHIFT) + (word shl 6) + bit)
+                    bits = bits and (bits - 1)
+                }
+            }
+        }
+        return missing
+    }
+
+    /**
+     * @return the number of IDs of this set that are not contained in the other one
+     */
+    fun countMissingIn(other: IdSet): Long {
+        var count = 0L
+        for ((key, page) in pages) {
+            val otherPage = other.pages[key]
+            for (word in page.indices) {
+                count += java.lang.Long.bitCount(page[word] and (otherPage?.get(word) ?: 0L).inv())
+            }
+        }
+        return count
+    }
+
+    private companion object {
+        const val PAGE_SHIFT = 12
+        const val PAGE_MASK = (1L shl PAGE_SHIFT) - 1
+        const val WORDS_PER_PAGE = 1 shl (PAGE_SHIFT - 6)
+    }
+}
@@ -0,0 +1,76 @@
+package org.secuso.privacyfriendlypaindiary.database
+
+import androidx.sqlite.db.SupportSQLiteDatabase
+
+/**
+ * A table, filled by triggers, of the rows changed in the tables of the diary,
+ * so incremental backups only need to read the changed rows.
+ *
+ * Each row appears at most once, with the sequence number of its latest
+ * change; sequence numbers only grow, even after [prune]. The table and its
+ * triggers are not Room entities, they are created when the database is
+ * opened.
+ */
+object ChangeLog {
+    const val TABLE = "changelog"
+
+    /**
+     * The tables whose changes are logged. All of them have the primary key `_id`.
+     */
+    @JvmField
+    val TRACKED_TABLES = listOf("users", "drugs", "paindescriptions", "diaryentries", "drugintakes")
+
+    /**
+     * Selects the changes after the bound sequence number, oldest first.
+     * Column order is (seq, tableName, rowId, deleted).
+     */
+    const val QUERY_CHANGES =
+        "SELECT seq, tableName, rowId, deleted FROM $TABLE WHERE seq > ? ORDER BY seq"
+
+    /**
+     * The sequence number of the latest change ever logged, 0 if none.
+     */
+    const val QUERY_LATEST_SEQUENCE = "SELECT seq FROM sqlite_sequence WHERE name = '$TABLE'"
+
+    /**
+     * Creates the table and the triggers unless they exist.
+     */
+    @JvmStatic
+    fun create(db: SupportSQLiteDatabase) {
+        db.execSQL(
+            "CREATE TABLE IF NOT EXISTS `$TABLE` (`seq` INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "`tableName` TEXT NOT NULL," +
+                    "`rowId` INTEGER NOT NULL," +
+                    "`deleted` INTEGER NOT NULL," +
+                    "UNIQUE(`tableName`, `rowId`))"
+        )
+        for (table in TRACKED_TABLES) {
+            createTrigger(db, table, "INSERT", "NEW", false)
+            createTrigger(db, table, "UPDATE", "NEW", false)
+            createTrigger(db, table, "DELETE", "OLD", true)
+        }
+    }
+
+    private fun createTrigger(db: SupportSQLiteDatabase, table: String, operation: String, row: String, deleted: Boolean) {
+        db.execSQL(
+            "CREATE TRIGGER IF NOT EXISTS `${table}_${operation.lowercase()}_log` AFTER $operation ON `$table`" +
+                    " BEGIN INSERT OR REPLACE INTO `$TABLE`(tableName, rowId, deleted)" +
+                    " VALUES('$table', $row._id, ${if (deleted) 1 else 0}); END"
+        )
+    }
+
+    @JvmStatic
+    fun getLatestSequence(db: SupportSQLiteDatabase): Long {
+        return db.query(QUERY_LATEST_SEQUENCE).use { cursor ->
+            if (cursor.moveToFirst()) cursor.getLong(0) else 0L
+        }
+    }
+
+    /**
+     * Deletes the changes up to the given sequence number, which no backup needs anymore.
+     */
+    @JvmStatic
+    fun prune(db: SupportSQLiteDatabase, sequence: Long) {
+        db.execSQL("DELETE FROM `$TABLE` WHERE seq <= ?", arrayOf<Any>(sequence))
+    }
+}
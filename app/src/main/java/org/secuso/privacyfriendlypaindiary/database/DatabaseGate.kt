@@ -0,0 +1,76 @@
+package org.secuso.privacyfriendlypaindiary.database
+
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Read-write gate around the shared [PainDiaryDatabase]: any number of calls
+ * may [pass] at the same time, but while the database is replaced (see
+ * [replace]) new calls wait until it is open again, and the replacement
+ * waits until the calls already inside are done.
+ *
+ * Calls on the same thread may be nested. A call inside the gate must not
+ * wait for another thread to pass it, as that one may be held up by a
+ * pending replacement.
+ */
+class DatabaseGate {
+    private val lock = ReentrantLock()
+    private val changed = lock.newCondition()
+    private var active = 0
+    private var replacing = false
+    @PublishedApi
+    internal val depth = ThreadLocal<Int>()
+
+    /**
+     * Runs the block as a call inside the gate.
+     */
+    inline fun <T> pass(block: () -> T): T {
+        val outer = depth.get() ?: 0
+        if (outer == 0) enter()
+        depth.set(outer + 1)
+        try {
+            return block()
+        } finally {
+            depth.set(outer)
+            if (outer == 0) exit()
+        }
+    }
+
+    /**
+     * Waits until no call is inside, then runs the block while new calls
+     * wait.
+     *
+     * @throws IllegalStateException if called inside the gate, which could never drain
+     */
+    fun <T> replace(block: () -> T): T {
+        check((depth.get() ?: 0) == 0) { "Database replaced from within a database call" }
+        lock.withLock {
+            while (replacing) changed.await()
+            replacing = true
+            while (active > 0) changed.await()
+        }
+        try {
+            return block()
+        } finally {
+            lock.withLock {
+                replacing = false
+                changed.signalAll()
+            }
+        }
+    }
+
+    @PublishedApi
+    internal fun enter() {
+        lock.withLock {
+            while (replacing) changed.await()
+            active++
+        }
+    }
+
+    @PublishedApi
+    internal fun exit() {
+        lock.withLock {
+            if (--active == 0) changed.signalAll()
+        }
+    }
+}
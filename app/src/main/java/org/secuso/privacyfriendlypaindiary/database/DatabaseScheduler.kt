@@ -0,0 +1,216 @@
+package org.secuso.privacyfriendlypaindiary.database
+
+import android.os.Process
+import android.os.SystemClock
+import android.util.Log
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.asCoroutineDispatcher
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Schedules database work on dedicated lanes instead of the unbounded
+ * [kotlinx.coroutines.Dispatchers.IO] pool.
+ *
+ * - [Lane.WRITE]: a single writer thread, so writes never contend with each other.
+ * - [Lane.INTERACTIVE] and [Lane.BACKGROUND]: a small pool of readers (the
+ *   database runs in WAL mode, so readers do not block the writer) that serves
+ *   interactive reads before background reads.
+ * - [Lane.BULK]: export, import and backup readers. They run on a separate
+ *   low priority thread and pause at [yieldToInteractive] checkpoints while
+ *   interactive reads are pending.
+ *
+ * The time every task spends waiting in its queue is recorded per lane, see [stats].
+ * Room's own work runs on [roomExecutor], outside of the lanes.
+ */
+object DatabaseScheduler {
+    private const val TAG = "DatabaseScheduler"
+    private const val READER_COUNT = 3
+    private const val SLOW_QUEUE_MILLIS = 100L
+    private const val MAX_YIELD_MILLIS = 250L
+
+    enum class Lane {
+        WRITE, INTERACTIVE, BACKGROUND, BULK
+    }
+
+    /**
+     * Queue latency of a single lane.
+     */
+    data class LaneStats(val tasks: Long, val meanQueueMillis: Double, val maxQueueMillis: Long)
+
+    private class LaneCounter {
+        val tasks = AtomicLong()
+        val totalQueueNanos = AtomicLong()
+        val maxQueueNanos = AtomicLong()
+
+        fun record(queueNanos: Long) {
+            tasks.incrementAndGet()
+            totalQueueNanos.addAndGet(queueNanos)
+            var max = maxQueueNanos.get()
+            while (queueNanos > max && !maxQueueNanos.compareAndSet(max, queueNanos)) {
+                max = maxQueueNanos.get()
+            }
+        }
+    }
+
+    private class LaneTask(
+        val lane: Lane,
+        val sequence: Long,
+        val task: Runnable
+    ) : Runnable, Comparable<LaneTask> {
+        val enqueuedAt = SystemClock.elapsedRealtimeNanos()
+
+        override fun compareTo(other: LaneTask): Int {
+            val byLane = lane.ordinal.compareTo(other.lane.ordinal)
+            return if (byLane != 0) byLane else sequence.compareTo(other.sequence)
+        }
+
+        override fun run() {
+            currentLane.set(lane)
+            record(lane, SystemClock.elapsedRealtimeNanos() - enqueuedAt)
+            try {
+                task.run()
+            } finally {
+                if (lane == Lane.INTERACTIVE) {
+                    interactiveDone()
+                }
+                currentLane.remove()
+            }
+        }
+    }
+
+    private val counters = Lane.values().associateWith { LaneCounter() }
+    private val sequence = AtomicLong()
+    private val currentLane = ThreadLocal<Lane>()
+
+    private val pendingInteractive = AtomicInteger()
+    private val interactiveLock = ReentrantLock()
+    private val interactiveIdle = interactiveLock.newCondition()
+
+    private val writer: ExecutorService =
+        Executors.newSingleThreadExecutor(threadFactory("db-writer", Process.THREAD_PRIORITY_DEFAULT))
+    private val readers: ExecutorService = ThreadPoolExecutor(
+        READER_COUNT, READER_COUNT, 0L, TimeUnit.MILLISECONDS,
+        PriorityBlockingQueue(),
+        threadFactory("db-reader", Process.THREAD_PRIORITY_DEFAULT)
+    )
+    private val bulkReader: ExecutorService =
+        Executors.newSingleThreadExecutor(threadFactory("db-bulk", Process.THREAD_PRIORITY_BACKGROUND))
+
+    /**
+     * Room's query executor, e.g. for its invalidation tracker. It is kept out
+     * of the lanes, so Room's work neither counts as pending interactive reads
+     * nor shows up in the [stats] of the app's own queries.
+     */
+    @JvmField
+    val roomExecutor: Executor =
+        Executors.newSingleThreadExecutor(threadFactory("db-room", Process.THREAD_PRIORITY_DEFAULT))
+
+    private val executors = Lane.values().associateWith { lane -> Executor { execute(lane, it) } }
+
+    @JvmField
+    val write: CoroutineDispatcher = executor(Lane.WRITE).asCoroutineDispatcher()
+
+    @JvmField
+    val interactive: CoroutineDispatcher = executor(Lane.INTERACTIVE).asCoroutineDispatcher()
+
+    @JvmField
+    val background: CoroutineDispatcher = executor(Lane.BACKGROUND).asCoroutineDispatcher()
+
+    @JvmField
+    val bulk: CoroutineDispatcher = executor(Lane.BULK).asCoroutineDispatcher()
+
+    @JvmStatic
+    fun executor(lane: Lane): Executor = executors.getValue(lane)
+
+    @JvmStatic
+    fun execute(lane: Lane, task: Runnable) {
+        val laneTask = LaneTask(lane, sequence.incrementAndGet(), task)
+        when (lane) {
+            Lane.WRITE -> writer.execute(laneTask)
+            Lane.INTERACTIVE -> {
+                pendingInteractive.incrementAndGet()
+                readers.execute(laneTask)
+            }
+            Lane.BACKGROUND -> readers.execute(laneTask)
+            Lane.BULK -> bulkReader.execute(laneTask)
+        }
+    }
+
+    /**
+     * Runs the given task on the given lane and blocks until it is finished.
+     * Runs the task directly if the caller already is on that lane.
+     */
+    @JvmStatic
+    fun <T> runOn(lane: Lane, task: Callable<T>): T {
+        if (currentLane.get() == lane) {
+            return task.call()
+        }
+        val future = FutureTask(task)
+        execute(lane, future)
+        try {
+            return future.get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        }
+    }
+
+    /**
+     * Checkpoint for long running database work. If the calling thread belongs
+     * to the [Lane.BULK] lane and interactive reads are pending, it waits until
+     * they are done (but at most a short while, so bulk work cannot starve).
+     * Does nothing on any other thread.
+     */
+    @JvmStatic
+    fun yieldToInteractive() {
+        if (currentLane.get() != Lane.BULK || pendingInteractive.get() == 0) {
+            return
+        }
+        var remaining = TimeUnit.MILLISECONDS.toNanos(MAX_YIELD_MILLIS)
+        interactiveLock.withLock {
+            while (pendingInteractive.get() > 0 && remaining > 0) {
+                remaining = interactiveIdle.awaitNanos(remaining)
+            }
+        }
+    }
+
+    /**
+     * Returns the queue latency recorded so far, per lane.
+     */
+    @JvmStatic
+    fun stats(): Map<Lane, LaneStats> = counters.mapValues { (_, counter) ->
+        val tasks = counter.tasks.get()
+        LaneStats(
+            tasks,
+            if (tasks == 0L) 0.0 else counter.totalQueueNanos.get() / tasks / 1e6,
+            TimeUnit.NANOSECONDS.toMillis(counter.maxQueueNanos.get())
+        )
+    }
+
+    private fun record(lane: Lane, queueNanos: Long) {
+        counters.getValue(lane).record(queueNanos)
+        val queueMillis = TimeUnit.NANOSECONDS.toMillis(queueNanos)
+        if (queueMillis >= SLOW_QUEUE_MILLIS) {
+            Log.d(TAG, "Task waited ${queueMillis}ms in lane $lane")
+        }
+    }
+
+    private fun interactiveDone() {
+        if (pendingInteractive.decrementAndGet() == 0) {
+            interactiveLock.withLock { interactiveIdle.signalAll() }
+        }
+    }
+
+    private fun threadFactory(name: String, priority: Int): ThreadFactory {
+        val count = AtomicInteger()
+        return ThreadFactory { runnable ->
+            Thread({
+                Process.setThreadPriority(priority)
+                runnable.run()
+            }, "$name-${count.incrementAndGet()}").apply { isDaemon = true }
+        }
+    }
+}
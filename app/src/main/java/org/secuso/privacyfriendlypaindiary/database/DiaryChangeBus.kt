@@ -0,0 +1,112 @@
+package org.secuso.privacyfriendlypaindiary.database
+
+import kotlinx.coroutines.*
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.SharedFlow
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays
+import java.util.*
+
+/**
+ * Typed description of a change made through [PainDiaryDatabaseService].
+ */
+sealed class DiaryChange {
+    /**
+     * Changes with the same key describe the same object; only the most
+     * recent of them is delivered.
+     */
+    internal abstract val coalescingKey: Any
+
+    /**
+     * The diary entry on the given date was created or updated.
+     */
+    data class EntrySaved(val date: Date) : DiaryChange() {
+        override val coalescingKey: Any get() = "entry" to EpochDays.fromDate(date)
+    }
+
+    data class EntryDeleted(val date: Date) : DiaryChange() {
+        override val coalescingKey: Any get() = "entry" to EpochDays.fromDate(date)
+    }
+
+    /**
+     * The drug with the given ID was created, updated or deleted.
+     */
+    data class DrugChanged(val id: Long) : DiaryChange() {
+        override val coalescingKey: Any get() = "drug" to id
+    }
+
+    data class UserChanged(val id: Long) : DiaryChange() {
+        override val coalescingKey: Any get() = "user" to id
+    }
+
+    /**
+     * The whole database was replaced, e.g. by a reset. Subscribers should
+     * reload everything.
+     */
+    object DatabaseReplaced : DiaryChange() {
+        override val coalescingKey: Any get() = this
+        override fun toString() = "DatabaseReplaced"
+    }
+}
+
+/**
+ * In-process bus on which [PainDiaryDatabaseService] publishes [DiaryChange]s.
+ *
+ * Changes are collected for a short while and then delivered as one batch, in
+ * which each object appears at most once. A [DiaryChange.DatabaseReplaced]
+ * supersedes all other changes of its batch.
+ */
+object DiaryChangeBus {
+    private const val COALESCE_MILLIS = 50L
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+    private val pending = LinkedHashMap<Any, DiaryChange>()
+    private var flushScheduled = false
+
+    private val mutableChanges = MutableSharedFlow<List<DiaryChange>>(extraBufferCapacity = 16)
+
+    /**
+     * Batches of coalesced changes.
+     */
+    @JvmStatic
+    val changes: SharedFlow<List<DiaryChange>> = mutableChanges
+
+    @JvmStatic
+    fun publish(change: DiaryChange) {
+        synchronized(pending) {
+            if (!coalesce(pending, change)) {
+                return
+            }
+            if (flushScheduled) {
+                return
+            }
+            flushScheduled = true
+        }
+        scope.launch {
+            delay(COALESCE_MILLIS)
+            val batch = synchronized(pending) {
+                flushScheduled = false
+                pending.values.toList().also { pending.clear() }
+            }
+            mutableChanges.emit(batch)
+        }
+    }
+
+    /**
+     * Adds a change to the given pending changes, keyed by object, in place
+     * of an older change of the same object. A [DiaryChange.DatabaseReplaced]
+     * drops all pending changes, and any change after it is dropped.
+     *
+     * @return whether the change has been added
+     */
+    @JvmStatic
+    fun coalesce(pending: MutableMap<Any, DiaryChange>, change: DiaryChange): Boolean {
+        if (change is DiaryChange.DatabaseReplaced) {
+            pending.clear()
+        } else if (pending.containsKey(DiaryChange.DatabaseReplaced)) {
+            return false
+        }
+        pending.remove(change.coalescingKey)
+        pending[change.coalescingKey] = change
+        return true
+    }
+}
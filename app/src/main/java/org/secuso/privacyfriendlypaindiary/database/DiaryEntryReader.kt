@@ -0,0 +1,75 @@
+package org.secuso.privacyfriendlypaindiary.database
+
+import android.database.Cursor
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Condition
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DiaryEntry
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.Drug
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DrugIntake
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.PainDescription
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface
+import org.secuso.privacyfriendlypaindiary.database.utils.Converters
+import org.secuso.privacyfriendlypaindiary.database.utils.Utils
+
+/**
+ * Reads complete diary entries, including pain description and drug intakes,
+ * from a single query instead of one query per entry and intake.
+ */
+object DiaryEntryReader {
+
+    /**
+     * Selects the entries between the two bound dates (inclusive) joined with
+     * their pain description and one row per drug intake, ordered by date.
+     * Column order is relied on by [forEach].
+     */
+    const val QUERY =
+        "SELECT d._id, d.date, d.condition, d.notes," +
+                " p._id, p.painLevel, p.bodyRegions, p.painQualities, p.timesOfPain," +
+                " i._id, i.morning, i.noon, i.evening, i.night, r._id, r.name, r.dose" +
+                " FROM diaryentries d LEFT JOIN paindescriptions p ON p._id = d.painDescription_id" +
+                " LEFT JOIN drugintakes i ON i.diaryEntry_id = d._id LEFT JOIN drugs r ON r._id = i.drug_id" +
+                " WHERE d.date >= ? AND d.date <= ? ORDER BY d.date, d._id"
+
+    /**
+     * Hands every entry of a cursor over [QUERY] to the action as soon as its
+     * last row has been read, so only one entry is held in memory at a time.
+     * The cursor is not closed.
+     */
+    @JvmStatic
+    fun forEach(cursor: Cursor, action: (DiaryEntryInterface) -> Unit) {
+        var entry: DiaryEntry? = null
+        while (cursor.moveToNext()) {
+            val id = cursor.getLong(0)
+            if (entry == null || entry.objectID != id) {
+                entry?.let(action)
+                entry = readEntry(cursor)
+            }
+            // intakes whose drug is missing are skipped, as by the service
+            if (!cursor.isNull(9) && !cursor.isNull(14)) {
+                val drug = Drug(cursor.getString(15), cursor.getString(16))
+                drug.objectID = cursor.getLong(14)
+                val intake = DrugIntake(drug, cursor.getInt(10), cursor.getInt(11), cursor.getInt(12), cursor.getInt(13))
+                intake.objectID = cursor.getLong(9)
+                entry.addDrugIntake(intake)
+            }
+        }
+        entry?.let(action)
+    }
+
+    private fun readEntry(cursor: Cursor): DiaryEntry {
+        val painDescription = if (cursor.isNull(4)) null else PainDescription(
+            cursor.getInt(5),
+            Utils.convertStringToBodyRegionEnumSet(cursor.getString(6)),
+            Utils.convertStringToPainQualityEnumSet(cursor.getString(7)),
+            Utils.convertStringToTimeEnumSet(cursor.getString(8))
+        ).also { it.objectID = cursor.getLong(4) }
+        val entry = DiaryEntry(
+            Converters.toDate(cursor.getString(1)),
+            if (cursor.isNull(2)) null else Condition.valueOf(cursor.getInt(2)),
+            painDescription,
+            cursor.getString(3),
+            null
+        )
+        entry.objectID = cursor.getLong(0)
+        return entry
+    }
+}
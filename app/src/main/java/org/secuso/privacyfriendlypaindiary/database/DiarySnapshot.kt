@@ -0,0 +1,340 @@
+package org.secuso.privacyfriendlypaindiary.database
+
+import android.database.Cursor
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.BodyRegion
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.PainQuality
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Time
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays
+import java.util.*
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * Resident, column-oriented copy of the whole diary for charts and filters.
+ *
+ * Every diary entry occupies one slot in a set of parallel primitive arrays
+ * which are kept sorted by epoch day, so range queries are a binary search
+ * followed by a linear scan without any boxing. A slot takes 18 bytes
+ * (epoch day, pain level, condition, body region mask and quality/time mask).
+ *
+ * The snapshot is built once from a single cursor pass (see [build]) and is
+ * afterwards patched by [PainDiaryDatabaseService] whenever an entry is saved
+ * or deleted.
+ */
+class DiarySnapshot @JvmOverloads constructor(initialCapacity: Int = DEFAULT_CAPACITY) {
+    private val lock = ReentrantReadWriteLock()
+
+    private var epochDays = IntArray(initialCapacity)
+    private var painLevels = ByteArray(initialCapacity)
+    private var conditions = ByteArray(initialCapacity)
+    private var regionMasks = LongArray(initialCapacity)
+    private var qualityTimeMasks = IntArray(initialCapacity)
+
+    private var length = 0
+
+    val size: Int
+        get() = lock.read { length }
+
+    /**
+     * Inserts the values of the entry on the given day or replaces them if
+     * there already is an entry on that day.
+     *
+     * @param painLevel pain level or [NO_VALUE]
+     * @param condition condition value or [NO_VALUE]
+     * @param qualityTimeMask see [qualityTimeMask]
+     */
+    fun upsert(epochDay: Int, painLevel: Int, condition: Int, regionMask: Long, qualityTimeMask: Int) {
+        lock.write {
+            var index = search(epochDay)
+            if (index < 0) {
+                index = -(index + 1)
+                ensureCapacity(length + 1)
+                val tail = length - index
+                if (tail > 0) {
+                    System.arraycopy(epochDays, index, epochDays, index + 1, tail)
+                    System.arraycopy(painLevels, index, painLevels, index + 1, tail)
+                    System.arraycopy(conditions, index, conditions, index + 1, tail)
+                    System.arraycopy(regionMasks, index, regionMasks, index + 1, tail)
+                    System.arraycopy(qualityTimeMasks, index, qualityTimeMasks, index + 1, tail)
+                }
+                length++
+            }
+            epochDays[index] = epochDay
+            painLevels[index] = painLevel.toByte()
+            conditions[index] = condition.toByte()
+            regionMasks[index] = regionMask
+            qualityTimeMasks[index] = qualityTimeMask
+        }
+    }
+
+    fun upsert(diaryEntry: DiaryEntryInterface) {
+        val painDescription = diaryEntry.painDescription
+        upsert(
+            EpochDays.fromDate(diaryEntry.date),
+            painDescription?.painLevel ?: NO_VALUE,
+            diaryEntry.condition?.value ?: NO_VALUE,
+            painDescription?.let { regionMask(it.bodyRegions) } ?: 0L,
+            painDescription?.let { qualityTimeMask(it.painQualities, it.timesOfPain) } ?: 0
+        )
+    }
+
+    /**
+     * @return true if there was an entry on the given day
+     */
+    fun remove(epochDay: Int): Boolean {
+        lock.write {
+            val index = search(epochDay)
+            if (index < 0) {
+                return false
+            }
+            val tail = length - index - 1
+            if (tail > 0) {
+                System.arraycopy(epochDays, index + 1, epochDays, index, tail)
+                System.arraycopy(painLevels, index + 1, painLevels, index, tail)
+                System.arraycopy(conditions, index + 1, conditions, index, tail)
+                System.arraycopy(regionMasks, index + 1, regionMasks, index, tail)
+                System.arraycopy(qualityTimeMasks, index + 1, qualityTimeMasks, index, tail)
+            }
+            length--
+            return true
+        }
+    }
+
+    fun contains(epochDay: Int): Boolean = lock.read { search(epochDay) >= 0 }
+
+    /**
+     * Returns the number of entries between the two days (both inclusive).
+     */
+    fun count(fromDay: Int, toDay: Int): Int = lock.read {
+        lowerBound(toDay + 1) - lowerBound(fromDay)
+    }
+
+    /**
+     * Returns the epoch days of all entries between the two days (both inclusive).
+     */
+    fun epochDays(fromDay: Int, toDay: Int): IntArray = lock.read {
+        val start = lowerBound(fromDay)
+        epochDays.copyOfRange(start, lowerBound(toDay + 1))
+    }
+
+    /**
+     * Returns how often each pain level (0 to 10) was recorded between the two days.
+     */
+    fun painLevelHistogram(fromDay: Int, toDay: Int): IntArray = lock.read {
+        val histogram = IntArray(MAX_PAIN_LEVEL + 1)
+        val end = lowerBound(toDay + 1)
+        for (i in lowerBound(fromDay) until end) {
+            val level = painLevels[i].toInt()
+            if (level in 0..MAX_PAIN_LEVEL) {
+                histogram[level]++
+            }
+        }
+        histogram
+    }
+
+    /**
+     * Returns how often each condition was recorded between the two days,
+     * indexed by condition value. The last slot counts entries without a condition.
+     */
+    fun conditionHistogram(fromDay: Int, toDay: Int): IntArray = lock.read {
+        val histogram = IntArray(CONDITION_COUNT + 1)
+        val end = lowerBound(toDay + 1)
+        for (i in lowerBound(fromDay) until end) {
+            val condition = conditions[i].toInt()
+            histogram[if (condition in 0 until CONDITION_COUNT) condition else CONDITION_COUNT]++
+        }
+        histogram
+    }
+
+    /**
+     * Returns how often each body region was marked between the two days,
+     * indexed by body region value.
+     */
+    fun bodyRegionFrequencies(fromDay: Int, toDay: Int): IntArray = lock.read {
+        val frequencies = IntArray(BodyRegion.values().size)
+        val end = lowerBound(toDay + 1)
+        for (i in lowerBound(fromDay) until end) {
+            var mask = regionMasks[i]
+            while (mask != 0L) {
+                val region = java.lang.Long.numberOfTrailingZeros(mask)
+                if (region < frequencies.size) {
+                    frequencies[region]++
+                }
+                mask = mask and (mask - 1)
+            }
+        }
+        frequencies
+    }
+
+    /**
+     * Returns the mean pain level between the two days or [Double.NaN] if
+     * there are no entries with a pain level.
+     */
+    fun meanPainLevel(fromDay: Int, toDay: Int): Double = lock.read {
+        var sum = 0L
+        var n = 0
+        val end = lowerBound(toDay + 1)
+        for (i in lowerBound(fromDay) until end) {
+            val level = painLevels[i].toInt()
+            if (level >= 0) {
+                sum += level
+                n++
+            }
+        }
+        if (n == 0) Double.NaN else sum.toDouble() / n
+    }
+
+    /**
+     * Returns the Pearson correlation between pain level and condition for all
+     * entries between the two days that have both values, or [Double.NaN] if
+     * it is undefined.
+     */
+    fun painConditionCorrelation(fromDay: Int, toDay: Int): Double = lock.read {
+        var n = 0
+        var sumX = 0.0
+        var sumY = 0.0
+        var sumXX = 0.0
+        var sumYY = 0.0
+        var sumXY = 0.0
+        val end = lowerBound(toDay + 1)
+        for (i in lowerBound(fromDay) until end) {
+            val x = painLevels[i].toInt()
+            val y = conditions[i].toInt()
+            if (x < 0 || y < 0) continue
+            n++
+            sumX += x
+            sumY += y
+            sumXX += x * x
+            sumYY += y * y
+            sumXY += x * y
+        }
+        val covariance = n * sumXY - sumX * sumY
+        val variance = (n * sumXX - sumX * sumX) * (n * sumYY - sumY * sumY)
+        if (n < 2 || variance <= 0.0) Double.NaN else covariance / Math.sqrt(variance)
+    }
+
+    /**
+     * Returns the pain levels and conditions between the two days (both
+     * inclusive) for a chart.
+     */
+    fun painTrend(fromDay: Int, toDay: Int): PainTrend = lock.read {
+        val start = lowerBound(fromDay)
+        val end = lowerBound(toDay + 1)
+        val levels = IntArray(end - start) { painLevels[start + it].toInt() }
+        val conditionValues = IntArray(end - start) { conditions[start + it].toInt() }
+        PainTrend(epochDays.copyOfRange(start, end), levels, conditionValues)
+    }
+
+    private fun search(epochDay: Int): Int = Arrays.binarySearch(epochDays, 0, length, epochDay)
+
+    private fun lowerBound(epochDay: Int): Int {
+        val index = search(epochDay)
+        return if (index >= 0) index else -(index + 1)
+    }
+
+    private fun ensureCapacity(capacity: Int) {
+        if (capacity <= epochDays.size) return
+        val newCapacity = maxOf(capacity, epochDays.size + (epochDays.size shr 1))
+        epochDays = epochDays.copyOf(newCapacity)
+        painLevels = painLevels.copyOf(newCapacity)
+        conditions = conditions.copyOf(newCapacity)
+        regionMasks = regionMasks.copyOf(newCapacity)
+        qualityTimeMasks = qualityTimeMasks.copyOf(newCapacity)
+    }
+
+    companion object {
+        const val NO_VALUE = -1
+        const val MAX_PAIN_LEVEL = 10
+        private const val CONDITION_COUNT = 5
+        private const val DEFAULT_CAPACITY = 366
+
+        /**
+         * Position of the times of pain in a [qualityTimeMask].
+         */
+        const val TIME_SHIFT = 8
+
+        /**
+         * Selects one row per diary entry, ordered by date. Column order is
+         * relied on by [build].
+         */
+        const val SNAPSHOT_QUERY =
+            "SELECT d.date, p.painLevel, d.condition, p.bodyRegions, p.painQualities, p.timesOfPain" +
+                    " FROM diaryentries d LEFT JOIN paindescriptions p ON p._id = d.painDescription_id" +
+                    " ORDER BY d.date"
+
+        /**
+         * Builds a snapshot from a cursor over [SNAPSHOT_QUERY]. The cursor is not closed.
+         */
+        @JvmStatic
+        fun build(cursor: Cursor): DiarySnapshot {
+            val snapshot = DiarySnapshot(maxOf(cursor.count, DEFAULT_CAPACITY))
+            while (cursor.moveToNext()) {
+                val date = cursor.getString(0) ?: continue
+                snapshot.upsert(
+                    EpochDays.fromDatabaseString(date),
+                    if (cursor.isNull(1)) NO_VALUE else cursor.getInt(1),
+                    if (cursor.isNull(2)) NO_VALUE else cursor.getInt(2),
+                    regionMask(cursor.getString(3)),
+                    qualityTimeMask(cursor.getString(4), cursor.getString(5))
+                )
+            }
+            return snapshot
+        }
+
+        @JvmStatic
+        fun regionMask(bodyRegions: EnumSet<BodyRegion>?): Long {
+            var mask = 0L
+            bodyRegions?.forEach { mask = mask or (1L shl it.value) }
+            return mask
+        }
+
+        /**
+         * Parses the comma separated representation of body regions stored in the database.
+         */
+        @JvmStatic
+        fun regionMask(bodyRegions: String?): Long {
+            if (bodyRegions.isNullOrEmpty()) return 0L
+            var mask = 0L
+            var value = 0
+            var digits = 0
+            for (c in bodyRegions) {
+                if (c in '0'..'9') {
+                    value = value * 10 + (c - '0')
+                    digits++
+                } else {
+                    if (digits > 0 && value < 64) mask = mask or (1L shl value)
+                    value = 0
+                    digits = 0
+                }
+            }
+            if (digits > 0 && value < 64) mask = mask or (1L shl value)
+            return mask
+        }
+
+        /**
+         * Packs pain qualities into the low byte and times of pain into the
+         * second byte, each indexed by enum ordinal.
+         */
+        @JvmStatic
+        fun qualityTimeMask(painQualities: EnumSet<PainQuality>?, timesOfPain: EnumSet<Time>?): Int {
+            var mask = 0
+            painQualities?.forEach { mask = mask or (1 shl it.ordinal) }
+            timesOfPain?.forEach { mask = mask or (1 shl (it.ordinal + TIME_SHIFT)) }
+            return mask
+        }
+
+        @JvmStatic
+        fun qualityTimeMask(painQualities: String?, timesOfPain: String?): Int {
+            var mask = 0
+            painQualities?.split(',')?.forEach { quality ->
+                PainQuality.fromString(quality)?.let { mask = mask or (1 shl it.ordinal) }
+            }
+            timesOfPain?.split(',')?.forEach { time ->
+                Time.fromString(time)?.let { mask = mask or (1 shl (it.ordinal + TIME_SHIFT)) }
+            }
+            return mask
+        }
+    }
+}
@@ -7,7 +7,6 @@ import androidx.room.RoomDatabase
 import androidx.room.TypeConverters
 import androidx.room.migration.Migration
 import androidx.sqlite.db.SupportSQLiteDatabase
-import org.secuso.privacyfriendlybackup.api.backup.DatabaseUtil
 import org.secuso.privacyfriendlypaindiary.database.dao.*
 import org.secuso.privacyfriendlypaindiary.database.model.*
 import org.secuso.privacyfriendlypaindiary.database.utils.Converters
@@ -27,35 +26,79 @@ abstract class PainDiaryDatabase : RoomDatabase() {
     companion object {
         const val DATABASE_NAME = "paindiary"
         const val VERSION = 2
+        @Volatile
         private var instance: PainDiaryDatabase? = null
 
+        /**
+         * Every call on the shared instance passes this gate, so it can be
+         * replaced while the app keeps running, see [replaceDatabase].
+         */
+        @JvmField
+        val gate = DatabaseGate()
+
+        /**
+         * Returns the shared instance. Calls on it have to pass the [gate],
+         * e.g. with [withInstance], or it may be closed under them.
+         */
         fun getInstance(context: Context): PainDiaryDatabase {
+            instance?.let { return it }
             synchronized(DATABASE_NAME) {
-                if (instance == null) {
-                    instance = createDatabase(context)
-                }
-                return instance!!
+                return instance ?: createDatabase(context).also { instance = it }
             }
         }
 
-        fun resetDatabase(context: Context) {
-            synchronized(DATABASE_NAME) {
-                DatabaseUtil.deleteRoomDatabase(context, DATABASE_NAME)
-                instance = null
+        /**
+         * Runs the block with the shared instance inside the [gate].
+         */
+        fun <T> withInstance(context: Context, block: (PainDiaryDatabase) -> T): T {
+            return gate.pass { block(getInstance(context)) }
+        }
+
+        /**
+         * Replaces the database without restarting the app: waits for the
+         * calls in the [gate] to finish and holds back new ones, closes the
+         * shared instance, lets [replaceFiles] change the database files and
+         * opens the new database before the waiting calls continue.
+         */
+        fun replaceDatabase(context: Context, replaceFiles: () -> Unit) {
+            gate.replace {
+                synchronized(DATABASE_NAME) {
+                    instance?.close()
+                    instance = null
+                    replaceFiles()
+                    // migrates a restored database before any call can see it
+                    val database = createDatabase(context)
+                    database.openHelper.writableDatabase
+                    instance = database
+                }
             }
         }
 
-        private fun createDatabase(context: Context): PainDiaryDatabase {
+        /**
+         * Opens an instance on another file, e.g. to restore a backup into.
+         * It is not shared, so the caller has to close it.
+         */
+        fun openDatabase(context: Context, name: String): PainDiaryDatabase {
+            return createDatabase(context, name)
+        }
+
+        private fun createDatabase(context: Context, name: String = DATABASE_NAME): PainDiaryDatabase {
             return Room.databaseBuilder(
                 context.applicationContext,
-                PainDiaryDatabase::class.java, DATABASE_NAME
+                PainDiaryDatabase::class.java, name
             )
                 .addMigrations(MIGRATION_1_2)
                 .addCallback(roomCallback)
+                .setQueryExecutor(DatabaseScheduler.roomExecutor)
                 .build()
         }
 
-        private val roomCallback: Callback = object: Callback() {}
+        private val roomCallback: Callback = object: Callback() {
+            override fun onOpen(db: SupportSQLiteDatabase) {
+                super.onOpen(db)
+                ChangeLog.create(db)
+            }
+        }
 
 //            object : Callback() {
 //            override fun onCreate(db: SupportSQLiteDatabase) {
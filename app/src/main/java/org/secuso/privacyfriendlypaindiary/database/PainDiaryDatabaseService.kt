@@ -1,19 +1,57 @@
 package org.secuso.privacyfriendlypaindiary.database
 
 import android.content.Context
+import android.os.CancellationSignal
+import androidx.sqlite.db.SimpleSQLiteQuery
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.filter
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.mapLatest
+import kotlinx.coroutines.flow.onStart
+import kotlinx.coroutines.suspendCancellableCoroutine
+import org.secuso.privacyfriendlybackup.api.backup.DatabaseUtil
 import org.secuso.privacyfriendlypaindiary.database.entities.enums.Condition
 import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface
 import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DrugIntakeInterface
 import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DrugInterface
 import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.UserInterface
 import org.secuso.privacyfriendlypaindiary.database.model.*
+import org.secuso.privacyfriendlypaindiary.database.utils.Converters
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays
+import org.secuso.privacyfriendlypaindiary.export.PdfSegmentCache
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
 
 class PainDiaryDatabaseService private constructor(context: Context) : DBServiceInterface {
-    private var database: PainDiaryDatabase
+    private val context = context.applicationContext
+    private val segmentCache = PdfSegmentCache.getInstance(context)
+
+    /**
+     * The shared instance; only to be used in [gated] calls, during which it
+     * is not replaced.
+     */
+    private val database: PainDiaryDatabase
+        get() = PainDiaryDatabase.getInstance(context)
+
+    /**
+     * Built on first use by [getDiarySnapshot]; until then nothing is patched.
+     * The lock is held while the snapshot is built or patched, and a build is
+     * only kept if the snapshot has not been dropped meanwhile, as counted by
+     * the generation.
+     */
+    @Volatile
+    private var snapshot: DiarySnapshot? = null
+    private val snapshotLock = ReentrantLock()
+    private val snapshotGeneration = AtomicInteger()
 
     companion object {
         const val TAG = "PainDiaryDBService"
+        private const val DATES_QUERY =
+            "SELECT date FROM diaryentries WHERE date >= ? AND date <= ? ORDER BY date"
         private var instance: PainDiaryDatabaseService? = null
 
         @Synchronized
@@ -26,123 +64,254 @@ class PainDiaryDatabaseService private constructor(context: Context) : DBService
         }
     }
 
-    init {
-        database = PainDiaryDatabase.getInstance(context)
-    }
+    private inline fun <T> gated(block: () -> T): T = PainDiaryDatabase.gate.pass(block)
 
     override fun initializeDatabase() {
     }
 
     override fun reinitializeDatabase(context: Context) {
-        PainDiaryDatabase.resetDatabase(context)
-        database = PainDiaryDatabase.getInstance(context)
+        replaceDatabase { DatabaseUtil.deleteRoomDatabase(context, PainDiaryDatabase.DATABASE_NAME) }
+        DiaryChangeBus.publish(DiaryChange.DatabaseReplaced)
+    }
+
+    /**
+     * Replaces the database files while no call is running, see
+     * [PainDiaryDatabase.replaceDatabase], and drops everything cached from
+     * the old database. Publishing [DiaryChange.DatabaseReplaced] is left to
+     * the caller, which may have more to change first.
+     */
+    fun replaceDatabase(replaceFiles: () -> Unit) {
+        PainDiaryDatabase.replaceDatabase(context) {
+            replaceFiles()
+            dropSnapshot()
+            segmentCache.clear()
+        }
+    }
+
+    /**
+     * Drops everything cached after the database has been changed other than
+     * through this service, e.g. by a restored backup.
+     */
+    fun invalidateCaches() {
+        dropSnapshot()
+        segmentCache.clear()
+    }
+
+    /**
+     * Returns the in-memory snapshot of the whole diary, which backs
+     * [getPainTrend]. It is built on first use and kept up to date by the
+     * store, update and delete methods.
+     *
+     * The build runs in a transaction of its own, so it never sees a write
+     * transaction halfway; it must not be called inside one.
+     */
+    fun getDiarySnapshot(): DiarySnapshot {
+        return gated {
+            snapshot ?: snapshotLock.withLock {
+                snapshot ?: database.runInTransaction(Callable {
+                    val generation = snapshotGeneration.get()
+                    val built = database.query(SimpleSQLiteQuery(DiarySnapshot.SNAPSHOT_QUERY)).use {
+                        DiarySnapshot.build(it)
+                    }
+                    if (generation == snapshotGeneration.get()) snapshot = built
+                    built
+                })
+            }
+        }
+    }
+
+    /**
+     * Aggregates the diary entries of the given time span per week with a
+     * single query, see [WeeklySummary.QUERY].
+     */
+    fun getWeeklySummaries(startDate: Date, endDate: Date): List<WeeklySummary> {
+        return gated {
+            val query = SimpleSQLiteQuery(WeeklySummary.QUERY, arrayOf(Converters.fromDate(startDate), Converters.fromDate(endDate)))
+            database.query(query).use { WeeklySummary.build(it) }
+        }
+    }
+
+    /**
+     * Returns the pain levels and conditions of the given time span for a
+     * chart from the [DiarySnapshot], without loading the entries themselves.
+     */
+    fun getPainTrend(startDate: Date, endDate: Date): PainTrend {
+        return getDiarySnapshot().painTrend(EpochDays.fromDate(startDate), EpochDays.fromDate(endDate))
+    }
+
+    /**
+     * Hands the diary entries of the given time span to the action one at a
+     * time, in order of their dates. Unlike [getDiaryEntriesByTimeSpan] this is
+     * a single pass over one query and does not keep the entries in memory.
+     */
+    fun forEachDiaryEntry(startDate: Date, endDate: Date, action: (DiaryEntryInterface) -> Unit) {
+        gated {
+            val query = SimpleSQLiteQuery(DiaryEntryReader.QUERY, arrayOf(Converters.fromDate(startDate), Converters.fromDate(endDate)))
+            database.query(query).use { DiaryEntryReader.forEach(it, action) }
+        }
+    }
+
+    /**
+     * Applies a change to the snapshot if it has been built, once the change
+     * is committed. Inside a caller's transaction, e.g. of [org.secuso.privacyfriendlypaindiary.backup.BackupMerger],
+     * the change may still be rolled back, so the snapshot is dropped instead
+     * and built again on next use. A build in progress cannot miss the change:
+     * it runs in a transaction, which a write outside of one waits for.
+     */
+    private inline fun patchSnapshot(patch: (DiarySnapshot) -> Unit) {
+        if (snapshot == null) return
+        if (database.inTransaction()) {
+            dropSnapshot()
+        } else {
+            snapshotLock.withLock { snapshot?.let(patch) }
+        }
+    }
+
+    private fun dropSnapshot() {
+        snapshotGeneration.incrementAndGet()
+        snapshot = null
     }
 
     override fun storeUser(user: UserInterface): Long {
-        return database.userDao().insert(User.fromUserInterface(user))
+        return gated {
+            val id = database.userDao().insert(User.fromUserInterface(user))
+            DiaryChangeBus.publish(DiaryChange.UserChanged(id))
+            id
+        }
     }
 
     override fun updateUser(user: UserInterface) {
-        database.userDao().update(User.fromUserInterface(user))
+        gated {
+            database.userDao().update(User.fromUserInterface(user))
+            DiaryChangeBus.publish(DiaryChange.UserChanged(user.objectID))
+        }
     }
 
     override fun deleteUser(user: UserInterface) {
-        database.userDao().deleteUserByID(user.objectID)
+        gated {
+            database.userDao().deleteUserByID(user.objectID)
+            DiaryChangeBus.publish(DiaryChange.UserChanged(user.objectID))
+        }
     }
 
     override fun getUserByID(id: Long): UserInterface? {
-        return database.userDao().loadUserByID(id)?.toUserInterface() ?: return null
+        return gated {
+            database.userDao().loadUserByID(id)?.toUserInterface() ?: return null
+        }
     }
 
     override fun getAllUsers(): MutableList<UserInterface> {
-        return database.userDao().loadAllUsers().map { it.toUserInterface() }.toMutableList()
+        return gated {
+            database.userDao().loadAllUsers().map { it.toUserInterface() }.toMutableList()
+        }
     }
 
     override fun storeDiaryEntryAndAssociatedObjects(diaryEntry: DiaryEntryInterface): Long {
-        diaryEntry.painDescription.objectID = database.painDescriptionDao()
-            .insert(PainDescription.fromPainDescriptionInterface(diaryEntry.painDescription))
+        return gated {
+            diaryEntry.painDescription.objectID = database.painDescriptionDao()
+                .insert(PainDescription.fromPainDescriptionInterface(diaryEntry.painDescription))
 
-        val newDiaryEntry = DiaryEntry.fromDiaryEntryInterface(diaryEntry)
-        val newDiaryEntryID = database.diaryEntryDao().insert(newDiaryEntry)
+            val newDiaryEntry = DiaryEntry.fromDiaryEntryInterface(diaryEntry)
+            val newDiaryEntryID = database.diaryEntryDao().insert(newDiaryEntry)
 
-        for (intake: DrugIntakeInterface in diaryEntry.drugIntakes) {
-            intake.diaryEntry.objectID = newDiaryEntryID
-            storeDrugIntakeAndAssociatedDrug(intake)
+            for (intake: DrugIntakeInterface in diaryEntry.drugIntakes) {
+                intake.diaryEntry.objectID = newDiaryEntryID
+                storeDrugIntakeAndAssociatedDrug(intake)
+            }
+            patchSnapshot { it.upsert(diaryEntry) }
+            segmentCache.invalidateMonth(diaryEntry.date)
+            DiaryChangeBus.publish(DiaryChange.EntrySaved(diaryEntry.date))
+            newDiaryEntryID
         }
-        return newDiaryEntryID
     }
 
     override fun updateDiaryEntryAndAssociatedObjects(diaryEntry: DiaryEntryInterface) {
-        val painDescription = diaryEntry.painDescription
-        diaryEntry.painDescription.objectID = if (painDescription.isPersistent) {
-            database.painDescriptionDao()
-                .update(PainDescription.fromPainDescriptionInterface(painDescription))
-            painDescription.objectID
-        } else {
-            database.painDescriptionDao()
-                .insert(PainDescription.fromPainDescriptionInterface(painDescription))
-        }
-
-        database.diaryEntryDao().update(DiaryEntry.fromDiaryEntryInterface(diaryEntry))
-
-        val oldIntakes: Set<DrugIntakeInterface> = getDrugIntakesForDiaryEntry(diaryEntry.objectID)
-        val newIntakes = diaryEntry.drugIntakes
-        val newIntakeIDs: MutableSet<Long> = HashSet()
-        for (intake in newIntakes) {
-            if (!intake.isPersistent) {
-                storeDrugIntakeAndAssociatedDrug(intake)
+        gated {
+            val painDescription = diaryEntry.painDescription
+            diaryEntry.painDescription.objectID = if (painDescription.isPersistent) {
+                database.painDescriptionDao()
+                    .update(PainDescription.fromPainDescriptionInterface(painDescription))
+                painDescription.objectID
             } else {
-                newIntakeIDs.add(intake.objectID)
-                updateDrugIntakeAndAssociatedDrug(intake)
+                database.painDescriptionDao()
+                    .insert(PainDescription.fromPainDescriptionInterface(painDescription))
             }
-        }
-        //all drug intake objects that are no longer associated with the diary entry object are deleted
-        for (intake in oldIntakes) {
-            if (!newIntakeIDs.contains(intake.objectID)) {
-                deleteDrugIntake(intake)
+
+            database.diaryEntryDao().update(DiaryEntry.fromDiaryEntryInterface(diaryEntry))
+
+            val oldIntakes: Set<DrugIntakeInterface> = getDrugIntakesForDiaryEntry(diaryEntry.objectID)
+            val newIntakes = diaryEntry.drugIntakes
+            val newIntakeIDs: MutableSet<Long> = HashSet()
+            for (intake in newIntakes) {
+                if (!intake.isPersistent) {
+                    storeDrugIntakeAndAssociatedDrug(intake)
+                } else {
+                    newIntakeIDs.add(intake.objectID)
+                    updateDrugIntakeAndAssociatedDrug(intake)
+                }
             }
+            //all drug intake objects that are no longer associated with the diary entry object are deleted
+            for (intake in oldIntakes) {
+                if (!newIntakeIDs.contains(intake.objectID)) {
+                    deleteDrugIntake(intake)
+                }
+            }
+            patchSnapshot { it.upsert(diaryEntry) }
+            segmentCache.invalidateMonth(diaryEntry.date)
+            DiaryChangeBus.publish(DiaryChange.EntrySaved(diaryEntry.date))
         }
     }
 
     override fun deleteDiaryEntryAndAssociatedObjects(diaryEntry: DiaryEntryInterface) {
-        database.painDescriptionDao().deletePainDescriptionByID(diaryEntry.painDescription.objectID)
-        for (intake: DrugIntakeInterface in diaryEntry.drugIntakes) {
-            deleteDrugIntake(intake)
+        gated {
+            database.painDescriptionDao().deletePainDescriptionByID(diaryEntry.painDescription.objectID)
+            for (intake: DrugIntakeInterface in diaryEntry.drugIntakes) {
+                deleteDrugIntake(intake)
+            }
+            database.diaryEntryDao().deleteDiaryEntryByID(diaryEntry.objectID)
+            patchSnapshot { it.remove(EpochDays.fromDate(diaryEntry.date)) }
+            segmentCache.invalidateMonth(diaryEntry.date)
+            DiaryChangeBus.publish(DiaryChange.EntryDeleted(diaryEntry.date))
         }
-        database.diaryEntryDao().deleteDiaryEntryByID(diaryEntry.objectID)
     }
 
     override fun getDiaryEntryByID(id: Long): DiaryEntryInterface? {
-        val entry = database.diaryEntryDao().loadDiaryEntryByID(id) ?: return null
-        val date = entry.date
-        val condition = entry.condition?.let { Condition.valueOf(it) }
-        val painDescription =
-            database.painDescriptionDao().loadPainDescriptionByID(entry.painDescription_id)
-                ?.toPainDescriptionInterface()
-        val notes = entry.notes
-        val intakes = getDrugIntakesForDiaryEntry(entry._id)
-
-        val diaryEntryInterface =
-            org.secuso.privacyfriendlypaindiary.database.entities.impl.DiaryEntry(
-                date, condition, painDescription, notes, intakes
-            )
-        diaryEntryInterface.objectID = entry._id
-        return diaryEntryInterface
+        return gated {
+            val entry = database.diaryEntryDao().loadDiaryEntryByID(id) ?: return null
+            val date = entry.date
+            val condition = entry.condition?.let { Condition.valueOf(it) }
+            val painDescription =
+                database.painDescriptionDao().loadPainDescriptionByID(entry.painDescription_id)
+                    ?.toPainDescriptionInterface()
+            val notes = entry.notes
+            val intakes = getDrugIntakesForDiaryEntry(entry._id)
+
+            val diaryEntryInterface =
+                org.secuso.privacyfriendlypaindiary.database.entities.impl.DiaryEntry(
+                    date, condition, painDescription, notes, intakes
+                )
+            diaryEntryInterface.objectID = entry._id
+            diaryEntryInterface
+        }
     }
 
     override fun getIDOfLatestDiaryEntry(): Long {
-        var id = database.diaryEntryDao().getIDOfLatestDiaryEntry()
-        id = if (id == 0L) {
-            -1
-        } else {
+        return gated {
+            var id = database.diaryEntryDao().getIDOfLatestDiaryEntry()
+            id = if (id == 0L) {
+                -1
+            } else {
+                id
+            }
             id
         }
-        return id
     }
 
     override fun getDiaryEntryByDate(date: Date): DiaryEntryInterface? {
-        val id = database.diaryEntryDao().loadDiaryEntryByDate(date)?._id
-        return id?.let { getDiaryEntryByID(it) }
+        return gated {
+            val id = database.diaryEntryDao().loadDiaryEntryByDate(date)?._id
+            id?.let { getDiaryEntryByID(it) }
+        }
     }
 
     override fun getDiaryEntriesByMonth(month: Int, year: Int): MutableList<DiaryEntryInterface> {
@@ -160,12 +329,15 @@ class PainDiaryDatabaseService private constructor(context: Context) : DBService
         startDate: Date,
         endDate: Date
     ): MutableList<DiaryEntryInterface> {
-        val diaryEntries = database.diaryEntryDao().loadDiaryEntriesByDateRange(startDate, endDate)
-        val diaryEntryInterfaces: MutableList<DiaryEntryInterface> = ArrayList()
-        for (entry: DiaryEntry in diaryEntries) {
-            getDiaryEntryByID(entry._id)?.let { diaryEntryInterfaces.add(it) }
+        return gated {
+            val diaryEntries = database.diaryEntryDao().loadDiaryEntriesByDateRange(startDate, endDate)
+            val diaryEntryInterfaces: MutableList<DiaryEntryInterface> = ArrayList()
+            for (entry: DiaryEntry in diaryEntries) {
+                DatabaseScheduler.yieldToInteractive()
+                getDiaryEntryByID(entry._id)?.let { diaryEntryInterfaces.add(it) }
+            }
+            diaryEntryInterfaces
         }
-        return diaryEntryInterfaces
     }
 
     override fun getDiaryEntryDatesByMonth(month: Int, year: Int): MutableSet<Date> {
@@ -180,61 +352,130 @@ class PainDiaryDatabaseService private constructor(context: Context) : DBService
     }
 
     override fun getDiaryEntryDatesByTimeSpan(startDate: Date, endDate: Date): MutableSet<Date> {
-        val dateSet: MutableSet<Date> = HashSet()
-        val dates = database.diaryEntryDao().getDatesByDateRange(startDate, endDate)
-        for (date: Date in dates) {
-            dateSet.add(date)
+        return gated {
+            val dateSet: MutableSet<Date> = HashSet()
+            val dates = database.diaryEntryDao().getDatesByDateRange(startDate, endDate)
+            for (date: Date in dates) {
+                dateSet.add(date)
+            }
+            dateSet
+        }
+    }
+
+    /**
+     * Suspending variant of [getDiaryEntryDatesByTimeSpan], run on the
+     * [DatabaseScheduler.Lane.INTERACTIVE] lane. The query is cancelled on the
+     * SQLite level if the calling coroutine is cancelled.
+     */
+    suspend fun loadDiaryEntryDatesByTimeSpan(startDate: Date, endDate: Date): Set<Date> {
+        val signal = CancellationSignal()
+        return suspendCancellableCoroutine { continuation ->
+            continuation.invokeOnCancellation { signal.cancel() }
+            DatabaseScheduler.execute(DatabaseScheduler.Lane.INTERACTIVE) {
+                continuation.resumeWith(runCatching {
+                    gated {
+                        val query = SimpleSQLiteQuery(DATES_QUERY, arrayOf(Converters.fromDate(startDate), Converters.fromDate(endDate)))
+                        database.query(query, signal).use { cursor ->
+                            val dates = HashSet<Date>()
+                            while (cursor.moveToNext()) Converters.toDate(cursor.getString(0))?.let { dates.add(it) }
+                            dates
+                        }
+                    }
+                })
+            }
         }
-        return dateSet
+    }
+
+    /**
+     * Emits the dates of all diary entries for the given time span, and again
+     * whenever a batch of the [DiaryChangeBus] touches an entry in it. A query
+     * that is superseded by a newer change before it finishes is cancelled,
+     * so the last dates emitted are never older than the last change.
+     */
+    @OptIn(ExperimentalCoroutinesApi::class)
+    fun diaryEntryDatesByTimeSpan(startDate: Date, endDate: Date): Flow<Set<Date>> {
+        val days = EpochDays.fromDate(startDate)..EpochDays.fromDate(endDate)
+        return DiaryChangeBus.changes
+            .filter { batch -> batch.any { affectsDays(it, days) } }
+            .map { }
+            .onStart { emit(Unit) }
+            .mapLatest { loadDiaryEntryDatesByTimeSpan(startDate, endDate) }
+    }
+
+    private fun affectsDays(change: DiaryChange, days: IntRange): Boolean = when (change) {
+        is DiaryChange.EntrySaved -> EpochDays.fromDate(change.date) in days
+        is DiaryChange.EntryDeleted -> EpochDays.fromDate(change.date) in days
+        DiaryChange.DatabaseReplaced -> true
+        else -> false
     }
 
     override fun getDrugIntakesForDiaryEntry(diaryEntryID: Long): MutableSet<DrugIntakeInterface> {
-        val intakes: MutableSet<DrugIntakeInterface> = HashSet()
+        return gated {
+            val intakes: MutableSet<DrugIntakeInterface> = HashSet()
 
-        val drugIntakes = database.drugIntakeDao().loadDrugIntakesByDiaryEntryID(diaryEntryID)
+            val drugIntakes = database.drugIntakeDao().loadDrugIntakesByDiaryEntryID(diaryEntryID)
 
-        for (intake in drugIntakes) {
-            getDrugIntakeByID(intake._id)?.let { intakes.add(it) }
+            for (intake in drugIntakes) {
+                getDrugIntakeByID(intake._id)?.let { intakes.add(it) }
+            }
+            intakes
         }
-        return intakes
     }
 
     override fun storeDrug(drug: DrugInterface): Long {
-        return database.drugDao().insert(Drug(drug.name, drug.dose))
+        return gated {
+            val id = database.drugDao().insert(Drug(drug.name, drug.dose))
+            DiaryChangeBus.publish(DiaryChange.DrugChanged(id))
+            id
+        }
     }
 
     override fun updateDrug(drug: DrugInterface) {
-        database.drugDao().update(Drug.fromDrugInterface(drug))
+        gated {
+            database.drugDao().update(Drug.fromDrugInterface(drug))
+            // the drug may be listed in any month
+            segmentCache.clear()
+            DiaryChangeBus.publish(DiaryChange.DrugChanged(drug.objectID))
+        }
     }
 
     override fun deleteDrug(drug: DrugInterface) {
-        val drugIntakes = database.drugIntakeDao().loadDrugIntakesByDrugID(drug.objectID)
-        if (drugIntakes.isEmpty()) { //check if drug is used anywhere before deletion
-            database.drugDao().deleteDrugByID(drug.objectID)
+        gated {
+            val drugIntakes = database.drugIntakeDao().loadDrugIntakesByDrugID(drug.objectID)
+            if (drugIntakes.isEmpty()) { //check if drug is used anywhere before deletion
+                database.drugDao().deleteDrugByID(drug.objectID)
+                DiaryChangeBus.publish(DiaryChange.DrugChanged(drug.objectID))
+            }
         }
     }
 
     override fun getDrugByID(id: Long): DrugInterface? {
-        return database.drugDao().loadDrugByID(id)?.toDrugInterface()
+        return gated {
+            database.drugDao().loadDrugByID(id)?.toDrugInterface()
+        }
     }
 
     override fun getDrugByNameAndDose(name: String, dose: String?): DrugInterface? {
-        val drug: Drug? = if (dose == null) {
-            database.drugDao().loadDrugWithoutDoseByName(name)
-        } else {
-            database.drugDao().loadDrugByNameAndDose(name, dose)
-        }
-        if (drug == null) {
-            return null
+        return gated {
+            val drug: Drug? = if (dose == null) {
+                database.drugDao().loadDrugWithoutDoseByName(name)
+            } else {
+                database.drugDao().loadDrugByNameAndDose(name, dose)
+            }
+            if (drug == null) {
+                return null
+            }
+            val drugInterface: DrugInterface =
+                org.secuso.privacyfriendlypaindiary.database.entities.impl.Drug(drug.name, drug.dose)
+            drugInterface.objectID = drug._id
+            drugInterface
         }
-        val drugInterface: DrugInterface =
-            org.secuso.privacyfriendlypaindiary.database.entities.impl.Drug(drug.name, drug.dose)
-        drugInterface.objectID = drug._id
-        return drugInterface
     }
 
     override fun getAllDrugs(): MutableList<DrugInterface> {
-        return database.drugDao().loadAllDrugs().map { it.toDrugInterface() }.toMutableList()
+        return gated {
+            database.drugDao().loadAllDrugs().map { it.toDrugInterface() }.toMutableList()
+        }
     }
 
 
@@ -0,0 +1,12 @@
+package org.secuso.privacyfriendlypaindiary.database
+
+/**
+ * Pain level and condition of every diary entry of a time span, ordered by
+ * date, as taken from the [DiarySnapshot]. Missing values are
+ * [DiarySnapshot.NO_VALUE].
+ */
+class PainTrend(val epochDays: IntArray, val painLevels: IntArray, val conditions: IntArray) {
+
+    val size: Int
+        get() = epochDays.size
+}
@@ -0,0 +1,90 @@
+package org.secuso.privacyfriendlypaindiary.database
+
+import android.database.Cursor
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Condition
+import org.secuso.privacyfriendlypaindiary.database.utils.Converters
+import java.util.*
+
+/**
+ * The diary entries of one week (Monday to Sunday), aggregated by [QUERY].
+ *
+ * @param meanPainLevel mean of the pain levels of the week, null if no entry has one
+ * @param conditionCounts number of entries per [Condition], by value
+ * @param regionMask union of the body regions of the week, bit i standing for the region with value i
+ * @param medication total number of doses per drug, largest first
+ */
+data class WeeklySummary(
+    val weekStart: Date,
+    val entries: Int,
+    val meanPainLevel: Double?,
+    val maxPainLevel: Int?,
+    val conditionCounts: List<Int>,
+    val regionMask: Long,
+    val medication: List<MedicationTotal>
+) {
+    data class MedicationTotal(val name: String, val dose: String?, val total: Int)
+
+    companion object {
+        private val CONDITION_COUNT = Condition.values().size
+        private const val RECORD_SEPARATOR = '\u001E'
+        private const val UNIT_SEPARATOR = '\u001F'
+
+        /**
+         * Aggregates the entries between the two bound dates (inclusive) per
+         * week, ordered by week. Column order is relied on by [build]. The
+         * medication totals are computed per week and drug in a subquery and
+         * concatenated as "total:name[US dose]" records separated by RS.
+         */
+        val QUERY =
+            "WITH entries AS (" +
+                    "SELECT d._id AS id, d.condition AS condition, p.painLevel AS painLevel, p.bodyRegions AS bodyRegions," +
+                    " date(d.date, '-' || ((CAST(strftime('%w', d.date) AS INTEGER) + 6) % 7) || ' days') AS week" +
+                    " FROM diaryentries d LEFT JOIN paindescriptions p ON p._id = d.painDescription_id" +
+                    " WHERE d.date >= ? AND d.date <= ?)," +
+                    " medication AS (" +
+                    "SELECT week, group_concat(total || ':' || name ||" +
+                    " CASE WHEN dose IS NULL THEN '' ELSE char(31) || dose END, char(30)) AS totals" +
+                    " FROM (SELECT e.week AS week, r.name AS name, r.dose AS dose," +
+                    " SUM(i.morning + i.noon + i.evening + i.night) AS total" +
+                    " FROM entries e JOIN drugintakes i ON i.diaryEntry_id = e.id JOIN drugs r ON r._id = i.drug_id" +
+                    " GROUP BY e.week, r._id)" +
+                    " GROUP BY week)" +
+                    " SELECT e.week, COUNT(*), AVG(e.painLevel), MAX(e.painLevel), group_concat(e.bodyRegions), MAX(m.totals)" +
+                    (0 until CONDITION_COUNT).joinToString("") { ", SUM(e.condition = $it)" } +
+                    " FROM entries e LEFT JOIN medication m ON m.week = e.week" +
+                    " GROUP BY e.week ORDER BY e.week"
+
+        /**
+         * Reads the weeks from a cursor over [QUERY]. The cursor is not closed.
+         */
+        @JvmStatic
+        fun build(cursor: Cursor): List<WeeklySummary> {
+            val weeks = ArrayList<WeeklySummary>(cursor.count)
+            while (cursor.moveToNext()) {
+                val weekStart = Converters.toDate(cursor.getString(0)) ?: continue
+                weeks.add(
+                    WeeklySummary(
+                        weekStart,
+                        cursor.getInt(1),
+                        if (cursor.isNull(2)) null else cursor.getDouble(2),
+                        if (cursor.isNull(3)) null else cursor.getInt(3),
+                        List(CONDITION_COUNT) { cursor.getInt(6 + it) },
+                        DiarySnapshot.regionMask(cursor.getString(4)),
+                        parseMedication(cursor.getString(5))
+                    )
+                )
+            }
+            return weeks
+        }
+
+        private fun parseMedication(totals: String?): List<MedicationTotal> {
+            if (totals.isNullOrEmpty()) return emptyList()
+            return totals.split(RECORD_SEPARATOR).mapNotNull { record ->
+                val colon = record.indexOf(':')
+                val total = record.substring(0, maxOf(colon, 0)).toIntOrNull() ?: return@mapNotNull null
+                val drug = record.substring(colon + 1).split(UNIT_SEPARATOR, limit = 2)
+                MedicationTotal(drug[0], drug.getOrNull(1), total)
+            }.sortedWith(compareByDescending<MedicationTotal> { it.total }.thenBy { it.name })
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.secuso.privacyfriendlypaindiary.database.utils
+
+import java.util.*
+
+/**
+ * Converts between calendar dates and epoch days (days since 1970-01-01).
+ * Diary dates are local calendar days without a time component, so the
+ * conversion only looks at the year, month and day fields.
+ */
+object EpochDays {
+
+    @JvmStatic
+    fun fromCivil(year: Int, month: Int, day: Int): Int {
+        val y = if (month <= 2) year - 1 else year
+        val era = (if (y >= 0) y else y - 399) / 400
+        val yoe = y - era * 400
+        val mp = (month + 9) % 12
+        val doy = (153 * mp + 2) / 5 + day - 1
+        val doe = yoe * 365 + yoe / 4 - yoe / 100 + doy
+        return era * 146097 + doe - 719468
+    }
+
+    @JvmStatic
+    fun fromDate(date: Date): Int {
+        val c = Calendar.getInstance()
+        c.time = date
+        return fromCivil(c[Calendar.YEAR], c[Calendar.MONTH] + 1, c[Calendar.DAY_OF_MONTH])
+    }
+
+    /**
+     * Parses the `yyyy-MM-dd` representation used for dates in the database.
+     */
+    @JvmStatic
+    fun fromDatabaseString(date: String): Int {
+        val year = date.substring(0, 4).toInt()
+        val month = date.substring(5, 7).toInt()
+        val day = date.substring(8, 10).toInt()
+        return fromCivil(year, month, day)
+    }
+
+    @JvmStatic
+    fun toDate(epochDay: Int): Date {
+        val civil = toCivil(epochDay)
+        val c = Calendar.getInstance()
+        c.clear()
+        c.set(civil[0], civil[1] - 1, civil[2])
+        return c.time
+    }
+
+    /**
+     * Formats the `yyyy-MM-dd` representation used for dates in the database.
+     */
+    @JvmStatic
+    fun toDatabaseString(epochDay: Int): String {
+        val civil = toCivil(epochDay)
+        return String.format(Locale.US, "%04d-%02d-%02d", civil[0], civil[1], civil[2])
+    }
+
+    /**
+     * @return year, month (1-12) and day of month
+     */
+    private fun toCivil(epochDay: Int): IntArray {
+        val z = epochDay + 719468
+        val era = (if (z >= 0) z else z - 146096) / 146097
+        val doe = z - era * 146097
+        val yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365
+        val doy = doe - (365 * yoe + yoe / 4 - yoe / 100)
+        val mp = (5 * doy + 2) / 153
+        val day = doy - (153 * mp + 2) / 5 + 1
+        val month = if (mp < 10) mp + 3 else mp - 9
+        val year = yoe + era * 400 + if (month <= 2) 1 else 0
+        return intArrayOf(year, month, day)
+    }
+}
@@ -0,0 +1,66 @@
+package org.secuso.privacyfriendlypaindiary.export
+
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.UserInterface
+import java.io.OutputStream
+import java.io.OutputStreamWriter
+import java.io.Writer
+import java.text.SimpleDateFormat
+import java.util.*
+import kotlin.text.Charsets.UTF_8
+
+/**
+ * Writes one line per diary entry as comma separated values (RFC 4180).
+ * Lists such as the body regions are separated by semicolons within a field.
+ */
+class CsvExportSink(out: OutputStream) : ExportSink {
+    private val writer: Writer = OutputStreamWriter(out, UTF_8).buffered()
+    private val dateFormat = SimpleDateFormat("yyyy-MM-dd", Locale.US)
+
+    override fun begin(startDate: Date, endDate: Date, user: UserInterface) {
+        writeRecord(HEADER)
+    }
+
+    override fun entry(diaryEntry: DiaryEntryInterface) {
+        val painDescription = diaryEntry.painDescription
+        writeRecord(
+            listOf(
+                dateFormat.format(diaryEntry.date),
+                diaryEntry.condition?.value?.toString() ?: "",
+                painDescription?.painLevel?.toString() ?: "",
+                painDescription?.bodyRegions?.joinToString(";") { it.name.lowercase(Locale.US) } ?: "",
+                painDescription?.painQualities?.joinToString(";") ?: "",
+                painDescription?.timesOfPain?.joinToString(";") ?: "",
+                diaryEntry.drugIntakes.sortedBy { it.drug.name }.joinToString(";") { intake ->
+                    listOfNotNull(intake.drug.name, intake.drug.dose).joinToString(" ") +
+                            " ${intake.quantityMorning}-${intake.quantityNoon}-${intake.quantityEvening}-${intake.quantityNight}"
+                },
+                diaryEntry.notes ?: ""
+            )
+        )
+    }
+
+    override fun finish() {
+        writer.flush()
+    }
+
+    private fun writeRecord(fields: List<String>) {
+        fields.forEachIndexed { index, field ->
+            if (index > 0) writer.write(','.code)
+            if (field.any { it == ',' || it == '"' || it == '\n' || it == '\r' }) {
+                writer.write('"'.code)
+                writer.write(field.replace("\"", "\"\""))
+                writer.write('"'.code)
+            } else {
+                writer.write(field)
+            }
+        }
+        writer.write("\r\n")
+    }
+
+    companion object {
+        private val HEADER = listOf(
+            "date", "condition", "pain_level", "body_regions", "pain_qualities", "times_of_pain", "medication", "notes"
+        )
+    }
+}
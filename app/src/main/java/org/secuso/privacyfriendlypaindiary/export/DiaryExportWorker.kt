@@ -0,0 +1,118 @@
+package org.secuso.privacyfriendlypaindiary.export
+
+import android.content.Context
+import android.net.Uri
+import android.util.Log
+import androidx.work.*
+import kotlinx.coroutines.withContext
+import org.secuso.privacyfriendlypaindiary.R
+import org.secuso.privacyfriendlypaindiary.database.DatabaseScheduler
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabaseService
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.AbstractPersistentObject
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.User
+import org.secuso.privacyfriendlypaindiary.helpers.NotificationHelper
+import org.secuso.privacyfriendlypaindiary.tutorial.PrefManager
+import java.io.IOException
+import java.io.OutputStream
+import java.util.*
+
+/**
+ * Exports a time span in several formats at once with an [ExportPipeline],
+ * so all documents are written in one pass over the database. If the export
+ * fails, all of its documents are deleted. Unlike [PdfExportWorker] this
+ * worker does not resume a stopped export.
+ */
+class DiaryExportWorker(context: Context, params: WorkerParameters) : CoroutineWorker(context, params) {
+
+    override suspend fun doWork(): Result {
+        val startDate = Date(inputData.getLong(KEY_START_DATE, 0))
+        val endDate = Date(inputData.getLong(KEY_END_DATE, 0))
+        val formats = inputData.getStringArray(KEY_FORMATS)?.map { ExportFormat.valueOf(it) } ?: return Result.failure()
+        val targets = inputData.getStringArray(KEY_OUTPUT_URIS)?.map { Uri.parse(it) } ?: return Result.failure()
+        if (formats.size != targets.size) return Result.failure()
+
+        val notificationHelper = NotificationHelper(applicationContext)
+        notificationHelper.notify(
+            NOTIFICATION_ID, notificationHelper
+                .getProgressNotificationBuilder(applicationContext.getString(R.string.export_in_progress))
+                .setProgress(0, 0, true)
+                .setOngoing(true)
+        )
+        val streams = ArrayList<OutputStream>()
+        val sinks = ArrayList<ExportSink>()
+        var complete = false
+        try {
+            withContext(DatabaseScheduler.bulk) {
+                val service = PainDiaryDatabaseService.getInstance(applicationContext)
+                val userID = PrefManager(applicationContext).userID
+                val user = (if (userID == AbstractPersistentObject.INVALID_OBJECT_ID) null else service.getUserByID(userID)) ?: User()
+                val trend = if (inputData.getBoolean(KEY_TREND_CHART, false)) service.getPainTrend(startDate, endDate) else null
+                for ((format, target) in formats.zip(targets)) {
+                    val out = (applicationContext.contentResolver.openOutputStream(target, "w")
+                        ?: throw IOException("Cannot open $target")).buffered().also { streams.add(it) }
+                    sinks.add(format.createSink(applicationContext, out, trend))
+                }
+                ExportPipeline.run(service, startDate, endDate, user, sinks) { isStopped }
+            }
+            streams.forEach { it.close() }
+            complete = true
+            return Result.success(workDataOf(KEY_OUTPUT_URIS to targets.map { it.toString() }.toTypedArray()))
+        } catch (e: IOException) {
+            Log.e(TAG, "Export failed", e)
+            return Result.failure()
+        } finally {
+            sinks.forEach { it.close() }
+            streams.forEach { it.closeQuietly() }
+            if (!complete) {
+                targets.forEach { PdfExportWorker.deleteDocument(applicationContext, it) }
+            }
+            notificationHelper.cancel(NOTIFICATION_ID)
+        }
+    }
+
+    private fun OutputStream.closeQuietly() {
+        try {
+            close()
+        } catch (e: IOException) {
+            // nothing left to save
+        }
+    }
+
+    companion object {
+        private val TAG = DiaryExportWorker::class.java.simpleName
+        private const val UNIQUE_WORK_NAME = "diary_export"
+        private const val NOTIFICATION_ID = 44
+
+        const val KEY_START_DATE = "start_date"
+        const val KEY_END_DATE = "end_date"
+        const val KEY_FORMATS = "formats"
+        const val KEY_OUTPUT_URIS = "output_uris"
+        const val KEY_TREND_CHART = "trend_chart"
+
+        /**
+         * Starts the export of the given time span into one document per format.
+         * A running export is cancelled.
+         *
+         * @param targets the writable document of each format
+         * @param trendChart whether to add a chart of pain level and condition to the PDF
+         * @return the ID of the work request, to observe its state
+         */
+        @JvmStatic
+        fun enqueue(context: Context, startDate: Date, endDate: Date, targets: Map<ExportFormat, Uri>, trendChart: Boolean): UUID {
+            val request = OneTimeWorkRequestBuilder<DiaryExportWorker>()
+                .setInputData(
+                    workDataOf(
+                        KEY_START_DATE to startDate.time,
+                        KEY_END_DATE to endDate.time,
+                        KEY_FORMATS to targets.keys.map { it.name }.toTypedArray(),
+                        KEY_OUTPUT_URIS to targets.values.map { it.toString() }.toTypedArray(),
+                        KEY_TREND_CHART to trendChart
+                    )
+                )
+                .build()
+            WorkManager.getInstance(context)
+                .enqueueUniqueWork(UNIQUE_WORK_NAME, ExistingWorkPolicy.REPLACE, request)
+            return request.id
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.secuso.privacyfriendlypaindiary.export
+
+import android.content.Context
+import org.secuso.privacyfriendlypaindiary.database.PainTrend
+import java.io.OutputStream
+
+/**
+ * The formats an export can be written in, see [ExportPipeline].
+ */
+enum class ExportFormat(val extension: String, val mimeType: String) {
+    PDF("pdf", "application/pdf"),
+    CSV("csv", "text/csv"),
+    JSON("json", "application/json"),
+    FHIR("fhir.json", "application/fhir+json");
+
+    /**
+     * @param trend data for a chart, only used by formats that draw one
+     */
+    fun createSink(context: Context, out: OutputStream, trend: PainTrend? = null): ExportSink {
+        return when (this) {
+            PDF -> PdfExportSink(context, out, trend)
+            CSV -> CsvExportSink(out)
+            JSON -> JsonExportSink(out)
+            FHIR -> FhirBundleSink(out)
+        }
+    }
+}
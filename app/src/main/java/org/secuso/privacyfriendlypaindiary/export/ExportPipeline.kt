@@ -0,0 +1,47 @@
+package org.secuso.privacyfriendlypaindiary.export
+
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabaseService
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.UserInterface
+import java.io.IOException
+import java.util.*
+import java.util.concurrent.CancellationException
+
+/**
+ * Writes the diary entries of a time span in several formats at once.
+ *
+ * The entries are read in a single pass over one query (see
+ * [PainDiaryDatabaseService.forEachDiaryEntry]) and every entry is handed to
+ * all sinks before the next one is read. Producing several formats together
+ * therefore costs one database scan, and memory use does not depend on the
+ * length of the time span.
+ */
+object ExportPipeline {
+
+    /**
+     * @param isStopped polled before every entry; the export is cancelled
+     * with a [CancellationException] once it returns true
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun run(
+        service: PainDiaryDatabaseService,
+        startDate: Date,
+        endDate: Date,
+        user: UserInterface,
+        sinks: List<ExportSink>,
+        isStopped: () -> Boolean = { false }
+    ) {
+        for (sink in sinks) {
+            sink.begin(startDate, endDate, user)
+        }
+        service.forEachDiaryEntry(startDate, endDate) { diaryEntry ->
+            if (isStopped()) throw CancellationException("Export stopped")
+            for (sink in sinks) {
+                sink.entry(diaryEntry)
+            }
+        }
+        for (sink in sinks) {
+            sink.finish()
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.secuso.privacyfriendlypaindiary.export
+
+import android.content.ContentProvider
+import android.content.ContentValues
+import android.content.Context
+import android.database.Cursor
+import android.database.MatrixCursor
+import android.net.Uri
+import android.os.ParcelFileDescriptor
+import android.provider.OpenableColumns
+import android.util.Log
+import org.secuso.privacyfriendlypaindiary.database.DatabaseScheduler
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileNotFoundException
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Serves reports to other apps without keeping them in a file.
+ *
+ * The URIs (see [ExportRequest.toUri]) describe the report; it is rendered
+ * only when the receiving app opens the URI and handed over through a pipe.
+ * The report is rendered on the [DatabaseScheduler.Lane.BULK] lane into a
+ * private file in the cache directory first, so a slow receiver holds up
+ * neither the lane nor the database, e.g. a restore waiting for the readers.
+ * The file is deleted as soon as it has been opened for the pipe, so no
+ * copy of the diary is left behind. The provider is not exported; apps get
+ * access to a single report through a URI permission grant.
+ */
+class ExportProvider : ContentProvider() {
+
+    override fun onCreate(): Boolean {
+        // reports left over by a process that died while rendering them
+        context?.let { File(it.cacheDir, REPORT_DIRECTORY).deleteRecursively() }
+        return true
+    }
+
+    override fun getType(uri: Uri): String? = ExportRequest.fromUri(uri)?.format?.mimeType
+
+    /**
+     * Returns the name of the report. The size is unknown until it has been written.
+     */
+    override fun query(
+        uri: Uri, projection: Array<String>?, selection: String?, selectionArgs: Array<String>?, sortOrder: String?
+    ): Cursor? {
+        val request = ExportRequest.fromUri(uri) ?: return null
+        val columns = projection ?: arrayOf(OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE)
+        val cursor = MatrixCursor(columns, 1)
+        cursor.addRow(columns.map { column ->
+            if (column == OpenableColumns.DISPLAY_NAME) request.fileName else null
+        })
+        return cursor
+    }
+
+    @Throws(FileNotFoundException::class)
+    override fun openFile(uri: Uri, mode: String): ParcelFileDescriptor {
+        if (mode != "r") throw FileNotFoundException("Reports are read-only: $uri")
+        val request = ExportRequest.fromUri(uri) ?: throw FileNotFoundException("Unknown report: $uri")
+        val context = context ?: throw FileNotFoundException("Provider not attached")
+        val pipe = try {
+            ParcelFileDescriptor.createReliablePipe()
+        } catch (e: IOException) {
+            throw FileNotFoundException("Cannot create pipe: ${e.message}")
+        }
+        val (readSide, writeSide) = pipe
+        val applicationContext = context.applicationContext
+        DatabaseScheduler.execute(DatabaseScheduler.Lane.BULK, Runnable {
+            try {
+                val report = render(applicationContext, request)
+                pipeWriter.execute { writeToPipe(report, writeSide) }
+            } catch (e: Exception) {
+                closeWithError(writeSide, e)
+            }
+        })
+        return readSide
+    }
+
+    /**
+     * Renders the report into a new file, opens it and deletes it, so it is
+     * only kept until the returned stream is closed.
+     */
+    @Throws(IOException::class)
+    private fun render(context: Context, request: ExportRequest): FileInputStream {
+        val directory = File(context.cacheDir, REPORT_DIRECTORY)
+        if (!directory.isDirectory && !directory.mkdirs()) throw IOException("Cannot create $directory")
+        val file = File.createTempFile("report", null, directory)
+        try {
+            FileOutputStream(file).buffered(BUFFER_SIZE).use { request.write(context, it) }
+            return FileInputStream(file)
+        } finally {
+            file.delete()
+        }
+    }
+
+    private fun writeToPipe(report: FileInputStream, writeSide: ParcelFileDescriptor) {
+        try {
+            report.use { input ->
+                input.copyTo(FileOutputStream(writeSide.fileDescriptor), BUFFER_SIZE)
+            }
+            writeSide.close()
+        } catch (e: Exception) {
+            // also if the receiver closed its end early
+            closeWithError(writeSide, e)
+        }
+    }
+
+    private fun closeWithError(writeSide: ParcelFileDescriptor, e: Exception) {
+        Log.w(TAG, "Report not completed", e)
+        try {
+            writeSide.closeWithError(e.message ?: e.javaClass.simpleName)
+        } catch (ignored: IOException) {
+        }
+    }
+
+    override fun insert(uri: Uri, values: ContentValues?): Uri? {
+        throw UnsupportedOperationException("Reports are read-only")
+    }
+
+    override fun update(uri: Uri, values: ContentValues?, selection: String?, selectionArgs: Array<String>?): Int {
+        throw UnsupportedOperationException("Reports are read-only")
+    }
+
+    override fun delete(uri: Uri, selection: String?, selectionArgs: Array<String>?): Int {
+        throw UnsupportedOperationException("Reports are read-only")
+    }
+
+    companion object {
+        private val TAG = ExportProvider::class.java.simpleName
+        private const val BUFFER_SIZE = 64 * 1024
+        private const val REPORT_DIRECTORY = "shared"
+        private const val PIPE_WRITERS = 2
+
+        /** Feeds the rendered reports to their receivers, at the receivers' pace. */
+        private val pipeWriter: ExecutorService = Executors.newFixedThreadPool(PIPE_WRITERS)
+    }
+}
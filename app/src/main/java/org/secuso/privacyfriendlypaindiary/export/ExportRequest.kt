@@ -0,0 +1,159 @@
+package org.secuso.privacyfriendlypaindiary.export
+
+import android.content.ContentResolver
+import android.content.Context
+import android.net.Uri
+import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabaseService
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.AbstractPersistentObject
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.User
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.UserInterface
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays
+import org.secuso.privacyfriendlypaindiary.helpers.PdfCreator
+import org.secuso.privacyfriendlypaindiary.tutorial.PrefManager
+import java.io.IOException
+import java.io.OutputStream
+import java.text.SimpleDateFormat
+import java.util.*
+
+/**
+ * A report to export: the time span, the format and the options of the PDF.
+ * Requests are encoded in the content URIs of [ExportProvider], so a report
+ * can be handed to other apps before it has been written.
+ */
+data class ExportRequest @JvmOverloads constructor(
+    val startDate: Date,
+    val endDate: Date,
+    val format: ExportFormat,
+    val weeklySummary: Boolean = false,
+    val trendChart: Boolean = false
+) {
+    /**
+     * The suggested file name, for example 01012024-31012024-summary.pdf.
+     */
+    val fileName: String
+        get() {
+            val dateFormat = SimpleDateFormat("ddMMyyyy", Locale.US)
+            val suffix = if (weeklySummary && format == ExportFormat.PDF) "-summary" else ""
+            return dateFormat.format(startDate) + "-" + dateFormat.format(endDate) + suffix + "." + format.extension
+        }
+
+    /**
+     * Returns the URI under which [ExportProvider] writes this report.
+     */
+    fun toUri(context: Context): Uri {
+        val flags = (if (weeklySummary) FLAG_WEEKLY_SUMMARY else 0) or (if (trendChart) FLAG_TREND_CHART else 0)
+        return Uri.Builder()
+            .scheme(ContentResolver.SCHEME_CONTENT)
+            .authority(getAuthority(context))
+            .appendPath(format.name.lowercase(Locale.US))
+            .appendPath(EpochDays.fromDate(startDate).toString())
+            .appendPath(EpochDays.fromDate(endDate).toString())
+            .appendPath(flags.toString())
+            .appendPath(fileName)
+            .build()
+    }
+
+    /**
+     * Writes the report to the given stream, which is flushed but not closed.
+     * Blocks until the report is complete, so it must not be called on the
+     * main thread.
+     *
+     * @param isStopped polled while writing, see [ExportPipeline.run]
+     */
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun write(context: Context, out: OutputStream, isStopped: () -> Boolean = { false }) {
+        if (weeklySummary && format == ExportFormat.PDF) {
+            createPdfCreator(context).writePdfDocument(out)
+        } else {
+            val service = PainDiaryDatabaseService.getInstance(context)
+            val user = loadUser(context, service)
+            val trend = if (trendChart && format == ExportFormat.PDF) service.getPainTrend(startDate, endDate) else null
+            format.createSink(context, out, trend).use { sink ->
+                ExportPipeline.run(service, startDate, endDate, user, listOf(sink), isStopped)
+            }
+        }
+    }
+
+    /**
+     * Splits the time span into its calendar months, as the first and last
+     * day of each within the time span. Every month of the PDF report starts
+     * on a new page, so the report can be rendered one month at a time, see
+     * [createPdfCreator].
+     */
+    fun getMonths(): List<Pair<Date, Date>> {
+        val months = ArrayList<Pair<Date, Date>>()
+        val lastDay = EpochDays.fromDate(endDate)
+        val calendar = Calendar.getInstance()
+        calendar.time = EpochDays.toDate(EpochDays.fromDate(startDate))
+        while (EpochDays.fromDate(calendar.time) <= lastDay) {
+            val from = calendar.time
+            calendar[Calendar.DAY_OF_MONTH] = calendar.getActualMaximum(Calendar.DAY_OF_MONTH)
+            val to = if (EpochDays.fromDate(calendar.time) > lastDay) EpochDays.toDate(lastDay) else calendar.time
+            months.add(Pair(from, to))
+            calendar.add(Calendar.DAY_OF_MONTH, 1)
+        }
+        return months
+    }
+
+    /**
+     * Loads everything the PDF report, or a part of it, needs into a
+     * [PdfCreator], which can then measure and draw it in any order of its
+     * pages. Must not be called on the main thread.
+     *
+     * @param from the first day of the entries to load, e.g. of one of the [getMonths]
+     * @param to the last day of the entries to load
+     * @param title whether the part starts the report, with the title and the trend chart
+     */
+    fun createPdfCreator(context: Context, from: Date = startDate, to: Date = endDate, title: Boolean = true): PdfCreator {
+        val service = PainDiaryDatabaseService.getInstance(context)
+        val user = loadUser(context, service)
+        val creator = if (weeklySummary) {
+            PdfCreator.forWeeklySummaries(context, startDate, endDate, service.getWeeklySummaries(from, to), user)
+        } else {
+            val diaryEntries = ArrayList<DiaryEntryInterface>()
+            service.forEachDiaryEntry(from, to) { diaryEntries.add(it) }
+            PdfCreator(context, startDate, endDate, diaryEntries, user)
+        }
+        creator.setTitle(title)
+        if (trendChart && title) {
+            creator.setTrendChart(service.getPainTrend(startDate, endDate))
+        }
+        return creator
+    }
+
+    private fun loadUser(context: Context, service: PainDiaryDatabaseService): UserInterface {
+        val userID = PrefManager(context).userID
+        return (if (userID == AbstractPersistentObject.INVALID_OBJECT_ID) null else service.getUserByID(userID)) ?: User()
+    }
+
+    companion object {
+        private const val FLAG_WEEKLY_SUMMARY = 1
+        private const val FLAG_TREND_CHART = 2
+
+        @JvmStatic
+        fun getAuthority(context: Context): String = context.packageName + ".export"
+
+        /**
+         * Reads a request from a URI created by [toUri], or returns null if the URI is not one.
+         */
+        @JvmStatic
+        fun fromUri(uri: Uri): ExportRequest? {
+            val segments = uri.pathSegments
+            if (segments.size != 5) return null
+            val format = ExportFormat.values().firstOrNull { it.name.lowercase(Locale.US) == segments[0] } ?: return null
+            val startDay = segments[1].toIntOrNull() ?: return null
+            val endDay = segments[2].toIntOrNull() ?: return null
+            val flags = segments[3].toIntOrNull() ?: return null
+            if (startDay > endDay) return null
+            return ExportRequest(
+                EpochDays.toDate(startDay),
+                EpochDays.toDate(endDay),
+                format,
+                (flags and FLAG_WEEKLY_SUMMARY) != 0,
+                (flags and FLAG_TREND_CHART) != 0
+            )
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.secuso.privacyfriendlypaindiary.export
+
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.UserInterface
+import java.io.Closeable
+import java.io.IOException
+import java.util.*
+
+/**
+ * Receives the diary entries of an export one at a time and writes them in
+ * one format, see [ExportPipeline]. A sink writes to an output stream that it
+ * flushes but never closes.
+ */
+interface ExportSink : Closeable {
+
+    @Throws(IOException::class)
+    fun begin(startDate: Date, endDate: Date, user: UserInterface)
+
+    /**
+     * Called for every entry of the time span, in order of their dates. The
+     * entry must not be kept after the call.
+     */
+    @Throws(IOException::class)
+    fun entry(diaryEntry: DiaryEntryInterface)
+
+    /**
+     * Completes the output after the last entry.
+     */
+    @Throws(IOException::class)
+    fun finish()
+
+    /**
+     * Releases resources; an output that has not been finished is incomplete.
+     */
+    override fun close() {
+    }
+}
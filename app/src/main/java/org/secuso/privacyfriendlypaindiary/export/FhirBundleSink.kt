@@ -0,0 +1,143 @@
+package org.secuso.privacyfriendlypaindiary.export
+
+import android.util.JsonWriter
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.UserInterface
+import java.io.OutputStream
+import java.io.OutputStreamWriter
+import java.text.SimpleDateFormat
+import java.util.*
+import kotlin.text.Charsets.UTF_8
+
+/**
+ * Writes the export as a FHIR (R4) collection bundle for clinic systems: a
+ * Patient with the user's details and, per diary entry, an Observation of the
+ * pain severity (LOINC 72514-3), an Observation of the condition and one
+ * MedicationStatement per drug intake. Resources refer to the patient by a
+ * bundle-local urn:uuid.
+ */
+class FhirBundleSink(out: OutputStream) : ExportSink {
+    private val writer = JsonWriter(OutputStreamWriter(out, UTF_8).buffered())
+    private val dateFormat = SimpleDateFormat("yyyy-MM-dd", Locale.US)
+    private val patient = "urn:uuid:" + UUID.randomUUID()
+
+    override fun begin(startDate: Date, endDate: Date, user: UserInterface) {
+        val timestampFormat = SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US)
+        timestampFormat.timeZone = TimeZone.getTimeZone("UTC")
+        writer.setIndent("")
+        writer.beginObject()
+        writer.name("resourceType").value("Bundle")
+        writer.name("type").value("collection")
+        writer.name("timestamp").value(timestampFormat.format(Date()))
+        writer.name("entry").beginArray()
+
+        beginEntry(patient, "Patient")
+        if (user.firstName != null || user.lastName != null) {
+            writer.name("name").beginArray().beginObject()
+            user.lastName?.let { writer.name("family").value(it) }
+            user.firstName?.let { writer.name("given").beginArray().value(it).endArray() }
+            writer.endObject().endArray()
+        }
+        user.gender?.let { writer.name("gender").value(it.name.lowercase(Locale.US)) }
+        user.dateOfBirth?.let { writer.name("birthDate").value(dateFormat.format(it)) }
+        endEntry()
+    }
+
+    override fun entry(diaryEntry: DiaryEntryInterface) {
+        val date = dateFormat.format(diaryEntry.date)
+        diaryEntry.painDescription?.let { painDescription ->
+            beginObservation()
+            writer.name("code").beginObject()
+            writer.name("coding").beginArray().beginObject()
+            writer.name("system").value(LOINC)
+            writer.name("code").value(PAIN_SEVERITY_CODE)
+            writer.name("display").value(PAIN_SEVERITY_DISPLAY)
+            writer.endObject().endArray()
+            writer.endObject()
+            writeSubjectAndDate(date)
+            writer.name("valueInteger").value(painDescription.painLevel.toLong())
+            val bodyRegions = painDescription.bodyRegions
+            if (!bodyRegions.isNullOrEmpty()) {
+                writer.name("bodySite").beginObject()
+                writer.name("text").value(bodyRegions.joinToString(", ") { it.name.lowercase(Locale.US) })
+                writer.endObject()
+            }
+            val details = listOfNotNull(
+                painDescription.painQualities?.takeIf { it.isNotEmpty() }?.joinToString(", "),
+                painDescription.timesOfPain?.takeIf { it.isNotEmpty() }?.joinToString(", "),
+                diaryEntry.notes?.takeIf { it.isNotEmpty() }
+            )
+            if (details.isNotEmpty()) {
+                writer.name("note").beginArray()
+                for (detail in details) {
+                    writer.beginObject().name("text").value(detail).endObject()
+                }
+                writer.endArray()
+            }
+            endEntry()
+        }
+        diaryEntry.condition?.let { condition ->
+            beginObservation()
+            writer.name("code").beginObject().name("text").value(CONDITION_TEXT).endObject()
+            writeSubjectAndDate(date)
+            writer.name("valueInteger").value(condition.value.toLong())
+            endEntry()
+        }
+        for (intake in diaryEntry.drugIntakes.sortedBy { it.drug.name }) {
+            beginEntry("urn:uuid:" + UUID.randomUUID(), "MedicationStatement")
+            writer.name("status").value("completed")
+            writer.name("medicationCodeableConcept").beginObject()
+            writer.name("text").value(listOfNotNull(intake.drug.name, intake.drug.dose).joinToString(" "))
+            writer.endObject()
+            writeSubjectAndDate(date)
+            writer.name("dosage").beginArray().beginObject()
+            writer.name("text").value(
+                "${intake.quantityMorning}-${intake.quantityNoon}-${intake.quantityEvening}-${intake.quantityNight}"
+            )
+            writer.endObject().endArray()
+            endEntry()
+        }
+    }
+
+    override fun finish() {
+        writer.endArray()
+        writer.endObject()
+        writer.flush()
+    }
+
+    private fun beginEntry(fullUrl: String, resourceType: String) {
+        writer.beginObject()
+        writer.name("fullUrl").value(fullUrl)
+        writer.name("resource").beginObject()
+        writer.name("resourceType").value(resourceType)
+    }
+
+    private fun endEntry() {
+        writer.endObject()
+        writer.endObject()
+    }
+
+    private fun beginObservation() {
+        beginEntry("urn:uuid:" + UUID.randomUUID(), "Observation")
+        writer.name("status").value("final")
+        writer.name("category").beginArray().beginObject()
+        writer.name("coding").beginArray().beginObject()
+        writer.name("system").value(OBSERVATION_CATEGORY)
+        writer.name("code").value("survey")
+        writer.endObject().endArray()
+        writer.endObject().endArray()
+    }
+
+    private fun writeSubjectAndDate(date: String) {
+        writer.name("subject").beginObject().name("reference").value(patient).endObject()
+        writer.name("effectiveDateTime").value(date)
+    }
+
+    companion object {
+        private const val LOINC = "http://loinc.org"
+        private const val OBSERVATION_CATEGORY = "http://terminology.hl7.org/CodeSystem/observation-category"
+        private const val PAIN_SEVERITY_CODE = "72514-3"
+        private const val PAIN_SEVERITY_DISPLAY = "Pain severity - 0-10 verbal numeric rating [Score] - Reported"
+        private const val CONDITION_TEXT = "Overall condition (0 = very bad, 4 = very good)"
+    }
+}
@@ -0,0 +1,71 @@
+package org.secuso.privacyfriendlypaindiary.export
+
+import android.util.JsonWriter
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.UserInterface
+import java.io.OutputStream
+import java.io.OutputStreamWriter
+import java.text.SimpleDateFormat
+import java.util.*
+import kotlin.text.Charsets.UTF_8
+
+/**
+ * Writes the export as a JSON object with the user and an array of the
+ * diary entries. Entries are written as they arrive.
+ */
+class JsonExportSink(out: OutputStream) : ExportSink {
+    private val writer = JsonWriter(OutputStreamWriter(out, UTF_8).buffered())
+    private val dateFormat = SimpleDateFormat("yyyy-MM-dd", Locale.US)
+
+    override fun begin(startDate: Date, endDate: Date, user: UserInterface) {
+        writer.setIndent("")
+        writer.beginObject()
+        writer.name("startDate").value(dateFormat.format(startDate))
+        writer.name("endDate").value(dateFormat.format(endDate))
+        writer.name("user").beginObject()
+        writer.name("firstName").value(user.firstName)
+        writer.name("lastName").value(user.lastName)
+        writer.name("dateOfBirth").value(user.dateOfBirth?.let { dateFormat.format(it) })
+        writer.name("gender").value(user.gender?.name?.lowercase(Locale.US))
+        writer.endObject()
+        writer.name("entries").beginArray()
+    }
+
+    override fun entry(diaryEntry: DiaryEntryInterface) {
+        writer.beginObject()
+        writer.name("date").value(dateFormat.format(diaryEntry.date))
+        writer.name("condition").value(diaryEntry.condition?.value)
+        diaryEntry.painDescription?.let { painDescription ->
+            writer.name("painLevel").value(painDescription.painLevel.toLong())
+            writer.name("bodyRegions").beginArray()
+            painDescription.bodyRegions?.forEach { writer.value(it.name.lowercase(Locale.US)) }
+            writer.endArray()
+            writer.name("painQualities").beginArray()
+            painDescription.painQualities?.forEach { writer.value(it.toString()) }
+            writer.endArray()
+            writer.name("timesOfPain").beginArray()
+            painDescription.timesOfPain?.forEach { writer.value(it.toString()) }
+            writer.endArray()
+        }
+        writer.name("medication").beginArray()
+        for (intake in diaryEntry.drugIntakes.sortedBy { it.drug.name }) {
+            writer.beginObject()
+            writer.name("name").value(intake.drug.name)
+            writer.name("dose").value(intake.drug.dose)
+            writer.name("morning").value(intake.quantityMorning.toLong())
+            writer.name("noon").value(intake.quantityNoon.toLong())
+            writer.name("evening").value(intake.quantityEvening.toLong())
+            writer.name("night").value(intake.quantityNight.toLong())
+            writer.endObject()
+        }
+        writer.endArray()
+        writer.name("notes").value(diaryEntry.notes)
+        writer.endObject()
+    }
+
+    override fun finish() {
+        writer.endArray()
+        writer.endObject()
+        writer.flush()
+    }
+}
@@ -0,0 +1,76 @@
+package org.secuso.privacyfriendlypaindiary.export
+
+import android.content.Context
+import org.secuso.privacyfriendlypaindiary.database.PainTrend
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.UserInterface
+import org.secuso.privacyfriendlypaindiary.helpers.PdfCreator
+import java.io.OutputStream
+import java.util.*
+
+/**
+ * Writes the PDF report of [PdfCreator] from a stream of entries.
+ *
+ * Entries are collected until the month changes; then the month is laid out
+ * by a [PdfCreator] of its own and its pages are written to a
+ * [StreamingPdfDocument] that spans the whole export. Only the title is drawn
+ * by the creator of the first month. Since every month starts on a new page
+ * anyway, the result looks like a document created for all entries at once,
+ * while at most one month of entries is held in memory.
+ *
+ * @param trend data for the chart on the first page, or null for none
+ */
+class PdfExportSink(
+    private val context: Context,
+    out: OutputStream,
+    private val trend: PainTrend? = null
+) : ExportSink {
+    private val document = StreamingPdfDocument(out)
+    private val calendar = Calendar.getInstance()
+    private val monthEntries = ArrayList<DiaryEntryInterface>()
+    private var month = -1
+    private var titleWritten = false
+    private lateinit var startDate: Date
+    private lateinit var endDate: Date
+    private lateinit var user: UserInterface
+
+    override fun begin(startDate: Date, endDate: Date, user: UserInterface) {
+        this.startDate = startDate
+        this.endDate = endDate
+        this.user = user
+    }
+
+    override fun entry(diaryEntry: DiaryEntryInterface) {
+        calendar.time = diaryEntry.date
+        val entryMonth = calendar[Calendar.YEAR] * 12 + calendar[Calendar.MONTH]
+        if (entryMonth != month && monthEntries.isNotEmpty()) {
+            writeMonth()
+        }
+        month = entryMonth
+        monthEntries.add(diaryEntry)
+    }
+
+    override fun finish() {
+        if (monthEntries.isNotEmpty() || !titleWritten) {
+            writeMonth()
+        }
+        document.finish()
+    }
+
+    override fun close() {
+        document.close()
+    }
+
+    private fun writeMonth() {
+        val creator = PdfCreator(context, startDate, endDate, ArrayList(monthEntries), user)
+        creator.setTitle(!titleWritten)
+        if (!titleWritten) {
+            creator.setTrendChart(trend)
+        }
+        for (section in 0 until creator.sectionCount) {
+            creator.writeSection(section, document)
+        }
+        titleWritten = true
+        monthEntries.clear()
+    }
+}
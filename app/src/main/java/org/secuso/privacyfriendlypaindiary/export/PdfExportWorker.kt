@@ -0,0 +1,323 @@
+package org.secuso.privacyfriendlypaindiary.export
+
+import android.app.Notification
+import android.content.Context
+import android.graphics.drawable.Icon
+import android.net.Uri
+import android.os.Build
+import android.provider.DocumentsContract
+import android.util.Log
+import androidx.work.*
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.withContext
+import org.secuso.privacyfriendlypaindiary.R
+import org.secuso.privacyfriendlypaindiary.database.DatabaseScheduler
+import org.secuso.privacyfriendlypaindiary.helpers.NotificationHelper
+import org.secuso.privacyfriendlypaindiary.helpers.PdfCreator
+import java.io.*
+import java.util.*
+import kotlin.coroutines.coroutineContext
+
+/**
+ * Renders the PDF export of a time span in the background.
+ *
+ * The document is streamed into a file in the cache directory (see
+ * [StreamingPdfDocument]) one calendar month at a time: the entries of a month are loaded, drawn and
+ * dropped before the next month is loaded, so memory use does not depend on
+ * the length of the time span. The weekly summary is a single table of one
+ * row per week and rendered as a whole.
+ * Months that have been rendered by an earlier export and not changed since
+ * are taken from the [PdfSegmentCache] instead; newly rendered months are
+ * added to it. After every month the written pages are synced to disk and
+ * the number of finished months is stored together with the content keys of
+ * their pages and the writer state as a checkpoint next to it.
+ * A job that is stopped (or whose process dies) truncates the file to the
+ * last checkpoint and continues from there when it is run again. If the
+ * entries of the finished months changed in the meantime, the export starts
+ * over. Only the finished file is copied to the target document, usually one
+ * chosen through the Storage Access Framework, so the target never holds a
+ * partial report. An export that fails or is cancelled deletes the target
+ * document.
+ */
+class PdfExportWorker(context: Context, params: WorkerParameters) : CoroutineWorker(context, params) {
+
+    private class Checkpoint(val months: Int, val keys: List<String>, val state: PdfSplicer.State)
+
+    override suspend fun doWork(): Result {
+        val startDate = Date(inputData.getLong(KEY_START_DATE, 0))
+        val endDate = Date(inputData.getLong(KEY_END_DATE, 0))
+        val target = Uri.parse(inputData.getString(KEY_OUTPUT_URI) ?: return Result.failure())
+        val exportDirectory = File(applicationContext.cacheDir, EXPORT_DIRECTORY)
+        val checkpoints = File(exportDirectory, id.toString())
+        exportDirectory.listFiles()?.filter { it != checkpoints }?.forEach { it.deleteRecursively() }
+
+        val notificationHelper = NotificationHelper(applicationContext)
+        try {
+            val request = ExportRequest(
+                startDate, endDate, ExportFormat.PDF,
+                inputData.getBoolean(KEY_WEEKLY_SUMMARY, false),
+                inputData.getBoolean(KEY_TREND_CHART, false)
+            )
+            // the weekly summary is a single table, the entries are rendered month by month
+            val months = if (request.weeklySummary) listOf(Pair(startDate, endDate)) else request.getMonths()
+            val segmentCache = PdfSegmentCache.getInstance(applicationContext)
+
+            val fingerprint = "${startDate.time}:${endDate.time}:${request.weeklySummary}:${request.trendChart}"
+            val output = File(checkpoints, OUTPUT_FILE)
+            val checkpoint = readCheckpoint(checkpoints, fingerprint, output.length())
+                ?.takeIf { isCurrent(request, months, it) }
+            if (checkpoint == null) {
+                checkpoints.deleteRecursively()
+                if (!checkpoints.mkdirs()) throw IOException("Cannot create $checkpoints")
+                File(checkpoints, FINGERPRINT_FILE).writeText(fingerprint)
+            }
+            FileOutputStream(output, true).use { file ->
+                file.channel.truncate(checkpoint?.state?.size ?: 0L)
+                val keys = ArrayList(checkpoint?.keys ?: emptyList())
+                val out = file.buffered()
+                StreamingPdfDocument(out, checkpoint?.state).use { document ->
+                    for (index in (checkpoint?.months ?: 0) until months.size) {
+                        coroutineContext.ensureActive()
+                        val title = keys.isEmpty()
+                        val creator = createCreator(request, months, index, title)
+                        if (creator != null) {
+                            val key = creator.getSectionKey(0)
+                            val month = creator.getSectionMonth(0)
+                            if (title || month == null) {
+                                // the title depends on the whole export
+                                for (section in 0 until creator.sectionCount) {
+                                    creator.writeSection(section, document)
+                                }
+                            } else {
+                                val pdf = segmentCache.get(month, key)?.let { readSegment(it) }
+                                    ?: renderSection(creator, 0).let { (pdf, pages) ->
+                                        segmentCache.put(month, key, pdf, pages)
+                                        pdf
+                                    }
+                                document.appendDocument(pdf)
+                            }
+                            keys.add(key)
+                        }
+                        val state = document.flush()
+                        file.fd.sync()
+                        writeAtomically(File(checkpoints, CHECKPOINT_FILE)) { checkpointOut ->
+                            val data = DataOutputStream(checkpointOut)
+                            data.writeInt(index + 1)
+                            data.writeInt(keys.size)
+                            keys.forEach { data.writeUTF(it) }
+                            state.write(data)
+                            data.flush()
+                        }
+                        showProgress(notificationHelper, index + 1, months.size)
+                        setProgress(workDataOf(KEY_PROGRESS to index + 1, KEY_TOTAL to months.size))
+                    }
+                    document.finish()
+                    file.fd.sync()
+                }
+            }
+
+            val targetOut = applicationContext.contentResolver.openOutputStream(target, "wt")
+                ?: throw IOException("Cannot open $target")
+            targetOut.use { out -> output.inputStream().use { it.copyTo(out) } }
+            checkpoints.deleteRecursively()
+            return Result.success(workDataOf(KEY_OUTPUT_URI to target.toString()))
+        } catch (e: CancellationException) {
+            // a job that is only stopped keeps its checkpoints to resume from
+            withContext(NonCancellable) {
+                if (WorkManager.getInstance(applicationContext).getWorkInfoById(id).await()?.state == WorkInfo.State.CANCELLED) {
+                    checkpoints.deleteRecursively()
+                    deleteDocument(applicationContext, target)
+                }
+            }
+            throw e
+        } catch (e: Exception) {
+            Log.e(TAG, "PDF export failed", e)
+            checkpoints.deleteRecursively()
+            deleteDocument(applicationContext, target)
+            return Result.failure()
+        } finally {
+            notificationHelper.cancel(NOTIFICATION_ID)
+        }
+    }
+
+    /**
+     * Loads the entries of a month, or the weekly summary, into a creator of
+     * its own. A month without entries is left out, unless it is the last one
+     * and no title has been written yet, so an export without any entries
+     * still gets its title.
+     *
+     * @param title whether the month starts the report
+     */
+    private suspend fun createCreator(request: ExportRequest, months: List<Pair<Date, Date>>, index: Int, title: Boolean): PdfCreator? {
+        val (from, to) = months[index]
+        val creator = withContext(DatabaseScheduler.bulk) { request.createPdfCreator(applicationContext, from, to, title) }
+        val empty = !request.weeklySummary && creator.getSectionMonth(0) == null
+        return if (empty && !(title && index == months.lastIndex)) null else creator
+    }
+
+    /**
+     * Tells whether the months finished up to the checkpoint still have the
+     * content they were written with. The months are loaded again one at a
+     * time, only to compare the keys of their content.
+     */
+    private suspend fun isCurrent(request: ExportRequest, months: List<Pair<Date, Date>>, checkpoint: Checkpoint): Boolean {
+        if (checkpoint.months > months.size) return false
+        val keys = ArrayList<String>()
+        for (index in 0 until checkpoint.months) {
+            createCreator(request, months, index, keys.isEmpty())?.let { keys.add(it.getSectionKey(0)) }
+        }
+        return keys == checkpoint.keys
+    }
+
+    /**
+     * Renders a month into a PDF of its own.
+     *
+     * @return the PDF and its number of pages
+     */
+    @Throws(IOException::class)
+    private fun renderSection(creator: PdfCreator, section: Int): Pair<ByteArray, Int> {
+        val out = ByteArrayOutputStream()
+        StreamingPdfDocument(out).use { document ->
+            creator.writeSection(section, document)
+            document.finish()
+            return Pair(out.toByteArray(), document.writtenPages)
+        }
+    }
+
+    /**
+     * Reads a cached month, or returns null if it has been invalidated in the meantime.
+     */
+    private fun readSegment(segment: PdfSegmentCache.Segment): ByteArray? {
+        return try {
+            segment.file.readBytes()
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    /**
+     * Returns the last checkpoint if it belongs to the given export and the
+     * output file, of the given size, still contains everything written up to it.
+     */
+    private fun readCheckpoint(checkpoints: File, fingerprint: String, outputSize: Long): Checkpoint? {
+        val fingerprintFile = File(checkpoints, FINGERPRINT_FILE)
+        val checkpointFile = File(checkpoints, CHECKPOINT_FILE)
+        if (!fingerprintFile.exists() || fingerprintFile.readText() != fingerprint || !checkpointFile.exists()) {
+            return null
+        }
+        return try {
+            DataInputStream(checkpointFile.inputStream().buffered()).use { input ->
+                val months = input.readInt()
+                val keys = List(input.readInt()) { input.readUTF() }
+                val checkpoint = Checkpoint(months, keys, PdfSplicer.State.read(input))
+                if (outputSize >= checkpoint.state.size) checkpoint else null
+            }
+        } catch (e: IOException) {
+            Log.w(TAG, "Discarding unreadable checkpoint", e)
+            null
+        }
+    }
+
+    private fun showProgress(notificationHelper: NotificationHelper, progress: Int, total: Int) {
+        val cancelIntent = WorkManager.getInstance(applicationContext).createCancelPendingIntent(id)
+        val title = applicationContext.getString(R.string.export_in_progress)
+        val cancel = applicationContext.getString(R.string.cancel)
+        val action = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Notification.Action.Builder(
+                Icon.createWithResource(applicationContext, R.drawable.ic_close), cancel, cancelIntent
+            ).build()
+        } else {
+            Notification.Action.Builder(R.drawable.ic_close, cancel, cancelIntent).build()
+        }
+        val builder = notificationHelper.getProgressNotificationBuilder(title)
+            .setContentText(applicationContext.getString(R.string.export_progress, progress, total))
+            .setProgress(total, progress, false)
+            .setOngoing(true)
+            .addAction(action)
+        notificationHelper.notify(NOTIFICATION_ID, builder)
+    }
+
+    companion object {
+        private val TAG = PdfExportWorker::class.java.simpleName
+        private const val UNIQUE_WORK_NAME = "pdf_export"
+        private const val EXPORT_DIRECTORY = "export"
+        private const val FINGERPRINT_FILE = "fingerprint"
+        private const val CHECKPOINT_FILE = "checkpoint"
+        private const val OUTPUT_FILE = "report.pdf"
+        private const val NOTIFICATION_ID = 43
+
+        const val KEY_START_DATE = "start_date"
+        const val KEY_END_DATE = "end_date"
+        const val KEY_OUTPUT_URI = "output_uri"
+        const val KEY_WEEKLY_SUMMARY = "weekly_summary"
+        const val KEY_TREND_CHART = "trend_chart"
+        const val KEY_PROGRESS = "progress"
+        const val KEY_TOTAL = "total"
+
+        /**
+         * Starts the export of the given time span into the given document, which
+         * must be writable. A running export is cancelled.
+         *
+         * @param weeklySummary whether to export one table row per week instead of the single entries
+         * @param trendChart whether to add a chart of pain level and condition to the first page
+         * @return the ID of the work request, to observe its state
+         */
+        @JvmStatic
+        fun enqueue(context: Context, startDate: Date, endDate: Date, target: Uri, weeklySummary: Boolean, trendChart: Boolean): UUID {
+            val request = OneTimeWorkRequestBuilder<PdfExportWorker>()
+                .setInputData(
+                    workDataOf(
+                        KEY_START_DATE to startDate.time,
+                        KEY_END_DATE to endDate.time,
+                        KEY_OUTPUT_URI to target.toString(),
+                        KEY_WEEKLY_SUMMARY to weeklySummary,
+                        KEY_TREND_CHART to trendChart
+                    )
+                )
+                .build()
+            WorkManager.getInstance(context)
+                .enqueueUniqueWork(UNIQUE_WORK_NAME, ExistingWorkPolicy.REPLACE, request)
+            return request.id
+        }
+
+        /**
+         * Deletes a document that could not be written completely.
+         */
+        @JvmStatic
+        fun deleteDocument(context: Context, document: Uri) {
+            try {
+                if (DocumentsContract.isDocumentUri(context, document)) {
+                    DocumentsContract.deleteDocument(context.contentResolver, document)
+                } else {
+                    context.contentResolver.delete(document, null, null)
+                }
+            } catch (e: Exception) {
+                Log.w(TAG, "Cannot delete $document", e)
+            }
+        }
+
+        /**
+         * Writes to a temporary file next to the given file and renames it
+         * once everything has been written, so the file is either complete or absent.
+         */
+        @Throws(IOException::class)
+        private inline fun writeAtomically(file: File, write: (OutputStream) -> Unit) {
+            val temporary = File(file.parentFile, file.name + ".tmp")
+            try {
+                FileOutputStream(temporary).use { out ->
+                    val buffered = out.buffered()
+                    write(buffered)
+                    buffered.flush()
+                    out.fd.sync()
+                }
+                if (!temporary.renameTo(file)) {
+                    throw IOException("Cannot rename $temporary to $file")
+                }
+            } finally {
+                temporary.delete()
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package org.secuso.privacyfriendlypaindiary.export
+
+import android.graphics.Bitmap
+import android.graphics.Color
+import android.graphics.pdf.PdfRenderer
+import android.os.Handler
+import android.os.Looper
+import android.os.ParcelFileDescriptor
+import android.util.LruCache
+import java.io.Closeable
+import java.io.File
+import java.util.*
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+/**
+ * Renders the pages of a PDF file into bitmaps for display, on demand and one
+ * page at a time on a background thread.
+ *
+ * Pages are rendered at the width they are shown at, not at full resolution.
+ * Since the reports have a single page format, all bitmaps have the same size
+ * and are interchangeable: rendered pages are kept in an LRU cache bounded in
+ * bytes, and the bitmaps of pages evicted from it go to a small pool that new
+ * pages are rendered into instead of allocating. Bitmaps of pages that are
+ * shown are never reused.
+ *
+ * Apart from the constructor, all methods must be called on the main thread.
+ *
+ * @param maxCacheBytes size limit of the page cache
+ */
+class PdfPreviewRenderer(file: File, maxCacheBytes: Int) : Closeable {
+
+    /**
+     * Notified on the main thread when a requested page has been rendered.
+     */
+    fun interface Listener {
+        fun onPageRendered(page: Int)
+    }
+
+    private class PendingPage(val future: Future<*>, val bitmap: Bitmap)
+
+    private val descriptor = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY)
+    private val renderer = PdfRenderer(descriptor)
+    private val executor: ExecutorService = Executors.newSingleThreadExecutor()
+    private val mainHandler = Handler(Looper.getMainLooper())
+    // height of a page in relation to its width
+    private val aspectRatio: Float
+
+    val pageCount: Int = renderer.pageCount
+    var listener: Listener? = null
+    private var width = 0
+
+    /**
+     * The height of the rendered pages, in pixels.
+     */
+    val pageHeight: Int
+        get() = Math.round(width * aspectRatio)
+
+    // number of views showing each page
+    private val shown = HashMap<Int, Int>()
+    private val pending = HashMap<Int, PendingPage>()
+    private val pool = ArrayDeque<Bitmap>(POOL_SIZE)
+    private var closed = false
+    private val cache = object : LruCache<Int, Bitmap>(maxCacheBytes) {
+        override fun sizeOf(key: Int, value: Bitmap): Int = value.byteCount
+
+        override fun entryRemoved(evicted: Boolean, key: Int, oldValue: Bitmap, newValue: Bitmap?) {
+            if (!shown.containsKey(key)) {
+                release(oldValue)
+            }
+        }
+    }
+
+    init {
+        aspectRatio = if (pageCount == 0) 1f else renderer.openPage(0).use { page ->
+            page.height.toFloat() / page.width
+        }
+    }
+
+    /**
+     * Sets the width pages are rendered at. Changing it discards all rendered pages.
+     */
+    fun setPageWidth(width: Int) {
+        if (width == this.width || width <= 0) return
+        this.width = width
+        pending.keys.toList().forEach { cancel(it) }
+        pool.clear()
+        cache.evictAll()
+    }
+
+    /**
+     * Marks the page as shown and returns it if it has been rendered.
+     * Otherwise it is rendered in the background and the [listener] is
+     * notified, unless the page has been hidden in the meantime.
+     */
+    fun show(page: Int): Bitmap? {
+        shown[page] = (shown[page] ?: 0) + 1
+        cache.get(page)?.let { return it }
+        if (!pending.containsKey(page) && !closed && width > 0) {
+            val bitmap = pool.poll() ?: Bitmap.createBitmap(width, pageHeight, Bitmap.Config.ARGB_8888)
+            val future = executor.submit {
+                renderer.openPage(page).use { pdfPage ->
+                    bitmap.eraseColor(Color.WHITE)
+                    pdfPage.render(bitmap, null, null, PdfRenderer.Page.RENDER_MODE_FOR_DISPLAY)
+                }
+                mainHandler.post { onRendered(page, bitmap) }
+            }
+            pending[page] = PendingPage(future, bitmap)
+        }
+        return null
+    }
+
+    /**
+     * Marks the page as no longer shown by one view. Pages that are not
+     * shown at all are no longer rendered.
+     */
+    fun hide(page: Int) {
+        val count = shown[page] ?: return
+        if (count > 1) {
+            shown[page] = count - 1
+            return
+        }
+        shown.remove(page)
+        cancel(page)
+    }
+
+    private fun onRendered(page: Int, bitmap: Bitmap) {
+        if (pending[page]?.bitmap !== bitmap || closed) return
+        pending.remove(page)
+        if (bitmap.width != width) {
+            // rendered for an earlier width
+            return
+        }
+        cache.put(page, bitmap)
+        if (shown.containsKey(page)) {
+            listener?.onPageRendered(page)
+        }
+    }
+
+    private fun cancel(page: Int) {
+        val pendingPage = pending[page] ?: return
+        if (pendingPage.future.cancel(false)) {
+            pending.remove(page)
+            release(pendingPage.bitmap)
+        }
+    }
+
+    private fun release(bitmap: Bitmap) {
+        if (bitmap.width == width && bitmap.height == pageHeight && pool.size < POOL_SIZE) {
+            pool.add(bitmap)
+        }
+    }
+
+    /**
+     * Releases all pages. The renderer is closed once the page being
+     * rendered, if any, is finished.
+     */
+    override fun close() {
+        if (closed) return
+        closed = true
+        pending.values.forEach { it.future.cancel(false) }
+        pending.clear()
+        shown.clear()
+        cache.evictAll()
+        pool.clear()
+        executor.execute {
+            renderer.close()
+            descriptor.close()
+        }
+        executor.shutdown()
+    }
+
+    companion object {
+        private const val POOL_SIZE = 4
+    }
+}
@@ -0,0 +1,115 @@
+package org.secuso.privacyfriendlypaindiary.export
+
+import android.content.Context
+import android.util.Log
+import org.secuso.privacyfriendlypaindiary.helpers.PdfCreator
+import java.io.File
+import java.io.IOException
+import java.text.SimpleDateFormat
+import java.util.*
+
+/**
+ * Disk cache for the rendered pages of single months of the PDF export.
+ *
+ * Every segment is a complete PDF named after its month, the key of its
+ * content (see [PdfCreator.getSectionKey]) and its number of pages, so an
+ * export can splice it in instead of rendering the month again. Lookups mark
+ * a segment as recently used; once the cache grows beyond [MAX_BYTES] the
+ * least recently used segments are deleted. The database service removes the
+ * segments of a month whenever one of its entries is saved or deleted.
+ */
+class PdfSegmentCache private constructor(private val directory: File) {
+
+    class Segment(val file: File, val pages: Int)
+
+    /**
+     * Returns the segment of the given month with the given content key, if cached.
+     */
+    @Synchronized
+    fun get(month: String, key: String): Segment? {
+        val prefix = "${month}_${key}_"
+        val file = segments().firstOrNull { it.name.startsWith(prefix) } ?: return null
+        val pages = file.name.removePrefix(prefix).removeSuffix(SUFFIX).toIntOrNull() ?: return null
+        file.setLastModified(System.currentTimeMillis())
+        return Segment(file, pages)
+    }
+
+    /**
+     * Stores a rendered month. Failures are logged, as the cache is optional.
+     */
+    fun put(month: String, key: String, pdf: ByteArray, pages: Int) {
+        try {
+            if (!directory.isDirectory && !directory.mkdirs()) throw IOException("Cannot create $directory")
+            // written outside of the lock; a segment invalidated meanwhile is
+            // never looked up again, as its key no longer matches the content
+            val temporary = File.createTempFile("segment", ".tmp", directory)
+            try {
+                temporary.writeBytes(pdf)
+                synchronized(this) {
+                    val file = File(directory, "${month}_${key}_$pages$SUFFIX")
+                    if (!temporary.renameTo(file)) throw IOException("Cannot rename $temporary to $file")
+                    trim(file)
+                }
+            } finally {
+                temporary.delete()
+            }
+        } catch (e: IOException) {
+            Log.w(TAG, "Cannot cache the pages of $month", e)
+        }
+    }
+
+    /**
+     * Removes the segments of the month containing the given date.
+     */
+    @Synchronized
+    fun invalidateMonth(date: Date) {
+        val prefix = monthOf(date) + "_"
+        segments().filter { it.name.startsWith(prefix) }.forEach { it.delete() }
+    }
+
+    @Synchronized
+    fun clear() {
+        segments().forEach { it.delete() }
+    }
+
+    private fun segments(): List<File> =
+        directory.listFiles { _, name -> name.endsWith(SUFFIX) }?.toList() ?: emptyList()
+
+    /**
+     * Deletes the least recently used segments (except the given one) until
+     * the cache fits into [MAX_BYTES].
+     */
+    private fun trim(keep: File) {
+        val segments = segments().sortedBy { it.lastModified() }
+        var size = segments.sumOf { it.length() }
+        for (segment in segments) {
+            if (size <= MAX_BYTES) break
+            if (segment != keep) {
+                size -= segment.length()
+                segment.delete()
+            }
+        }
+    }
+
+    companion object {
+        private val TAG = PdfSegmentCache::class.java.simpleName
+        private const val DIRECTORY = "pdf_segments"
+        private const val SUFFIX = ".pdf"
+        const val MAX_BYTES = 16L * 1024 * 1024
+
+        @Volatile
+        private var instance: PdfSegmentCache? = null
+
+        @JvmStatic
+        fun getInstance(context: Context): PdfSegmentCache =
+            instance ?: synchronized(this) {
+                instance ?: PdfSegmentCache(File(context.applicationContext.cacheDir, DIRECTORY)).also { instance = it }
+            }
+
+        /**
+         * Returns the month of the given date as used by [PdfCreator.getSectionMonth].
+         */
+        @JvmStatic
+        fun monthOf(date: Date): String = SimpleDateFormat("yyyy-MM", Locale.US).format(date)
+    }
+}
@@ -0,0 +1,255 @@
+package org.secuso.privacyfriendlypaindiary.export
+
+import org.secuso.privacyfriendlypaindiary.helpers.CountingOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.util.*
+import kotlin.text.Charsets.ISO_8859_1
+
+/**
+ * Concatenates complete PDF files, as written by [android.graphics.pdf.PdfDocument],
+ * into one PDF document.
+ *
+ * The objects of every part are copied with new object numbers; stream data
+ * is copied verbatim. The page tree root of every part becomes a child of one
+ * common page tree root, so parts may contain any number of pages. The catalog
+ * and info dictionaries of the parts are dropped.
+ *
+ * Every part is written as soon as it is appended; only the object offsets and
+ * the page tree roots are kept until [finish] writes the cross-reference table.
+ * That bookkeeping can be saved with [state] and passed to a new splicer, which
+ * continues the same document on an output positioned at [State.size].
+ */
+class PdfSplicer @JvmOverloads constructor(out: OutputStream, state: State? = null) {
+    private val out = CountingOutputStream(out, state?.size ?: 0L)
+    private val offsets = ArrayList<Long>()
+    private val pageTrees = ArrayList<Int>()
+    private var pageCount = state?.pageCount ?: 0
+    private var finished = false
+
+    init {
+        if (state == null) {
+            write(HEADER)
+            // object numbers of the common page tree root and the catalog
+            offsets.add(UNWRITTEN)
+            offsets.add(UNWRITTEN)
+        } else {
+            state.offsets.forEach { offsets.add(it) }
+            state.pageTrees.forEach { pageTrees.add(it) }
+        }
+    }
+
+    /**
+     * Everything needed to continue a document after the parts appended so far.
+     */
+    class State(
+        val size: Long,
+        val offsets: LongArray,
+        val pageTrees: IntArray,
+        val pageCount: Int
+    ) {
+        @Throws(IOException::class)
+        fun write(out: DataOutputStream) {
+            out.writeLong(size)
+            out.writeInt(pageCount)
+            out.writeInt(offsets.size)
+            offsets.forEach { out.writeLong(it) }
+            out.writeInt(pageTrees.size)
+            pageTrees.forEach { out.writeInt(it) }
+        }
+
+        companion object {
+            @JvmStatic
+            @Throws(IOException::class)
+            fun read(input: DataInputStream): State {
+                val size = input.readLong()
+                val pageCount = input.readInt()
+                val offsets = LongArray(input.readInt()) { input.readLong() }
+                val pageTrees = IntArray(input.readInt()) { input.readInt() }
+                return State(size, offsets, pageTrees, pageCount)
+            }
+        }
+    }
+
+    /**
+     * Number of bytes written so far.
+     */
+    val size: Long
+        get() = out.count
+
+    /**
+     * Number of pages appended so far.
+     */
+    val pages: Int
+        get() = pageCount
+
+    fun state(): State = State(out.count, offsets.toLongArray(), pageTrees.toIntArray(), pageCount)
+
+    /**
+     * Appends all pages of the PDF file contained in the first [length] bytes of the given array.
+     *
+     * @return the number of pages appended
+     */
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun append(pdf: ByteArray, length: Int = pdf.size): Int {
+        check(!finished) { "Splicer already finished" }
+        val text = String(pdf, 0, length, ISO_8859_1)
+        val trailer = text.lastIndexOf("trailer")
+        if (trailer < 0) throw IOException("No trailer found")
+        val catalog = find(REFERENCE_ROOT, text, trailer) ?: throw IOException("No catalog found")
+        val info = find(REFERENCE_INFO, text, trailer)
+
+        val objects = readObjects(pdf, text)
+        val catalogObject = objects[catalog] ?: throw IOException("Catalog $catalog missing")
+        val pageTree = find(REFERENCE_PAGES, catalogObject.dictionary(text), 0)
+            ?: throw IOException("No page tree found")
+        val pageTreeObject = objects[pageTree] ?: throw IOException("Page tree $pageTree missing")
+        val pages = find(COUNT, pageTreeObject.dictionary(text), 0) ?: 0
+
+        val numbers = HashMap<Int, Int>()
+        for (number in objects.keys.sorted()) {
+            if (number != catalog && number != info) {
+                numbers[number] = offsets.size + 1 + numbers.size
+            }
+        }
+        for (number in objects.keys.sorted()) {
+            val newNumber = numbers[number] ?: continue
+            offsets.add(out.count)
+            val obj = objects.getValue(number)
+            var dictionary = renumber(obj.dictionary(text), numbers)
+            if (number == pageTree) {
+                dictionary = dictionary.replaceFirst("<<", "<</Parent $PAGE_TREE_ROOT 0 R ")
+            }
+            write("$newNumber 0 obj\n")
+            write(dictionary.trim())
+            if (obj.streamStart >= 0) {
+                write("\nstream\n")
+                out.write(pdf, obj.streamStart, obj.streamLength)
+                write("\nendstream")
+            }
+            write("\nendobj\n")
+        }
+        pageTrees.add(numbers.getValue(pageTree))
+        pageCount += pages
+        return pages
+    }
+
+    /**
+     * Writes the common page tree, the catalog and the cross-reference table.
+     * The underlying stream is flushed but not closed.
+     */
+    @Throws(IOException::class)
+    fun finish() {
+        check(!finished) { "Splicer already finished" }
+        finished = true
+        offsets[PAGE_TREE_ROOT - 1] = out.count
+        write("$PAGE_TREE_ROOT 0 obj\n<</Type /Pages /Kids [")
+        write(pageTrees.joinToString(" ") { "$it 0 R" })
+        write("] /Count $pageCount>>\nendobj\n")
+        offsets[CATALOG - 1] = out.count
+        write("$CATALOG 0 obj\n<</Type /Catalog /Pages $PAGE_TREE_ROOT 0 R>>\nendobj\n")
+
+        val xref = out.count
+        val sb = StringBuilder()
+        sb.append("xref\n0 ").append(offsets.size + 1).append('\n')
+        sb.append("0000000000 65535 f \n")
+        for (offset in offsets) {
+            sb.append(String.format(Locale.US, "%010d 00000 n \n", offset))
+        }
+        sb.append("trailer\n<</Size ").append(offsets.size + 1)
+            .append(" /Root ").append(CATALOG).append(" 0 R>>\n")
+        sb.append("startxref\n").append(xref).append("\n%%EOF\n")
+        write(sb.toString())
+        out.flush()
+    }
+
+    private fun write(s: String) {
+        out.write(s.toByteArray(ISO_8859_1))
+    }
+
+    private class PdfObject(val start: Int, val dictionaryEnd: Int) {
+        var streamStart = -1
+        var streamLength = 0
+
+        fun dictionary(text: String) = text.substring(start, dictionaryEnd)
+    }
+
+    companion object {
+        private const val PAGE_TREE_ROOT = 1
+        private const val CATALOG = 2
+        private const val UNWRITTEN = -1L
+        private const val HEADER = "%PDF-1.4\n%âãÏÓ\n"
+
+        private val REFERENCE = Regex("(?<![\\d.])(\\d+) (\\d+) R(?![A-Za-z])")
+        private val REFERENCE_ROOT = Regex("/Root (\\d+) 0 R")
+        private val REFERENCE_INFO = Regex("/Info (\\d+) 0 R")
+        private val REFERENCE_PAGES = Regex("/Pages (\\d+) 0 R")
+        private val COUNT = Regex("/Count (\\d+)")
+        private val LENGTH = Regex("/Length (\\d+)\\b(?! \\d+ R)")
+        private val OBJECT_HEADER = Regex("(\\d+) 0 obj")
+        private val XREF_ENTRY = Regex("(\\d{10}) (\\d{5}) ([nf])")
+
+        private fun find(regex: Regex, text: String, from: Int): Int? =
+            regex.find(text, from)?.groupValues?.get(1)?.toInt()
+
+        private fun renumber(dictionary: String, numbers: Map<Int, Int>): String =
+            REFERENCE.replace(dictionary) { match ->
+                val number = numbers[match.groupValues[1].toInt()]
+                if (number == null) "null" else "$number 0 R"
+            }
+
+        /**
+         * Reads all objects listed in the cross-reference table, keyed by object number.
+         */
+        private fun readObjects(pdf: ByteArray, text: String): Map<Int, PdfObject> {
+            val startxref = text.lastIndexOf("startxref")
+            if (startxref < 0) throw IOException("No startxref found")
+            val xref = find(Regex("(\\d+)"), text, startxref + "startxref".length)
+                ?: throw IOException("Invalid startxref")
+            if (!text.startsWith("xref", xref)) throw IOException("Unsupported cross-reference section")
+            val header = Regex("(\\d+) (\\d+)").find(text, xref) ?: throw IOException("Invalid xref")
+            var number = header.groupValues[1].toInt()
+            val entries = header.groupValues[2].toInt()
+
+            val objects = HashMap<Int, PdfObject>()
+            var position = header.range.last + 1
+            repeat(entries) {
+                val entry = XREF_ENTRY.find(text, position) ?: throw IOException("Invalid xref entry")
+                position = entry.range.last + 1
+                if (entry.groupValues[3] == "n") {
+                    objects[number] = readObject(pdf, text, entry.groupValues[1].toInt(), number)
+                }
+                number++
+            }
+            return objects
+        }
+
+        private fun readObject(pdf: ByteArray, text: String, offset: Int, number: Int): PdfObject {
+            val header = OBJECT_HEADER.find(text, offset)
+            if (header == null || header.range.first != offset || header.groupValues[1].toInt() != number) {
+                throw IOException("Object $number not found at $offset")
+            }
+            val start = header.range.last + 1
+            val end = text.indexOf("endobj", start)
+            val stream = text.indexOf("stream", start)
+            if (end < 0) throw IOException("Object $number is not terminated")
+            if (stream < 0 || stream > end) {
+                return PdfObject(start, end)
+            }
+
+            val obj = PdfObject(start, stream)
+            val length = find(LENGTH, obj.dictionary(text), 0)
+                ?: throw IOException("Object $number has no direct stream length")
+            var data = stream + "stream".length
+            if (pdf[data] == '\r'.code.toByte()) data++
+            if (pdf[data] == '\n'.code.toByte()) data++
+            if (data + length > text.length) throw IOException("Stream of object $number is truncated")
+            obj.streamStart = data
+            obj.streamLength = length
+            return obj
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.secuso.privacyfriendlypaindiary.export
+
+import android.content.Context
+import android.os.Bundle
+import android.os.CancellationSignal
+import android.os.Handler
+import android.os.Looper
+import android.os.ParcelFileDescriptor
+import android.print.PageRange
+import android.print.PrintAttributes
+import android.print.PrintDocumentAdapter
+import android.print.PrintDocumentInfo
+import android.util.Log
+import org.secuso.privacyfriendlypaindiary.helpers.PdfCreator
+import java.io.FileOutputStream
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Prints the PDF report of an [ExportRequest].
+ *
+ * [onLayout] loads the entries and measures every section of the report to
+ * count its pages, but draws nothing. [onWrite] then draws only the pages
+ * of the requested ranges (see [PdfCreator.writePages]), so printing one page
+ * of a long report does not render the others. Cancellation is checked
+ * between sections. The report is laid out for A4; the print framework
+ * scales it to other media sizes.
+ */
+class ReportPrintAdapter(context: Context, private val request: ExportRequest) : PrintDocumentAdapter() {
+    private val context = context.applicationContext
+    private val executor: ExecutorService = Executors.newSingleThreadExecutor()
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    // only accessed on the executor
+    private var creator: PdfCreator? = null
+    private var sectionFirstPages = IntArray(0)
+    private var pageCount = 0
+
+    override fun onLayout(
+        oldAttributes: PrintAttributes?,
+        newAttributes: PrintAttributes,
+        cancellationSignal: CancellationSignal,
+        callback: LayoutResultCallback,
+        extras: Bundle?
+    ) {
+        executor.execute {
+            try {
+                val changed = creator == null
+                if (changed) {
+                    measure(cancellationSignal)
+                }
+                val info = PrintDocumentInfo.Builder(request.fileName)
+                    .setContentType(PrintDocumentInfo.CONTENT_TYPE_DOCUMENT)
+                    .setPageCount(pageCount)
+                    .build()
+                mainHandler.post {
+                    if (cancellationSignal.isCanceled) callback.onLayoutCancelled() else callback.onLayoutFinished(info, changed)
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "Layout failed", e)
+                creator = null
+                mainHandler.post {
+                    if (cancellationSignal.isCanceled) callback.onLayoutCancelled() else callback.onLayoutFailed(e.message)
+                }
+            }
+        }
+    }
+
+    private fun measure(cancellationSignal: CancellationSignal) {
+        val creator = request.createPdfCreator(context)
+        val firstPages = IntArray(creator.sectionCount + 1)
+        for (section in 0 until creator.sectionCount) {
+            cancellationSignal.throwIfCanceled()
+            firstPages[section + 1] = firstPages[section] + creator.getSectionPageCount(section)
+        }
+        this.creator = creator
+        sectionFirstPages = firstPages
+        pageCount = firstPages[creator.sectionCount]
+    }
+
+    override fun onWrite(
+        pages: Array<PageRange>,
+        destination: ParcelFileDescriptor,
+        cancellationSignal: CancellationSignal,
+        callback: WriteResultCallback
+    ) {
+        executor.execute {
+            try {
+                val creator = creator ?: throw IllegalStateException("Not laid out")
+                val ranges = normalize(pages)
+                val out = FileOutputStream(destination.fileDescriptor).buffered()
+                StreamingPdfDocument(out).use { document ->
+                    for (range in ranges) {
+                        writeRange(creator, range, document, cancellationSignal)
+                    }
+                    document.finish()
+                }
+                mainHandler.post {
+                    if (cancellationSignal.isCanceled) callback.onWriteCancelled() else callback.onWriteFinished(ranges)
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "Writing failed", e)
+                mainHandler.post {
+                    if (cancellationSignal.isCanceled) callback.onWriteCancelled() else callback.onWriteFailed(e.message)
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the pages of a range, section by section.
+     */
+    private fun writeRange(creator: PdfCreator, range: PageRange, document: StreamingPdfDocument, cancellationSignal: CancellationSignal) {
+        for (section in 0 until creator.sectionCount) {
+            val from = maxOf(range.start, sectionFirstPages[section])
+            val to = minOf(range.end + 1, sectionFirstPages[section + 1])
+            if (from < to) {
+                cancellationSignal.throwIfCanceled()
+                val offset = sectionFirstPages[section]
+                creator.writePages(section, from - offset, to - offset, document)
+            }
+        }
+    }
+
+    /**
+     * Resolves [PageRange.ALL_PAGES] and clamps the ranges to the document.
+     */
+    private fun normalize(pages: Array<PageRange>): Array<PageRange> {
+        if (pages.any { it == PageRange.ALL_PAGES }) {
+            return arrayOf(PageRange(0, pageCount - 1))
+        }
+        return pages.filter { it.start < pageCount }
+            .map { PageRange(it.start, minOf(it.end, pageCount - 1)) }
+            .sortedBy { it.start }
+            .toTypedArray()
+    }
+
+    override fun onFinish() {
+        executor.shutdownNow()
+    }
+
+    companion object {
+        private val TAG = ReportPrintAdapter::class.java.simpleName
+    }
+}
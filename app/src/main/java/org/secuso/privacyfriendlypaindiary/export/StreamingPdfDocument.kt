@@ -0,0 +1,113 @@
+package org.secuso.privacyfriendlypaindiary.export
+
+import android.graphics.pdf.PdfDocument
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * Drop-in for [PdfDocument] whose memory use does not grow with the number of pages.
+ *
+ * Pages are drawn on the canvas of a [PdfDocument] as usual, but every
+ * [SEGMENT_PAGES] pages that document is serialized, spliced into the output
+ * by a [PdfSplicer] and closed. At any time at most one segment is held in
+ * memory; the cross-reference table is written by [finish].
+ *
+ * @param out receives the document; it is flushed but never closed
+ * @param state state of a previous instance (see [flush]) whose output this one continues
+ */
+class StreamingPdfDocument @JvmOverloads constructor(
+    private val out: OutputStream,
+    state: PdfSplicer.State? = null
+) : Closeable {
+    private val splicer = PdfSplicer(out, state)
+    private val buffer = SegmentBuffer()
+    private var segment: PdfDocument? = null
+    private var segmentPages = 0
+
+    /**
+     * Number of pages written to the output so far.
+     */
+    val writtenPages: Int
+        get() = splicer.pages
+
+    fun startPage(pageInfo: PdfDocument.PageInfo): PdfDocument.Page {
+        val document = segment ?: PdfDocument().also { segment = it }
+        return document.startPage(pageInfo)
+    }
+
+    @Throws(IOException::class)
+    fun finishPage(page: PdfDocument.Page) {
+        val document = segment ?: throw IllegalStateException("No page started")
+        document.finishPage(page)
+        segmentPages++
+        if (segmentPages == SEGMENT_PAGES) {
+            flush()
+        }
+    }
+
+    /**
+     * Writes all finished pages to the output.
+     *
+     * @return the state needed to continue the document on the output as it is now
+     */
+    @Throws(IOException::class)
+    fun flush(): PdfSplicer.State {
+        segment?.let { document ->
+            segment = null
+            try {
+                if (segmentPages > 0) {
+                    buffer.reset()
+                    document.writeTo(buffer)
+                    splicer.append(buffer.bytes(), buffer.size())
+                }
+            } finally {
+                document.close()
+                segmentPages = 0
+            }
+        }
+        out.flush()
+        return splicer.state()
+    }
+
+    /**
+     * Appends all pages of a complete PDF, for example one written by another
+     * instance, after the pages finished so far.
+     */
+    @Throws(IOException::class)
+    fun appendDocument(pdf: ByteArray) {
+        flush()
+        splicer.append(pdf)
+    }
+
+    /**
+     * Writes all remaining pages and completes the document.
+     */
+    @Throws(IOException::class)
+    fun finish() {
+        flush()
+        splicer.finish()
+    }
+
+    /**
+     * Discards pages that have not been written yet.
+     */
+    override fun close() {
+        segment?.close()
+        segment = null
+    }
+
+    private class SegmentBuffer : ByteArrayOutputStream(INITIAL_BUFFER_SIZE) {
+        fun bytes(): ByteArray = buf
+    }
+
+    companion object {
+        /**
+         * Pages per segment. Fonts and images are embedded once per segment, so
+         * larger segments give smaller files at the cost of more memory.
+         */
+        const val SEGMENT_PAGES = 4
+        private const val INITIAL_BUFFER_SIZE = 256 * 1024
+    }
+}
@@ -0,0 +1,236 @@
+/*
+    This file is part of Privacy Friendly Pain Diary.
+
+    Privacy Friendly Pain Diary is free software: you can redistribute it
+    and/or modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.secuso.privacyfriendlypaindiary.helpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Traces the outlines of a binary pixel mask into closed polygons.
+ * <p>
+ * Every boundary between an inside and an outside pixel becomes a directed
+ * edge along the pixel grid, oriented so that the inside lies to its right
+ * (clockwise outer contours, counter-clockwise holes, with y pointing down).
+ * The edges are then linked into closed loops. Filling the polygons with the
+ * non-zero winding rule reproduces the mask exactly; {@link #simplify(float[], float)}
+ * removes the staircase steps afterwards.
+ */
+public final class ContourTracer {
+
+    private ContourTracer() {
+    }
+
+    /**
+     * @param inside mask in row-major order
+     * @return the closed polygons of the mask as x0, y0, x1, y1, ... in pixel
+     * corner coordinates, without repeating the first point
+     */
+    public static List<float[]> trace(boolean[] inside, int width, int height) {
+        int stride = width + 1;
+        int vertices = stride * (height + 1);
+        // every grid vertex has at most two outgoing edges (at diagonal saddles)
+        int[] first = new int[vertices];
+        int[] second = new int[vertices];
+        Arrays.fill(first, -1);
+        Arrays.fill(second, -1);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (!inside[y * width + x]) {
+                    continue;
+                }
+                int topLeft = y * stride + x;
+                int topRight = topLeft + 1;
+                int bottomLeft = topLeft + stride;
+                int bottomRight = bottomLeft + 1;
+                if (y == 0 || !inside[(y - 1) * width + x]) {
+                    addEdge(first, second, topLeft, topRight);
+                }
+                if (x == width - 1 || !inside[y * width + x + 1]) {
+                    addEdge(first, second, topRight, bottomRight);
+                }
+                if (y == height - 1 || !inside[(y + 1) * width + x]) {
+                    addEdge(first, second, bottomRight, bottomLeft);
+                }
+                if (x == 0 || !inside[y * width + x - 1]) {
+                    addEdge(first, second, bottomLeft, topLeft);
+                }
+            }
+        }
+
+        List<float[]> polygons = new ArrayList<>();
+        for (int start = 0; start < vertices; start++) {
+            while (first[start] >= 0 || second[start] >= 0) {
+                polygons.add(followLoop(first, second, start, stride));
+            }
+        }
+        return polygons;
+    }
+
+    private static void addEdge(int[] first, int[] second, int from, int to) {
+        if (first[from] < 0) {
+            first[from] = to;
+        } else {
+            second[from] = to;
+        }
+    }
+
+    private static float[] followLoop(int[] first, int[] second, int start, int stride) {
+        List<Integer> corners = new ArrayList<>();
+        int previous = -1;
+        int vertex = start;
+        do {
+            int next = takeEdge(first, second, vertex, previous, stride);
+            // only keep vertices where the direction changes
+            if (previous < 0 || next - vertex != vertex - previous) {
+                corners.add(vertex);
+            }
+            previous = vertex;
+            vertex = next;
+        } while (vertex != start);
+
+        // the start vertex is redundant if the loop passes it straight
+        int next = corners.size() > 1 ? corners.get(1) : start;
+        int last = corners.get(corners.size() - 1);
+        if (corners.size() > 2 && direction(last, start, stride) == direction(start, next, stride)) {
+            corners.remove(0);
+        }
+
+        float[] polygon = new float[corners.size() * 2];
+        for (int i = 0; i < corners.size(); i++) {
+            polygon[2 * i] = corners.get(i) % stride;
+            polygon[2 * i + 1] = corners.get(i) / stride;
+        }
+        return polygon;
+    }
+
+    /**
+     * Removes and returns an outgoing edge of the given vertex. At a saddle the
+     * edge turning right is preferred, so diagonal neighbours stay separate loops.
+     */
+    private static int takeEdge(int[] first, int[] second, int vertex, int previous, int stride) {
+        int next;
+        if (second[vertex] >= 0 && previous >= 0) {
+            int incoming = direction(previous, vertex, stride);
+            if (direction(vertex, second[vertex], stride) == turnRight(incoming)) {
+                next = second[vertex];
+                second[vertex] = -1;
+                return next;
+            }
+        }
+        next = first[vertex];
+        first[vertex] = second[vertex];
+        second[vertex] = -1;
+        return next;
+    }
+
+    /**
+     * @return 0 for right, 1 for down, 2 for left and 3 for up
+     */
+    private static int direction(int from, int to, int stride) {
+        int dx = to % stride - from % stride;
+        int dy = to / stride - from / stride;
+        if (dy == 0) {
+            return dx > 0 ? 0 : 2;
+        }
+        return dy > 0 ? 1 : 3;
+    }
+
+    private static int turnRight(int direction) {
+        return (direction + 1) % 4;
+    }
+
+    /**
+     * Simplifies a closed polygon with the Douglas-Peucker algorithm, so that
+     * no removed point is further than the given tolerance from the result.
+     */
+    public static float[] simplify(float[] polygon, float tolerance) {
+        int n = polygon.length / 2;
+        if (n <= 3) {
+            return polygon;
+        }
+        // split the closed polygon at the point furthest from the first one
+        int far = 0;
+        float farDistance = -1;
+        for (int i = 1; i < n; i++) {
+            float dx = polygon[2 * i] - polygon[0];
+            float dy = polygon[2 * i + 1] - polygon[1];
+            float distance = dx * dx + dy * dy;
+            if (distance > farDistance) {
+                farDistance = distance;
+                far = i;
+            }
+        }
+        boolean[] keep = new boolean[n + 1];
+        keep[0] = true;
+        keep[far] = true;
+        keep[n] = true;
+        simplify(polygon, n, 0, far, tolerance * tolerance, keep);
+        simplify(polygon, n, far, n, tolerance * tolerance, keep);
+
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) count++;
+        }
+        float[] result = new float[count * 2];
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                result[j++] = polygon[2 * i];
+                result[j++] = polygon[2 * i + 1];
+            }
+        }
+        return result;
+    }
+
+    private static void simplify(float[] polygon, int n, int from, int to, float toleranceSquared, boolean[] keep) {
+        if (to - from < 2) {
+            return;
+        }
+        float ax = polygon[2 * from];
+        float ay = polygon[2 * from + 1];
+        float bx = polygon[2 * (to % n)];
+        float by = polygon[2 * (to % n) + 1];
+        float dx = bx - ax;
+        float dy = by - ay;
+        float lengthSquared = dx * dx + dy * dy;
+
+        int index = -1;
+        float maxDistance = toleranceSquared;
+        for (int i = from + 1; i < to; i++) {
+            float px = polygon[2 * i] - ax;
+            float py = polygon[2 * i + 1] - ay;
+            float distance;
+            if (lengthSquared == 0) {
+                distance = px * px + py * py;
+            } else {
+                float cross = px * dy - py * dx;
+                distance = cross * cross / lengthSquared;
+            }
+            if (distance > maxDistance) {
+                maxDistance = distance;
+                index = i;
+            }
+        }
+        if (index >= 0) {
+            keep[index] = true;
+            simplify(polygon, n, from, index, toleranceSquared, keep);
+            simplify(polygon, n, index, to, toleranceSquared, keep);
+        }
+    }
+}
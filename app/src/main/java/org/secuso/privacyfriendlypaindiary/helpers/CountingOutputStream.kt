@@ -0,0 +1,40 @@
+/*
+    This file is part of Privacy Friendly Pain Diary.
+
+    Privacy Friendly Pain Diary is free software: you can redistribute it
+    and/or modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.secuso.privacyfriendlypaindiary.helpers
+
+import java.io.FilterOutputStream
+import java.io.OutputStream
+
+/**
+ * Counts the bytes written to the underlying stream.
+ *
+ * @param initialCount the count to start from, e.g. the bytes written before
+ */
+internal class CountingOutputStream(out: OutputStream, initialCount: Long = 0L) : FilterOutputStream(out) {
+    var count = initialCount
+        private set
+
+    override fun write(b: Int) {
+        out.write(b)
+        count++
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        out.write(b, off, len)
+        count += len
+    }
+}
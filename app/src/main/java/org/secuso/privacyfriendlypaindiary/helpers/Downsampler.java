@@ -0,0 +1,92 @@
+/*
+    This file is part of Privacy Friendly Pain Diary.
+
+    Privacy Friendly Pain Diary is free software: you can redistribute it
+    and/or modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.secuso.privacyfriendlypaindiary.helpers;
+
+/**
+ * Reduces a series of points to a fixed number of points that keep its
+ * visual shape, so that charts of long time spans cost no more to draw than
+ * charts of short ones.
+ */
+public final class Downsampler {
+
+    private Downsampler() {
+    }
+
+    /**
+     * Selects points with the Largest-Triangle-Three-Buckets algorithm: the
+     * first and the last point are kept, the points in between are divided
+     * into <code>threshold - 2</code> buckets, and from every bucket the point
+     * forming the largest triangle with the previously selected point and the
+     * average of the next bucket is selected.
+     *
+     * @param x x values in ascending order
+     * @param y y values
+     * @param count number of points
+     * @param threshold maximum number of points to select
+     * @return the indices of the selected points in ascending order, all
+     * indices if there are not more than <code>threshold</code> points
+     */
+    public static int[] largestTriangleThreeBuckets(double[] x, double[] y, int count, int threshold) {
+        if (threshold >= count || threshold < 3) {
+            int[] all = new int[count];
+            for (int i = 0; i < count; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+
+        int[] selected = new int[threshold];
+        double bucketSize = (double) (count - 2) / (threshold - 2);
+        int previous = 0;
+        selected[0] = 0;
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            // average of the next bucket, or the last point
+            int nextStart = (int) ((bucket + 1) * bucketSize) + 1;
+            int nextEnd = Math.min((int) ((bucket + 2) * bucketSize) + 1, count);
+            if (bucket == threshold - 3) {
+                nextStart = count - 1;
+                nextEnd = count;
+            }
+            double averageX = 0;
+            double averageY = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                averageX += x[i];
+                averageY += y[i];
+            }
+            averageX /= nextEnd - nextStart;
+            averageY /= nextEnd - nextStart;
+
+            int start = (int) (bucket * bucketSize) + 1;
+            int end = (int) ((bucket + 1) * bucketSize) + 1;
+            double maxArea = -1;
+            int chosen = start;
+            for (int i = start; i < end; i++) {
+                // twice the area of the triangle (previous, i, average)
+                double area = Math.abs((x[previous] - averageX) * (y[i] - y[previous])
+                        - (x[previous] - x[i]) * (averageY - y[previous]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    chosen = i;
+                }
+            }
+            selected[bucket + 1] = chosen;
+            previous = chosen;
+        }
+        selected[threshold - 1] = count - 1;
+        return selected;
+    }
+}
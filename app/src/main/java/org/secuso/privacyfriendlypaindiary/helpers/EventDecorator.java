@@ -56,4 +56,12 @@ public class EventDecorator implements DayViewDecorator {
         this.dates = dates;
     }
 
+    public void addDate(CalendarDay date) {
+        dates.add(date);
+    }
+
+    public void removeDate(CalendarDay date) {
+        dates.remove(date);
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,125 @@
+/*
+    This file is part of Privacy Friendly Pain Diary.
+
+    Privacy Friendly Pain Diary is free software: you can redistribute it
+    and/or modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.secuso.privacyfriendlypaindiary.helpers;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Produces the items of an index range on a pool of threads and hands them to
+ * a single consumer in index order.
+ * <p>
+ * At most <code>lookAhead</code> items are produced ahead of the consumer, so
+ * memory use is bounded no matter how long the range is. The producer is called
+ * concurrently and must not depend on shared mutable state.
+ */
+public final class LookAheadPipeline<T> implements Closeable {
+
+    public interface Producer<T> {
+        T produce(int index);
+    }
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final Producer<T> producer;
+    private final ExecutorService executor;
+    private final ArrayDeque<Future<T>> pending = new ArrayDeque<>();
+    private final int toIndex;
+    private final int lookAhead;
+    private int nextIndex;
+    private int submittedIndex;
+
+    /**
+     * Starts producing the items with indices in the range [fromIndex, toIndex).
+     */
+    public LookAheadPipeline(Producer<T> producer, int fromIndex, int toIndex, int threads, int lookAhead) {
+        this.producer = producer;
+        this.toIndex = toIndex;
+        this.lookAhead = Math.max(lookAhead, 1);
+        nextIndex = fromIndex;
+        submittedIndex = fromIndex;
+        executor = Executors.newFixedThreadPool(Math.max(threads, 1), runnable -> {
+            Thread thread = new Thread(runnable, "LookAheadPipeline-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        submit();
+    }
+
+    /**
+     * @return the index of the item returned by the next call of {@link #next()}
+     */
+    public int nextIndex() {
+        return nextIndex;
+    }
+
+    public boolean hasNext() {
+        return nextIndex < toIndex;
+    }
+
+    /**
+     * Waits for the next item. Exceptions of the producer are rethrown.
+     */
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Future<T> future = pending.poll();
+        nextIndex++;
+        submit();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for item " + (nextIndex - 1));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private void submit() {
+        while (submittedIndex < toIndex && pending.size() < lookAhead) {
+            final int index = submittedIndex++;
+            pending.add(executor.submit(() -> producer.produce(index)));
+        }
+    }
+
+    /**
+     * Discards the items that have not been consumed and stops the threads.
+     */
+    @Override
+    public void close() {
+        for (Future<T> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+        executor.shutdownNow();
+    }
+}
@@ -46,6 +46,7 @@ public class NotificationHelper extends ContextWrapper {
     private static final int COLOR_LIGHTBLUE = Color.parseColor("#0274b2");
 
     private static final String CHANNEL_ID = "reminders";
+    private static final String EXPORT_CHANNEL_ID = "export";
 
     private NotificationManager manager;
 
@@ -64,6 +65,11 @@ public class NotificationHelper extends ContextWrapper {
             notificationChannel.setShowBadge(true);
             notificationChannel.setLockscreenVisibility(Notification.VISIBILITY_PUBLIC);
             getManager().createNotificationChannel(notificationChannel);
+
+            NotificationChannel exportChannel = new NotificationChannel(EXPORT_CHANNEL_ID,
+                    getString(R.string.export_channel_title), NotificationManager.IMPORTANCE_LOW);
+            exportChannel.setShowBadge(false);
+            getManager().createNotificationChannel(exportChannel);
         }
     }
 
@@ -91,6 +97,28 @@ public class NotificationHelper extends ContextWrapper {
                 .setAutoCancel(true);
     }
 
+    /**
+     * Returns a builder for silent notifications that report the progress of an export.
+     */
+    public Notification.Builder getProgressNotificationBuilder(String title) {
+        Notification.Builder notificationBuilder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            notificationBuilder = new Notification.Builder(getApplicationContext(), EXPORT_CHANNEL_ID);
+        } else {
+            notificationBuilder = new Notification.Builder(getApplicationContext());
+        }
+
+        return notificationBuilder
+                .setSmallIcon(R.drawable.ic_export_pdf)
+                .setColor(COLOR_LIGHTBLUE)
+                .setContentTitle(title)
+                .setOnlyAlertOnce(true);
+    }
+
+    public void cancel(int id) {
+        getManager().cancel(id);
+    }
+
     public void notify(int id, Notification.Builder notification) {
         getManager().notify(id, notification.build());
     }
@@ -179,6 +179,14 @@ class NotificationJobService : JobService() {
             )
         }
 
+        /**
+         * Removes the reminder notification if it is currently shown.
+         */
+        fun cancelReminderNotification(context: Context) {
+            val manager = context.getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
+            manager.cancel(NOTIFICATION_ID_VALUE)
+        }
+
         fun cancelJob(context: Context) {
             val jobScheduler = context.getSystemService(JOB_SCHEDULER_SERVICE) as JobScheduler
             jobScheduler.cancel(PERIODIC_JOB_ID)
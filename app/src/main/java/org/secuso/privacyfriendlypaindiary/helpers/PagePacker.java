@@ -0,0 +1,114 @@
+/*
+    This file is part of Privacy Friendly Pain Diary.
+
+    Privacy Friendly Pain Diary is free software: you can redistribute it
+    and/or modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.secuso.privacyfriendlypaindiary.helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Distributes a sequence of measured blocks onto pages of a fixed height.
+ * <p>
+ * Blocks are placed greedily one below the other. A block that does not fit
+ * on the rest of a page moves to the next page as a whole; only a block that
+ * is taller than a page is split, at the last break point its
+ * {@link Blocks#breakBefore(int, int, int)} allows on the page. If a block
+ * offers no break point at all it is cut at the page border.
+ */
+public final class PagePacker {
+
+    private PagePacker() {
+    }
+
+    /**
+     * The measured blocks to distribute.
+     */
+    public interface Blocks {
+
+        int count();
+
+        int height(int block);
+
+        /**
+         * @return the largest offset in (from, limit] at which the block may be
+         * split, or <code>from</code> if there is none
+         */
+        int breakBefore(int block, int from, int limit);
+    }
+
+    /**
+     * The slice [from, to) of a block, placed at offset y on its page.
+     */
+    public static final class Fragment {
+        public final int block;
+        public final int from;
+        public final int to;
+        public final int y;
+
+        Fragment(int block, int from, int to, int y) {
+            this.block = block;
+            this.from = from;
+            this.to = to;
+            this.y = y;
+        }
+
+        /**
+         * @return this fragment with the block index moved by the given number of blocks
+         */
+        public Fragment offset(int blocks) {
+            return new Fragment(block + blocks, from, to, y);
+        }
+    }
+
+    /**
+     * @return the fragments of every page, at least one (possibly empty) page
+     */
+    public static List<List<Fragment>> pack(Blocks blocks, int pageHeight) {
+        List<List<Fragment>> pages = new ArrayList<>();
+        List<Fragment> page = new ArrayList<>();
+        int y = 0;
+        for (int block = 0; block < blocks.count(); block++) {
+            int height = blocks.height(block);
+            int from = 0;
+            while (from < height) {
+                int to = height;
+                if (y + height - from > pageHeight) {
+                    if (y > 0 && height - from <= pageHeight) {
+                        // fits on the next page as a whole
+                        to = from;
+                    } else {
+                        to = Math.min(blocks.breakBefore(block, from, from + pageHeight - y), from + pageHeight - y);
+                        if (to <= from && y == 0) {
+                            to = from + pageHeight;
+                        }
+                    }
+                }
+                if (to > from) {
+                    page.add(new Fragment(block, from, to, y));
+                    y += to - from;
+                    from = to;
+                }
+                if (from < height) {
+                    pages.add(page);
+                    page = new ArrayList<>();
+                    y = 0;
+                }
+            }
+        }
+        pages.add(page);
+        return pages;
+    }
+}
@@ -21,6 +21,8 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Picture;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.graphics.pdf.PdfDocument;
@@ -29,6 +31,7 @@ import android.text.Html;
 import android.text.Layout;
 import android.text.StaticLayout;
 import android.text.TextPaint;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.ImageView;
@@ -36,7 +39,11 @@ import android.widget.RelativeLayout;
 
 import org.secuso.privacyfriendlypaindiary.R;
 import org.secuso.privacyfriendlypaindiary.database.DBServiceInterface;
+import org.secuso.privacyfriendlypaindiary.database.DiarySnapshot;
+import org.secuso.privacyfriendlypaindiary.database.PainTrend;
+import org.secuso.privacyfriendlypaindiary.database.WeeklySummary;
 import org.secuso.privacyfriendlypaindiary.database.entities.enums.BodyRegion;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Condition;
 import org.secuso.privacyfriendlypaindiary.database.entities.enums.Gender;
 import org.secuso.privacyfriendlypaindiary.database.entities.impl.AbstractPersistentObject;
 import org.secuso.privacyfriendlypaindiary.database.entities.impl.User;
@@ -44,12 +51,22 @@ import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEnt
 import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DrugIntakeInterface;
 import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.PainDescriptionInterface;
 import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.UserInterface;
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays;
+import org.secuso.privacyfriendlypaindiary.export.StreamingPdfDocument;
 import org.secuso.privacyfriendlypaindiary.tutorial.PrefManager;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 
@@ -70,19 +87,73 @@ public class PdfCreator {
     private static final int PADDING = 20;
     private static final int PERSON_WIDTH = 80;
     private static final int DX_SECOND_COLUMN = 200;
+    private static final int PERSON_HEIGHT = 160;
+    private static final int CONDITION_SIZE = 30;
+    private static final int FIGURE_CACHE_BYTES = 2 * 1024 * 1024;
+    private static final int BLOCKS_AHEAD_PER_THREAD = 4;
+    // part of the section keys, to be increased whenever the drawing changes
+    private static final int LAYOUT_VERSION = 1;
+    // left edges of the columns of the weekly summary table
+    private static final int[] SUMMARY_COLUMNS = {0, 95, 145, 210, 320, 375, WIDTH_A4 - 2 * PADDING};
+    private static final int SUMMARY_ROW_PADDING = 5;
+    private static final int SUMMARY_FIGURE_WIDTH = 20;
+    private static final int SUMMARY_FIGURE_HEIGHT = 40;
+    private static final int SUMMARY_ICON_SIZE = 12;
+    private static final int CHART_POINTS = 250;
+    private static final int CHART_AXIS_WIDTH = 25;
+    private static final int CHART_PAIN_HEIGHT = 180;
+    private static final int CHART_CONDITION_HEIGHT = 60;
 
     private Context context;
     private SimpleDateFormat dateFormat;
+    private final SimpleDateFormat monthFormat = new SimpleDateFormat("yyyy-MM", Locale.US);
     private Date startDate;
     private Date endDate;
     private TextPaint normalTextPaint = new TextPaint();
     private TextPaint accentedTextPaint;
     private Paint blackPaint = new Paint();
+    private Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private Paint chartPaintGrid = new Paint();
+    private Paint chartPaintPain = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private Paint chartPaintCondition = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    // rendered figures and icons, shared by all entries of the export
+    private final LruCache<Long, Bitmap> figureCache = new LruCache<Long, Bitmap>(FIGURE_CACHE_BYTES) {
+        @Override
+        protected int sizeOf(Long key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+    private final Bitmap[] conditionIcons = new Bitmap[Condition.values().length + 1];
+    private boolean vectorFigures = true;
+    private boolean title = true;
+    // downsampled (epoch day, value) pairs of the trend chart, null without chart
+    private float[] painPoints;
+    private float[] conditionPoints;
 
     private List<DiaryEntryInterface> diaryEntries;
+    private List<WeeklySummary> weeklySummaries;
     private UserInterface user;
+    // block ranges of the sections; block 0 is the title, followed by the entries (or
+    // the header and the rows of the weekly summary) or a note that there are none
+    private final int[] sectionStarts;
+    private final int[] sectionEnds;
+    private final List<List<List<PagePacker.Fragment>>> sectionPages;
 
     public PdfCreator(Context context, Date startDate, Date endDate, List<DiaryEntryInterface> diaryEntries, UserInterface user) {
+        this(context, startDate, endDate, diaryEntries, null, user);
+    }
+
+    /**
+     * Creates a condensed report with one table row per week instead of the
+     * single diary entries.
+     */
+    public static PdfCreator forWeeklySummaries(Context context, Date startDate, Date endDate, List<WeeklySummary> weeklySummaries, UserInterface user) {
+        return new PdfCreator(context, startDate, endDate, Collections.<DiaryEntryInterface>emptyList(), weeklySummaries, user);
+    }
+
+    private PdfCreator(Context context, Date startDate, Date endDate, List<DiaryEntryInterface> diaryEntries,
+                       List<WeeklySummary> weeklySummaries, UserInterface user) {
         this.context = context;
         dateFormat = new SimpleDateFormat("dd.MM.yyyy", Locale.US);
         this.startDate = startDate;
@@ -97,19 +168,381 @@ public class PdfCreator {
         accentedTextPaint.setColor(context.getResources().getColor(R.color.colorAccent));
         accentedTextPaint.setFakeBoldText(true);
 
+        chartPaintGrid.setStyle(Paint.Style.STROKE);
+        chartPaintGrid.setColor(Color.LTGRAY);
+        chartPaintGrid.setStrokeWidth(0.5f);
+        chartPaintPain.setStyle(Paint.Style.STROKE);
+        chartPaintPain.setColor(ContextCompat.getColor(context, R.color.red));
+        chartPaintPain.setStrokeWidth(1.5f);
+        chartPaintCondition.setStyle(Paint.Style.STROKE);
+        chartPaintCondition.setColor(ContextCompat.getColor(context, R.color.colorPrimary));
+        chartPaintCondition.setStrokeWidth(1.5f);
+
         this.diaryEntries = diaryEntries;
+        this.weeklySummaries = weeklySummaries;
         this.user = user;
+
+        if (weeklySummaries != null) {
+            // the table is a single section
+            sectionStarts = new int[]{0};
+            sectionEnds = new int[]{weeklySummaries.isEmpty() ? 2 : 2 + weeklySummaries.size()};
+            sectionPages = new ArrayList<>(Collections.<List<List<PagePacker.Fragment>>>nCopies(1, null));
+            return;
+        }
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        String month = null;
+        for (int i = 0; i < diaryEntries.size(); i++) {
+            String entryMonth = monthFormat.format(diaryEntries.get(i).getDate());
+            if (month != null && !month.equals(entryMonth)) {
+                starts.add(i + 1);
+            }
+            month = entryMonth;
+        }
+        sectionStarts = new int[starts.size()];
+        sectionEnds = new int[starts.size()];
+        for (int i = 0; i < starts.size(); i++) {
+            sectionStarts[i] = starts.get(i);
+            sectionEnds[i] = i + 1 < starts.size() ? starts.get(i + 1) : 1 + Math.max(diaryEntries.size(), 1);
+        }
+        sectionPages = new ArrayList<>(Collections.<List<List<PagePacker.Fragment>>>nCopies(starts.size(), null));
+    }
+
+    /**
+     * Selects whether body figures and condition icons are drawn as vector
+     * paths (the default) or as embedded images.
+     */
+    public void setVectorFigures(boolean vectorFigures) {
+        this.vectorFigures = vectorFigures;
+    }
+
+    /**
+     * Selects whether the first section starts with the title (the default).
+     * Without it, the document can continue another one that has been
+     * written month by month, see {@link org.secuso.privacyfriendlypaindiary.export.PdfExportSink}.
+     */
+    public void setTitle(boolean title) {
+        this.title = title;
+    }
+
+    /**
+     * Adds a chart of the pain level and the condition over the time span of
+     * the export to the first page, or removes it if the trend is null. Long
+     * time spans are reduced to a fixed number of points per line (see
+     * {@link Downsampler}), so the chart costs the same for any time span.
+     */
+    public void setTrendChart(PainTrend trend) {
+        if (trend == null) {
+            painPoints = null;
+            conditionPoints = null;
+        } else {
+            painPoints = downsample(trend.getEpochDays(), trend.getPainLevels());
+            conditionPoints = downsample(trend.getEpochDays(), trend.getConditions());
+        }
+    }
+
+    /**
+     * Writes the pdf document for all diary entries to the given stream. Pages
+     * are written as soon as they are finished, see {@link StreamingPdfDocument}.
+     * The stream is not closed.
+     */
+    public void writePdfDocument(OutputStream out) throws IOException {
+        try (StreamingPdfDocument document = new StreamingPdfDocument(out)) {
+            for (int section = 0; section < getSectionCount(); section++) {
+                writeSection(section, document);
+            }
+            document.finish();
+        }
+    }
+
+    /**
+     * Returns the number of sections of the document. Every calendar month
+     * with entries is a section starting on a new page; the first section
+     * additionally contains the title. Apart from the first one, the pages of
+     * a section only depend on its entries, so they can be reused by every
+     * export that contains the same month (see {@link #getSectionKey(int)}).
+     */
+    public int getSectionCount() {
+        return sectionStarts.length;
+    }
+
+    /**
+     * Returns the month of the given section as yyyy-MM, or null if it has no entries.
+     */
+    public String getSectionMonth(int section) {
+        if (diaryEntries.isEmpty()) {
+            // also in the weekly summary
+            return null;
+        }
+        return monthFormat.format(diaryEntries.get(sectionStarts[section] == 0 ? 0 : sectionStarts[section] - 1).getDate());
+    }
+
+    /**
+     * Returns a hash of everything drawn in the given section. Sections with
+     * equal keys have identical pages.
+     */
+    public String getSectionKey(int section) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(LAYOUT_VERSION).append('|').append(vectorFigures).append('|')
+                .append(context.getResources().getConfiguration().locale).append('\n');
+        int first = sectionStarts[section];
+        if (first == 0) {
+            sb.append(title).append('\n');
+            // without the title, a month does not depend on the export it belongs to
+            if (title) {
+                sb.append(startDate.getTime()).append('|').append(endDate.getTime()).append('|')
+                        .append(user.getFirstName()).append('|').append(user.getLastName()).append('|')
+                        .append(user.getDateOfBirth() == null ? null : user.getDateOfBirth().getTime()).append('|')
+                        .append(user.getGender()).append('\n');
+                if (painPoints != null) {
+                    sb.append(Arrays.toString(painPoints)).append(Arrays.toString(conditionPoints)).append('\n');
+                }
+            }
+            first = 1;
+        }
+        for (int entry = first - 1; entry < sectionEnds[section] - 1 && entry < diaryEntries.size(); entry++) {
+            appendContent(sb, diaryEntries.get(entry));
+        }
+        if (weeklySummaries != null) {
+            for (WeeklySummary week : weeklySummaries) {
+                sb.append(week).append('\n');
+            }
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest) {
+                key.append(String.format(Locale.US, "%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void appendContent(StringBuilder sb, DiaryEntryInterface diaryEntry) {
+        sb.append(diaryEntry.getDate().getTime()).append('|').append(diaryEntry.getCondition()).append('|')
+                .append(diaryEntry.getNotes()).append('|');
+        PainDescriptionInterface painDescription = diaryEntry.getPainDescription();
+        if (painDescription != null) {
+            sb.append(painDescription.getPainLevel()).append('|').append(painDescription.getBodyRegions()).append('|')
+                    .append(painDescription.getPainQualities()).append('|').append(painDescription.getTimesOfPain());
+        }
+        for (DrugIntakeInterface drugIntake : diaryEntry.getDrugIntakes()) {
+            sb.append('|').append(drugIntake.getDrug().getName()).append('|').append(drugIntake.getDrug().getDose())
+                    .append('|').append(drugIntake.getQuantityMorning()).append(' ').append(drugIntake.getQuantityNoon())
+                    .append(' ').append(drugIntake.getQuantityEvening()).append(' ').append(drugIntake.getQuantityNight());
+        }
+        sb.append('\n');
+    }
+
+    /**
+     * Returns the number of pages of the given section. The first call
+     * measures the entries of the section and distributes them onto pages,
+     * see {@link PagePacker}.
+     */
+    public int getSectionPageCount(int section) {
+        return paginate(section).size();
+    }
+
+    /**
+     * Draws the pages of the given section.
+     * <p>
+     * The blocks on these pages are laid out in parallel ahead of the drawing,
+     * see {@link #prepareBlocks(int, int, boolean)}; only the drawing onto the
+     * pdf canvas happens on the calling thread.
+     */
+    public void writeSection(int section, StreamingPdfDocument document) throws IOException {
+        writePages(section, 0, getSectionPageCount(section), document);
+        // the layout is not needed again
+        sectionPages.set(section, null);
     }
 
-    public PdfDocument createPdfDocument() {
-        PdfDocument document = new PdfDocument();
+    /**
+     * Draws the pages [fromPage, toPage) of the given section. Only the blocks
+     * on these pages are laid out for drawing, so a single page of a long
+     * section is cheap once the section has been measured.
+     */
+    public void writePages(int section, int fromPage, int toPage, StreamingPdfDocument document) throws IOException {
+        List<List<PagePacker.Fragment>> pages = paginate(section).subList(fromPage, toPage);
+        int fromBlock = sectionEnds[section];
+        int toBlock = sectionStarts[section];
+        for (List<PagePacker.Fragment> fragments : pages) {
+            for (PagePacker.Fragment fragment : fragments) {
+                fromBlock = Math.min(fromBlock, fragment.block);
+                toBlock = Math.max(toBlock, fragment.block + 1);
+            }
+        }
+        try (LookAheadPipeline<Block> blocks = prepareBlocks(fromBlock, Math.max(fromBlock, toBlock), true)) {
+            Block block = null;
+            int blockIndex = -1;
+            int pageNumber = fromPage;
+            for (List<PagePacker.Fragment> fragments : pages) {
+                pageNumber += 1;
+                PdfDocument.PageInfo pageInfo = new PdfDocument.PageInfo.Builder(WIDTH_A4, HEIGHT_A4, pageNumber).create();
+                PdfDocument.Page page = document.startPage(pageInfo);
+                Canvas canvas = page.getCanvas();
+                canvas.translate(PADDING, PADDING);
+                for (PagePacker.Fragment fragment : fragments) {
+                    // a block split across pages is drawn once per page
+                    while (blockIndex != fragment.block) {
+                        blockIndex = blocks.nextIndex();
+                        block = blocks.next();
+                    }
+                    canvas.save();
+                    if (fragment.from > 0 || fragment.to < block.height) {
+                        // text layouts only draw the lines within the clip
+                        canvas.clipRect(-PADDING, fragment.y, WIDTH_A4, fragment.y + fragment.to - fragment.from);
+                    }
+                    canvas.translate(0, fragment.y - fragment.from);
+                    block.draw(canvas);
+                    canvas.restore();
+                }
+                document.finishPage(page);
+            }
+        }
+    }
+
+    private List<List<PagePacker.Fragment>> paginate(int section) {
+        if (sectionPages.get(section) == null) {
+            final int fromBlock = sectionStarts[section];
+            final int toBlock = sectionEnds[section];
+            try (final LookAheadPipeline<Block> blocks = prepareBlocks(fromBlock, toBlock, false)) {
+                List<List<PagePacker.Fragment>> pages = PagePacker.pack(new PagePacker.Blocks() {
+                    private Block block;
+                    private int blockIndex = -1;
+
+                    @Override
+                    public int count() {
+                        return toBlock - fromBlock;
+                    }
+
+                    @Override
+                    public int height(int index) {
+                        return getBlock(index).height;
+                    }
 
-        int pageNumber = 1;
-        PdfDocument.PageInfo pageInfo = new PdfDocument.PageInfo.Builder(WIDTH_A4, HEIGHT_A4, pageNumber).create();
-        PdfDocument.Page page = document.startPage(pageInfo);
-        Canvas canvas = page.getCanvas();
+                    @Override
+                    public int breakBefore(int index, int from, int limit) {
+                        return getBlock(index).breakBefore(from, limit);
+                    }
 
-        canvas.translate(PADDING, PADDING);
+                    private Block getBlock(int index) {
+                        while (blockIndex != fromBlock + index) {
+                            blockIndex = blocks.nextIndex();
+                            block = blocks.next();
+                        }
+                        return block;
+                    }
+                }, HEIGHT_A4 - 2 * PADDING);
+                // fragments refer to blocks of the whole document
+                for (List<PagePacker.Fragment> page : pages) {
+                    for (int i = 0; i < page.size(); i++) {
+                        PagePacker.Fragment fragment = page.get(i);
+                        page.set(i, fragment.offset(fromBlock));
+                    }
+                }
+                sectionPages.set(section, pages);
+            }
+        }
+        return sectionPages.get(section);
+    }
+
+    /**
+     * Lays out the blocks with indices in the range [fromIndex, toIndex) on all
+     * cores, a bounded number of blocks ahead of the consumer. Blocks only read
+     * the entries and the creator's configuration, so they can be built in any
+     * order; the pipeline hands them out in index order.
+     *
+     * @param forDrawing whether bitmaps for the figures are needed, or the blocks are only measured
+     */
+    private LookAheadPipeline<Block> prepareBlocks(int fromIndex, int toIndex, final boolean forDrawing) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        return new LookAheadPipeline<>(index -> {
+            if (index == 0) {
+                return title ? new TitleBlock() : new EmptyBlock();
+            } else if (weeklySummaries != null && !weeklySummaries.isEmpty()) {
+                return index == 1 ? new SummaryHeaderBlock() : new WeekBlock(weeklySummaries.get(index - 2));
+            } else if (diaryEntries.isEmpty()) {
+                return new TextBlock(context.getResources().getString(R.string.diary_entries_none));
+            }
+            return new EntryBlock(diaryEntries.get(index - 1), forDrawing);
+        }, fromIndex, toIndex, threads, threads * BLOCKS_AHEAD_PER_THREAD);
+    }
+
+    /**
+     * A part of the document with a fixed height, drawn at the origin. Blocks
+     * are laid out on worker threads and immutable afterwards.
+     */
+    private abstract static class Block {
+        int height;
+
+        abstract void draw(Canvas canvas);
+
+        /**
+         * @see PagePacker.Blocks#breakBefore(int, int, int)
+         */
+        int breakBefore(int from, int limit) {
+            return from;
+        }
+    }
+
+    /**
+     * The title, followed by the trend chart if there is one.
+     */
+    private class TitleBlock extends Block {
+        private final int titleHeight;
+
+        TitleBlock() {
+            Picture picture = new Picture();
+            Canvas canvas = picture.beginRecording(WIDTH_A4, HEIGHT_A4);
+            titleHeight = drawTitle(canvas);
+            height = titleHeight;
+            if (painPoints != null) {
+                canvas.translate(0, titleHeight);
+                height += drawTrendChart(canvas);
+            }
+            picture.endRecording();
+        }
+
+        @Override
+        void draw(Canvas canvas) {
+            drawTitle(canvas);
+            if (painPoints != null) {
+                canvas.save();
+                canvas.translate(0, titleHeight);
+                drawTrendChart(canvas);
+                canvas.restore();
+            }
+        }
+    }
+
+    private static class EmptyBlock extends Block {
+        @Override
+        void draw(Canvas canvas) {
+        }
+    }
+
+    private class TextBlock extends Block {
+        private final StaticLayout layout;
+
+        TextBlock(String text) {
+            layout = new StaticLayout(text, normalTextPaint, WIDTH_A4 / 5 * 4, Layout.Alignment.ALIGN_NORMAL, 1.0f, 1.0f, false);
+            height = layout.getHeight();
+        }
+
+        @Override
+        void draw(Canvas canvas) {
+            layout.draw(canvas);
+        }
+    }
+
+    /**
+     * Draws the patient details and the time span of the export.
+     *
+     * @return the height of the drawn title
+     */
+    private int drawTitle(Canvas canvas) {
         canvas.save();
         int height = drawHeader(canvas);
         height += 10;
@@ -119,7 +552,7 @@ public class PdfCreator {
         canvas.translate(0, height);
         StringBuilder sb = new StringBuilder();
         sb.append(context.getResources().getString(R.string.diary_entries)).append(" ");
-        sb.append(dateFormat.format(startDate)).append(" - ").append(dateFormat.format(endDate));
+        sb.append(formatDate(startDate)).append(" - ").append(formatDate(endDate));
         StaticLayout layout = new StaticLayout(sb.toString(), accentedTextPaint, WIDTH_A4 / 5 * 4, Layout.Alignment.ALIGN_NORMAL, 1.0f, 1.0f, false);
         layout.draw(canvas);
         height += layout.getHeight() + 10;
@@ -131,47 +564,97 @@ public class PdfCreator {
         height += 10;
         canvas.restore();
 
-        int numberOfEntries = 0;
-        if(diaryEntries.isEmpty()) {
-            canvas.save();
-            canvas.translate(0, height);
-            sb.setLength(0);
-            sb.append(context.getResources().getString(R.string.diary_entries_none));
-            layout = new StaticLayout(sb.toString(), normalTextPaint, WIDTH_A4 / 5 * 4, Layout.Alignment.ALIGN_NORMAL, 1.0f, 1.0f, false);
-            layout.draw(canvas);
-            canvas.restore();
-        }
-        for (Iterator<DiaryEntryInterface> iter = diaryEntries.iterator(); iter.hasNext(); ) {
-            DiaryEntryInterface diaryEntry = iter.next();
-            canvas.save();
-            canvas.translate(0, height);
-            height += drawDiaryEntry(canvas, height, diaryEntry);
-            canvas.restore();
+        return height;
+    }
 
-            canvas.save();
-            height += 10;
-            canvas.translate(0, height);
-            canvas.drawLine(0, 0, WIDTH_A4 - 2 * PADDING, 0, blackPaint);
-            height += 10;
-            canvas.restore();
+    /**
+     * Draws the pain level and the condition over the time span of the export.
+     *
+     * @return the height of the drawn chart
+     */
+    private int drawTrendChart(Canvas canvas) {
+        int width = WIDTH_A4 - 2 * PADDING;
+        int firstDay = EpochDays.fromDate(startDate);
+        float daySpan = Math.max(EpochDays.fromDate(endDate) - firstDay, 1);
 
-            numberOfEntries += 1;
-            if(numberOfEntries == 2 && iter.hasNext()) {
-                document.finishPage(page);
-                pageNumber += 1;
-                pageInfo = new PdfDocument.PageInfo.Builder(WIDTH_A4, HEIGHT_A4, pageNumber).create();
-                page = document.startPage(pageInfo);
-                canvas = page.getCanvas();
-                canvas.translate(PADDING, PADDING);
+        StaticLayout painLabel = createLayout(context.getResources().getString(R.string.painlevel), accentedTextPaint, width);
+        drawAt(canvas, painLabel, 0, 0);
+        int height = painLabel.getHeight() + 5;
+        drawChartLine(canvas, painPoints, firstDay, daySpan, height, CHART_PAIN_HEIGHT, DiarySnapshot.MAX_PAIN_LEVEL, chartPaintPain);
+        height += CHART_PAIN_HEIGHT + 10;
 
-                height = 0;
-                numberOfEntries = 0;
+        StaticLayout conditionLabel = createLayout(context.getResources().getString(R.string.condition), accentedTextPaint, width);
+        drawAt(canvas, conditionLabel, 0, height);
+        height += conditionLabel.getHeight() + 5;
+        drawChartLine(canvas, conditionPoints, firstDay, daySpan, height, CHART_CONDITION_HEIGHT, Condition.values().length - 1, chartPaintCondition);
+        height += CHART_CONDITION_HEIGHT + 5;
+
+        StaticLayout start = createLayout(formatDate(startDate), normalTextPaint, width / 2);
+        StaticLayout end = new StaticLayout(formatDate(endDate), normalTextPaint, width / 2, Layout.Alignment.ALIGN_OPPOSITE, 1.0f, 1.0f, false);
+        drawAt(canvas, start, CHART_AXIS_WIDTH, height);
+        drawAt(canvas, end, width / 2, height);
+        height += start.getHeight() + 10;
+
+        canvas.drawLine(0, height, width, height, blackPaint);
+        return height + 10;
+    }
+
+    /**
+     * Draws a frame with the scale from 0 to maxValue and the given points
+     * (epoch day, value) as a line.
+     */
+    private void drawChartLine(Canvas canvas, float[] points, int firstDay, float daySpan, int top, int height,
+                               int maxValue, Paint paint) {
+        int left = CHART_AXIS_WIDTH;
+        int right = WIDTH_A4 - 2 * PADDING;
+        canvas.drawRect(left, top, right, top + height, chartPaintGrid);
+        canvas.drawLine(left, top + height / 2f, right, top + height / 2f, chartPaintGrid);
+        StaticLayout maxLabel = createLayout(String.valueOf(maxValue), normalTextPaint, CHART_AXIS_WIDTH - 5);
+        StaticLayout minLabel = createLayout("0", normalTextPaint, CHART_AXIS_WIDTH - 5);
+        drawAt(canvas, maxLabel, 0, top);
+        drawAt(canvas, minLabel, 0, top + height - minLabel.getHeight());
+
+        float scaleX = (right - left) / daySpan;
+        float scaleY = (float) height / maxValue;
+        if (points.length == 2) {
+            canvas.drawCircle(left + (points[0] - firstDay) * scaleX, top + height - points[1] * scaleY, 1.5f, paint);
+            return;
+        }
+        Path path = new Path();
+        for (int i = 0; i < points.length; i += 2) {
+            float x = left + (points[i] - firstDay) * scaleX;
+            float y = top + height - points[i + 1] * scaleY;
+            if (i == 0) {
+                path.moveTo(x, y);
+            } else {
+                path.lineTo(x, y);
             }
         }
+        canvas.drawPath(path, paint);
+    }
 
-        document.finishPage(page);
-
-        return document;
+    /**
+     * Returns at most {@link #CHART_POINTS} points (epoch day, value) that
+     * represent the days with a value.
+     */
+    private static float[] downsample(int[] epochDays, int[] values) {
+        int count = 0;
+        double[] x = new double[epochDays.length];
+        double[] y = new double[epochDays.length];
+        for (int i = 0; i < epochDays.length; i++) {
+            if (values[i] != DiarySnapshot.NO_VALUE) {
+                x[count] = epochDays[i];
+                y[count] = values[i];
+                count++;
+            }
+        }
+        int[] selected = Downsampler.largestTriangleThreeBuckets(x, y, count, CHART_POINTS);
+        float[] points = new float[2 * selected.length];
+        for (int i = 0; i < selected.length; i++) {
+            points[2 * i] = (float) x[selected[i]];
+            points[2 * i + 1] = (float) y[selected[i]];
+        }
+        return points;
     }
 
     private int drawHeader(Canvas canvas) {
@@ -193,7 +676,7 @@ public class PdfCreator {
         }
         sb.append("\n").append(context.getResources().getString(R.string.date_of_birth)).append(": ");
         if(user.getDateOfBirth() != null) {
-            sb.append(dateFormat.format(user.getDateOfBirth()));
+            sb.append(formatDate(user.getDateOfBirth()));
         }
         sb.append("\n").append(context.getResources().getString(R.string.gender)).append(": ");
         if(user.getGender() != null) {
@@ -211,75 +694,273 @@ public class PdfCreator {
         return height;
     }
 
-    private int drawDiaryEntry(Canvas canvas, int totalHeight, DiaryEntryInterface diaryEntry) {
-        PainDescriptionInterface painDescription = diaryEntry.getPainDescription();
+    /**
+     * A diary entry: date, condition, pain level and the figures on the left,
+     * the remaining details in a second column, followed by a separator line.
+     * Entries with long notes or medication lists may be split between the
+     * lines of the second column once the figures are complete.
+     */
+    private class EntryBlock extends Block {
+        private final DiaryEntryInterface diaryEntry;
+        private final StaticLayout date;
+        private final StaticLayout conditionLabel;
+        private final StaticLayout painLevel;
+        private final StaticLayout frontLabel;
+        private final StaticLayout backLabel;
+        private final StaticLayout details;
+        private final int conditionLabelTop;
+        private final int conditionTop;
+        private final int painLevelTop;
+        private final int columnsTop;
+        private final int figuresTop;
+        private final int figuresBottom;
+        private final int contentHeight;
+        private long frontMask;
+        private long backMask;
+        private Bitmap frontFigure;
+        private Bitmap backFigure;
+        private Bitmap conditionIcon;
 
-        StringBuilder sb = new StringBuilder();
-        sb.append(dateFormat.format(diaryEntry.getDate()));
-        StaticLayout layout = new StaticLayout(sb.toString(), accentedTextPaint, WIDTH_A4 / 5 * 4, Layout.Alignment.ALIGN_NORMAL, 1.0f, 1.0f, false);
-        layout.draw(canvas);
-        int height = layout.getHeight() + 5;
-        canvas.restore();
+        EntryBlock(DiaryEntryInterface diaryEntry, boolean forDrawing) {
+            this.diaryEntry = diaryEntry;
+            PainDescriptionInterface painDescription = diaryEntry.getPainDescription();
 
-        canvas.save();
-        canvas.translate(0, totalHeight + height);
-        sb.setLength(0);
-        sb.append(context.getResources().getString(R.string.condition));
-        layout = new StaticLayout(sb.toString(), normalTextPaint, WIDTH_A4 / 5 * 4, Layout.Alignment.ALIGN_NORMAL, 1.0f, 1.0f, false);
-        layout.draw(canvas);
-        height += layout.getHeight();
-        canvas.restore();
+            date = createLayout(formatDate(diaryEntry.getDate()), accentedTextPaint, WIDTH_A4 / 5 * 4);
+            conditionLabel = createLayout(context.getResources().getString(R.string.condition), normalTextPaint, WIDTH_A4 / 5 * 4);
 
-        canvas.save();
-        canvas.translate(0, totalHeight + height);
-        int resourceID = R.drawable.ic_menu_help;
-        if(diaryEntry.getCondition() != null) {
-            resourceID = diaryEntry.getCondition().getResourceID();
-        }
-        Drawable drawable = ContextCompat.getDrawable(context, resourceID);
-        Bitmap condition = Bitmap.createBitmap(30, 30, Bitmap.Config.ARGB_8888);
-        Canvas bitmapCanvas = new Canvas(condition);
-        drawable.setBounds(0, 0, bitmapCanvas.getWidth(), bitmapCanvas.getHeight());
-        drawable.draw(bitmapCanvas);
-        canvas.drawBitmap(condition, 0, 0, new Paint(Paint.FILTER_BITMAP_FLAG));
-        condition.recycle();
-        height += 35;
-        canvas.restore();
+            StringBuilder sb = new StringBuilder();
+            sb.append(context.getResources().getString(R.string.painlevel)).append(" ");
+            if(painDescription != null) {
+                sb.append(painDescription.getPainLevel()).append("/10");
+            }
+            sb.append("\n");
+            sb.append(context.getResources().getString(R.string.bodyregion));
+            painLevel = createLayout(sb.toString(), normalTextPaint, WIDTH_A4 / 5 * 4);
+            frontLabel = createLayout(context.getResources().getString(R.string.body_front), normalTextPaint, WIDTH_A4 / 5 * 4);
+            backLabel = createLayout(context.getResources().getString(R.string.body_back), normalTextPaint, WIDTH_A4 / 5 * 3);
+            details = createLayout(getDetails(diaryEntry), normalTextPaint, WIDTH_A4 / 5 * 3);
 
-        canvas.save();
-        canvas.translate(0, totalHeight + height);
-        sb.setLength(0);
-        sb.append(context.getResources().getString(R.string.painlevel)).append(" ");
-        if(painDescription != null) {
-            sb.append(painDescription.getPainLevel()).append("/10");
+            conditionLabelTop = date.getHeight() + 5;
+            conditionTop = conditionLabelTop + conditionLabel.getHeight();
+            painLevelTop = conditionTop + 35;
+            columnsTop = painLevelTop + painLevel.getHeight();
+            figuresTop = columnsTop + backLabel.getHeight() + 5;
+            figuresBottom = painDescription != null ? figuresTop + PERSON_HEIGHT + 5 : figuresTop;
+            contentHeight = Math.max(figuresBottom, columnsTop + details.getHeight());
+            height = contentHeight + 20;
+
+            if(painDescription != null) {
+                EnumSet<BodyRegion> bodyRegionsFront = EnumSet.noneOf(BodyRegion.class);
+                EnumSet<BodyRegion> bodyRegionsBack = EnumSet.noneOf(BodyRegion.class);
+                // body regions are split up into two separate sets (front and back)
+                for(BodyRegion region : painDescription.getBodyRegions()) {
+                    if(region.getValue() < BodyRegion.LOWEST_BACK_INDEX) {
+                        bodyRegionsFront.add(region);
+                    } else {
+                        bodyRegionsBack.add(region);
+                    }
+                }
+                // front and back use the same region art, so the masks are relative to the side
+                frontMask = getRegionMask(bodyRegionsFront, 0);
+                backMask = getRegionMask(bodyRegionsBack, BodyRegion.LOWEST_BACK_INDEX);
+                if (forDrawing && !vectorFigures) {
+                    frontFigure = getFigure(bodyRegionsFront, frontMask);
+                    backFigure = getFigure(bodyRegionsBack, backMask);
+                }
+            }
+            if (forDrawing && !vectorFigures) {
+                conditionIcon = getConditionIcon(diaryEntry.getCondition());
+            } else if (forDrawing) {
+                // traces the figures on first use, off the drawing thread
+                VectorFigures.getInstance(context);
+            }
         }
-        sb.append("\n");
-        sb.append(context.getResources().getString(R.string.bodyregion));
-        layout = new StaticLayout(sb.toString(), normalTextPaint, WIDTH_A4 / 5 * 4, Layout.Alignment.ALIGN_NORMAL, 1.0f, 1.0f, false);
-        layout.draw(canvas);
-        height += layout.getHeight();
-        canvas.restore();
 
-        canvas.save();
-        canvas.translate(0, totalHeight + height);
-        sb.setLength(0);
-        sb.append(context.getResources().getString(R.string.body_front));
-        layout = new StaticLayout(sb.toString(), normalTextPaint, WIDTH_A4 / 5 * 4, Layout.Alignment.ALIGN_NORMAL, 1.0f, 1.0f, false);
-        layout.draw(canvas);
-        canvas.restore();
+        @Override
+        void draw(Canvas canvas) {
+            date.draw(canvas);
+            drawAt(canvas, conditionLabel, 0, conditionLabelTop);
 
-        canvas.save();
-        canvas.translate(PERSON_WIDTH + 10, totalHeight + height);
-        sb.setLength(0);
-        sb.append(context.getResources().getString(R.string.body_back));
-        layout = new StaticLayout(sb.toString(), normalTextPaint, WIDTH_A4 / 5 * 3, Layout.Alignment.ALIGN_NORMAL, 1.0f, 1.0f, false);
-        layout.draw(canvas);
-        canvas.restore();
+            canvas.save();
+            canvas.translate(0, conditionTop);
+            if (conditionIcon == null) {
+                VectorFigures.getInstance(context).drawConditionIcon(canvas, diaryEntry.getCondition(), CONDITION_SIZE);
+            } else {
+                canvas.drawBitmap(conditionIcon, 0, 0, bitmapPaint);
+            }
+            canvas.restore();
 
-        canvas.save();
-        canvas.translate(DX_SECOND_COLUMN, totalHeight + height);
-        height += layout.getHeight() + 5;
-        sb.setLength(0);
+            drawAt(canvas, painLevel, 0, painLevelTop);
+            drawAt(canvas, frontLabel, 0, columnsTop);
+            drawAt(canvas, backLabel, PERSON_WIDTH + 10, columnsTop);
+            drawAt(canvas, details, DX_SECOND_COLUMN, columnsTop);
+
+            if(diaryEntry.getPainDescription() != null) {
+                canvas.save();
+                canvas.translate(0, figuresTop);
+                drawFigure(canvas, frontMask, frontFigure);
+                canvas.restore();
+
+                canvas.save();
+                canvas.translate(PERSON_WIDTH + 10, figuresTop);
+                drawFigure(canvas, backMask, backFigure);
+                canvas.restore();
+            }
+
+            canvas.save();
+            canvas.translate(0, contentHeight + 10);
+            canvas.drawLine(0, 0, WIDTH_A4 - 2 * PADDING, 0, blackPaint);
+            canvas.restore();
+        }
+
+        @Override
+        int breakBefore(int from, int limit) {
+            // below the figures, between two lines of the second column
+            for (int line = details.getLineCount() - 1; line >= 0; line--) {
+                int offset = columnsTop + details.getLineBottom(line);
+                if (offset <= from || offset < figuresBottom) {
+                    break;
+                }
+                if (offset <= limit) {
+                    return offset;
+                }
+            }
+            // or before both columns
+            if (columnsTop > from && columnsTop <= limit) {
+                return columnsTop;
+            }
+            return from;
+        }
+    }
+
+    /**
+     * The column headings of the weekly summary.
+     */
+    private class SummaryHeaderBlock extends Block {
+        private final StaticLayout[] headings = new StaticLayout[SUMMARY_COLUMNS.length - 1];
+
+        SummaryHeaderBlock() {
+            int[] resourceIDs = {R.string.summary_week, R.string.summary_entries, R.string.summary_pain,
+                    R.string.summary_condition, R.string.summary_regions, R.string.summary_medication};
+            int textHeight = 0;
+            for (int i = 0; i < headings.length; i++) {
+                headings[i] = createLayout(context.getResources().getString(resourceIDs[i]), accentedTextPaint, getSummaryColumnWidth(i));
+                textHeight = Math.max(textHeight, headings[i].getHeight());
+            }
+            height = textHeight + 2 * SUMMARY_ROW_PADDING;
+        }
+
+        @Override
+        void draw(Canvas canvas) {
+            for (int i = 0; i < headings.length; i++) {
+                drawAt(canvas, headings[i], SUMMARY_COLUMNS[i], SUMMARY_ROW_PADDING);
+            }
+            canvas.drawLine(0, height - 1, WIDTH_A4 - 2 * PADDING, height - 1, blackPaint);
+        }
+    }
+
+    /**
+     * One row of the weekly summary: period, number of entries, mean and
+     * maximum pain level, count per condition, all body regions with pain and
+     * the total doses per drug.
+     */
+    private class WeekBlock extends Block {
+        private final WeeklySummary week;
+        private final StaticLayout period;
+        private final StaticLayout entries;
+        private final StaticLayout painLevel;
+        private final StaticLayout[] conditionCounts = new StaticLayout[Condition.values().length];
+        private final StaticLayout medication;
+
+        WeekBlock(WeeklySummary week) {
+            this.week = week;
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime(week.getWeekStart());
+            calendar.add(Calendar.DAY_OF_MONTH, 6);
+            period = createLayout(formatDate(week.getWeekStart()) + " -\n" + formatDate(calendar.getTime()), normalTextPaint, getSummaryColumnWidth(0));
+            entries = createLayout(String.valueOf(week.getEntries()), normalTextPaint, getSummaryColumnWidth(1));
+
+            String pain = "-";
+            if (week.getMeanPainLevel() != null && week.getMaxPainLevel() != null) {
+                pain = String.format(Locale.getDefault(), "%.1f / %d", week.getMeanPainLevel(), week.getMaxPainLevel());
+            }
+            painLevel = createLayout(pain, normalTextPaint, getSummaryColumnWidth(2));
+
+            for (int i = 0; i < conditionCounts.length; i++) {
+                int count = week.getConditionCounts().get(i);
+                if (count > 0) {
+                    conditionCounts[i] = createLayout(String.valueOf(count), normalTextPaint, SUMMARY_ICON_SIZE);
+                }
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (WeeklySummary.MedicationTotal total : week.getMedication()) {
+                if (sb.length() > 0) {
+                    sb.append("\n");
+                }
+                sb.append(Html.fromHtml("&#8226;")).append(" ").append(total.getName());
+                if (total.getDose() != null) {
+                    sb.append(" (").append(total.getDose()).append(")");
+                }
+                sb.append(": ").append(total.getTotal());
+            }
+            if (sb.length() == 0) {
+                sb.append(context.getResources().getString(R.string.none));
+            }
+            medication = createLayout(sb.toString(), normalTextPaint, getSummaryColumnWidth(5));
+
+            int contentHeight = Math.max(SUMMARY_FIGURE_HEIGHT, Math.max(period.getHeight(), medication.getHeight()));
+            height = contentHeight + 2 * SUMMARY_ROW_PADDING;
+        }
+
+        @Override
+        void draw(Canvas canvas) {
+            drawAt(canvas, period, SUMMARY_COLUMNS[0], SUMMARY_ROW_PADDING);
+            drawAt(canvas, entries, SUMMARY_COLUMNS[1], SUMMARY_ROW_PADDING);
+            drawAt(canvas, painLevel, SUMMARY_COLUMNS[2], SUMMARY_ROW_PADDING);
+
+            VectorFigures figures = VectorFigures.getInstance(context);
+            int x = SUMMARY_COLUMNS[3];
+            for (int i = 0; i < conditionCounts.length; i++) {
+                if (conditionCounts[i] == null) {
+                    continue;
+                }
+                canvas.save();
+                canvas.translate(x, SUMMARY_ROW_PADDING);
+                figures.drawConditionIcon(canvas, Condition.valueOf(i), SUMMARY_ICON_SIZE);
+                canvas.restore();
+                drawAt(canvas, conditionCounts[i], x + SUMMARY_ICON_SIZE + 2, SUMMARY_ROW_PADDING);
+                x += 2 * SUMMARY_ICON_SIZE;
+            }
+
+            long frontMask = week.getRegionMask() & ((1L << BodyRegion.LOWEST_BACK_INDEX) - 1);
+            long backMask = week.getRegionMask() >>> BodyRegion.LOWEST_BACK_INDEX;
+            canvas.save();
+            canvas.translate(SUMMARY_COLUMNS[4], SUMMARY_ROW_PADDING);
+            figures.drawFigure(canvas, frontMask, SUMMARY_FIGURE_WIDTH, SUMMARY_FIGURE_HEIGHT);
+            canvas.translate(SUMMARY_FIGURE_WIDTH + 5, 0);
+            figures.drawFigure(canvas, backMask, SUMMARY_FIGURE_WIDTH, SUMMARY_FIGURE_HEIGHT);
+            canvas.restore();
+
+            drawAt(canvas, medication, SUMMARY_COLUMNS[5], SUMMARY_ROW_PADDING);
+            canvas.drawLine(0, height - 1, WIDTH_A4 - 2 * PADDING, height - 1, blackPaint);
+        }
+    }
+
+    private static int getSummaryColumnWidth(int column) {
+        return SUMMARY_COLUMNS[column + 1] - SUMMARY_COLUMNS[column] - 5;
+    }
+
+    private String formatDate(Date date) {
+        // blocks are laid out on several threads
+        synchronized (dateFormat) {
+            return dateFormat.format(date);
+        }
+    }
+
+    private String getDetails(DiaryEntryInterface diaryEntry) {
+        PainDescriptionInterface painDescription = diaryEntry.getPainDescription();
+        StringBuilder sb = new StringBuilder();
         sb.append(context.getResources().getString(R.string.timeofpain)).append(" ");
         if(painDescription != null) {
             String timesOfPain = Helper.convertTimeEnumSetToString(context, painDescription.getTimesOfPain());
@@ -317,57 +998,81 @@ public class PdfCreator {
             medication = context.getResources().getString(R.string.none);
         }
         sb.append(medication);
-        layout = new StaticLayout(sb.toString(), normalTextPaint, WIDTH_A4 / 5 * 3, Layout.Alignment.ALIGN_NORMAL, 1.0f, 1.0f, false);
+        return sb.toString();
+    }
+
+    private static StaticLayout createLayout(String text, TextPaint paint, int width) {
+        return new StaticLayout(text, paint, width, Layout.Alignment.ALIGN_NORMAL, 1.0f, 1.0f, false);
+    }
+
+    private static void drawAt(Canvas canvas, StaticLayout layout, float x, float y) {
+        canvas.save();
+        canvas.translate(x, y);
         layout.draw(canvas);
         canvas.restore();
+    }
 
-        if(painDescription != null) {
-            canvas.save();
-            canvas.translate(0, totalHeight + height);
+    private static long getRegionMask(EnumSet<BodyRegion> bodyRegions, int firstRegionValue) {
+        long mask = 0;
+        for (BodyRegion region : bodyRegions) {
+            mask |= 1L << (region.getValue() - firstRegionValue);
+        }
+        return mask;
+    }
 
+    /**
+     * Draws the figure of one side of the body, as the given rendered figure
+     * or, if there is none, as vector paths.
+     *
+     * @param mask marked regions relative to the first region of the side
+     */
+    private void drawFigure(Canvas canvas, long mask, Bitmap figure) {
+        if (figure == null) {
+            VectorFigures.getInstance(context).drawFigure(canvas, mask, PERSON_WIDTH, PERSON_HEIGHT);
+        } else {
+            canvas.drawBitmap(figure, 0, 0, bitmapPaint);
+        }
+    }
+
+    /**
+     * Returns the rendered figure of one side of the body with the given regions marked.
+     * Called from several threads; a figure missing from the cache may be
+     * rendered more than once.
+     */
+    private Bitmap getFigure(EnumSet<BodyRegion> bodyRegions, long mask) {
+        Bitmap figure = figureCache.get(mask);
+        if (figure == null) {
             LayoutInflater inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
             View view = inflater.inflate(R.layout.pdf_person, null);
-            EnumSet<BodyRegion> bodyRegions = painDescription.getBodyRegions();
-            EnumSet<BodyRegion> bodyRegionsFront = EnumSet.noneOf(BodyRegion.class);
-            EnumSet<BodyRegion> bodyRegionsBack = EnumSet.noneOf(BodyRegion.class);
-            // body regions are split up into two separate sets (front and back)
-            for(BodyRegion region : bodyRegions) {
-                if(region.getValue() < BodyRegion.LOWEST_BACK_INDEX) {
-                    bodyRegionsFront.add(region);
-                } else {
-                    bodyRegionsBack.add(region);
-                }
-            }
-            if(!bodyRegionsFront.isEmpty()) {
-//                Bitmap[] images = Helper.getBitmapArrayForBodyRegions(context, bodyRegionsFront);
-                ((ImageView) view.findViewById(R.id.bodyregion_value)).setImageBitmap(Helper.overlay(context, bodyRegionsFront));
+            if (!bodyRegions.isEmpty()) {
+                ((ImageView) view.findViewById(R.id.bodyregion_value)).setImageBitmap(Helper.overlay(context, bodyRegions));
                 view.findViewById(R.id.bodyregion_value).setVisibility(View.VISIBLE);
             }
-
             Bitmap bitmap = createBitmapFromView(view.findViewById(R.id.bodyregion));
-            bitmap = Bitmap.createScaledBitmap(bitmap, PERSON_WIDTH, 160, true);
-            canvas.drawBitmap(bitmap, 0, 0, new Paint());
-//            height += bitmap.getHeight() + 5;
-            canvas.restore();
-            bitmap.recycle();
-
-            canvas.save();
-            canvas.translate(PERSON_WIDTH + 10, totalHeight + height);
-            if(!bodyRegionsBack.isEmpty()) {
-//                Bitmap[] images = Helper.getBitmapArrayForBodyRegions(context, bodyRegionsBack);
-                ((ImageView) view.findViewById(R.id.bodyregion_value)).setImageBitmap(Helper.overlay(context, bodyRegionsBack));
-                view.findViewById(R.id.bodyregion_value).setVisibility(View.VISIBLE);
+            figure = Bitmap.createScaledBitmap(bitmap, PERSON_WIDTH, PERSON_HEIGHT, true);
+            if (figure != bitmap) {
+                bitmap.recycle();
             }
+            figureCache.put(mask, figure);
+        }
+        return figure;
+    }
 
-            bitmap = createBitmapFromView(view.findViewById(R.id.bodyregion));
-            bitmap = Bitmap.createScaledBitmap(bitmap, PERSON_WIDTH, 160, true);
-            canvas.drawBitmap(bitmap, 0, 0, new Paint());
-            height += bitmap.getHeight() + 5;
-            canvas.restore();
-            bitmap.recycle();
+    /**
+     * Returns the icon for the given condition (or a question mark if it is null).
+     */
+    private synchronized Bitmap getConditionIcon(Condition condition) {
+        int index = condition == null ? conditionIcons.length - 1 : condition.ordinal();
+        if (conditionIcons[index] == null) {
+            int resourceID = condition == null ? R.drawable.ic_menu_help : condition.getResourceID();
+            Drawable drawable = ContextCompat.getDrawable(context, resourceID);
+            Bitmap icon = Bitmap.createBitmap(CONDITION_SIZE, CONDITION_SIZE, Bitmap.Config.ARGB_8888);
+            Canvas bitmapCanvas = new Canvas(icon);
+            drawable.setBounds(0, 0, bitmapCanvas.getWidth(), bitmapCanvas.getHeight());
+            drawable.draw(bitmapCanvas);
+            conditionIcons[index] = icon;
         }
-        canvas.save();
-        return height;
+        return conditionIcons[index];
     }
 
     private Bitmap createBitmapFromView(View view) {
@@ -0,0 +1,225 @@
+/*
+    This file is part of Privacy Friendly Pain Diary.
+
+    Privacy Friendly Pain Diary is free software: you can redistribute it
+    and/or modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.secuso.privacyfriendlypaindiary.helpers;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.content.res.XmlResourceParser;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+import androidx.core.graphics.PathParser;
+
+import org.secuso.privacyfriendlypaindiary.R;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.BodyRegion;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Condition;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Vector versions of the body figure and the condition icons for the pdf export.
+ * <p>
+ * The outline of the person and of every body region is traced once from the
+ * alpha channel of the existing region art (see {@link ContourTracer}); the
+ * condition icons are read from the path data of their vector drawables. The
+ * paths are drawn directly onto the canvas, so a pdf page contains a few
+ * hundred bytes of path operators per figure instead of an embedded image.
+ */
+public final class VectorFigures {
+
+    private static final String TAG = VectorFigures.class.getSimpleName();
+    private static final String ANDROID_NAMESPACE = "http://schemas.android.com/apk/res/android";
+    private static final int TRACE_SAMPLE_SIZE = 2;
+    // maximum deviation of the traced outline in sampled pixels
+    private static final float TRACE_TOLERANCE = 0.6f;
+    private static final int ALPHA_THRESHOLD = 128;
+
+    private static VectorFigures instance;
+
+    private final Path person;
+    private final Paint personPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Path[] regions = new Path[BodyRegion.LOWEST_BACK_INDEX];
+    private final Paint regionPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final float artWidth;
+    private final float artHeight;
+
+    private final Icon[] conditionIcons = new Icon[Condition.values().length + 1];
+
+    private static class Icon {
+        final float viewportWidth;
+        final float viewportHeight;
+        final List<Path> paths = new ArrayList<>();
+        final List<Paint> paints = new ArrayList<>();
+
+        Icon(float viewportWidth, float viewportHeight) {
+            this.viewportWidth = viewportWidth;
+            this.viewportHeight = viewportHeight;
+        }
+    }
+
+    public static synchronized VectorFigures getInstance(Context context) {
+        if (instance == null) {
+            instance = new VectorFigures(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private VectorFigures(Context context) {
+        Resources resources = context.getResources();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = TRACE_SAMPLE_SIZE;
+        options.inScaled = false;
+
+        Bitmap art = BitmapFactory.decodeResource(resources, R.drawable.paindiary_person_fullbody, options);
+        artWidth = art.getWidth() * TRACE_SAMPLE_SIZE;
+        artHeight = art.getHeight() * TRACE_SAMPLE_SIZE;
+        person = trace(art);
+        personPaint.setColor(averageColor(art));
+        art.recycle();
+
+        for (BodyRegion region : BodyRegion.values()) {
+            if (region.getValue() < BodyRegion.LOWEST_BACK_INDEX) {
+                art = BitmapFactory.decodeResource(resources, region.getResourceID(), options);
+                regions[region.getValue()] = trace(art);
+                art.recycle();
+            }
+        }
+        regionPaint.setColor(ContextCompat.getColor(context, R.color.yellow));
+
+        for (Condition condition : Condition.values()) {
+            conditionIcons[condition.ordinal()] = readIcon(resources, condition.getResourceID());
+        }
+        conditionIcons[conditionIcons.length - 1] = readIcon(resources, R.drawable.ic_menu_help);
+    }
+
+    /**
+     * Draws the figure of one side of the body into the rectangle (0, 0, width, height),
+     * cropped and centered the same way as the figure image in <code>R.layout.pdf_person</code>.
+     *
+     * @param regionMask marked regions, bit i standing for the i-th region of the side
+     */
+    public void drawFigure(Canvas canvas, long regionMask, float width, float height) {
+        float scale = Math.max(width / artWidth, height / artHeight);
+        canvas.save();
+        canvas.clipRect(0, 0, width, height);
+        canvas.translate((width - artWidth * scale) / 2, (height - artHeight * scale) / 2);
+        canvas.scale(scale, scale);
+        canvas.drawPath(person, personPaint);
+        for (int i = 0; i < regions.length; i++) {
+            if ((regionMask & (1L << i)) != 0) {
+                canvas.drawPath(regions[i], regionPaint);
+            }
+        }
+        canvas.restore();
+    }
+
+    /**
+     * Draws the icon of the given condition (or a question mark if it is null)
+     * into the square (0, 0, size, size).
+     */
+    public void drawConditionIcon(Canvas canvas, Condition condition, float size) {
+        Icon icon = conditionIcons[condition == null ? conditionIcons.length - 1 : condition.ordinal()];
+        canvas.save();
+        canvas.scale(size / icon.viewportWidth, size / icon.viewportHeight);
+        for (int i = 0; i < icon.paths.size(); i++) {
+            canvas.drawPath(icon.paths.get(i), icon.paints.get(i));
+        }
+        canvas.restore();
+    }
+
+    /**
+     * Traces the opaque pixels of the given sampled art, in unsampled pixel coordinates.
+     */
+    private static Path trace(Bitmap art) {
+        int width = art.getWidth();
+        int height = art.getHeight();
+        int[] pixels = new int[width * height];
+        art.getPixels(pixels, 0, width, 0, 0, width, height);
+        boolean[] inside = new boolean[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            inside[i] = Color.alpha(pixels[i]) >= ALPHA_THRESHOLD;
+        }
+
+        Path path = new Path();
+        for (float[] polygon : ContourTracer.trace(inside, width, height)) {
+            polygon = ContourTracer.simplify(polygon, TRACE_TOLERANCE);
+            path.moveTo(polygon[0] * TRACE_SAMPLE_SIZE, polygon[1] * TRACE_SAMPLE_SIZE);
+            for (int i = 2; i < polygon.length; i += 2) {
+                path.lineTo(polygon[i] * TRACE_SAMPLE_SIZE, polygon[i + 1] * TRACE_SAMPLE_SIZE);
+            }
+            path.close();
+        }
+        return path;
+    }
+
+    private static int averageColor(Bitmap art) {
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        long count = 0;
+        for (int y = 0; y < art.getHeight(); y++) {
+            for (int x = 0; x < art.getWidth(); x++) {
+                int pixel = art.getPixel(x, y);
+                if (Color.alpha(pixel) >= ALPHA_THRESHOLD) {
+                    red += Color.red(pixel);
+                    green += Color.green(pixel);
+                    blue += Color.blue(pixel);
+                    count++;
+                }
+            }
+        }
+        if (count == 0) {
+            return Color.GRAY;
+        }
+        return Color.rgb((int) (red / count), (int) (green / count), (int) (blue / count));
+    }
+
+    /**
+     * Reads the paths of a vector drawable with plain fill colors.
+     */
+    private static Icon readIcon(Resources resources, int resourceID) {
+        Icon icon = new Icon(24, 24);
+        try (XmlResourceParser parser = resources.getXml(resourceID)) {
+            int event;
+            while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (event != XmlPullParser.START_TAG) {
+                    continue;
+                }
+                if ("vector".equals(parser.getName())) {
+                    icon = new Icon(parser.getAttributeFloatValue(ANDROID_NAMESPACE, "viewportWidth", 24),
+                            parser.getAttributeFloatValue(ANDROID_NAMESPACE, "viewportHeight", 24));
+                } else if ("path".equals(parser.getName())) {
+                    Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+                    paint.setColor(parser.getAttributeIntValue(ANDROID_NAMESPACE, "fillColor", Color.BLACK));
+                    icon.paths.add(PathParser.createPathFromPathData(parser.getAttributeValue(ANDROID_NAMESPACE, "pathData")));
+                    icon.paints.add(paint);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Cannot read vector drawable " + resourceID, e);
+        }
+        return icon;
+    }
+}
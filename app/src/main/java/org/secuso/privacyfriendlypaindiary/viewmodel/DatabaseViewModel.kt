@@ -5,45 +5,208 @@ import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.viewModelScope
+import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.flatMapLatest
 import kotlinx.coroutines.launch
+import org.secuso.privacyfriendlypaindiary.database.DatabaseScheduler
+import org.secuso.privacyfriendlypaindiary.database.DiaryChange
+import org.secuso.privacyfriendlypaindiary.database.DiaryChangeBus
 import org.secuso.privacyfriendlypaindiary.database.PainDiaryDatabaseService
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DiaryEntry
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.Drug
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DrugIntake
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.PainDescription
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.User
 import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DiaryEntryInterface
 import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DrugIntakeInterface
 import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DrugInterface
 import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.UserInterface
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays
 import java.util.*
 
+@OptIn(ExperimentalCoroutinesApi::class)
 class DatabaseViewModel(application: Application) : AndroidViewModel(application) {
     val service = PainDiaryDatabaseService.getInstance(application)
 
+    companion object {
+        private const val CACHE_TTL_MILLIS = 3000L
+        private const val KEY_ALL_DRUGS = "allDrugs"
+        private const val KEY_LATEST_DIARY_ENTRY_ID = "latestDiaryEntryID"
+
+        /**
+         * Shared by all view models, so identical requests from different
+         * activities are coalesced as well.
+         */
+        private val queries = QueryCoalescer(CACHE_TTL_MILLIS)
+
+        init {
+            // changes made outside of a view model (e.g. by a reset) invalidate only what they touch
+            CoroutineScope(SupervisorJob() + Dispatchers.Default).launch {
+                DiaryChangeBus.changes.collect { changes ->
+                    for (change in changes) {
+                        when (change) {
+                            is DiaryChange.EntrySaved -> invalidateDiaryEntry(change.date)
+                            is DiaryChange.EntryDeleted -> invalidateDiaryEntry(change.date)
+                            is DiaryChange.DrugChanged -> queries.invalidate(KEY_ALL_DRUGS)
+                            is DiaryChange.UserChanged -> queries.invalidate(userKey(change.id))
+                            DiaryChange.DatabaseReplaced -> queries.invalidate()
+                        }
+                    }
+                }
+            }
+        }
+
+        private fun diaryEntryKey(date: Date) = Pair("diaryEntryByDate", EpochDays.fromDate(date))
+
+        private fun userKey(id: Long) = Pair("userByID", id)
+
+        // the cached results are shared, so every request gets its own copy, see QueryCoalescer
+
+        private fun copyOfDiaryEntry(diaryEntry: DiaryEntryInterface?): DiaryEntryInterface? {
+            if (diaryEntry == null) return null
+            val painDescription = diaryEntry.painDescription?.let {
+                PainDescription(
+                    it.painLevel,
+                    it.bodyRegions?.let { regions -> EnumSet.copyOf(regions) },
+                    it.painQualities?.let { qualities -> EnumSet.copyOf(qualities) },
+                    it.timesOfPain?.let { times -> EnumSet.copyOf(times) }
+                ).apply { objectID = it.objectID }
+            }
+            val intakes = diaryEntry.drugIntakes.mapTo(HashSet<DrugIntakeInterface>()) {
+                DrugIntake(copyOfDrug(it.drug), it.quantityMorning, it.quantityNoon, it.quantityEvening, it.quantityNight)
+                    .apply { objectID = it.objectID }
+            }
+            return DiaryEntry(Date(diaryEntry.date.time), diaryEntry.condition, painDescription, diaryEntry.notes, intakes)
+                .apply { objectID = diaryEntry.objectID }
+        }
+
+        private fun copyOfDrug(drug: DrugInterface): DrugInterface =
+            Drug(drug.name, drug.dose).apply { objectID = drug.objectID }
+
+        private fun copyOfDrugs(drugs: List<DrugInterface>): List<DrugInterface> = drugs.map { copyOfDrug(it) }
+
+        private fun copyOfUser(user: UserInterface?): UserInterface? = user?.let {
+            User(it.firstName, it.lastName, it.gender, it.dateOfBirth?.let { date -> Date(date.time) })
+                .apply { objectID = it.objectID }
+        }
+
+        /**
+         * Called right after a write of this view model as well, so a request
+         * made before the bus delivers the change is not answered from the cache.
+         */
+        private fun invalidateDiaryEntry(date: Date) {
+            queries.invalidate(diaryEntryKey(date))
+            queries.invalidate(KEY_LATEST_DIARY_ENTRY_ID)
+            // saving an entry may add drugs or delete unused ones
+            queries.invalidate(KEY_ALL_DRUGS)
+        }
+
+        /**
+         * @return number of requests that did not need their own query
+         */
+        @JvmStatic
+        fun getDeduplicatedRequestCount(): Long = queries.joinedCount + queries.cachedCount
+
+        @JvmStatic
+        fun getExecutedRequestCount(): Long = queries.executedCount
+    }
+
+    private val visibleTimeSpan = MutableSharedFlow<Pair<Date, Date>>(
+        extraBufferCapacity = 1,
+        onBufferOverflow = BufferOverflow.DROP_OLDEST
+    )
+    private val visibleDiaryEntryDates = MutableLiveData<Set<Date>>()
+
+    /**
+     * The changes not yet taken by [takeDiaryChanges], coalesced like a batch
+     * of [DiaryChangeBus]. Only used on the main thread.
+     */
+    private val pendingChanges = LinkedHashMap<Any, DiaryChange>()
+    private val diaryChanges = MutableLiveData<Unit>()
+
+    init {
+        viewModelScope.launch {
+            DiaryChangeBus.changes.collect { batch ->
+                // changes after a DatabaseReplaced are covered by the reload
+                batch.forEach { DiaryChangeBus.coalesce(pendingChanges, it) }
+                if (pendingChanges.isNotEmpty()) diaryChanges.value = Unit
+            }
+        }
+        viewModelScope.launch {
+            visibleTimeSpan
+                .flatMapLatest { (startDate, endDate) -> service.diaryEntryDatesByTimeSpan(startDate, endDate) }
+                .collect { visibleDiaryEntryDates.value = it }
+        }
+    }
+
+    /**
+     * Requests the dates of all diary entries for the time span that is
+     * currently visible. A query for a previously requested time span that
+     * has not finished yet is cancelled. Results are published via
+     * [getVisibleDiaryEntryDates], and again whenever an entry in the time
+     * span is saved or deleted.
+     */
+    fun showDiaryEntryDatesForTimeSpan(startDate: Date, endDate: Date) {
+        visibleTimeSpan.tryEmit(Pair(startDate, endDate))
+    }
+
+    fun getVisibleDiaryEntryDates(): LiveData<Set<Date>> {
+        return visibleDiaryEntryDates
+    }
+
+    /**
+     * Signals that there are changes to take with [takeDiaryChanges]. Changes
+     * published while no observer is active are kept, so an observer that
+     * becomes active again can patch its views instead of reloading them.
+     */
+    fun getDiaryChanges(): LiveData<Unit> {
+        return diaryChanges
+    }
+
+    /**
+     * Returns the changes published by the database service since the last
+     * call, see [DiaryChangeBus], and forgets them.
+     */
+    fun takeDiaryChanges(): List<DiaryChange> {
+        return pendingChanges.values.toList().also { pendingChanges.clear() }
+    }
+
     fun storeDiaryEntryAndAssociatedObjects(diaryEntry: DiaryEntryInterface) {
-        viewModelScope.launch(Dispatchers.IO) {
+        viewModelScope.launch(DatabaseScheduler.write) {
             service.storeDiaryEntryAndAssociatedObjects(
                 diaryEntry
             )
+            invalidateDiaryEntry(diaryEntry.date)
         }
     }
 
     fun updateDiaryEntryAndAssociatedObjects(diaryEntry: DiaryEntryInterface) {
-        viewModelScope.launch(Dispatchers.IO) {
+        viewModelScope.launch(DatabaseScheduler.write) {
             service.updateDiaryEntryAndAssociatedObjects(
                 diaryEntry
             )
+            invalidateDiaryEntry(diaryEntry.date)
         }
     }
 
     fun getDiaryEntryByDate(date: Date): LiveData<DiaryEntryInterface> {
         val diaryEntry = MutableLiveData<DiaryEntryInterface>()
-        viewModelScope.launch(Dispatchers.IO) {
-            diaryEntry.postValue(service.getDiaryEntryByDate(date))
+        viewModelScope.launch {
+            diaryEntry.postValue(queries.get(diaryEntryKey(date), DatabaseScheduler.interactive, ::copyOfDiaryEntry) {
+                service.getDiaryEntryByDate(date)
+            })
         }
         return diaryEntry
     }
 
     fun getDiaryEntryDatesByTimeSpan(startDate: Date, endDate: Date): LiveData<MutableSet<Date>> {
         val dateValues = MutableLiveData<MutableSet<Date>>()
-        viewModelScope.launch(Dispatchers.IO) {
+        viewModelScope.launch(DatabaseScheduler.interactive) {
             dateValues.postValue(service.getDiaryEntryDatesByTimeSpan(startDate, endDate))
         }
         return dateValues
@@ -54,7 +217,7 @@ class DatabaseViewModel(application: Application) : AndroidViewModel(application
         endDate: Date
     ): LiveData<List<DiaryEntryInterface>> {
         val diaryEntries = MutableLiveData<List<DiaryEntryInterface>>()
-        viewModelScope.launch(Dispatchers.IO) {
+        viewModelScope.launch(DatabaseScheduler.interactive) {
             diaryEntries.postValue(service.getDiaryEntriesByTimeSpan(startDate, endDate))
         }
         return diaryEntries
@@ -62,8 +225,9 @@ class DatabaseViewModel(application: Application) : AndroidViewModel(application
 
     fun deleteDiaryEntryAndAssociatedObjects(diaryEntry: DiaryEntryInterface): LiveData<Boolean> {
         val operationComplete = MutableLiveData(false)
-        viewModelScope.launch(Dispatchers.IO) {
+        viewModelScope.launch(DatabaseScheduler.write) {
             service.deleteDiaryEntryAndAssociatedObjects(diaryEntry)
+            invalidateDiaryEntry(diaryEntry.date)
             operationComplete.postValue(true)
         }
         return operationComplete
@@ -71,15 +235,17 @@ class DatabaseViewModel(application: Application) : AndroidViewModel(application
 
     fun getIDOfLatestDiaryEntry(): LiveData<Long> {
         val idValue: MutableLiveData<Long> = MutableLiveData()
-        viewModelScope.launch(Dispatchers.IO) {
-            idValue.postValue(service.idOfLatestDiaryEntry)
+        viewModelScope.launch {
+            idValue.postValue(queries.get(KEY_LATEST_DIARY_ENTRY_ID, DatabaseScheduler.interactive, { it }) {
+                service.idOfLatestDiaryEntry
+            })
         }
         return idValue
     }
 
     fun getDrugIntakesForDiaryEntry(id: Long): LiveData<Set<DrugIntakeInterface>> {
         val drugIntakes = MutableLiveData<Set<DrugIntakeInterface>>()
-        viewModelScope.launch(Dispatchers.IO) {
+        viewModelScope.launch(DatabaseScheduler.interactive) {
             drugIntakes.postValue(service.getDrugIntakesForDiaryEntry(id))
         }
         return drugIntakes
@@ -87,36 +253,43 @@ class DatabaseViewModel(application: Application) : AndroidViewModel(application
 
     fun getAllDrugs(): LiveData<List<DrugInterface>> {
         val drugs = MutableLiveData<List<DrugInterface>>()
-        viewModelScope.launch(Dispatchers.IO) {
-            drugs.postValue(service.allDrugs)
+        viewModelScope.launch {
+            drugs.postValue(queries.get(KEY_ALL_DRUGS, DatabaseScheduler.interactive, ::copyOfDrugs) {
+                service.allDrugs
+            })
         }
         return drugs
     }
 
     fun getUserByID(userID: Long): LiveData<UserInterface> {
         val user = MutableLiveData<UserInterface>()
-        viewModelScope.launch(Dispatchers.IO) {
-            user.postValue(service.getUserByID(userID))
+        viewModelScope.launch {
+            user.postValue(queries.get(userKey(userID), DatabaseScheduler.interactive, ::copyOfUser) {
+                service.getUserByID(userID)
+            })
         }
         return user
     }
 
     fun storeUser(user: UserInterface): LiveData<Long> {
         val userID = MutableLiveData<Long>()
-        viewModelScope.launch(Dispatchers.IO) {
-            userID.postValue(service.storeUser(user))
+        viewModelScope.launch(DatabaseScheduler.write) {
+            val id = service.storeUser(user)
+            queries.invalidate(userKey(id))
+            userID.postValue(id)
         }
         return userID
     }
 
     fun updateUser(user: UserInterface) {
-        viewModelScope.launch(Dispatchers.IO) {
+        viewModelScope.launch(DatabaseScheduler.write) {
             service.updateUser(user)
+            queries.invalidate(userKey(user.objectID))
         }
     }
 
     fun initializeDatabase() {
-        viewModelScope.launch(Dispatchers.IO) {
+        viewModelScope.launch(DatabaseScheduler.write) {
             service.initializeDatabase()
         }
     }
@@ -0,0 +1,113 @@
+package org.secuso.privacyfriendlypaindiary.viewmodel
+
+import android.os.SystemClock
+import kotlinx.coroutines.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Keyed single-flight layer for database reads.
+ *
+ * Concurrent calls with the same key share one query, and a finished result is
+ * served to later calls for [ttlMillis] unless [invalidate] has been called in
+ * the meantime. Queries run in their own scope, so a caller that goes away
+ * (e.g. on rotation) does not cancel the query for the others.
+ *
+ * The result kept for the calls is never handed out itself: every call gets
+ * its own copy, so a caller that changes it (e.g. an entry being edited) does
+ * not change what the other and later calls see.
+ */
+class QueryCoalescer(private val ttlMillis: Long) {
+    private class Entry(val deferred: Deferred<Any?>, val generation: Long) {
+        @Volatile
+        var completedAt = 0L
+    }
+
+    private val scope = CoroutineScope(SupervisorJob())
+    private val entries = ConcurrentHashMap<Any, Entry>()
+    private val generation = AtomicLong()
+
+    private val executed = AtomicLong()
+    private val joined = AtomicLong()
+    private val cached = AtomicLong()
+
+    /**
+     * Number of queries that were actually executed.
+     */
+    val executedCount: Long
+        get() = executed.get()
+
+    /**
+     * Number of calls that joined a query already in flight.
+     */
+    val joinedCount: Long
+        get() = joined.get()
+
+    /**
+     * Number of calls that were answered from a cached result.
+     */
+    val cachedCount: Long
+        get() = cached.get()
+
+    /**
+     * @param copy makes the copy of the result handed to each call, may
+     * return the result itself if it is immutable
+     */
+    @Suppress("UNCHECKED_CAST")
+    suspend fun <T> get(key: Any, dispatcher: CoroutineDispatcher, copy: (T) -> T, query: () -> T): T {
+        while (true) {
+            val existing = entries[key]
+            if (existing != null) {
+                val deferred = existing.deferred
+                if (!deferred.isCompleted) {
+                    joined.incrementAndGet()
+                    return copy(deferred.await() as T)
+                }
+                if (isFresh(existing)) {
+                    cached.incrementAndGet()
+                    return copy(deferred.getCompleted() as T)
+                }
+                entries.remove(key, existing)
+            }
+
+            val deferred = scope.async(dispatcher, CoroutineStart.LAZY) { query() }
+            val entry = Entry(deferred, generation.get())
+            if (entries.putIfAbsent(key, entry) != null) {
+                deferred.cancel()
+                continue
+            }
+            deferred.invokeOnCompletion { cause ->
+                entry.completedAt = SystemClock.elapsedRealtime()
+                if (cause != null) {
+                    entries.remove(key, entry)
+                }
+            }
+            executed.incrementAndGet()
+            deferred.start()
+            return copy(deferred.await() as T)
+        }
+    }
+
+    /**
+     * Drops the cached result for the given key. A query for that key that is
+     * in flight still completes for the calls waiting for it.
+     */
+    fun invalidate(key: Any) {
+        entries.remove(key)
+    }
+
+    /**
+     * Drops all cached results. Queries in flight still complete for the calls
+     * that are waiting for them, but their results are not served to later calls.
+     */
+    fun invalidate() {
+        generation.incrementAndGet()
+        entries.clear()
+    }
+
+    private fun isFresh(entry: Entry): Boolean {
+        return entry.generation == generation.get()
+                && !entry.deferred.isCancelled
+                && SystemClock.elapsedRealtime() - entry.completedAt < ttlMillis
+    }
+}
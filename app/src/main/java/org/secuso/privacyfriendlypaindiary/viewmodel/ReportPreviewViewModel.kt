@@ -0,0 +1,86 @@
+package org.secuso.privacyfriendlypaindiary.viewmodel
+
+import android.app.ActivityManager
+import android.app.Application
+import android.content.Context
+import android.util.Log
+import androidx.lifecycle.AndroidViewModel
+import androidx.lifecycle.LiveData
+import androidx.lifecycle.MutableLiveData
+import androidx.lifecycle.viewModelScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import org.secuso.privacyfriendlypaindiary.database.DatabaseScheduler
+import org.secuso.privacyfriendlypaindiary.export.ExportRequest
+import org.secuso.privacyfriendlypaindiary.export.PdfPreviewRenderer
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+
+/**
+ * Writes the PDF report of a request to the cache directory and opens it in a
+ * [PdfPreviewRenderer]. [PdfRenderer][android.graphics.pdf.PdfRenderer] needs a
+ * seekable file, so the report cannot be rendered from a pipe; the file is
+ * deleted as soon as the preview is closed. The renderer survives
+ * configuration changes.
+ */
+class ReportPreviewViewModel(application: Application) : AndroidViewModel(application) {
+
+    companion object {
+        private val TAG = ReportPreviewViewModel::class.java.simpleName
+        private const val PREVIEW_DIRECTORY = "preview"
+        // share of the memory class the rendered pages may take
+        private const val CACHE_FRACTION = 8
+    }
+
+    private val pageCount = MutableLiveData<Int>()
+    private var file: File? = null
+
+    var renderer: PdfPreviewRenderer? = null
+        private set
+
+    /**
+     * Starts rendering the report once and returns its number of pages, or
+     * -1 if it could not be written.
+     */
+    fun load(request: ExportRequest): LiveData<Int> {
+        if (file != null) return pageCount
+        val app = getApplication<Application>()
+        val directory = File(app.cacheDir, PREVIEW_DIRECTORY)
+        val file = File(directory, request.fileName)
+        this.file = file
+        viewModelScope.launch {
+            try {
+                val renderer = withContext(DatabaseScheduler.bulk) {
+                    // left over if the process died during an earlier preview
+                    directory.listFiles()?.forEach { it.delete() }
+                    directory.mkdirs()
+                    FileOutputStream(file).use { out ->
+                        val buffered = out.buffered()
+                        request.write(app, buffered)
+                        buffered.flush()
+                    }
+                    PdfPreviewRenderer(file, getCacheBytes(app))
+                }
+                this@ReportPreviewViewModel.renderer = renderer
+                pageCount.value = renderer.pageCount
+            } catch (e: IOException) {
+                Log.e(TAG, "Failed to render preview", e)
+                file.delete()
+                pageCount.value = -1
+            }
+        }
+        return pageCount
+    }
+
+    private fun getCacheBytes(context: Context): Int {
+        val activityManager = context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
+        return activityManager.memoryClass * 1024 * 1024 / CACHE_FRACTION
+    }
+
+    override fun onCleared() {
+        renderer?.close()
+        renderer = null
+        file?.delete()
+    }
+}
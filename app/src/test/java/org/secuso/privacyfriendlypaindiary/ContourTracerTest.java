@@ -0,0 +1,79 @@
+package org.secuso.privacyfriendlypaindiary;
+
+import org.junit.Test;
+import org.secuso.privacyfriendlypaindiary.helpers.ContourTracer;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that the polygons traced by {@link ContourTracer} cover exactly the
+ * pixels of the mask.
+ */
+public class ContourTracerTest {
+
+    @Test
+    public void trace_squareWithHole() {
+        boolean[] mask = new boolean[25];
+        for (int y = 1; y < 4; y++) {
+            for (int x = 1; x < 4; x++) {
+                mask[y * 5 + x] = true;
+            }
+        }
+        mask[12] = false;
+
+        List<float[]> polygons = ContourTracer.trace(mask, 5, 5);
+        assertEquals(2, polygons.size());
+        assertArrayEquals(new float[]{1, 1, 4, 1, 4, 4, 1, 4}, polygons.get(0), 0f);
+        assertEquals(9.0, area(polygons.get(0)), 1e-9);
+        assertEquals(-1.0, area(polygons.get(1)), 1e-9);
+    }
+
+    @Test
+    public void trace_keepsDiagonalNeighboursApart() {
+        List<float[]> polygons = ContourTracer.trace(new boolean[]{true, false, false, true}, 2, 2);
+        assertEquals(2, polygons.size());
+        assertEquals(4, polygons.get(0).length / 2);
+        assertEquals(4, polygons.get(1).length / 2);
+    }
+
+    @Test
+    public void trace_areaMatchesPixelCount() {
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            int width = 1 + random.nextInt(16);
+            int height = 1 + random.nextInt(16);
+            boolean[] mask = new boolean[width * height];
+            int pixels = 0;
+            for (int j = 0; j < mask.length; j++) {
+                mask[j] = random.nextInt(3) > 0;
+                if (mask[j]) pixels++;
+            }
+            double area = 0;
+            for (float[] polygon : ContourTracer.trace(mask, width, height)) {
+                area += area(polygon);
+            }
+            assertEquals(pixels, area, 1e-9);
+        }
+    }
+
+    @Test
+    public void simplify_removesStaircase() {
+        float[] staircase = {0, 0, 10, 0, 10, 1, 11, 1, 11, 2, 12, 2, 12, 12, 0, 12};
+        assertArrayEquals(new float[]{0, 0, 10, 0, 12, 2, 12, 12, 0, 12},
+                ContourTracer.simplify(staircase, 1.5f), 0f);
+    }
+
+    private static double area(float[] polygon) {
+        double area = 0;
+        int n = polygon.length / 2;
+        for (int i = 0; i < n; i++) {
+            int j = (i + 1) % n;
+            area += polygon[2 * i] * polygon[2 * j + 1] - polygon[2 * j] * polygon[2 * i + 1];
+        }
+        return area / 2;
+    }
+}
@@ -0,0 +1,49 @@
+package org.secuso.privacyfriendlypaindiary;
+
+import org.junit.Test;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.BodyRegion;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Condition;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.PainQuality;
+import org.secuso.privacyfriendlypaindiary.database.entities.enums.Time;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DiaryEntry;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.Drug;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.DrugIntake;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.PainDescription;
+import org.secuso.privacyfriendlypaindiary.database.entities.impl.User;
+import org.secuso.privacyfriendlypaindiary.database.entities.interfaces.DrugIntakeInterface;
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays;
+import org.secuso.privacyfriendlypaindiary.export.CsvExportSink;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the records written by {@link CsvExportSink}.
+ */
+public class CsvExportSinkTest {
+
+    @Test
+    public void entry_writesOneQuotedRecordPerEntry() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CsvExportSink sink = new CsvExportSink(out);
+        sink.begin(EpochDays.toDate(19723), EpochDays.toDate(19724), new User());
+
+        PainDescription painDescription = new PainDescription(7, EnumSet.of(BodyRegion.HEAD, BodyRegion.NECK),
+                EnumSet.of(PainQuality.DULL), EnumSet.of(Time.MORNING));
+        DrugIntakeInterface intake = new DrugIntake(new Drug("Ibuprofen", "400 mg"), 1, 0, 1, 0);
+        sink.entry(new DiaryEntry(EpochDays.toDate(19723), Condition.GOOD, painDescription,
+                "tired, \"slept badly\"", Collections.singleton(intake)));
+        sink.entry(new DiaryEntry(EpochDays.toDate(19724), null, null, null, null));
+        sink.finish();
+
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\r\n");
+        assertEquals(3, lines.length);
+        assertEquals("date,condition,pain_level,body_regions,pain_qualities,times_of_pain,medication,notes", lines[0]);
+        assertEquals("2024-01-01,3,7,neck;head,dull,morning,Ibuprofen 400 mg 1-0-1-0,\"tired, \"\"slept badly\"\"\"", lines[1]);
+        assertEquals("2024-01-02,,,,,,,", lines[2]);
+    }
+}
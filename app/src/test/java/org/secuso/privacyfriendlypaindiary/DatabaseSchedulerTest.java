@@ -0,0 +1,146 @@
+package org.secuso.privacyfriendlypaindiary;
+
+import org.junit.Test;
+import org.secuso.privacyfriendlypaindiary.database.DatabaseScheduler;
+import org.secuso.privacyfriendlypaindiary.database.DatabaseScheduler.Lane;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the lanes of the database scheduler.
+ */
+public class DatabaseSchedulerTest {
+
+    private static final int READER_COUNT = 3;
+    private static final long MAX_YIELD_MILLIS = 250;
+
+    @Test
+    public void execute_runsInteractiveBeforeQueuedBackground() throws Exception {
+        List<CountDownLatch> releases = new ArrayList<>();
+        CountDownLatch busy = new CountDownLatch(READER_COUNT);
+        for (int i = 0; i < READER_COUNT; i++) {
+            CountDownLatch release = new CountDownLatch(1);
+            releases.add(release);
+            DatabaseScheduler.execute(Lane.BACKGROUND, () -> {
+                busy.countDown();
+                await(release);
+            });
+        }
+        assertTrue(busy.await(5, TimeUnit.SECONDS));
+
+        List<String> order = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        DatabaseScheduler.execute(Lane.BACKGROUND, () -> run(order, "background 1", done));
+        DatabaseScheduler.execute(Lane.BACKGROUND, () -> run(order, "background 2", done));
+        DatabaseScheduler.execute(Lane.INTERACTIVE, () -> run(order, "interactive", done));
+
+        // a single free reader takes the queued tasks one by one
+        releases.get(0).countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (CountDownLatch release : releases) {
+            release.countDown();
+        }
+        assertEquals("interactive", order.get(0));
+        assertEquals("background 1", order.get(1));
+        assertEquals("background 2", order.get(2));
+    }
+
+    @Test
+    public void runOn_runsInlineOnSameLane() {
+        // the writer has a single thread, so a nested call would deadlock if it were queued
+        Thread[] threads = DatabaseScheduler.runOn(Lane.WRITE, () -> new Thread[]{
+                Thread.currentThread(),
+                DatabaseScheduler.runOn(Lane.WRITE, Thread::currentThread)
+        });
+        assertSame(threads[0], threads[1]);
+        assertTrue(threads[0].getName().startsWith("db-writer"));
+    }
+
+    @Test
+    public void runOn_rethrowsCause() {
+        IllegalStateException failure = new IllegalStateException("failed");
+        try {
+            DatabaseScheduler.runOn(Lane.BACKGROUND, () -> {
+                throw failure;
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void yieldToInteractive_waitsForPendingReads() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        DatabaseScheduler.execute(Lane.INTERACTIVE, () -> await(release));
+
+        long start = System.nanoTime();
+        DatabaseScheduler.runOn(Lane.BULK, () -> {
+            new Thread(() -> {
+                sleep(50);
+                release.countDown();
+            }).start();
+            DatabaseScheduler.yieldToInteractive();
+            return null;
+        });
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(millis >= 50);
+        assertTrue(millis < MAX_YIELD_MILLIS);
+    }
+
+    @Test
+    public void yieldToInteractive_isBounded() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        DatabaseScheduler.execute(Lane.INTERACTIVE, () -> await(release));
+        try {
+            AtomicLong millis = new AtomicLong();
+            DatabaseScheduler.runOn(Lane.BULK, () -> {
+                long start = System.nanoTime();
+                DatabaseScheduler.yieldToInteractive();
+                millis.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                return null;
+            });
+            assertTrue(millis.get() >= MAX_YIELD_MILLIS);
+            assertTrue(millis.get() < 4 * MAX_YIELD_MILLIS);
+
+            // only the bulk lane yields
+            long start = System.nanoTime();
+            DatabaseScheduler.yieldToInteractive();
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < MAX_YIELD_MILLIS);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private static void run(List<String> order, String name, CountDownLatch done) {
+        synchronized (order) {
+            order.add(name);
+        }
+        done.countDown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
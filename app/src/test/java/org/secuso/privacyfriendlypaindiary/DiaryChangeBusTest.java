@@ -0,0 +1,102 @@
+package org.secuso.privacyfriendlypaindiary;
+
+import org.junit.Test;
+import org.secuso.privacyfriendlypaindiary.database.DiaryChange;
+import org.secuso.privacyfriendlypaindiary.database.DiaryChangeBus;
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import kotlin.Unit;
+import kotlin.coroutines.EmptyCoroutineContext;
+import kotlinx.coroutines.BuildersKt;
+import kotlinx.coroutines.flow.FlowKt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that diary changes are delivered in coalesced batches, and that
+ * replacing the database supersedes every other change.
+ */
+public class DiaryChangeBusTest {
+
+    private static final Date DAY = EpochDays.toDate(20_000);
+    private static final Date OTHER_DAY = EpochDays.toDate(20_001);
+
+    @Test
+    public void publish_coalescesChangesIntoOneBatch() throws Exception {
+        List<DiaryChange> batch = publishAndTakeBatch(
+                new DiaryChange.EntrySaved(DAY),
+                new DiaryChange.DrugChanged(1),
+                new DiaryChange.EntryDeleted(DAY),
+                new DiaryChange.EntrySaved(OTHER_DAY),
+                new DiaryChange.DrugChanged(1));
+
+        // only the latest change of every object, in the order of the latest changes
+        assertEquals(Arrays.asList(
+                new DiaryChange.EntryDeleted(DAY),
+                new DiaryChange.EntrySaved(OTHER_DAY),
+                new DiaryChange.DrugChanged(1)), batch);
+    }
+
+    @Test
+    public void publish_databaseReplacedSupersedesBatch() throws Exception {
+        List<DiaryChange> batch = publishAndTakeBatch(
+                new DiaryChange.EntrySaved(DAY),
+                DiaryChange.DatabaseReplaced.INSTANCE,
+                new DiaryChange.UserChanged(1));
+
+        assertEquals(Collections.singletonList(DiaryChange.DatabaseReplaced.INSTANCE), batch);
+    }
+
+    @Test
+    public void coalesce_databaseReplacedSupersedesEarlierAndLaterBatches() {
+        // as the view model collects the batches it has not handed out yet
+        Map<Object, DiaryChange> pending = new LinkedHashMap<>();
+        assertTrue(DiaryChangeBus.coalesce(pending, new DiaryChange.EntrySaved(DAY)));
+        assertTrue(DiaryChangeBus.coalesce(pending, new DiaryChange.DrugChanged(1)));
+        assertTrue(DiaryChangeBus.coalesce(pending, DiaryChange.DatabaseReplaced.INSTANCE));
+        assertFalse(DiaryChangeBus.coalesce(pending, new DiaryChange.EntryDeleted(OTHER_DAY)));
+        assertTrue(DiaryChangeBus.coalesce(pending, DiaryChange.DatabaseReplaced.INSTANCE));
+
+        assertEquals(Collections.singletonList(DiaryChange.DatabaseReplaced.INSTANCE),
+                new ArrayList<>(pending.values()));
+    }
+
+    /**
+     * Publishes the given changes right after each other and returns the
+     * first batch delivered after them.
+     */
+    private static List<DiaryChange> publishAndTakeBatch(DiaryChange... changes) throws Exception {
+        CountDownLatch subscribed = new CountDownLatch(1);
+        ExecutorService collector = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<DiaryChange>> batch = collector.submit(() ->
+                    BuildersKt.<List<DiaryChange>>runBlocking(EmptyCoroutineContext.INSTANCE, (scope, continuation) ->
+                            FlowKt.first(FlowKt.onSubscription(DiaryChangeBus.getChanges(), (flowCollector, c) -> {
+                                subscribed.countDown();
+                                return Unit.INSTANCE;
+                            }), continuation)));
+            assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+            for (DiaryChange change : changes) {
+                DiaryChangeBus.publish(change);
+            }
+            return batch.get(5, TimeUnit.SECONDS);
+        } finally {
+            collector.shutdownNow();
+        }
+    }
+}
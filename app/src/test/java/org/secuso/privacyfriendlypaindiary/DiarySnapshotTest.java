@@ -0,0 +1,89 @@
+package org.secuso.privacyfriendlypaindiary;
+
+import org.junit.Test;
+import org.secuso.privacyfriendlypaindiary.database.DiarySnapshot;
+import org.secuso.privacyfriendlypaindiary.database.PainTrend;
+import org.secuso.privacyfriendlypaindiary.database.utils.EpochDays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the range queries and incremental updates of {@link DiarySnapshot}.
+ */
+public class DiarySnapshotTest {
+
+    @Test
+    public void epochDays_roundTrip() {
+        assertEquals(0, EpochDays.fromCivil(1970, 1, 1));
+        assertEquals(11016, EpochDays.fromCivil(2000, 2, 29));
+        assertEquals(EpochDays.fromCivil(2024, 3, 1), EpochDays.fromDatabaseString("2024-03-01"));
+        for (int day = -1000; day < 30000; day += 37) {
+            assertEquals(day, EpochDays.fromDate(EpochDays.toDate(day)));
+        }
+    }
+
+    @Test
+    public void upsert_keepsEntriesSortedAndReplacesExisting() {
+        DiarySnapshot snapshot = new DiarySnapshot(2);
+        snapshot.upsert(30, 5, 2, 0L, 0);
+        snapshot.upsert(10, 3, 1, 0L, 0);
+        snapshot.upsert(20, 7, 0, 0L, 0);
+        snapshot.upsert(20, 8, 0, 0L, 0);
+
+        assertEquals(3, snapshot.getSize());
+        assertArrayEquals(new int[]{10, 20, 30}, snapshot.epochDays(0, 100));
+        assertArrayEquals(new int[]{20}, snapshot.epochDays(11, 29));
+        assertEquals(1, snapshot.painLevelHistogram(0, 100)[8]);
+        assertEquals(0, snapshot.painLevelHistogram(0, 100)[7]);
+    }
+
+    @Test
+    public void remove_dropsOnlyGivenDay() {
+        DiarySnapshot snapshot = new DiarySnapshot();
+        for (int day = 0; day < 10; day++) {
+            snapshot.upsert(day, day, DiarySnapshot.NO_VALUE, 0L, 0);
+        }
+        assertTrue(snapshot.remove(4));
+        assertFalse(snapshot.remove(4));
+        assertFalse(snapshot.contains(4));
+        assertEquals(9, snapshot.getSize());
+        assertEquals(4, snapshot.count(0, 4));
+        assertEquals(9, snapshot.conditionHistogram(0, 100)[5]);
+    }
+
+    @Test
+    public void aggregates_overRange() {
+        DiarySnapshot snapshot = new DiarySnapshot();
+        snapshot.upsert(1, 2, 4, DiarySnapshot.regionMask("0,15"), 0);
+        snapshot.upsert(2, 4, 3, DiarySnapshot.regionMask("15"), 0);
+        snapshot.upsert(3, 6, 2, 0L, 0);
+        snapshot.upsert(4, 8, 1, DiarySnapshot.regionMask("43"), 0);
+
+        assertEquals(5.0, snapshot.meanPainLevel(1, 4), 1e-9);
+        assertEquals(3.0, snapshot.meanPainLevel(1, 2), 1e-9);
+        assertEquals(-1.0, snapshot.painConditionCorrelation(1, 4), 1e-9);
+
+        int[] regions = snapshot.bodyRegionFrequencies(1, 4);
+        assertEquals(1, regions[0]);
+        assertEquals(2, regions[15]);
+        assertEquals(1, regions[43]);
+        assertEquals(1, snapshot.bodyRegionFrequencies(2, 3)[15]);
+    }
+
+    @Test
+    public void painTrend_keepsMissingValues() {
+        DiarySnapshot snapshot = new DiarySnapshot();
+        snapshot.upsert(5, 3, DiarySnapshot.NO_VALUE, 0L, 0);
+        snapshot.upsert(7, DiarySnapshot.NO_VALUE, 2, 0L, 0);
+        snapshot.upsert(9, 10, 0, 0L, 0);
+
+        PainTrend trend = snapshot.painTrend(6, 9);
+        assertArrayEquals(new int[]{7, 9}, trend.getEpochDays());
+        assertArrayEquals(new int[]{DiarySnapshot.NO_VALUE, 10}, trend.getPainLevels());
+        assertArrayEquals(new int[]{2, 0}, trend.getConditions());
+        assertEquals(0, snapshot.painTrend(10, 20).getSize());
+    }
+}
@@ -0,0 +1,62 @@
+package org.secuso.privacyfriendlypaindiary;
+
+import org.junit.Test;
+import org.secuso.privacyfriendlypaindiary.helpers.Downsampler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the Largest-Triangle-Three-Buckets downsampling of {@link Downsampler}.
+ */
+public class DownsamplerTest {
+
+    @Test
+    public void lttb_keepsShortSeries() {
+        double[] x = {0, 1, 2, 3};
+        double[] y = {1, 5, 2, 8};
+        int[] selected = Downsampler.largestTriangleThreeBuckets(x, y, 4, 10);
+
+        assertEquals(4, selected.length);
+        for (int i = 0; i < selected.length; i++) {
+            assertEquals(i, selected[i]);
+        }
+    }
+
+    @Test
+    public void lttb_selectsThresholdPointsInOrder() {
+        int count = 3650;
+        double[] x = new double[count];
+        double[] y = new double[count];
+        for (int i = 0; i < count; i++) {
+            x[i] = i;
+            y[i] = (i * 7919) % 11;
+        }
+        int[] selected = Downsampler.largestTriangleThreeBuckets(x, y, count, 200);
+
+        assertEquals(200, selected.length);
+        assertEquals(0, selected[0]);
+        assertEquals(count - 1, selected[selected.length - 1]);
+        for (int i = 1; i < selected.length; i++) {
+            assertTrue(selected[i] > selected[i - 1]);
+        }
+    }
+
+    @Test
+    public void lttb_keepsPeaks() {
+        int count = 1000;
+        double[] x = new double[count];
+        double[] y = new double[count];
+        for (int i = 0; i < count; i++) {
+            x[i] = i;
+        }
+        y[500] = 10;
+        int[] selected = Downsampler.largestTriangleThreeBuckets(x, y, count, 20);
+
+        boolean peak = false;
+        for (int index : selected) {
+            peak |= index == 500;
+        }
+        assertTrue(peak);
+    }
+}
@@ -0,0 +1,50 @@
+package org.secuso.privacyfriendlypaindiary;
+
+import org.junit.Test;
+import org.secuso.privacyfriendlypaindiary.backup.IdSet;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the sets of row IDs used by the backup verifier.
+ */
+public class IdSetTest {
+
+    @Test
+    public void add_reportsDuplicatesAcrossPages() {
+        IdSet ids = new IdSet();
+        assertTrue(ids.add(1));
+        assertTrue(ids.add(4096));
+        assertTrue(ids.add(1_000_000_007L));
+        assertFalse(ids.add(4096));
+        assertEquals(3, ids.getSize());
+        assertTrue(ids.contains(1_000_000_007L));
+        assertFalse(ids.contains(4095));
+        assertFalse(ids.contains(-1));
+    }
+
+    @Test
+    public void missingIn_listsReferencesWithoutTarget() {
+        IdSet referenced = new IdSet();
+        IdSet existing = new IdSet();
+        for (long id = 1; id <= 10_000; id++) {
+            existing.add(id);
+            referenced.add(id);
+        }
+        existing.add(20_000);
+        referenced.add(70);
+        referenced.add(10_001);
+        referenced.add(50_000);
+        referenced.add(12_345);
+
+        assertEquals(Arrays.asList(10_001L, 12_345L), referenced.missingIn(existing, 2));
+        assertEquals(3, referenced.countMissingIn(existing));
+        assertEquals(Collections.emptyList(), existing.missingIn(existing, 5));
+        assertEquals(1, existing.countMissingIn(referenced));
+    }
+}
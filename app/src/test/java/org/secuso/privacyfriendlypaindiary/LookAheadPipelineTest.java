@@ -0,0 +1,64 @@
+package org.secuso.privacyfriendlypaindiary;
+
+import org.junit.Test;
+import org.secuso.privacyfriendlypaindiary.helpers.LookAheadPipeline;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that {@link LookAheadPipeline} hands out items in order and stays
+ * within its look-ahead.
+ */
+public class LookAheadPipelineTest {
+
+    @Test
+    public void next_returnsItemsInIndexOrder() {
+        try (LookAheadPipeline<Integer> pipeline = new LookAheadPipeline<>(index -> {
+            // later items finish first
+            sleep((20 - index) % 5);
+            return index * index;
+        }, 5, 20, 4, 8)) {
+            for (int index = 5; index < 20; index++) {
+                assertTrue(pipeline.hasNext());
+                assertEquals(index, pipeline.nextIndex());
+                assertEquals(index * index, (int) pipeline.next());
+            }
+            assertFalse(pipeline.hasNext());
+        }
+    }
+
+    @Test
+    public void next_producesAtMostLookAheadItems() {
+        AtomicInteger produced = new AtomicInteger();
+        try (LookAheadPipeline<Integer> pipeline = new LookAheadPipeline<>(index -> {
+            produced.incrementAndGet();
+            return index;
+        }, 0, 100, 4, 3)) {
+            pipeline.next();
+            sleep(50);
+            // the consumed item and three ahead of it
+            assertEquals(4, produced.get());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void next_rethrowsExceptionOfProducer() {
+        try (LookAheadPipeline<Integer> pipeline = new LookAheadPipeline<>(index -> {
+            throw new IllegalStateException("index " + index);
+        }, 0, 1, 1, 1)) {
+            pipeline.next();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.secuso.privacyfriendlypaindiary;
+
+import org.junit.Test;
+import org.secuso.privacyfriendlypaindiary.helpers.PagePacker;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the distribution of blocks onto pages by {@link PagePacker}.
+ */
+public class PagePackerTest {
+
+    private static final int PAGE_HEIGHT = 100;
+
+    @Test
+    public void pack_fillsPagesGreedily() {
+        List<List<PagePacker.Fragment>> pages = PagePacker.pack(blocks(30, 30, 30, 30), PAGE_HEIGHT);
+
+        assertEquals(2, pages.size());
+        assertEquals(3, pages.get(0).size());
+        assertEquals(60, pages.get(0).get(2).y);
+        assertFragment(pages.get(1).get(0), 3, 0, 30, 0);
+    }
+
+    @Test
+    public void pack_movesBlockThatFitsOnNextPage() {
+        List<List<PagePacker.Fragment>> pages = PagePacker.pack(blocks(60, 60, 10), PAGE_HEIGHT);
+
+        assertEquals(2, pages.size());
+        assertEquals(1, pages.get(0).size());
+        assertFragment(pages.get(1).get(0), 1, 0, 60, 0);
+        assertFragment(pages.get(1).get(1), 2, 0, 10, 60);
+    }
+
+    @Test
+    public void pack_splitsTallBlockAtBreakPoints() {
+        List<List<PagePacker.Fragment>> pages = PagePacker.pack(blocks(50, 250), PAGE_HEIGHT);
+
+        // break points every 15 units
+        assertEquals(4, pages.size());
+        assertFragment(pages.get(0).get(1), 1, 0, 45, 50);
+        assertFragment(pages.get(1).get(0), 1, 45, 135, 0);
+        assertFragment(pages.get(2).get(0), 1, 135, 225, 0);
+        assertFragment(pages.get(3).get(0), 1, 225, 250, 0);
+    }
+
+    @Test
+    public void pack_cutsBlockWithoutBreakPoints() {
+        PagePacker.Blocks blocks = new PagePacker.Blocks() {
+            @Override
+            public int count() {
+                return 2;
+            }
+
+            @Override
+            public int height(int block) {
+                return block == 0 ? 10 : 150;
+            }
+
+            @Override
+            public int breakBefore(int block, int from, int limit) {
+                return from;
+            }
+        };
+        List<List<PagePacker.Fragment>> pages = PagePacker.pack(blocks, PAGE_HEIGHT);
+
+        assertEquals(3, pages.size());
+        assertEquals(1, pages.get(0).size());
+        assertFragment(pages.get(1).get(0), 1, 0, 100, 0);
+        assertFragment(pages.get(2).get(0), 1, 100, 150, 0);
+    }
+
+    @Test
+    public void pack_returnsOneEmptyPageWithoutBlocks() {
+        List<List<PagePacker.Fragment>> pages = PagePacker.pack(blocks(), PAGE_HEIGHT);
+
+        assertEquals(1, pages.size());
+        assertEquals(0, pages.get(0).size());
+    }
+
+    private static void assertFragment(PagePacker.Fragment fragment, int block, int from, int to, int y) {
+        assertEquals(block, fragment.block);
+        assertEquals(from, fragment.from);
+        assertEquals(to, fragment.to);
+        assertEquals(y, fragment.y);
+    }
+
+    /**
+     * Blocks of the given heights that may be split every 15 units.
+     */
+    private static PagePacker.Blocks blocks(final int... heights) {
+        return new PagePacker.Blocks() {
+            @Override
+            public int count() {
+                return heights.length;
+            }
+
+            @Override
+            public int height(int block) {
+                return heights[block];
+            }
+
+            @Override
+            public int breakBefore(int block, int from, int limit) {
+                int offset = limit / 15 * 15;
+                return offset > from ? offset : from;
+            }
+        };
+    }
+}
@@ -0,0 +1,109 @@
+package org.secuso.privacyfriendlypaindiary;
+
+import org.junit.Test;
+import org.secuso.privacyfriendlypaindiary.export.PdfSplicer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that {@link PdfSplicer} produces a document whose cross-reference table
+ * and page tree are consistent with the pages of all parts.
+ */
+public class PdfSplicerTest {
+
+    @Test
+    public void splice_countsAllPages() throws IOException {
+        byte[] spliced = splice(createPdf(2, "first"), createPdf(1, "second"));
+        String text = new String(spliced, StandardCharsets.ISO_8859_1);
+
+        assertTrue(text.contains("/Count 3"));
+        assertTrue(text.contains("BT (first 1) Tj ET"));
+        assertTrue(text.contains("BT (second 0) Tj ET"));
+        // the output is a valid part itself
+        assertEquals(3, new PdfSplicer(new ByteArrayOutputStream()).append(spliced));
+    }
+
+    @Test
+    public void splice_keepsStreamDataVerbatim() throws IOException {
+        byte[] part = createPdf(1, "endobj 1 0 R");
+        byte[] spliced = splice(part, part);
+        String text = new String(spliced, StandardCharsets.ISO_8859_1);
+
+        int first = text.indexOf("BT (endobj 1 0 R 0) Tj ET");
+        assertTrue(first >= 0);
+        assertTrue(text.indexOf("BT (endobj 1 0 R 0) Tj ET", first + 1) > first);
+    }
+
+    @Test
+    public void splice_continuesFromState() throws IOException {
+        byte[] first = createPdf(2, "first");
+        byte[] second = createPdf(1, "second");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PdfSplicer splicer = new PdfSplicer(out);
+        splicer.append(first);
+        PdfSplicer.State state = splicer.state();
+        assertEquals(out.size(), state.getSize());
+
+        // a new splicer continues on the output as it was at the time of the state
+        PdfSplicer resumed = new PdfSplicer(out, state);
+        resumed.append(second);
+        resumed.finish();
+
+        assertArrayEquals(splice(first, second), out.toByteArray());
+    }
+
+    private static byte[] splice(byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PdfSplicer splicer = new PdfSplicer(out);
+        for (byte[] part : parts) {
+            splicer.append(part);
+        }
+        splicer.finish();
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates a PDF with the same object layout as the ones written by
+     * android.graphics.pdf.PdfDocument: catalog, page tree, pages and content streams.
+     */
+    private static byte[] createPdf(int pages, String label) {
+        List<String> objects = new ArrayList<>();
+        objects.add("<</Type /Catalog /Pages 2 0 R>>");
+        StringBuilder kids = new StringBuilder();
+        for (int i = 0; i < pages; i++) {
+            kids.append(4 + 2 * i).append(" 0 R ");
+        }
+        objects.add("<</Type /Pages /Kids [" + kids.toString().trim() + "] /Count " + pages + ">>");
+        objects.add("<</Producer (Test)>>");
+        for (int i = 0; i < pages; i++) {
+            objects.add("<</Type /Page /Parent 2 0 R /MediaBox [0 0 595 842] /Contents " + (5 + 2 * i) + " 0 R>>");
+            String content = "BT (" + label + " " + i + ") Tj ET";
+            objects.add("<</Length " + content.length() + ">>\nstream\n" + content + "\nendstream");
+        }
+
+        StringBuilder pdf = new StringBuilder("%PDF-1.4\n");
+        int[] offsets = new int[objects.size()];
+        for (int i = 0; i < objects.size(); i++) {
+            offsets[i] = pdf.length();
+            pdf.append(i + 1).append(" 0 obj\n").append(objects.get(i)).append("\nendobj\n");
+        }
+        int xref = pdf.length();
+        pdf.append("xref\n0 ").append(objects.size() + 1).append("\n0000000000 65535 f \n");
+        for (int offset : offsets) {
+            pdf.append(String.format(Locale.US, "%010d 00000 n \n", offset));
+        }
+        pdf.append("trailer\n<</Size ").append(objects.size() + 1).append(" /Root 1 0 R /Info 3 0 R>>\n");
+        pdf.append("startxref\n").append(xref).append("\n%%EOF");
+        return pdf.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
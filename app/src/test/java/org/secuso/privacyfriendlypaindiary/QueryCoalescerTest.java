@@ -0,0 +1,97 @@
+package org.secuso.privacyfriendlypaindiary;
+
+import org.junit.Test;
+import org.secuso.privacyfriendlypaindiary.viewmodel.QueryCoalescer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kotlin.coroutines.EmptyCoroutineContext;
+import kotlin.jvm.functions.Function0;
+import kotlinx.coroutines.BuildersKt;
+import kotlinx.coroutines.Dispatchers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the query coalescer shares queries and results, but hands out
+ * copies of them.
+ */
+public class QueryCoalescerTest {
+
+    private static final long TTL_MILLIS = 60_000;
+
+    @Test
+    public void get_sharesConcurrentQuery() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer(TTL_MILLIS);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger queries = new AtomicInteger();
+        Function0<List<String>> query = () -> {
+            queries.incrementAndGet();
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new ArrayList<>(Collections.singletonList("entry"));
+        };
+
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            Future<List<String>> first = callers.submit(() -> get(coalescer, "key", query));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            Future<List<String>> second = callers.submit(() -> get(coalescer, "key", query));
+            while (coalescer.getJoinedCount() == 0) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            List<String> firstResult = first.get(5, TimeUnit.SECONDS);
+            List<String> secondResult = second.get(5, TimeUnit.SECONDS);
+            assertEquals(1, queries.get());
+            assertEquals(1, coalescer.getExecutedCount());
+            assertEquals(firstResult, secondResult);
+            // a caller that changes its result does not change the other's
+            assertNotSame(firstResult, secondResult);
+            firstResult.add("changed");
+            assertEquals(Collections.singletonList("entry"), get(coalescer, "key", query));
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void get_servesCachedResultUntilInvalidated() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer(TTL_MILLIS);
+        AtomicInteger queries = new AtomicInteger();
+        Function0<List<String>> query = () -> Collections.singletonList("query " + queries.incrementAndGet());
+
+        assertEquals(Collections.singletonList("query 1"), get(coalescer, "key", query));
+        assertEquals(Collections.singletonList("query 1"), get(coalescer, "key", query));
+        assertEquals(1, coalescer.getCachedCount());
+
+        // within the time to live, but invalidated
+        coalescer.invalidate("key");
+        assertEquals(Collections.singletonList("query 2"), get(coalescer, "key", query));
+        coalescer.invalidate();
+        assertEquals(Collections.singletonList("query 3"), get(coalescer, "key", query));
+        assertEquals(3, coalescer.getExecutedCount());
+    }
+
+    private static List<String> get(QueryCoalescer coalescer, String key, Function0<List<String>> query)
+            throws InterruptedException {
+        return BuildersKt.<List<String>>runBlocking(EmptyCoroutineContext.INSTANCE, (scope, continuation) ->
+                coalescer.<List<String>>get(key, Dispatchers.getIO(), list -> new ArrayList<>(list), query, continuation));
+    }
+}